@@ -113,7 +113,7 @@ public class AdminConsole {
      * @param element the Element
      * @throws Exception if an error occurs.
      */
-    public static void addModel(String name, Element element) throws Exception {
+    public static synchronized void addModel(String name, Element element) throws Exception {
         overrideModels.put(name, element);
         rebuildModel();
     }
@@ -123,7 +123,7 @@ public class AdminConsole {
      *
      * @param name the name.
      */
-    public static void removeModel(String name) {
+    public static synchronized void removeModel(String name) {
         overrideModels.remove(name);
         rebuildModel();
     }
@@ -28,6 +28,9 @@ import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
 import java.sql.Statement;
 import java.util.MissingResourceException;
 
@@ -85,7 +88,8 @@ public class DbConnectionManager {
      * (auto commit is set to true).
      *
      * @return a connection.
-     * @throws SQLException if a SQL exception occurs or no connection was found.
+     * @throws SQLException if a SQL exception occurs or no connection was found. A
+     *         {@link SQLTransientConnectionException} is thrown if no connection was found.
      */
     public static Connection getConnection() throws SQLException {
         if (connectionProvider == null) {
@@ -149,9 +153,35 @@ public class DbConnectionManager {
             }
             retryCnt++;
         } while (retryCnt <= retryMax);
-        throw new SQLException("ConnectionManager.getConnection() " +
+        throw new SQLTransientConnectionException("ConnectionManager.getConnection() " +
                 "failed to obtain a connection after " + retryCnt +" retries. " +
-                "The exception from the last attempt is as follows: "+lastException);
+                "The exception from the last attempt is as follows: "+lastException, lastException);
+    }
+
+    /**
+     * Returns true if a SQL exception means that the database could not be reached, as
+     * opposed to the database rejecting a statement. Statements that failed because of a
+     * connection error may succeed if they are executed again later.
+     *
+     * @param e the SQL exception.
+     * @return true if the database could not be reached.
+     */
+    public static boolean isConnectionError(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientConnectionException ||
+                    cause instanceof SQLNonTransientConnectionException ||
+                    cause instanceof SQLRecoverableException) {
+                return true;
+            }
+            // SQL states of class 08 are connection exceptions
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                if (state != null && state.startsWith("08")) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -20,9 +20,11 @@
 
 package org.jivesoftware.openfire;
 
+import org.jivesoftware.openfire.net.OutgoingServerStanzaHandler;
 import org.jivesoftware.openfire.net.SocketReader;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.Collection;
 
@@ -80,6 +82,19 @@ public interface ConnectionManager {
     public SocketReader createSocketReader(Socket socket, boolean isSecure, ServerPort serverPort,
             boolean useBlockingMode) throws IOException;
 
+    /**
+     * Opens a new connection to a remote server for sending packets. The connection is
+     * read by the NIO connector shared by all the outgoing server connections so no thread
+     * is dedicated to the new connection. The elements sent by the remote server are queued
+     * by the returned handler.
+     *
+     * @param address the address of the remote server.
+     * @return the handler of the elements sent by the remote server over the new connection.
+     * @throws java.io.IOException when the connection could not be established.
+     */
+    public OutgoingServerStanzaHandler createOutgoingServerConnection(InetSocketAddress address)
+            throws IOException;
+
     /**
      * Sets if the port listener for unsecured clients will be available or not. When disabled
      * there won't be a port listener active. Therefore, new clients won't be able to connect to
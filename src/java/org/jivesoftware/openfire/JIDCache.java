@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.xmpp.packet.JID;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+/**
+ * Bounded cache of the JIDs used when routing packets. Creating a JID applies stringprep to
+ * its parts, which is expensive when done for every roster item or session of a presence
+ * broadcast. JIDs are immutable so the cached JIDs are shared by all the callers. The least
+ * recently used JIDs are evicted once the cache holds more JIDs than the value of the
+ * <tt>xmpp.jid.cache.size</tt> property.
+ */
+public class JIDCache {
+
+    private static final String hitsStatKey = "jid_cache_hits";
+    private static final String missesStatKey = "jid_cache_misses";
+
+    private static final ConcurrentMap<String, JID> cache = new ConcurrentLinkedHashMap.Builder<String, JID>()
+            .maximumWeightedCapacity(JiveGlobals.getIntProperty("xmpp.jid.cache.size", 50000))
+            .build();
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong misses = new AtomicLong(0);
+
+    private JIDCache() {
+    }
+
+    /**
+     * Returns the JID represented by the specified string.
+     *
+     * @param jid a valid JID.
+     * @return the JID.
+     * @throws IllegalArgumentException if the JID is not valid.
+     */
+    public static JID get(String jid) {
+        JID answer = cache.get(jid);
+        if (answer != null) {
+            hits.incrementAndGet();
+            return answer;
+        }
+        misses.incrementAndGet();
+        answer = new JID(jid);
+        cache.putIfAbsent(jid, answer);
+        return answer;
+    }
+
+    /**
+     * Returns the JID with the specified node, domain and resource.
+     *
+     * @param node the node or <tt>null</tt> if the JID has no node.
+     * @param domain the domain.
+     * @param resource the resource or <tt>null</tt> if the JID has no resource.
+     * @return the JID.
+     * @throws IllegalArgumentException if the JID is not valid.
+     */
+    public static JID get(String node, String domain, String resource) {
+        if ((node != null && (node.indexOf('@') >= 0 || node.indexOf('/') >= 0)) ||
+                domain.indexOf('@') >= 0 || domain.indexOf('/') >= 0) {
+            // The parts would not be parsed back from the string so let JID report the error
+            return new JID(node, domain, resource);
+        }
+        StringBuilder sb = new StringBuilder(domain.length() + 32);
+        if (node != null) {
+            sb.append(node).append('@');
+        }
+        sb.append(domain);
+        if (resource != null) {
+            sb.append('/').append(resource);
+        }
+        return get(sb.toString());
+    }
+
+    /**
+     * Returns the bare JID of the specified JID.
+     *
+     * @param jid the JID.
+     * @return the bare JID.
+     */
+    public static JID getBare(JID jid) {
+        if (jid.getResource() == null) {
+            return jid;
+        }
+        String bareJID = jid.toBareJID();
+        JID answer = cache.get(bareJID);
+        if (answer != null) {
+            hits.incrementAndGet();
+            return answer;
+        }
+        misses.incrementAndGet();
+        // The parts of the JID were already prepared
+        answer = new JID(jid.getNode(), jid.getDomain(), null, true);
+        cache.putIfAbsent(bareJID, answer);
+        return answer;
+    }
+
+    /**
+     * Returns the number of JIDs that were found in the cache.
+     *
+     * @return the number of JIDs that were found in the cache.
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of JIDs that had to be created since they were not in the cache.
+     *
+     * @return the number of JIDs that had to be created.
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of cached JIDs.
+     *
+     * @return the number of cached JIDs.
+     */
+    public static int size() {
+        return cache.size();
+    }
+
+    public static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(hitsStatKey, new CacheStatistic(hitsStatKey, hits));
+        StatisticsManager.getInstance().addStatistic(missesStatKey, new CacheStatistic(missesStatKey, misses));
+    }
+
+    /**
+     * Statistic that reports the increment of a cache counter since it was last sampled.
+     */
+    private static class CacheStatistic extends i18nStatistic {
+
+        private final AtomicLong counter;
+        private long lastValue = 0;
+
+        public CacheStatistic(String resourceKey, AtomicLong counter) {
+            super(resourceKey, Statistic.Type.rate);
+            this.counter = counter;
+        }
+
+        public synchronized double sample() {
+            final long value = counter.get();
+            final long delta = value - lastValue;
+            lastValue = value;
+            return delta;
+        }
+
+        public boolean isPartialSample() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Offline messages that were not written to the database yet. Messages are kept in a queue
+ * per user until {@link OfflineMessageStore} writes them to the database in batches, and
+ * can be read and deleted while they are waiting to be written.<p>
+ *
+ * A message that is deleted while it is being written is reported back to the writer
+ * once the batch was written so that the writer can delete it from the database.<p>
+ *
+ * When the database rejects a batch its messages are written one by one and the messages
+ * that are still rejected are dropped, so a single bad message does not block the backlog.
+ * Messages are only kept to be written again when the database could not be reached.
+ */
+class OfflineMessageBacklog {
+
+    private static final Logger Log = LoggerFactory.getLogger(OfflineMessageBacklog.class);
+
+    /**
+     * Writes the messages of the backlog to the database.
+     */
+    interface Writer {
+
+        /**
+         * Inserts messages in the database in a single transaction.
+         *
+         * @param messages the messages to insert.
+         * @throws SQLException if the messages were not inserted.
+         */
+        void insert(List<PendingMessage> messages) throws SQLException;
+
+        /**
+         * Deletes messages that were deleted from the backlog while they were being inserted.
+         *
+         * @param messages the messages to delete.
+         */
+        void delete(List<PendingMessage> messages);
+    }
+
+    /**
+     * Offline message waiting to be written to the database.
+     */
+    static class PendingMessage {
+
+        final String username;
+        final long messageID;
+        final Date creationDate;
+        final String stanza;
+        /**
+         * True if the message was deleted (or delivered) before being written.
+         */
+        private boolean deleted = false;
+
+        PendingMessage(String username, long messageID, Date creationDate, String stanza) {
+            this.username = username;
+            this.messageID = messageID;
+            this.creationDate = creationDate;
+            this.stanza = stanza;
+        }
+    }
+
+    /**
+     * Pending messages of each user in the order that they were added.
+     */
+    private final Map<String, List<PendingMessage>> messages = new HashMap<String, List<PendingMessage>>();
+    private int count = 0;
+    private long bytes = 0;
+    private long dropped = 0;
+
+    /**
+     * Adds a message to the backlog unless the backlog is full.
+     *
+     * @param message the message to add.
+     * @param maxCount the max number of messages in the backlog.
+     * @return false if the message was not added because the backlog is full.
+     */
+    synchronized boolean add(PendingMessage message, int maxCount) {
+        if (count >= maxCount) {
+            return false;
+        }
+        List<PendingMessage> userMessages = messages.get(message.username);
+        if (userMessages == null) {
+            userMessages = new ArrayList<PendingMessage>();
+            messages.put(message.username, userMessages);
+        }
+        userMessages.add(message);
+        count++;
+        bytes += message.stanza.length();
+        return true;
+    }
+
+    /**
+     * Returns the number of messages in the backlog.
+     *
+     * @return the number of messages in the backlog.
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns the number of messages that were dropped because the database rejected them.
+     *
+     * @return the number of messages that were dropped.
+     */
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns the size (in bytes) of the XML of the messages in the backlog.
+     *
+     * @return the size of the messages in the backlog.
+     */
+    synchronized long getSize() {
+        return bytes;
+    }
+
+    /**
+     * Returns the size (in bytes) of the XML of the messages of a user in the backlog.
+     *
+     * @param username the username of the user.
+     * @return the size of the messages of the user in the backlog.
+     */
+    synchronized int getSize(String username) {
+        int size = 0;
+        List<PendingMessage> userMessages = messages.get(username);
+        if (userMessages != null) {
+            for (PendingMessage message : userMessages) {
+                size += message.stanza.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the messages of a user in the backlog.
+     *
+     * @param username the username of the user.
+     * @return the messages of the user in the order they were added.
+     */
+    synchronized List<PendingMessage> get(String username) {
+        List<PendingMessage> userMessages = messages.get(username);
+        if (userMessages == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<PendingMessage>(userMessages);
+    }
+
+    /**
+     * Returns the message of a user with the specified creation date.
+     *
+     * @param username the username of the user.
+     * @param creationDate the creation date of the message.
+     * @return the message or <tt>null</tt> if the backlog has no such message.
+     */
+    synchronized PendingMessage get(String username, Date creationDate) {
+        List<PendingMessage> userMessages = messages.get(username);
+        if (userMessages != null) {
+            for (PendingMessage message : userMessages) {
+                if (message.creationDate.equals(creationDate)) {
+                    return message;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes all the messages of a user from the backlog.
+     *
+     * @param username the username of the user.
+     * @return the removed messages in the order they were added.
+     */
+    synchronized List<PendingMessage> remove(String username) {
+        List<PendingMessage> userMessages = messages.remove(username);
+        if (userMessages == null) {
+            return Collections.emptyList();
+        }
+        for (PendingMessage message : userMessages) {
+            deleted(message);
+        }
+        return userMessages;
+    }
+
+    /**
+     * Removes the messages of a user with the specified creation date from the backlog.
+     *
+     * @param username the username of the user.
+     * @param creationDate the creation date of the messages to remove.
+     */
+    synchronized void remove(String username, Date creationDate) {
+        List<PendingMessage> userMessages = messages.get(username);
+        if (userMessages == null) {
+            return;
+        }
+        for (Iterator<PendingMessage> it = userMessages.iterator(); it.hasNext();) {
+            PendingMessage message = it.next();
+            if (message.creationDate.equals(creationDate)) {
+                it.remove();
+                deleted(message);
+            }
+        }
+        if (userMessages.isEmpty()) {
+            messages.remove(username);
+        }
+    }
+
+    private void deleted(PendingMessage message) {
+        message.deleted = true;
+        count--;
+        bytes -= message.stanza.length();
+    }
+
+    /**
+     * Writes messages of the backlog to the database in batches. Only one thread may flush
+     * the backlog at a time.
+     *
+     * @param maxMessages the max number of messages to write.
+     * @param batchSize the max number of messages to write in a single batch.
+     * @param writer the writer that inserts the messages in the database.
+     * @return false if the database could not be reached. The messages that were not
+     *         written are kept in the backlog.
+     */
+    boolean flush(int maxMessages, int batchSize, Writer writer) {
+        int written = 0;
+        while (written < maxMessages) {
+            List<PendingMessage> batch = startFlush(Math.min(batchSize, maxMessages - written));
+            if (batch.isEmpty()) {
+                return true;
+            }
+            List<PendingMessage> inserted = batch;
+            List<PendingMessage> rejected = Collections.emptyList();
+            boolean available = true;
+            try {
+                writer.insert(batch);
+            }
+            catch (SQLException e) {
+                if (DbConnectionManager.isConnectionError(e)) {
+                    Log.warn("Unable to write offline messages, they will be written later: " + e);
+                    return false;
+                }
+                inserted = new ArrayList<PendingMessage>(batch.size());
+                rejected = new ArrayList<PendingMessage>();
+                if (batch.size() == 1) {
+                    reject(batch.get(0), e, rejected);
+                }
+                // Write the messages one by one to find the ones that the database rejects
+                for (int i = 0; i < batch.size() && batch.size() > 1 && available; i++) {
+                    PendingMessage message = batch.get(i);
+                    try {
+                        writer.insert(Collections.singletonList(message));
+                        inserted.add(message);
+                    }
+                    catch (SQLException e1) {
+                        if (DbConnectionManager.isConnectionError(e1)) {
+                            Log.warn("Unable to write offline messages, they will be written later: " + e1);
+                            available = false;
+                        }
+                        else {
+                            reject(message, e1, rejected);
+                        }
+                    }
+                }
+            }
+            List<PendingMessage> deleted = endFlush(inserted, rejected);
+            if (!deleted.isEmpty()) {
+                // The messages were delivered or deleted while they were being written
+                writer.delete(deleted);
+            }
+            if (!available) {
+                return false;
+            }
+            written += batch.size();
+        }
+        return true;
+    }
+
+    private static void reject(PendingMessage message, SQLException e, List<PendingMessage> rejected) {
+        Log.error("Dropping offline message " + message.messageID + " of username: " + message.username +
+                " that the database rejected", e);
+        rejected.add(message);
+    }
+
+    /**
+     * Returns the next batch of messages to write to the database. The messages stay in the
+     * backlog (and are readable) until {@link #endFlush(List, List)} is invoked. Only one
+     * batch may be written at a time.
+     *
+     * @param maxCount the max number of messages in the batch.
+     * @return the messages to write or an empty list if there are none.
+     */
+    synchronized List<PendingMessage> startFlush(int maxCount) {
+        List<PendingMessage> batch = new ArrayList<PendingMessage>(Math.min(count, maxCount));
+        for (List<PendingMessage> userMessages : messages.values()) {
+            for (PendingMessage message : userMessages) {
+                if (batch.size() >= maxCount) {
+                    return batch;
+                }
+                batch.add(message);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Finishes writing a batch of messages. Written and rejected messages are removed from
+     * the backlog. The other messages of the batch will be written by the next flush.
+     *
+     * @param written the messages of the batch that were written to the database.
+     * @param rejected the messages of the batch that the database rejected.
+     * @return the written messages that were deleted while being written and that must
+     *         now be deleted from the database.
+     */
+    synchronized List<PendingMessage> endFlush(List<PendingMessage> written, List<PendingMessage> rejected) {
+        List<PendingMessage> deleted = new ArrayList<PendingMessage>();
+        for (PendingMessage message : written) {
+            if (message.deleted) {
+                deleted.add(message);
+                continue;
+            }
+            removeFlushed(message);
+        }
+        for (PendingMessage message : rejected) {
+            if (!message.deleted) {
+                removeFlushed(message);
+            }
+            dropped++;
+        }
+        return deleted;
+    }
+
+    private void removeFlushed(PendingMessage message) {
+        List<PendingMessage> userMessages = messages.get(message.username);
+        userMessages.remove(message);
+        if (userMessages.isEmpty()) {
+            messages.remove(message.username);
+        }
+        count--;
+        bytes -= message.stanza.length();
+    }
+}
@@ -26,14 +26,17 @@ import org.dom4j.QName;
 import org.dom4j.io.SAXReader;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.SequenceManager;
+import org.jivesoftware.openfire.OfflineMessageBacklog.PendingMessage;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.event.UserEventDispatcher;
 import org.jivesoftware.openfire.event.UserEventListener;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.XMPPDateTimeFormat;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -46,9 +49,13 @@ import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -57,7 +64,17 @@ import java.util.regex.Pattern;
  * sent to the user while they were unavailable. The user can retrieve their messages by
  * setting their presence to "available". The messages will then be delivered normally.
  * Offline message storage is optional, in which case a null implementation is returned that
- * always throws UnauthorizedException when adding messages to the store.
+ * always throws UnauthorizedException when adding messages to the store.<p>
+ *
+ * Messages are written to the database in the background. Added messages are queued in
+ * memory and written in batches of up to <tt>xmpp.offline.flush.max</tt> messages, at
+ * least every <tt>xmpp.offline.flush.interval</tt> milliseconds. Queued messages are
+ * returned when reading the messages of a user. At most <tt>xmpp.offline.backlog.max</tt>
+ * messages are queued; once the queue is full the threads that add messages write the
+ * queue themselves, unless the database can not be reached, in which case the messages
+ * that do not fit in the queue are lost. Messages that the database rejects are logged
+ * and dropped. Setting <tt>xmpp.offline.flush.max</tt> to 0 writes each message as soon
+ * as it is added.
  *
  * @author Iain Shigeoka
  */
@@ -69,7 +86,9 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         "INSERT INTO ofOffline (username, messageID, creationDate, messageSize, stanza) " +
         "VALUES (?, ?, ?, ?, ?)";
     private static final String LOAD_OFFLINE =
-        "SELECT stanza, creationDate FROM ofOffline WHERE username=?";
+        "SELECT stanza, creationDate, messageID FROM ofOffline WHERE username=?";
+    private static final String LOAD_AND_DELETE_OFFLINE =
+        "DELETE FROM ofOffline WHERE username=? RETURNING stanza, creationDate, messageID";
     private static final String LOAD_OFFLINE_MESSAGE =
         "SELECT stanza FROM ofOffline WHERE username=? AND creationDate=?";
     private static final String SELECT_SIZE_OFFLINE =
@@ -80,9 +99,59 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         "DELETE FROM ofOffline WHERE username=?";
     private static final String DELETE_OFFLINE_MESSAGE =
         "DELETE FROM ofOffline WHERE username=? AND creationDate=?";
+    private static final String DELETE_OFFLINE_MESSAGE_ID =
+        "DELETE FROM ofOffline WHERE username=? AND messageID=?";
 
     private static final int POOL_SIZE = 10;
-    
+
+    /**
+     * Max number of messages written to the database in a single batch. When the
+     * backlog holds this many messages it is written without waiting for the timer.
+     */
+    private static final int FLUSH_MAX = JiveGlobals.getIntProperty("xmpp.offline.flush.max", 100);
+
+    /**
+     * Number of milliseconds between writes of the backlog to the database.
+     */
+    private static final long FLUSH_INTERVAL = Math.max(10, JiveGlobals.getLongProperty("xmpp.offline.flush.interval", 500));
+
+    /**
+     * Max number of messages that are waiting to be written to the database.
+     */
+    private static final int BACKLOG_MAX = JiveGlobals.getIntProperty("xmpp.offline.backlog.max", 10000);
+
+    /**
+     * Messages that were not written to the database yet.
+     */
+    private final OfflineMessageBacklog backlog = new OfflineMessageBacklog();
+
+    /**
+     * Lock held while writing the backlog so that a single batch is written at a time.
+     */
+    private final Lock flushLock = new ReentrantLock();
+
+    /**
+     * True when a task was submitted for writing the backlog since it reached its batch size.
+     */
+    private final AtomicBoolean flushSubmitted = new AtomicBoolean(false);
+
+    /**
+     * True when the last write of the backlog failed because the database could not be reached.
+     */
+    private volatile boolean databaseUnavailable = false;
+
+    private final OfflineMessageBacklog.Writer writer = new OfflineMessageBacklog.Writer() {
+        public void insert(List<PendingMessage> messages) throws SQLException {
+            insertMessages(messages);
+        }
+
+        public void delete(List<PendingMessage> messages) {
+            deleteMessages(messages);
+        }
+    };
+
+    private TimerTask flushTask;
+
     private Cache<String, Integer> sizeCache;
 
     /**
@@ -143,24 +212,31 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         // Get the message in XML format.
         String msgXML = message.getElement().asXML();
 
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        try {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(INSERT_OFFLINE);
-            pstmt.setString(1, username);
-            pstmt.setLong(2, messageID);
-            pstmt.setString(3, StringUtils.dateToMillis(new java.util.Date()));
-            pstmt.setInt(4, msgXML.length());
-            pstmt.setString(5, msgXML);
-            pstmt.executeUpdate();
+        PendingMessage pending = new PendingMessage(username, messageID, new Date(), msgXML);
+        if (FLUSH_MAX <= 0) {
+            if (!insertMessage(pending)) {
+                return;
+            }
         }
-
-        catch (Exception e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+        else if (!backlog.add(pending, BACKLOG_MAX)) {
+            // The database is not keeping up so slow down the senders. Writing the backlog
+            // is pointless while the database can not be reached.
+            if (databaseUnavailable || !flushBacklog(FLUSH_MAX)) {
+                Log.error("Offline message of username: " + username + " was lost. The database can " +
+                        "not be reached and " + backlog.size() + " messages are waiting to be written.");
+                return;
+            }
+            if (!backlog.add(pending, BACKLOG_MAX) && !insertMessage(pending)) {
+                return;
+            }
         }
-        finally {
-            DbConnectionManager.closeConnection(pstmt, con);
+        else if (backlog.size() >= FLUSH_MAX && flushSubmitted.compareAndSet(false, true)) {
+            TaskEngine.getInstance().submit(new Runnable() {
+                public void run() {
+                    flushSubmitted.set(false);
+                    flushBacklog(Integer.MAX_VALUE);
+                }
+            });
         }
 
         // Update the cached size if it exists.
@@ -181,78 +257,145 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return An iterator of packets containing all offline messages.
      */
     public Collection<OfflineMessage> getMessages(String username, boolean delete) {
+        // Take the messages that were not written yet before reading the database. Messages
+        // that are being written right now are then either read from the database or found
+        // in the backlog (and removed from the database by the writer).
+        List<PendingMessage> pending = delete ? backlog.remove(username) : backlog.get(username);
         List<OfflineMessage> messages = new ArrayList<OfflineMessage>();
+        Set<Long> messageIDs = new HashSet<Long>();
         SAXReader xmlReader = null;
+        try {
+            // Get a sax reader from the pool
+            xmlReader = xmlReaders.take();
+            loadMessages(username, delete, xmlReader, messages, messageIDs);
+            // Add the messages that were not written to the database yet
+            for (PendingMessage message : pending) {
+                if (messageIDs.contains(message.messageID)) {
+                    continue;
+                }
+                try {
+                    messages.add(createOfflineMessage(xmlReader, message.creationDate, message.stanza));
+                }
+                catch (DocumentException e) {
+                    Log.error("Error parsing offline message of username: " + username, e);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Log.error("Error retrieving offline messages of username: " + username, e);
+        }
+        finally {
+            // Return the sax reader to the pool
+            if (xmlReader != null) {
+                xmlReaders.add(xmlReader);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Loads the offline messages of a user from the database. When the messages are deleted
+     * PostgreSQL databases load and delete the messages with a single statement, other
+     * databases load and delete the messages in the same transaction.
+     *
+     * @param username the username of the user who's messages you'd like to receive.
+     * @param delete true if the offline messages should be deleted.
+     * @param xmlReader the reader for parsing the stored messages.
+     * @param messages the list where the loaded messages are added.
+     * @param messageIDs the set where the IDs of the loaded messages are added.
+     */
+    private void loadMessages(String username, boolean delete, SAXReader xmlReader,
+            List<OfflineMessage> messages, Set<Long> messageIDs) {
+        boolean loadAndDelete = delete &&
+                DbConnectionManager.getDatabaseType() == DbConnectionManager.DatabaseType.postgresql;
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
+        boolean abortTransaction = false;
         try {
-            // Get a sax reader from the pool
-            xmlReader = xmlReaders.take();
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(LOAD_OFFLINE);
+            con = delete ? DbConnectionManager.getTransactionConnection() : DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(loadAndDelete ? LOAD_AND_DELETE_OFFLINE : LOAD_OFFLINE);
             pstmt.setString(1, username);
             rs = pstmt.executeQuery();
             while (rs.next()) {
                 String msgXML = rs.getString(1);
                 Date creationDate = new Date(Long.parseLong(rs.getString(2).trim()));
-                OfflineMessage message;
-                try {
-                    message = new OfflineMessage(creationDate,
-                            xmlReader.read(new StringReader(msgXML)).getRootElement());
-                } catch (DocumentException e) {
-                    // Try again after removing invalid XML chars (e.g. &#12;)
-                    Matcher matcher = pattern.matcher(msgXML);
-                    if (matcher.find()) {
-                        msgXML = matcher.replaceAll("");
-                    }
-                    message = new OfflineMessage(creationDate,
-                            xmlReader.read(new StringReader(msgXML)).getRootElement());
-                }
-
-                // if there is already a delay stamp, we shouldn't add another.
-                Element delaytest = message.getChildElement("delay", "urn:xmpp:delay");
-                if (delaytest == null) {
-                    // Add a delayed delivery (XEP-0203) element to the message.
-                    Element delay = message.addChildElement("delay", "urn:xmpp:delay");
-                    delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                    delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
-                    // Add a legacy delayed delivery (XEP-0091) element to the message. XEP is obsolete and support should be dropped in future.
-                    delay = message.addChildElement("x", "jabber:x:delay");
-                    delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                    delay.addAttribute("stamp", XMPPDateTimeFormat.formatOld(creationDate));
-                }
-                messages.add(message);
+                messageIDs.add(rs.getLong(3));
+                messages.add(createOfflineMessage(xmlReader, creationDate, msgXML));
             }
             // Check if the offline messages loaded should be deleted, and that there are
             // messages to delete.
-            if (delete && !messages.isEmpty()) {
+            if (delete && !loadAndDelete && !messages.isEmpty()) {
                 PreparedStatement pstmt2 = null;
                 try {
                     pstmt2 = con.prepareStatement(DELETE_OFFLINE);
                     pstmt2.setString(1, username);
                     pstmt2.executeUpdate();
-                    removeUsernameFromSizeCache(username);
                 }
                 catch (Exception e) {
                     Log.error("Error deleting offline messages of username: " + username, e);
                 }
                 finally {
                     DbConnectionManager.closeStatement(pstmt2);
-                } 
+                }
             }
         }
         catch (Exception e) {
             Log.error("Error retrieving offline messages of username: " + username, e);
+            abortTransaction = true;
         }
         finally {
-            DbConnectionManager.closeConnection(rs, pstmt, con);
-            // Return the sax reader to the pool
-            if (xmlReader != null) {
-                xmlReaders.add(xmlReader);
+            if (delete) {
+                DbConnectionManager.closeResultSet(rs);
+                DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+            }
+            else {
+                DbConnectionManager.closeConnection(rs, pstmt, con);
             }
         }
-        return messages;
+        if (delete) {
+            removeUsernameFromSizeCache(username);
+        }
+    }
+
+    /**
+     * Parses a stored message and adds the delayed delivery information to it.
+     *
+     * @param xmlReader the reader for parsing the stored message.
+     * @param creationDate the date when the message was stored.
+     * @param msgXML the stored message.
+     * @return the parsed message.
+     * @throws DocumentException if the stored message is not valid XML.
+     */
+    private OfflineMessage createOfflineMessage(SAXReader xmlReader, Date creationDate, String msgXML)
+            throws DocumentException {
+        OfflineMessage message;
+        try {
+            message = new OfflineMessage(creationDate,
+                    xmlReader.read(new StringReader(msgXML)).getRootElement());
+        } catch (DocumentException e) {
+            // Try again after removing invalid XML chars (e.g. &#12;)
+            Matcher matcher = pattern.matcher(msgXML);
+            if (matcher.find()) {
+                msgXML = matcher.replaceAll("");
+            }
+            message = new OfflineMessage(creationDate,
+                    xmlReader.read(new StringReader(msgXML)).getRootElement());
+        }
+
+        // if there is already a delay stamp, we shouldn't add another.
+        Element delaytest = message.getChildElement("delay", "urn:xmpp:delay");
+        if (delaytest == null) {
+            // Add a delayed delivery (XEP-0203) element to the message.
+            Element delay = message.addChildElement("delay", "urn:xmpp:delay");
+            delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
+            delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
+            // Add a legacy delayed delivery (XEP-0091) element to the message. XEP is obsolete and support should be dropped in future.
+            delay = message.addChildElement("x", "jabber:x:delay");
+            delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
+            delay.addAttribute("stamp", XMPPDateTimeFormat.formatOld(creationDate));
+        }
+        return message;
     }
 
     /**
@@ -272,6 +415,11 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         try {
             // Get a sax reader from the pool
             xmlReader = xmlReaders.take();
+            PendingMessage pending = backlog.get(username, creationDate);
+            if (pending != null) {
+                // The message was not written to the database yet
+                return createOfflineMessage(xmlReader, creationDate, pending.stanza);
+            }
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(LOAD_OFFLINE_MESSAGE);
             pstmt.setString(1, username);
@@ -311,6 +459,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @param username the username of the user who's messages are going to be deleted.
      */
     public void deleteMessages(String username) {
+        backlog.remove(username);
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
@@ -344,6 +493,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @param creationDate the date when the offline message was stored in the database.
      */
     public void deleteMessage(String username, Date creationDate) {
+        backlog.remove(username, creationDate);
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
@@ -391,6 +541,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             if (rs.next()) {
                 size = rs.getInt(1);
             }
+            size += backlog.getSize(username);
             // Add the value to cache.
             sizeCache.put(username, size);
         }
@@ -428,7 +579,112 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
-        return size;
+        return size + (int) backlog.getSize();
+    }
+
+    /**
+     * Writes messages of the backlog to the database in batches.
+     *
+     * @param maxMessages the max number of messages to write.
+     * @return false if the database could not be reached.
+     * @see DbConnectionManager#isConnectionError(SQLException)
+     */
+    private boolean flushBacklog(int maxMessages) {
+        flushLock.lock();
+        try {
+            databaseUnavailable = !backlog.flush(maxMessages, FLUSH_MAX, writer);
+            return !databaseUnavailable;
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts a message in the database right away.
+     *
+     * @param message the message to insert.
+     * @return true if the message was inserted.
+     */
+    private boolean insertMessage(PendingMessage message) {
+        try {
+            insertMessages(Collections.singletonList(message));
+            return true;
+        }
+        catch (SQLException e) {
+            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+            return false;
+        }
+    }
+
+    /**
+     * Inserts messages in the database in a single transaction.
+     *
+     * @param messages the messages to insert.
+     * @throws SQLException if the messages were not inserted.
+     */
+    private void insertMessages(List<PendingMessage> messages) throws SQLException {
+        boolean batch = messages.size() > 1 && DbConnectionManager.isBatchUpdatesSupported();
+        Connection con = DbConnectionManager.getTransactionConnection();
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = true;
+        try {
+            pstmt = con.prepareStatement(INSERT_OFFLINE);
+            for (PendingMessage message : messages) {
+                pstmt.setString(1, message.username);
+                pstmt.setLong(2, message.messageID);
+                pstmt.setString(3, StringUtils.dateToMillis(message.creationDate));
+                pstmt.setInt(4, message.stanza.length());
+                pstmt.setString(5, message.stanza);
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+            abortTransaction = false;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+    }
+
+    /**
+     * Deletes messages from the database using their IDs.
+     *
+     * @param messages the messages to delete.
+     */
+    private void deleteMessages(List<PendingMessage> messages) {
+        boolean batch = messages.size() > 1 && DbConnectionManager.isBatchUpdatesSupported();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(DELETE_OFFLINE_MESSAGE_ID);
+            for (PendingMessage message : messages) {
+                pstmt.setString(1, message.username);
+                pstmt.setLong(2, message.messageID);
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+        }
+        catch (SQLException e) {
+            Log.error("Error deleting offline messages", e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(pstmt, con);
+        }
     }
 
     public void userCreated(User user, Map params) {
@@ -456,11 +712,29 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         // Add this module as a user event listener so we can delete
         // all offline messages when a user is deleted
         UserEventDispatcher.addListener(this);
+        // Periodically write the messages that were not written yet
+        if (FLUSH_MAX > 0) {
+            flushTask = new TimerTask() {
+                @Override
+                public void run() {
+                    flushBacklog(Integer.MAX_VALUE);
+                }
+            };
+            TaskEngine.getInstance().schedule(flushTask, FLUSH_INTERVAL, FLUSH_INTERVAL);
+        }
     }
 
     @Override
 	public void stop() {
         super.stop();
+        if (flushTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(flushTask);
+            flushTask = null;
+        }
+        // Write the messages that were not written yet
+        if (!flushBacklog(Integer.MAX_VALUE)) {
+            Log.error(backlog.size() + " offline messages could not be written to the database and were lost.");
+        }
         // Clean up the pool of sax readers
         xmlReaders.clear();
         // Remove this module as a user event listener
@@ -20,6 +20,7 @@
 
 package org.jivesoftware.openfire;
 
+import org.jivesoftware.openfire.nio.PacketTemplate;
 import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
@@ -156,6 +157,23 @@ public interface RoutingTable {
      */
     void routePacket(JID jid, Packet packet, boolean fromServer) throws PacketException;
 
+    /**
+     * Routes a packet that is being sent to many recipients. The serialized form of the packet
+     * will be used when delivering the packet to local client sessions so that the packet is
+     * not serialized for each recipient. Besides that this method behaves exactly as
+     * {@link #routePacket(JID, Packet, boolean)}.
+     *
+     * @param jid the recipient of the packet to route.
+     * @param packet the packet to route.
+     * @param fromServer true if the packet was created by the server. This packets should
+     *        always be delivered
+     * @param template the serialized form of the packet or <tt>null</tt> if none.
+     * @throws PacketException thrown if the packet is malformed (results in the sender's
+     *      session being shutdown).
+     */
+    void routePacket(JID jid, Packet packet, boolean fromServer, PacketTemplate template)
+            throws PacketException;
+
     /**
      * Returns true if a registered user or anonymous user with the specified full JID is
      * currently logged. When running inside of a cluster a true value will be returned
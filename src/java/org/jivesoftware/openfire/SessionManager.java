@@ -33,6 +33,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
@@ -72,9 +74,12 @@ import org.jivesoftware.openfire.spi.BasicStreamIDFactory;
 import org.jivesoftware.openfire.streammanagement.StreamManager;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.Log;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.XMPPDateTimeFormat;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -168,6 +173,12 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
      */
     private Cache<String, Set<String>> validatedDomainsCache;
 
+    /**
+     * Local client sessions whose stream can be resumed (XEP-0198).
+     * Key: resumption id of the stream, Value: the session.
+     */
+    private final Map<String, LocalClientSession> resumableSessions = new ConcurrentHashMap<String, LocalClientSession>();
+
     private ClientSessionListener clientSessionListener = new ClientSessionListener();
     private ComponentSessionListener componentSessionListener = new ComponentSessionListener();
     private IncomingServerSessionListener incomingServerListener = new IncomingServerSessionListener();
@@ -245,7 +256,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         if (locator != null) {
             for (Map.Entry<String, byte[]> entry : multiplexerSessionsCache.entrySet()) {
                 if (!server.getNodeID().equals(entry.getValue())) {
-                    sessions.add(locator.getConnectionMultiplexerSession(entry.getValue(), new JID(entry.getKey())));
+                    sessions.add(locator.getConnectionMultiplexerSession(entry.getValue(), JIDCache.get(entry.getKey())));
                 }
             }
         }
@@ -265,7 +276,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         List<ConnectionMultiplexerSession> sessions = new ArrayList<ConnectionMultiplexerSession>();
         // Add sessions of CMs connected to this JVM
         for (String address : localSessionManager.getConnnectionManagerSessions().keySet()) {
-            JID jid = new JID(address);
+            JID jid = JIDCache.get(address);
             if (domain.equals(jid.getDomain())) {
                 sessions.add(localSessionManager.getConnnectionManagerSessions().get(address));
             }
@@ -275,10 +286,10 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         if (locator != null) {
             for (Map.Entry<String, byte[]> entry : multiplexerSessionsCache.entrySet()) {
                 if (!server.getNodeID().equals(entry.getValue())) {
-                    JID jid = new JID(entry.getKey());
+                    JID jid = JIDCache.get(entry.getKey());
                     if (domain.equals(jid.getDomain())) {
                         sessions.add(
-                                locator.getConnectionMultiplexerSession(entry.getValue(), new JID(entry.getKey())));
+                                locator.getConnectionMultiplexerSession(entry.getValue(), JIDCache.get(entry.getKey())));
                     }
                 }
             }
@@ -377,6 +388,101 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         return session;
     }
 
+    /**
+     * Registers a client session whose stream can be resumed after the connection was broken.
+     *
+     * @param session the session that enabled stream resumption.
+     * @return the id to be used by the client for resuming the stream.
+     */
+    public String addResumableSession(LocalClientSession session) {
+        String id;
+        do {
+            id = StringUtils.randomString(40);
+        }
+        while (resumableSessions.putIfAbsent(id, session) != null);
+        return id;
+    }
+
+    /**
+     * Prevents a client session from being resumed. If the connection of the session is
+     * already broken then the session is closed.
+     *
+     * @param session the session that can no longer be resumed.
+     * @return true if the session was waiting to be resumed and was closed.
+     */
+    public boolean removeResumableSession(LocalClientSession session) {
+        StreamManager streamManager = session.getStreamManager();
+        synchronized (streamManager) {
+            String id = streamManager.getResumptionId();
+            if (id == null) {
+                return false;
+            }
+            resumableSessions.remove(id);
+            streamManager.setResumable(null, 0);
+            if (!session.isDetached()) {
+                return false;
+            }
+            session.setDetached(false);
+        }
+        clientSessionListener.sessionClosed(session);
+        return true;
+    }
+
+    /**
+     * Resumes a client session on the connection of a new stream (XEP-0198). The new stream
+     * must be authenticated as the same user and must not have bound a resource. Once resumed
+     * the session replaces the session that was created for the new stream.
+     *
+     * @param session the session of the new stream.
+     * @param resume the &lt;resume/&gt; element sent by the client.
+     * @return the resumed session or <tt>null</tt> if the stream could not be resumed.
+     * @throws UnauthorizedException if a permission error was detected.
+     */
+    public LocalClientSession resumeClientSession(LocalClientSession session, Element resume)
+            throws UnauthorizedException {
+        session.getStreamManager().setNamespace(resume.getNamespace().getStringValue());
+        if (session.getAuthToken() == null || session.getStatus() == Session.STATUS_AUTHENTICATED) {
+            // Streams can only be resumed after authentication and before binding a resource
+            session.getStreamManager().sendUnexpectedError();
+            return null;
+        }
+        String previd = resume.attributeValue("previd");
+        LocalClientSession previous = previd == null ? null : resumableSessions.get(previd);
+        String username = session.getAuthToken().getUsername();
+        if (previous == null || username == null || !username.equals(previous.getAddress().getNode())) {
+            session.getStreamManager().sendItemNotFoundError();
+            return null;
+        }
+
+        Connection connection = session.getConnection();
+        StreamManager streamManager = previous.getStreamManager();
+        synchronized (streamManager) {
+            if (!previd.equals(streamManager.getResumptionId())) {
+                // The session was closed while resuming it
+                session.getStreamManager().sendItemNotFoundError();
+                return null;
+            }
+            if (!previous.isDetached()) {
+                // The client noticed that the stream was broken before the server did
+                Connection oldConnection = previous.getConnection();
+                previous.setDetached(true);
+                oldConnection.removeCloseListener(clientSessionListener);
+                oldConnection.close();
+            }
+            // Move the new connection to the resumed session
+            connection.removeCloseListener(clientSessionListener);
+            connection.init(previous);
+            streamManager.processClientAcknowledgement(resume);
+            previous.reattach(connection);
+            connection.registerCloseListener(clientSessionListener, previous);
+        }
+
+        // The session of the new stream is no longer needed
+        localSessionManager.getPreAuthenticatedSessions().remove(session.getAddress().getResource());
+        connectionsCounter.decrementAndGet();
+        return previous;
+    }
+
     public LocalComponentSession createComponentSession(JID address, Connection conn) {
         if (serverName == null) {
             throw new IllegalStateException("Server not initialized");
@@ -631,7 +737,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         }
         Presence presence;
         // Get list of sessions of the same user
-        JID searchJID = new JID(session.getAddress().getNode(), session.getAddress().getDomain(), null);
+        JID searchJID = JIDCache.getBare(session.getAddress());
         List<JID> addresses = routingTable.getRoutes(searchJID, null);
         for (JID address : addresses) {
             if (address.equals(session.getAddress())) {
@@ -658,7 +764,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
             return;
         }
         // Get list of sessions of the same user
-        JID searchJID = new JID(originatingResource.getNode(), originatingResource.getDomain(), null);
+        JID searchJID = JIDCache.getBare(originatingResource);
         List<JID> addresses = routingTable.getRoutes(searchJID, null);
         for (JID address : addresses) {
         	if (!originatingResource.equals(address)) {
@@ -736,7 +842,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
 
     public boolean isActiveRoute(String username, String resource) {
         boolean hasRoute = false;
-        Session session = routingTable.getClientRoute(new JID(username, serverName, resource));
+        Session session = routingTable.getClientRoute(JIDCache.get(username, serverName, resource));
         // Makes sure the session is still active
         if (session != null && !session.isClosed()) {
             hasRoute = session.validate();
@@ -895,7 +1001,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
     public Collection<ClientSession> getSessions(String username) {
         List<ClientSession> sessionList = new ArrayList<ClientSession>();
         if (username != null && serverName != null) {
-            List<JID> addresses = routingTable.getRoutes(new JID(username, serverName, null, true), null);
+            List<JID> addresses = routingTable.getRoutes(JIDCache.get(username, serverName, null), null);
             for (JID address : addresses) {
                 sessionList.add(routingTable.getClientRoute(address));
             }
@@ -972,12 +1078,12 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
      * @return number of available sessions for a user.
      */
     public int getActiveSessionCount(String username) {
-        return routingTable.getRoutes(new JID(username, serverName, null, true), null).size();
+        return routingTable.getRoutes(JIDCache.get(username, serverName, null), null).size();
     }
 
     public int getSessionCount(String username) {
         // TODO Count ALL sessions not only available
-        return routingTable.getRoutes(new JID(username, serverName, null, true), null).size();
+        return routingTable.getRoutes(JIDCache.get(username, serverName, null), null).size();
     }
 
     /**
@@ -994,7 +1100,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         if (locator != null) {
             for (Map.Entry<String, byte[]> entry : componentSessionsCache.entrySet()) {
                 if (!server.getNodeID().equals(entry.getValue())) {
-                    sessions.add(locator.getComponentSession(entry.getValue(), new JID(entry.getKey())));
+                    sessions.add(locator.getComponentSession(entry.getValue(), JIDCache.get(entry.getKey())));
                 }
             }
         }
@@ -1019,7 +1125,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         if (locator != null) {
             byte[] nodeID = componentSessionsCache.get(domain);
             if (nodeID != null) {
-                return locator.getComponentSession(nodeID, new JID(domain));
+                return locator.getComponentSession(nodeID, JIDCache.get(domain));
             }
         }
         return null;
@@ -1068,7 +1174,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
      */
     public void userBroadcast(String username, Packet packet) throws PacketException {
         // TODO broadcast to ALL sessions of the user and not only available
-        for (JID address : routingTable.getRoutes(new JID(username, serverName, null), null)) {
+        for (JID address : routingTable.getRoutes(JIDCache.get(username, serverName, null), null)) {
             packet.setTo(address);
             routingTable.routePacket(address, packet, true);
         }
@@ -1233,8 +1339,57 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
          * @param handback The session that just closed
          */
         public void onConnectionClose(Object handback) {
+            LocalClientSession session = (LocalClientSession) handback;
+            if (!detach(session)) {
+                sessionClosed(session);
+            }
+        }
+
+        /**
+         * Keeps a session whose connection was broken so that the client can resume the stream.
+         * The session is closed if the stream is not resumed before it times out.
+         *
+         * @param session the session whose connection was closed.
+         * @return true if the session is waiting to be resumed.
+         */
+        private boolean detach(final LocalClientSession session) {
+            if (serverName == null || server.isShuttingDown()) {
+                return false;
+            }
+            final StreamManager streamManager = session.getStreamManager();
+            final Connection brokenConnection;
+            synchronized (streamManager) {
+                if (!streamManager.isEnabled() || !streamManager.isResumable() || session.isDetached()) {
+                    return false;
+                }
+                session.setDetached(true);
+                brokenConnection = session.getConnection();
+            }
+            TaskEngine.getInstance().schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (streamManager) {
+                        // Do nothing if the stream was resumed (and maybe broken again) in the meantime
+                        if (!session.isDetached() || session.getConnection() != brokenConnection) {
+                            return;
+                        }
+                        resumableSessions.remove(streamManager.getResumptionId());
+                        streamManager.setResumable(null, 0);
+                        session.setDetached(false);
+                    }
+                    sessionClosed(session);
+                }
+            }, streamManager.getMaxResumptionTime() * JiveConstants.SECOND);
+            return true;
+        }
+
+        /**
+         * Removes a session that was closed.
+         *
+         * @param session the session that was closed.
+         */
+        void sessionClosed(LocalClientSession session) {
             try {
-                LocalClientSession session = (LocalClientSession) handback;
                 try {
                     if ((session.getPresence().isAvailable() || !session.wasAvailable()) &&
                             routingTable.hasClientRoute(session.getAddress())) {
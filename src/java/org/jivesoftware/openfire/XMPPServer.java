@@ -87,12 +87,16 @@ import org.jivesoftware.openfire.handler.IQVersionHandler;
 import org.jivesoftware.openfire.handler.IQvCardHandler;
 import org.jivesoftware.openfire.handler.PresenceSubscribeHandler;
 import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
+import org.jivesoftware.openfire.interceptor.InterceptorManager;
 import org.jivesoftware.openfire.lockout.LockOutManager;
 import org.jivesoftware.openfire.mediaproxy.MediaProxyService;
 import org.jivesoftware.openfire.muc.MultiUserChatManager;
 import org.jivesoftware.openfire.net.MulticastDNSService;
 import org.jivesoftware.openfire.net.SSLConfig;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
+import org.jivesoftware.openfire.nio.IoBufferPool;
+import org.jivesoftware.openfire.nio.OutboundQueue;
+import org.jivesoftware.openfire.nio.WriteCoalescingFilter;
 import org.jivesoftware.openfire.pep.IQPEPHandler;
 import org.jivesoftware.openfire.pep.IQPEPOwnerHandler;
 import org.jivesoftware.openfire.pubsub.PubSubModule;
@@ -515,6 +519,11 @@ public class XMPPServer {
             }
             // Initialize statistics
             ServerTrafficCounter.initStatistics();
+            IoBufferPool.initStatistics();
+            JIDCache.initStatistics();
+            WriteCoalescingFilter.initStatistics();
+            OutboundQueue.initStatistics();
+            InterceptorManager.initStatistics();
 
             // Load plugins (when in setup mode only the admin console will be loaded)
             pluginManager.start();
@@ -22,9 +22,9 @@ package org.jivesoftware.openfire.container;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -40,8 +40,8 @@ public class PluginCacheRegistry {
 
     private static final PluginCacheRegistry instance = new PluginCacheRegistry();
 
-    private Map<String, CacheInfo> extraCacheMappings = new HashMap<String, CacheInfo>();
-    private Map<String, List<CacheInfo>> pluginCaches = new HashMap<String, List<CacheInfo>>();
+    private Map<String, CacheInfo> extraCacheMappings = new ConcurrentHashMap<String, CacheInfo>();
+    private Map<String, List<CacheInfo>> pluginCaches = new ConcurrentHashMap<String, List<CacheInfo>>();
 
     public static PluginCacheRegistry getInstance() {
         return instance;
@@ -56,7 +56,7 @@ public class PluginCacheRegistry {
      * @param pluginName the name of the plugin which will use the cache.
      * @param info the cache configuration data.
      */
-    public void registerCache(String pluginName, CacheInfo info) {
+    public synchronized void registerCache(String pluginName, CacheInfo info) {
         extraCacheMappings.put(info.getCacheName(), info);
         List<CacheInfo> caches = pluginCaches.get(pluginName);
 
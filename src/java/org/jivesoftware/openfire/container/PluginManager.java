@@ -40,11 +40,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.zip.ZipFile;
@@ -56,6 +64,7 @@ import org.dom4j.io.SAXReader;
 import org.jivesoftware.admin.AdminConsole;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.Version;
 import org.slf4j.Logger;
@@ -69,6 +78,12 @@ import org.slf4j.LoggerFactory;
  *
  * <tt>XMPPServer.getInstance().getPluginManager()</tt>
  *
+ * <p>Plugins are loaded one at a time by default. Setting the <tt>plugins.loading.threads</tt>
+ * property to more than one thread extracts plugin JAR files in parallel and initializes
+ * in parallel the plugins that do not depend on each other. A child plugin is always
+ * initialized after its parent plugin, and the database schemas of plugins are always
+ * checked (and upgraded) one at a time.</p>
+ *
  * @author Matt Tucker
  * @see Plugin
  * @see org.jivesoftware.openfire.XMPPServer#getPluginManager()
@@ -87,6 +102,15 @@ public class PluginManager {
      */
     private Map<String, File> pluginFiles;
     private ScheduledExecutorService executor = null;
+    /**
+     * Threads that extract and initialize plugins in parallel.
+     */
+    private ExecutorService loadingExecutor = null;
+
+    /**
+     * Lock held while checking the database schema of a plugin.
+     */
+    private final Object schemaLock = new Object();
     private Map<Plugin, PluginDevEnvironment> pluginDevelopment;
     private Map<Plugin, List<String>> parentPluginMap;
     private Map<Plugin, String> childPluginMap;
@@ -94,6 +118,12 @@ public class PluginManager {
     private PluginMonitor pluginMonitor;
     private Set<PluginListener> pluginListeners = new CopyOnWriteArraySet<PluginListener>();
     private Set<PluginManagerListener> pluginManagerListeners = new CopyOnWriteArraySet<PluginManagerListener>();
+    /**
+     * Milliseconds it took to extract, load and initialize each plugin, keyed by plugin name.
+     */
+    private Map<String, Long> extractionTimes = new ConcurrentHashMap<String, Long>();
+    private Map<String, Long> loadTimes = new ConcurrentHashMap<String, Long>();
+    private Map<String, Long> initializationTimes = new ConcurrentHashMap<String, Long>();
 
     /**
      * Constructs a new plugin manager.
@@ -103,12 +133,13 @@ public class PluginManager {
     public PluginManager(File pluginDir) {
         this.pluginDirectory = pluginDir;
         plugins = new ConcurrentHashMap<String, Plugin>();
-        pluginDirs = new HashMap<Plugin, File>();
-        pluginFiles = new HashMap<String, File>();
-        classloaders = new HashMap<Plugin, PluginClassLoader>();
-        pluginDevelopment = new HashMap<Plugin, PluginDevEnvironment>();
-        parentPluginMap = new HashMap<Plugin, List<String>>();
-        childPluginMap = new HashMap<Plugin, String>();
+        // Plugins are loaded by several threads
+        pluginDirs = new ConcurrentHashMap<Plugin, File>();
+        pluginFiles = new ConcurrentHashMap<String, File>();
+        classloaders = new ConcurrentHashMap<Plugin, PluginClassLoader>();
+        pluginDevelopment = new ConcurrentHashMap<Plugin, PluginDevEnvironment>();
+        parentPluginMap = new ConcurrentHashMap<Plugin, List<String>>();
+        childPluginMap = new ConcurrentHashMap<Plugin, String>();
         devPlugins = new HashSet<String>();
         pluginMonitor = new PluginMonitor();
     }
@@ -117,6 +148,24 @@ public class PluginManager {
      * Starts plugins and the plugin monitoring service.
      */
     public void start() {
+        // Plugins were written to be loaded one at a time, so parallel loading is opt-in
+        int threads = JiveGlobals.getIntProperty("plugins.loading.threads", 1);
+        if (threads > 1) {
+            ThreadPoolExecutor loadingPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PluginLoader-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // Release the threads once the plugins have been loaded
+            loadingPool.allowCoreThreadTimeOut(true);
+            loadingExecutor = loadingPool;
+        }
         executor = new ScheduledThreadPoolExecutor(1);
         // See if we're in development mode. If so, check for new plugins once every 5 seconds.
         // Otherwise, default to every 20 seconds.
@@ -136,6 +185,9 @@ public class PluginManager {
         if (executor != null) {
             executor.shutdown();
         }
+        if (loadingExecutor != null) {
+            loadingExecutor.shutdown();
+        }
         // Shutdown all installed plugins.
         for (Plugin plugin : plugins.values()) {
             try {
@@ -151,6 +203,9 @@ public class PluginManager {
         classloaders.clear();
         pluginDevelopment.clear();
         childPluginMap.clear();
+        extractionTimes.clear();
+        loadTimes.clear();
+        initializationTimes.clear();
         pluginMonitor = null;
     }
 
@@ -262,6 +317,45 @@ public class PluginManager {
         return pluginMonitor.executed;
     }
 
+    /**
+     * Returns the number of milliseconds it took to extract a plugin from its JAR or WAR
+     * file, or <tt>-1</tt> if the plugin was already extracted when the server started.
+     *
+     * @param plugin the plugin.
+     * @return the extraction time of the plugin in milliseconds or <tt>-1</tt>.
+     */
+    public long getExtractionTime(Plugin plugin) {
+        return getTime(extractionTimes, plugin);
+    }
+
+    /**
+     * Returns the number of milliseconds it took to load a plugin. This includes setting up
+     * the class loader, database schema, servlets and caches of the plugin, and initializing
+     * the plugin.
+     *
+     * @param plugin the plugin.
+     * @return the load time of the plugin in milliseconds or <tt>-1</tt> if not known.
+     */
+    public long getLoadTime(Plugin plugin) {
+        return getTime(loadTimes, plugin);
+    }
+
+    /**
+     * Returns the number of milliseconds it took to run {@link Plugin#initializePlugin}.
+     *
+     * @param plugin the plugin.
+     * @return the initialization time of the plugin in milliseconds or <tt>-1</tt> if not known.
+     */
+    public long getInitializationTime(Plugin plugin) {
+        return getTime(initializationTimes, plugin);
+    }
+
+    private long getTime(Map<String, Long> times, Plugin plugin) {
+        File pluginDir = pluginDirs.get(plugin);
+        Long time = pluginDir != null ? times.get(pluginDir.getName()) : null;
+        return time != null ? time : -1;
+    }
+
     /**
      * Loads a plug-in module into the container. Loading consists of the
      * following steps:<ul>
@@ -281,6 +375,7 @@ public class PluginManager {
             return;
         }
         Log.debug("PluginManager: Loading plugin " + pluginDir.getName());
+        long start = System.currentTimeMillis();
         Plugin plugin;
         try {
             File pluginConfig = new File(pluginDir, "plugin.xml");
@@ -427,12 +522,14 @@ public class PluginManager {
                 // If this is a child plugin, register it as such.
                 if (parentPluginNode != null) {
                     String parentPlugin = parentPluginNode.getTextTrim();
-                    List<String> childrenPlugins = parentPluginMap.get(plugins.get(parentPlugin));
-                    if (childrenPlugins == null) {
-                        childrenPlugins = new ArrayList<String>();
-                        parentPluginMap.put(plugins.get(parentPlugin), childrenPlugins);
+                    synchronized (parentPluginMap) {
+                        List<String> childrenPlugins = parentPluginMap.get(plugins.get(parentPlugin));
+                        if (childrenPlugins == null) {
+                            childrenPlugins = new ArrayList<String>();
+                            parentPluginMap.put(plugins.get(parentPlugin), childrenPlugins);
+                        }
+                        childrenPlugins.add(pluginName);
                     }
-                    childrenPlugins.add(pluginName);
                     // Also register child to parent relationship.
                     childPluginMap.put(plugin, parentPlugin);
                 }
@@ -442,13 +539,16 @@ public class PluginManager {
                     classloaders.put(plugin, pluginLoader);
                 }
 
-                // Check the plugin's database schema (if it requires one).
-                if (!DbConnectionManager.getSchemaManager().checkPluginSchema(plugin)) {
-                    // The schema was not there and auto-upgrade failed.
-                    Log.error(pluginName + " - " +
-                            LocaleUtils.getLocalizedString("upgrade.database.failure"));
-                    System.out.println(pluginName + " - " +
-                            LocaleUtils.getLocalizedString("upgrade.database.failure"));
+                // Check the plugin's database schema (if it requires one). Schemas are
+                // upgraded one at a time even when plugins are loaded in parallel.
+                synchronized (schemaLock) {
+                    if (!DbConnectionManager.getSchemaManager().checkPluginSchema(plugin)) {
+                        // The schema was not there and auto-upgrade failed.
+                        Log.error(pluginName + " - " +
+                                LocaleUtils.getLocalizedString("upgrade.database.failure"));
+                        System.out.println(pluginName + " - " +
+                                LocaleUtils.getLocalizedString("upgrade.database.failure"));
+                    }
                 }
 
                 // Load any JSP's defined by the plugin.
@@ -474,8 +574,14 @@ public class PluginManager {
                 // Init the plugin.
                 ClassLoader oldLoader = Thread.currentThread().getContextClassLoader();
                 Thread.currentThread().setContextClassLoader(pluginLoader);
-                plugin.initializePlugin(this, pluginDir);
-                Thread.currentThread().setContextClassLoader(oldLoader);
+                long initStart = System.currentTimeMillis();
+                try {
+                    plugin.initializePlugin(this, pluginDir);
+                }
+                finally {
+                    Thread.currentThread().setContextClassLoader(oldLoader);
+                }
+                initializationTimes.put(pluginName, System.currentTimeMillis() - initStart);
 
                 // If there a <adminconsole> section defined, register it.
                 Element adminElement = (Element)pluginXML.selectSingleNode("/plugin/adminconsole");
@@ -526,6 +632,9 @@ public class PluginManager {
 
                     AdminConsole.addModel(pluginName, adminElement);
                 }
+                loadTimes.put(pluginName, System.currentTimeMillis() - start);
+                Log.debug("PluginManager: Loaded plugin " + pluginName + " in " +
+                        loadTimes.get(pluginName) + " ms");
                 firePluginCreatedEvent(pluginName, plugin);
             }
             else {
@@ -659,6 +768,9 @@ public class PluginManager {
         if (plugin != null && !dir.exists()) {
             // Unregister plugin caches
             PluginCacheRegistry.getInstance().unregisterCaches(pluginName);
+            extractionTimes.remove(pluginName);
+            loadTimes.remove(pluginName);
+            initializationTimes.remove(pluginName);
 
             // See if this is a child plugin. If it is, we should unload
             // the parent plugin as well.
@@ -980,6 +1092,8 @@ public class PluginManager {
                     return;
                 }
 
+                // Plugins are extracted in parallel once the plugins to update were unloaded
+                List<Runnable> extractions = new ArrayList<Runnable>();
                 for (File jarFile : jars) {
                     String pluginName = jarFile.getName().substring(0,
                         jarFile.getName().length() - 4).toLowerCase();
@@ -989,7 +1103,7 @@ public class PluginManager {
                     pluginFiles.put(pluginName, jarFile);
                     // If the JAR hasn't been exploded, do so.
                     if (!dir.exists()) {
-                        unzipPlugin(pluginName, jarFile, dir);
+                        extractions.add(new PluginExtraction(pluginName, jarFile, dir));
                     }
                     // See if the JAR is newer than the directory. If so, the plugin
                     // needs to be unloaded and then reloaded.
@@ -1008,10 +1122,11 @@ public class PluginManager {
                         }
                         // If the delete operation was a success, unzip the plugin.
                         if (!dir.exists()) {
-                            unzipPlugin(pluginName, jarFile, dir);
+                            extractions.add(new PluginExtraction(pluginName, jarFile, dir));
                         }
                     }
                 }
+                runInParallel(extractions);
 
                 File[] dirs = pluginDirectory.listFiles(new FileFilter() {
                     public boolean accept(File pathname) {
@@ -1061,12 +1176,33 @@ public class PluginManager {
                     unloadPlugin(pluginName);
                 }
 
-                // Load all plugins that need to be loaded.
+                // Load all plugins that need to be loaded. The admin plugin is loaded first.
+                // Then plugins are loaded in waves of plugins that do not depend on each other.
+                Map<String, File> toLoad = new HashMap<String, File>();
+                Map<String, String> parents = new HashMap<String, String>();
                 for (File dirFile : dirs) {
                     // If the plugin hasn't already been started, start it.
                     if (dirFile.exists() && !plugins.containsKey(dirFile.getName())) {
-                        loadPlugin(dirFile);
+                        if (dirFile.getName().equals("admin")) {
+                            loadPlugin(dirFile);
+                        }
+                        else {
+                            toLoad.put(dirFile.getName(), dirFile);
+                            parents.put(dirFile.getName(), getParentPluginName(dirFile));
+                        }
+                    }
+                }
+                for (List<String> wave : getLoadingWaves(parents)) {
+                    List<Runnable> loads = new ArrayList<Runnable>(wave.size());
+                    for (String pluginName : wave) {
+                        final File dirFile = toLoad.get(pluginName);
+                        loads.add(new Runnable() {
+                            public void run() {
+                                loadPlugin(dirFile);
+                            }
+                        });
                     }
+                    runInParallel(loads);
                 }
                 // Set that at least one iteration was done. That means that "all available" plugins
                 // have been loaded by now.
@@ -1088,6 +1224,80 @@ public class PluginManager {
             firstRun = false;
         }
 
+        /**
+         * Returns the name of the parent plugin of a plugin or <tt>null</tt> if the plugin
+         * is not a child plugin.
+         *
+         * @param pluginDir the plugin directory.
+         * @return the name of the parent plugin or <tt>null</tt>.
+         */
+        private String getParentPluginName(File pluginDir) {
+            File pluginConfig = new File(pluginDir, "plugin.xml");
+            if (!pluginConfig.exists()) {
+                return null;
+            }
+            try {
+                SAXReader saxReader = new SAXReader();
+                saxReader.setEncoding("UTF-8");
+                Document pluginXML = saxReader.read(pluginConfig);
+                Element parentPluginNode = (Element)pluginXML.selectSingleNode("/plugin/parentPlugin");
+                return parentPluginNode != null ? parentPluginNode.getTextTrim() : null;
+            }
+            catch (Exception e) {
+                // The error will be logged when loading the plugin
+                return null;
+            }
+        }
+
+        /**
+         * Runs the tasks using the plugin loading threads and waits for all of them to finish.
+         *
+         * @param tasks the tasks to run.
+         * @throws InterruptedException if interrupted while waiting for the tasks.
+         */
+        private void runInParallel(List<Runnable> tasks) throws InterruptedException {
+            if (loadingExecutor == null || tasks.size() < 2) {
+                for (Runnable task : tasks) {
+                    task.run();
+                }
+                return;
+            }
+            List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+            for (Runnable task : tasks) {
+                futures.add(loadingExecutor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    Log.error(e.getMessage(), e.getCause());
+                }
+            }
+        }
+
+        /**
+         * Extracts a plugin and keeps track of the time it took.
+         */
+        private class PluginExtraction implements Runnable {
+
+            private final String pluginName;
+            private final File file;
+            private final File dir;
+
+            PluginExtraction(String pluginName, File file, File dir) {
+                this.pluginName = pluginName;
+                this.file = file;
+                this.dir = dir;
+            }
+
+            public void run() {
+                long start = System.currentTimeMillis();
+                unzipPlugin(pluginName, file, dir);
+                extractionTimes.put(pluginName, System.currentTimeMillis() - start);
+            }
+        }
+
         /**
          * Unzips a plugin from a JAR file into a directory. If the JAR file
          * isn't a plugin, this method will do nothing.
@@ -1137,6 +1347,36 @@ public class PluginManager {
         }
     }
 
+    /**
+     * Sorts the plugins to load in waves. The plugins of a wave only depend on plugins that
+     * belong to previous waves or that are not being loaded, so the plugins of a wave may be
+     * loaded in parallel. Plugins that depend on each other in a cycle are all placed in the
+     * last wave.
+     *
+     * @param parents the name of the parent plugin of each plugin to load, or <tt>null</tt>
+     *        if the plugin is not a child plugin.
+     * @return the names of the plugins to load in each wave.
+     */
+    static List<List<String>> getLoadingWaves(Map<String, String> parents) {
+        List<List<String>> waves = new ArrayList<List<String>>();
+        // Load the plugins of each wave alphabetically like they used to be loaded
+        Map<String, String> remaining = new TreeMap<String, String>(parents);
+        while (!remaining.isEmpty()) {
+            List<String> wave = new ArrayList<String>();
+            for (Map.Entry<String, String> entry : remaining.entrySet()) {
+                if (entry.getValue() == null || !remaining.containsKey(entry.getValue())) {
+                    wave.add(entry.getKey());
+                }
+            }
+            if (wave.isEmpty()) {
+                wave.addAll(remaining.keySet());
+            }
+            remaining.keySet().removeAll(wave);
+            waves.add(wave);
+        }
+        return waves;
+    }
+
     /**
      * Deletes a directory.
      *
@@ -25,6 +25,7 @@ import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.filetransfer.proxy.ProxyConnectionManager;
 import org.jivesoftware.openfire.filetransfer.proxy.ProxyTransfer;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
+import org.jivesoftware.openfire.interceptor.InterceptorScope;
 import org.jivesoftware.openfire.interceptor.PacketInterceptor;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.session.Session;
@@ -38,6 +39,7 @@ import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 
 /**
@@ -61,7 +63,9 @@ public class DefaultFileTransferManager extends BasicModule implements FileTrans
     public DefaultFileTransferManager() {
         super("File Transfer Manager");
         fileTransferMap = CacheFactory.createCache(CACHE_NAME);
-        InterceptorManager.getInstance().addInterceptor(new MetaFileTransferInterceptor());
+        InterceptorManager.getInstance().addInterceptor(new MetaFileTransferInterceptor(), new InterceptorScope(
+                EnumSet.of(InterceptorScope.PacketType.iq), EnumSet.of(InterceptorScope.Direction.read),
+                EnumSet.of(InterceptorScope.Phase.unprocessed), NAMESPACE_SI));
     }
 
     /**
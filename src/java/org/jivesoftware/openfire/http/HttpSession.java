@@ -31,10 +31,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.dom4j.*;
@@ -99,9 +101,28 @@ public class HttpSession extends LocalClientSession {
     private int wait;
     private int hold = 0;
     private String language;
-    private final List<HttpConnection> connectionQueue = Collections.synchronizedList(new LinkedList<HttpConnection>());
-    private final List<Deliverable> pendingElements = Collections.synchronizedList(new ArrayList<Deliverable>());
-    private final List<Delivered> sentElements = Collections.synchronizedList(new ArrayList<Delivered>());
+    /**
+     * Guards the held requests, the sent elements and the last request ID.
+     */
+    private final Object requestLock = new Object();
+    /**
+     * Requests that are held until there is data to send to the client (or until they time
+     * out), indexed by request ID: a request is stored in the slot <tt>rid % length</tt>.
+     * The length is at least twice the max number of simultaneous requests, so requests
+     * of the current window never share a slot.
+     */
+    private HttpConnection[] heldRequests = new HttpConnection[8];
+    private volatile int heldRequestCount = 0;
+    /**
+     * Responses sent to the client, indexed by request ID like the held requests, so
+     * that a response can be sent again when the client repeats a request.
+     */
+    private Delivered[] sentElements = new Delivered[8];
+    /**
+     * Elements waiting for a request to be sent to the client. Elements are added without
+     * locking and only taken while holding the request lock.
+     */
+    private final Deque<Deliverable> pendingElements = new ConcurrentLinkedDeque<Deliverable>();
     private boolean isSecure;
     private int maxPollingInterval;
     private long lastPoll = -1;
@@ -110,7 +131,7 @@ public class HttpSession extends LocalClientSession {
     private int inactivityTimeout;
     private int defaultInactivityTimeout;
     private long lastActivity;
-    private long lastRequestID;
+    private volatile long lastRequestID;
     private boolean lastResponseEmpty;
     private int maxRequests;
     private int maxPause;
@@ -119,7 +140,7 @@ public class HttpSession extends LocalClientSession {
     private int minorVersion = -1;
     private X509Certificate[] sslCertificates;
 
-    private final Queue<Collection<Element>> packetsToSend = new LinkedList<Collection<Element>>();
+    private final Queue<Collection<Element>> packetsToSend = new ConcurrentLinkedQueue<Collection<Element>>();
     // Semaphore which protects the packets to send, so, there can only be one consumer at a time.
     private SessionPacketRouter router;
 
@@ -191,6 +212,14 @@ public class HttpSession extends LocalClientSession {
         conn.close();
     }
 
+    /**
+     * BOSH sessions survive broken HTTP connections by themselves so stream resumption
+     * (XEP-0198) is not offered.
+     */
+    @Override
+    protected void enableStreamResumption() {
+    }
+
     /**
      * Returns true if this session has been closed and no longer actively accepting connections.
      *
@@ -296,7 +325,29 @@ public class HttpSession extends LocalClientSession {
      * at any one time.
      */
     public void setMaxRequests(int maxRequests) {
-        this.maxRequests = maxRequests;
+        synchronized (requestLock) {
+            this.maxRequests = maxRequests;
+            int length = heldRequests.length;
+            while (length < 2 * (maxRequests + 1)) {
+                length *= 2;
+            }
+            if (length != heldRequests.length) {
+                HttpConnection[] held = new HttpConnection[length];
+                for (HttpConnection connection : heldRequests) {
+                    if (connection != null) {
+                        held[slot(connection.getRequestId(), length)] = connection;
+                    }
+                }
+                Delivered[] sent = new Delivered[length];
+                for (Delivered delivered : sentElements) {
+                    if (delivered != null) {
+                        sent[slot(delivered.getRequestID(), length)] = delivered;
+                    }
+                }
+                heldRequests = held;
+                sentElements = sent;
+            }
+        }
     }
 
     /**
@@ -433,8 +484,9 @@ public class HttpSession extends LocalClientSession {
      */
     public void pause(int duration) {
     	// Respond immediately to all pending requests
-    	synchronized (connectionQueue) {
-	        for (HttpConnection toClose : connectionQueue) {
+    	synchronized (requestLock) {
+	        for (HttpConnection toClose : getHeldRequests()) {
+	            releaseRequest(toClose);
 	            if (!toClose.isClosed()) {
 	                toClose.close();
 	                lastRequestID = toClose.getRequestId();
@@ -452,14 +504,11 @@ public class HttpSession extends LocalClientSession {
      * @return the time in milliseconds since the epoch that this session was last active.
      */
     public long getLastActivity() {
-        if (!connectionQueue.isEmpty()) {
-        	synchronized (connectionQueue) {
-	            for (HttpConnection connection : connectionQueue) {
+        if (heldRequestCount > 0) {
+        	synchronized (requestLock) {
+	            if (getOpenConnectionCount() > 0) {
 	                // The session is currently active, set the last activity to the current time.
-	                if (!(connection.isClosed())) {
-	                    lastActivity = System.currentTimeMillis();
-	                    break;
-	                }
+	                lastActivity = System.currentTimeMillis();
 	            }
         	}
         }
@@ -477,16 +526,13 @@ public class HttpSession extends LocalClientSession {
      * all requests with lower 'rid' values.
      */
     public long getLastAcknowledged() {
-    	long ack = lastRequestID;
-    	Collections.sort(connectionQueue, connectionComparator);
-    	synchronized (connectionQueue) {
-	        for (HttpConnection connection : connectionQueue) {
-	            if (connection.getRequestId() == ack + 1) {
-	            	ack++;
-	            }
+    	synchronized (requestLock) {
+	    	long ack = lastRequestID;
+	        while (getHeldRequest(ack + 1) != null) {
+	            ack++;
 	        }
+	        return ack;
     	}
-        return ack;
     }
 
     /**
@@ -614,16 +660,16 @@ public class HttpSession extends LocalClientSession {
         if ("terminate".equals(type)) {
             connection.deliverBody(createEmptyBody(true), true);
             close();
-            lastRequestID = connection.getRequestId();
+            acknowledge(connection);
         }
         else if ("true".equals(restartStream) && rootNode.elements().size() == 0) {
             connection.deliverBody(createSessionRestartResponse(), true);
-            lastRequestID = connection.getRequestId();
+            acknowledge(connection);
         }
         else if (pauseDuration > 0 && pauseDuration <= getMaxPause()) {
             pause(pauseDuration);
             connection.deliverBody(createEmptyBody(false), true);
-            lastRequestID = connection.getRequestId();
+            acknowledge(connection);
             setLastResponseEmpty(true);
         }
         else {
@@ -650,7 +696,7 @@ public class HttpSession extends LocalClientSession {
                 router = new SessionPacketRouter(this);
             }
 
-            for (Element packet : packetsToSend.remove()) {
+            for (Element packet : packetsToSend.poll()) {
                 try {
                     router.route(packet);
                 }
@@ -690,7 +736,7 @@ public class HttpSession extends LocalClientSession {
      * @throws HttpBindException if the connection has violated a facet of the HTTP binding
      * protocol.
      */
-    synchronized HttpConnection createConnection(long rid, boolean isSecure, boolean isPoll, AsyncContext context)
+    HttpConnection createConnection(long rid, boolean isSecure, boolean isPoll, AsyncContext context)
             throws HttpConnectionClosedException, HttpBindException, IOException
     {
         final HttpConnection connection = new HttpConnection(rid, isSecure, sslCertificates, context);
@@ -700,7 +746,9 @@ public class HttpSession extends LocalClientSession {
             @Override
             public void onComplete(AsyncEvent asyncEvent) throws IOException {
                 Log.debug("complete event " + asyncEvent);
-                connectionQueue.remove(connection);
+                synchronized (requestLock) {
+                    releaseRequest(connection);
+                }
                 fireConnectionClosed(connection);
             }
 
@@ -714,10 +762,13 @@ public class HttpSession extends LocalClientSession {
                     setLastResponseEmpty(true);
 
                     // This connection timed out we need to increment the request count
-                    if (connection.getRequestId() != lastRequestID + 1) {
-                        throw new IOException("Unexpected RID error.");
+                    synchronized (requestLock) {
+                        if (connection.getRequestId() != lastRequestID + 1) {
+                            throw new IOException("Unexpected RID error.");
+                        }
+                        releaseRequest(connection);
+                        lastRequestID = connection.getRequestId();
                     }
-                    lastRequestID = connection.getRequestId();
                 } catch (HttpConnectionClosedException e) {
                     Log.warn("Unexpected exception while processing connection timeout.", e);
                 }
@@ -729,7 +780,9 @@ public class HttpSession extends LocalClientSession {
             public void onError(AsyncEvent asyncEvent) throws IOException {
                 Log.debug("error event " + asyncEvent);
                 Log.warn("Unhandled AsyncListener error: " + asyncEvent.getThrowable());
-                connectionQueue.remove(connection);
+                synchronized (requestLock) {
+                    releaseRequest(connection);
+                }
                 fireConnectionClosed(connection);
             }
 
@@ -737,38 +790,98 @@ public class HttpSession extends LocalClientSession {
             public void onStartAsync(AsyncEvent asyncEvent) throws IOException {}
         });
 
-        if (rid <= lastRequestID) {
-            Delivered deliverable = retrieveDeliverable(rid);
-            if (deliverable == null) {
-                Log.warn("Deliverable unavailable for " + rid);
-                throw new HttpBindException("Unexpected RID error.",
-                        BoshBindingError.itemNotFound);
+        synchronized (requestLock) {
+            if (rid <= lastRequestID) {
+                // The client repeated a request that was already answered
+                Delivered deliverable = retrieveDeliverable(rid);
+                if (deliverable == null) {
+                    Log.warn("Deliverable unavailable for " + rid);
+                    throw new HttpBindException("Unexpected RID error.",
+                            BoshBindingError.itemNotFound);
+                }
+                connection.deliverBody(createDeliverable(deliverable.deliverables), true);
+                return connection;
             }
-            connection.deliverBody(createDeliverable(deliverable.deliverables), true);
+            else if (rid > (lastRequestID + maxRequests)) {
+                Log.warn("Request " + rid + " > " + (lastRequestID + maxRequests) + ", ending session.");
+                    throw new HttpBindException("Unexpected RID error.",
+                            BoshBindingError.itemNotFound);
+            }
+
             addConnection(connection, isPoll);
-            return connection;
         }
-        else if (rid > (lastRequestID + maxRequests)) {
-            Log.warn("Request " + rid + " > " + (lastRequestID + maxRequests) + ", ending session.");
-                throw new HttpBindException("Unexpected RID error.",
-                        BoshBindingError.itemNotFound);
+        return connection;
+    }
+
+    private static int slot(long rid, int length) {
+        // The length is a power of two
+        return (int) (rid & (length - 1));
+    }
+
+    /**
+     * Returns the held request with the specified request ID. NOTE: synchronized by caller.
+     */
+    private HttpConnection getHeldRequest(long rid) {
+        HttpConnection connection = heldRequests[slot(rid, heldRequests.length)];
+        return connection != null && connection.getRequestId() == rid ? connection : null;
+    }
+
+    /**
+     * Returns the held requests ordered by request ID. NOTE: synchronized by caller.
+     */
+    private List<HttpConnection> getHeldRequests() {
+        List<HttpConnection> held = new ArrayList<HttpConnection>(heldRequestCount);
+        for (HttpConnection connection : heldRequests) {
+            if (connection != null) {
+                held.add(connection);
+            }
         }
+        Collections.sort(held, connectionComparator);
+        return held;
+    }
 
-        addConnection(connection, isPoll);
-        return connection;
+    /**
+     * Holds a request until there is data to send to the client. NOTE: synchronized by caller.
+     */
+    private void holdRequest(HttpConnection connection) {
+        int slot = slot(connection.getRequestId(), heldRequests.length);
+        HttpConnection previous = heldRequests[slot];
+        if (previous != null) {
+            // A request from an old window that was never completed
+            if (!previous.isClosed()) {
+                previous.close();
+            }
+            heldRequestCount--;
+        }
+        heldRequests[slot] = connection;
+        heldRequestCount++;
+    }
+
+    /**
+     * Stops holding a request. NOTE: synchronized by caller.
+     */
+    private void releaseRequest(HttpConnection connection) {
+        int slot = slot(connection.getRequestId(), heldRequests.length);
+        if (heldRequests[slot] == connection) {
+            heldRequests[slot] = null;
+            heldRequestCount--;
+        }
+    }
+
+    /**
+     * Marks a request that was answered directly as the last answered request.
+     */
+    private void acknowledge(HttpConnection connection) {
+        synchronized (requestLock) {
+            releaseRequest(connection);
+            lastRequestID = connection.getRequestId();
+        }
     }
 
     private Delivered retrieveDeliverable(long rid) {
-    	Delivered result = null;
-    	synchronized (sentElements) {
-	        for (Delivered delivered : sentElements) {
-	            if (delivered.getRequestID() == rid) {
-	                result = delivered;
-	                break;
-	            }
-	        }
-    	}
-        return result;
+        // NOTE: synchronized by caller
+        Delivered delivered = sentElements[slot(rid, sentElements.length)];
+        return delivered != null && delivered.getRequestID() == rid ? delivered : null;
     }
 
     private void addConnection(HttpConnection connection, boolean isPoll) throws HttpBindException,
@@ -784,44 +897,44 @@ public class HttpSession extends LocalClientSession {
 
         final long rid = connection.getRequestId();
 
+        // NOTE: synchronized by caller
         /*
-         * Search through the connection queue to see if this rid already exists on it. If it does then we
-         * will close and deliver the existing connection (if appropriate), and close and deliver the same
-         * deliverable on the new connection. This is under the assumption that a connection has been dropped,
-         * and re-requested before jetty has realised.
+         * Check if a request with this rid is already held. If it is then we will close and deliver
+         * the existing connection (if appropriate), and close and deliver the same deliverable on the
+         * new connection. This is under the assumption that a connection has been dropped, and
+         * re-requested before jetty has realised.
          */
-        synchronized (connectionQueue) {
-			for (HttpConnection queuedConnection : connectionQueue) {
-				if (queuedConnection.getRequestId() == rid) {
-					if(Log.isDebugEnabled()) {
-						Log.debug("Found previous connection in queue with rid " + rid);
-					}
-					if(queuedConnection.isClosed()) {
-						if(Log.isDebugEnabled()) {
-							Log.debug("It's closed - copying deliverables");
-						}
-						
-			            Delivered deliverable = retrieveDeliverable(rid);
-			            if (deliverable == null) {
-			                Log.warn("Deliverable unavailable for " + rid);
-			                throw new HttpBindException("Unexpected RID error.",
-			                        BoshBindingError.itemNotFound);
-			            }
-			            connection.deliverBody(createDeliverable(deliverable.deliverables), true);
-					} else {
-						if(Log.isDebugEnabled()) {
-							Log.debug("It's still open - calling close()");
-						}
-						deliver(queuedConnection, Collections.singleton(new Deliverable("")));
-						connection.close();
-						
-						if(rid == (lastRequestID + 1)) {
-							lastRequestID = rid;
-						}
-					}
-					break;
-				}
-			}
+        HttpConnection queuedConnection = getHeldRequest(rid);
+        if (queuedConnection != null) {
+            if(Log.isDebugEnabled()) {
+                Log.debug("Found previous connection in queue with rid " + rid);
+            }
+            releaseRequest(queuedConnection);
+            if(queuedConnection.isClosed()) {
+                if(Log.isDebugEnabled()) {
+                    Log.debug("It's closed - copying deliverables");
+                }
+
+                Delivered deliverable = retrieveDeliverable(rid);
+                if (deliverable == null) {
+                    Log.warn("Deliverable unavailable for " + rid);
+                    throw new HttpBindException("Unexpected RID error.",
+                            BoshBindingError.itemNotFound);
+                }
+                connection.deliverBody(createDeliverable(deliverable.deliverables), true);
+            } else {
+                if(Log.isDebugEnabled()) {
+                    Log.debug("It's still open - calling close()");
+                }
+                deliver(queuedConnection, Collections.singletonList(new Deliverable("")));
+                connection.close();
+
+                if(rid == (lastRequestID + 1)) {
+                    lastRequestID = rid;
+                }
+            }
+            checkOveractivity(isPoll);
+            return;
         }
 
         checkOveractivity(isPoll);
@@ -830,74 +943,130 @@ public class HttpSession extends LocalClientSession {
 
         // We aren't supposed to hold connections open or we already have some packets waiting
         // to be sent to the client.
-        if (isPollingSession() || (pendingElements.size() > 0 && connection.getRequestId() == lastRequestID + 1)) {
+        if (isPollingSession() || (!pendingElements.isEmpty() && rid == lastRequestID + 1)) {
             fireConnectionOpened(connection);
-            synchronized(pendingElements) {
-                deliver(connection, pendingElements);
-                lastRequestID = connection.getRequestId();
-                pendingElements.clear();
-            }
+            deliverPendingElements(connection);
+            lastRequestID = rid;
         }
         else {
             // With this connection we need to check if we will have too many connections open,
             // closing any extras.
+            holdRequest(connection);
 
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
-
-            synchronized (connectionQueue) {
-	            int connectionsToClose;
-	            if(connectionQueue.get(connectionQueue.size() - 1) != connection) {
-	            	// Current connection does not have the greatest rid. That means
-	            	// requests were received out of order, respond to all.
-	            	connectionsToClose = connectionQueue.size();
-	            }
-	            else {
-	                // Everything's fine, number of current connections open tells us
-	            	// how many that we need to close.
-	            	connectionsToClose = getOpenConnectionCount() - hold;
-	            }
-	            int closed = 0;
-	            for (int i = 0; i < connectionQueue.size() && closed < connectionsToClose; i++) {
-	                HttpConnection toClose = connectionQueue.get(i);
-	                if (!toClose.isClosed() && toClose.getRequestId() == lastRequestID + 1) {
-	                    if(toClose == connection) {
-	                    	// Current connection has no continuation yet, just deliver.
-	                    	deliver("");
-	                    }
-	                    else {
-	                        toClose.close();
-	                    }
-	                    lastRequestID = toClose.getRequestId();
-	                    closed++;
-	                }
-	            }
+            int connectionsToClose;
+            if (getHighestHeldRequestID() != rid) {
+                // Current connection does not have the greatest rid. That means
+                // requests were received out of order, respond to all.
+                connectionsToClose = heldRequestCount;
+            }
+            else {
+                // Everything's fine, number of current connections open tells us
+                // how many that we need to close.
+                connectionsToClose = getOpenConnectionCount() - hold;
+            }
+            for (int closed = 0; closed < connectionsToClose; closed++) {
+                HttpConnection toClose = getHeldRequest(lastRequestID + 1);
+                if (toClose == null || toClose.isClosed()) {
+                    break;
+                }
+                releaseRequest(toClose);
+                lastRequestID = toClose.getRequestId();
+                try {
+                    deliverPendingElements(toClose);
+                }
+                catch (HttpConnectionClosedException e) {
+                    Log.warn("Unexpected exception occurred while trying to close an HttpException.", e);
+                }
+                catch (IOException e) {
+                    Log.warn("Unexpected exception occurred while trying to close an HttpException.", e);
+                }
             }
+
+            // Send the elements that were queued while no request was held
+            deliverPendingElements();
         }
     }
 
     private int getOpenConnectionCount() {
         int count = 0;
         // NOTE: synchronized by caller
-        for (HttpConnection connection : connectionQueue) {
-            if (!connection.isClosed()) {
+        for (HttpConnection connection : heldRequests) {
+            if (connection != null && !connection.isClosed()) {
                 count++;
             }
         }
         return count;
     }
 
+    private long getHighestHeldRequestID() {
+        long rid = -1;
+        // NOTE: synchronized by caller
+        for (HttpConnection connection : heldRequests) {
+            if (connection != null && connection.getRequestId() > rid) {
+                rid = connection.getRequestId();
+            }
+        }
+        return rid;
+    }
+
     private void deliver(HttpConnection connection, Collection<Deliverable> deliverable)
             throws HttpConnectionClosedException, IOException {
+        // NOTE: synchronized by caller
         connection.deliverBody(createDeliverable(deliverable), true);
 
         Delivered delivered = new Delivered(deliverable);
         delivered.setRequestID(connection.getRequestId());
-        while (sentElements.size() > maxRequests) {
-            sentElements.remove(0);
+        sentElements[slot(connection.getRequestId(), sentElements.length)] = delivered;
+    }
+
+    /**
+     * Sends all the pending elements to the client using the specified connection. The
+     * elements are queued again if they could not be sent. NOTE: synchronized by caller.
+     */
+    private void deliverPendingElements(HttpConnection connection)
+            throws HttpConnectionClosedException, IOException {
+        List<Deliverable> elements = new ArrayList<Deliverable>();
+        Deliverable element;
+        while ((element = pendingElements.poll()) != null) {
+            elements.add(element);
         }
+        boolean delivered = false;
+        try {
+            deliver(connection, elements);
+            delivered = true;
+        }
+        finally {
+            if (!delivered) {
+                for (int i = elements.size() - 1; i >= 0; i--) {
+                    pendingElements.addFirst(elements.get(i));
+                }
+            }
+        }
+    }
 
-        sentElements.add(delivered);
+    /**
+     * Sends the pending elements to the client if the next request to answer is held.
+     * NOTE: synchronized by caller.
+     */
+    private void deliverPendingElements() {
+        while (!pendingElements.isEmpty()) {
+            HttpConnection connection = getHeldRequest(lastRequestID + 1);
+            if (connection == null || connection.isClosed()) {
+                return;
+            }
+            releaseRequest(connection);
+            lastRequestID = connection.getRequestId();
+            try {
+                deliverPendingElements(connection);
+                return;
+            }
+            catch (HttpConnectionClosedException e) {
+                /* Connection was closed, try the next one. Indicates a (concurrency?) bug. */
+                Log.warn("Iterating over a connection that was closed. Openfire will recover from this problem, but it should not occur in the first place.");
+            } catch (IOException e) {
+                Log.warn("An unexpected exception occurred while iterating over connections. Openfire will attempt to recover by ignoring this connection.", e);
+            }
+        }
     }
 
     private void fireConnectionOpened(HttpConnection connection) {
@@ -918,18 +1087,11 @@ public class HttpSession extends LocalClientSession {
      *         protocol.
      */
     private void checkOveractivity(boolean isPoll) throws HttpBindException {
-    	int pendingConnections = 0;
+    	// NOTE: synchronized by caller
+    	int pendingConnections = getOpenConnectionCount();
     	boolean overactivity = false;
     	String errorMessage = "Overactivity detected";
 
-    	synchronized (connectionQueue) {
-    		for (HttpConnection conn : connectionQueue) {
-    			if (!conn.isClosed()) {
-    				pendingConnections++;
-    			}
-    		}
-        }
-
         if(pendingConnections >= maxRequests) {
         	overactivity = true;
         	errorMessage += ", too many simultaneous requests.";
@@ -971,37 +1133,17 @@ public class HttpSession extends LocalClientSession {
     }
 
     private void deliver(Deliverable stanza) {
-        Collection<Deliverable> deliverable = Arrays.asList(stanza);
-        boolean delivered = false;
-        int pendingConnections = 0;
-        synchronized (connectionQueue) {
-	        for (HttpConnection connection : connectionQueue) {
-                if (connection.isClosed()) {
-                    continue;
-                }
-                pendingConnections++;
-	            try {
-	                if (connection.getRequestId() == lastRequestID + 1) {
-	                    lastRequestID = connection.getRequestId();
-	                    deliver(connection, deliverable);
-	                    delivered = true;
-	                    break;
-	                }
-	            }
-	            catch (HttpConnectionClosedException e) {
-	                /* Connection was closed, try the next one. Indicates a (concurrency?) bug. */
-	                Log.warn("Iterating over a connection that was closed. Openfire will recover from this problem, but it should not occur in the first place.");
-                } catch (IOException e) {
-                    Log.warn("An unexpected exception occurred while iterating over connections. Openfire will attempt to recover by ignoring this connection.", e);
-                }
-            }
+        // Queue the stanza without locking. When a request is held, whoever holds the
+        // request lock next sends the queued stanzas: either this thread, or a thread
+        // holding a new request (which checks the queue after holding its request).
+        pendingElements.add(stanza);
+        if (isClosed) {
+            failPendingElements();
         }
-
-        if (!delivered) {
-            if (pendingConnections > 0) {
-                Log.warn("Unable to deliver a stanza (it is being queued instead), although there are available connections! RID / Connection processing is out of sync!");
+        else if (heldRequestCount > 0) {
+            synchronized (requestLock) {
+                deliverPendingElements();
             }
-            pendingElements.add(stanza);
         }
     }
 
@@ -1018,10 +1160,8 @@ public class HttpSession extends LocalClientSession {
         		.append(getLastAcknowledged()).append("'>");
 
         setLastResponseEmpty(elements.size() == 0);
-        synchronized (elements) {
-	        for (Deliverable child : elements) {
-	            builder.append(child.getDeliverable());
-	        }
+        for (Deliverable child : elements) {
+            builder.append(child.getDeliverable());
         }
         builder.append("</body>");
         return builder.toString();
@@ -1033,16 +1173,14 @@ public class HttpSession extends LocalClientSession {
 
         try {
 	        // close connection(s) and deliver pending elements (if any)
-	        synchronized (connectionQueue) {
-		        for (HttpConnection toClose : connectionQueue) {
+	        synchronized (requestLock) {
+		        for (HttpConnection toClose : getHeldRequests()) {
+		            releaseRequest(toClose);
 		            try {
 		            	if (!toClose.isClosed()) {
 		            		if (!pendingElements.isEmpty() && toClose.getRequestId() == lastRequestID + 1) {
-		            			synchronized(pendingElements) {
-			            			deliver(toClose, pendingElements);
-					                lastRequestID = toClose.getRequestId();
-					                pendingElements.clear();
-		            			}
+		            			deliverPendingElements(toClose);
+				                lastRequestID = toClose.getRequestId();
 	            			} else {
 	            				toClose.deliverBody(null, true);
 	            			}
@@ -1055,13 +1193,8 @@ public class HttpSession extends LocalClientSession {
 		            }
 		        }
 	        }
-	
-	    	synchronized (pendingElements) {
-		        for (Deliverable deliverable : pendingElements) {
-		            failDelivery(deliverable.getPackets());
-		        }
-		        pendingElements.clear();
-	        }
+
+	        failPendingElements();
         } finally { // ensure the session is removed from the session map
 	        for (SessionListener listener : listeners) {
 	            listener.sessionClosed(this);
@@ -1070,6 +1203,13 @@ public class HttpSession extends LocalClientSession {
         }
     }
 
+    private void failPendingElements() {
+        Deliverable deliverable;
+        while ((deliverable = pendingElements.poll()) != null) {
+            failDelivery(deliverable.getPackets());
+        }
+    }
+
     private void failDelivery(final Collection<Packet> packets) {
         if (packets == null) {
             // Do nothing if someone asked to deliver nothing :)
@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.interceptor;
+
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Packet;
+
+/**
+ * Queue of the packets to be intercepted by an asynchronous interceptor. Asynchronous
+ * interceptors are only invoked after packets were processed. The thread that processed the
+ * packet adds a copy of the packet to the queue and a number of consumer threads invoke the
+ * interceptor, so the time spent by the interceptor does not delay the delivery of packets.
+ * When there is only one consumer thread the interceptor receives the packets in the order
+ * in which they were processed.<p>
+ *
+ * The queue is bounded. When the queue is full packets are either dropped or the thread that
+ * processed the packet waits until the queue has room for the packet, depending on the
+ * {@link OverflowPolicy} of the queue. Dropped packets are counted and logged. The packets
+ * received by asynchronous interceptors are shared by all the asynchronous interceptors and
+ * must not be modified.<p>
+ *
+ * Interceptors that record when a packet was processed should use {@link #getQueuedDate()}
+ * instead of the current date, which is later by the time the packet waited in the queue.<p>
+ *
+ * When the interceptor is removed the queue stops accepting packets and the consumer threads
+ * intercept the packets that are still queued, for a limited time, before stopping.
+ */
+public class AsyncInterceptorQueue {
+
+    private static final Logger Log = LoggerFactory.getLogger(AsyncInterceptorQueue.class);
+
+    /**
+     * Packet being intercepted by the current consumer thread.
+     */
+    private static final ThreadLocal<InterceptedPacket> current = new ThreadLocal<InterceptedPacket>();
+
+    private final PacketInterceptor interceptor;
+    private final BlockingQueue<InterceptedPacket> queue;
+    private final OverflowPolicy policy;
+    private final long blockTimeout;
+    private final ExecutorService consumers;
+
+    private final AtomicLong processed = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile long lastLag = 0;
+    private volatile long maxLag = 0;
+    private volatile boolean stopping = false;
+
+    /**
+     * Creates a new queue and starts its consumer threads.
+     *
+     * @param interceptor the asynchronous interceptor.
+     * @param capacity the maximum number of packets in the queue.
+     * @param consumers the number of threads that invoke the interceptor.
+     * @param policy what to do when the queue is full.
+     * @param blockTimeout the maximum time in milliseconds to wait for room in the queue
+     *        when the policy is {@link OverflowPolicy#block}. The packet is dropped if the
+     *        queue is still full.
+     */
+    AsyncInterceptorQueue(PacketInterceptor interceptor, int capacity, int consumers,
+            OverflowPolicy policy, long blockTimeout) {
+        this.interceptor = interceptor;
+        this.queue = new LinkedBlockingQueue<InterceptedPacket>(capacity);
+        this.policy = policy;
+        this.blockTimeout = blockTimeout;
+        this.consumers = Executors.newFixedThreadPool(consumers, new ThreadFactory() {
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(Thread.currentThread().getThreadGroup(), runnable,
+                        "Async Interceptor-" + threadNumber.getAndIncrement(), 0);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < consumers; i++) {
+            this.consumers.execute(new Consumer());
+        }
+    }
+
+    /**
+     * Queues a processed packet for the interceptor.
+     *
+     * @param packet the copy of the processed packet.
+     * @param session the session that received or sent the packet.
+     * @param read true if the packet was read, false if it was sent.
+     * @return false if the packet was dropped because the queue was full.
+     */
+    boolean add(Packet packet, Session session, boolean read) {
+        if (stopping) {
+            dropped(1);
+            return false;
+        }
+        final InterceptedPacket intercepted = new InterceptedPacket(packet, session, read);
+        boolean added = queue.offer(intercepted);
+        if (!added && policy == OverflowPolicy.block) {
+            try {
+                added = queue.offer(intercepted, blockTimeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!added) {
+            dropped(1);
+        }
+        return added;
+    }
+
+    private void dropped(int count) {
+        final long total = dropped.addAndGet(count);
+        // Log the first drop and then once every 1000 drops
+        if ((total - count) / 1000 != total / 1000 || total == count) {
+            Log.warn("Packets not intercepted by " + interceptor + " because its queue is full or stopped; " +
+                    total + " packets dropped so far");
+        }
+    }
+
+    /**
+     * Stops the consumer threads once the packets that are still queued were intercepted.
+     * Packets added after this method was invoked are dropped. If the queued packets were not
+     * intercepted within the specified time the consumer threads are interrupted and the
+     * remaining packets are dropped.
+     *
+     * @param timeout the maximum time in milliseconds to wait for the queued packets to be
+     *        intercepted.
+     */
+    void shutdown(long timeout) {
+        stopping = true;
+        consumers.shutdown();
+        try {
+            if (!consumers.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                consumers.shutdownNow();
+            }
+        }
+        catch (InterruptedException e) {
+            consumers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        int discarded = 0;
+        while (queue.poll() != null) {
+            discarded++;
+        }
+        if (discarded > 0) {
+            dropped(discarded);
+        }
+    }
+
+    /**
+     * Returns the date at which the packet that the current thread is intercepting was
+     * processed and queued. Returns the current date if the current thread is not a consumer
+     * thread of an asynchronous interceptor.
+     *
+     * @return the date at which the packet being intercepted was queued.
+     */
+    public static Date getQueuedDate() {
+        final InterceptedPacket intercepted = current.get();
+        return intercepted != null ? new Date(intercepted.queuedDate) : new Date();
+    }
+
+    /**
+     * Returns the asynchronous interceptor.
+     *
+     * @return the asynchronous interceptor.
+     */
+    public PacketInterceptor getInterceptor() {
+        return interceptor;
+    }
+
+    /**
+     * Returns what is done with the packets processed while the queue is full.
+     *
+     * @return the policy of the queue.
+     */
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the number of packets waiting to be intercepted.
+     *
+     * @return the number of packets in the queue.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of packets that were intercepted.
+     *
+     * @return the number of packets that were intercepted.
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Returns the number of packets that were not intercepted because the queue was full or
+     * stopped.
+     *
+     * @return the number of packets that were dropped.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the time in milliseconds that the last intercepted packet waited in the queue.
+     *
+     * @return the time that the last intercepted packet waited in the queue.
+     */
+    public long getLag() {
+        return lastLag;
+    }
+
+    /**
+     * Returns the longest time in milliseconds that a packet waited in the queue.
+     *
+     * @return the longest time that a packet waited in the queue.
+     */
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncInterceptorQueue{interceptor=" + interceptor + ", queued=" + getQueueSize() +
+                ", processed=" + getProcessed() + ", dropped=" + getDropped() + ", lag=" + getLag() +
+                ", maxLag=" + getMaxLag() + "}";
+    }
+
+    /**
+     * What to do with a processed packet when the queue of an asynchronous interceptor is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The packet is not intercepted.
+         */
+        drop,
+        /**
+         * The thread that processed the packet waits until the queue has room for the packet.
+         */
+        block
+    }
+
+    private class Consumer implements Runnable {
+
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                final InterceptedPacket intercepted;
+                try {
+                    // Wake up regularly to stop once the queue was stopped and drained
+                    intercepted = queue.poll(100, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+                if (intercepted == null) {
+                    if (stopping) {
+                        break;
+                    }
+                    continue;
+                }
+                final long lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - intercepted.queued);
+                lastLag = lag;
+                if (lag > maxLag) {
+                    maxLag = lag;
+                }
+                current.set(intercepted);
+                try {
+                    interceptor.interceptPacket(intercepted.packet, intercepted.session, intercepted.read, true);
+                }
+                catch (Throwable e) {
+                    Log.error("Error in interceptor: " + interceptor + " while intercepting: " + intercepted.packet, e);
+                }
+                finally {
+                    current.remove();
+                }
+                processed.incrementAndGet();
+            }
+        }
+    }
+
+    private static class InterceptedPacket {
+
+        final Packet packet;
+        final Session session;
+        final boolean read;
+        final long queued = System.nanoTime();
+        final long queuedDate = System.currentTimeMillis();
+
+        InterceptedPacket(Packet packet, Session session, boolean read) {
+            this.packet = packet;
+            this.session = session;
+            this.read = read;
+        }
+    }
+}
@@ -20,6 +20,7 @@
 
 package org.jivesoftware.openfire.interceptor;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -29,6 +30,10 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.Packet;
@@ -43,7 +48,16 @@ import org.xmpp.packet.Packet;
  * (when read) may change the original packet or reject the packet by throwing
  * a {@link PacketRejectedException}. If the interceptor rejects a received packet
  * then the sender of the packet receive a
- * {@link org.xmpp.packet.PacketError.Condition#not_allowed not_allowed} error.
+ * {@link org.xmpp.packet.PacketError.Condition#not_allowed not_allowed} error.<p>
+ *
+ * Global interceptors may be registered with an {@link InterceptorScope} that describes the
+ * packets they want to intercept. For each combination of packet type, direction and phase
+ * the manager keeps the list of global interceptors whose scope includes it, so interceptors
+ * are not invoked for packets outside of their scope.<p>
+ *
+ * Global interceptors that only need to see packets after they were processed may be
+ * registered as asynchronous interceptors. Asynchronous interceptors are invoked by their
+ * own threads with copies of the processed packets, see {@link AsyncInterceptorQueue}.
  *
  * @see PacketInterceptor
  * @author Gaston Dombiak
@@ -52,6 +66,9 @@ public class InterceptorManager {
 
 	private static final Logger Log = LoggerFactory.getLogger(InterceptorManager.class);
 
+    private static final String asyncQueuedStatKey = "interceptor_async_queued";
+    private static final String asyncDroppedStatKey = "interceptor_async_dropped";
+
     private static InterceptorManager instance = new InterceptorManager();
 
     private XMPPServer server = XMPPServer.getInstance();
@@ -59,6 +76,21 @@ public class InterceptorManager {
             new CopyOnWriteArrayList<PacketInterceptor>();
     private Map<String, List<PacketInterceptor>> usersInterceptors =
             new ConcurrentHashMap<String, List<PacketInterceptor>>();
+    /**
+     * Scopes of the global interceptors that were registered with a scope.
+     */
+    private Map<PacketInterceptor, InterceptorScope> scopes =
+            new ConcurrentHashMap<PacketInterceptor, InterceptorScope>();
+    /**
+     * Global interceptors to invoke for each combination of packet type, direction and
+     * phase. Rebuilt each time the global interceptors change.
+     */
+    private volatile ScopedInterceptor[][] dispatch = compile();
+    /**
+     * Queues of the global interceptors that were registered as asynchronous interceptors.
+     */
+    private Map<PacketInterceptor, AsyncInterceptorQueue> asyncQueues =
+            new ConcurrentHashMap<PacketInterceptor, AsyncInterceptorQueue>();
 
     /**
      * Returns a singleton instance of InterceptorManager.
@@ -86,40 +118,176 @@ public class InterceptorManager {
      * @param interceptor the interceptor to add.
      */
     public void addInterceptor(PacketInterceptor interceptor) {
+        addInterceptor(interceptor, null);
+    }
+
+    /**
+     * Inserts a new interceptor at the end of the list of currently configured
+     * interceptors. This interceptor will only be used for the sent and received packets
+     * that match the specified scope.
+     *
+     * @param interceptor the interceptor to add.
+     * @param scope the packets to intercept or <tt>null</tt> to intercept all packets.
+     */
+    public void addInterceptor(PacketInterceptor interceptor, InterceptorScope scope) {
         if (interceptor == null) {
             throw new NullPointerException("Parameter interceptor was null.");
         }
-        // Remove the interceptor from the list since the position might have changed
-        if (globalInterceptors.contains(interceptor)) {
-            globalInterceptors.remove(interceptor);
+        AsyncInterceptorQueue oldQueue;
+        synchronized (this) {
+            // Remove the interceptor from the list since the position might have changed
+            if (globalInterceptors.contains(interceptor)) {
+                globalInterceptors.remove(interceptor);
+            }
+            globalInterceptors.add(interceptor);
+            oldQueue = asyncQueues.remove(interceptor);
+            setScope(interceptor, scope);
         }
-        globalInterceptors.add(interceptor);
+        // Let the interceptor process the packets that it queued when it was asynchronous
+        shutdown(oldQueue);
     }
 
     /**
-     * Inserts a new interceptor at specified index in the list of currently configured
-     * interceptors. This interceptor will be used for all the sent and received packets.
+     * Inserts a new asynchronous interceptor at the end of the list of currently configured
+     * interceptors. The interceptor will be invoked by its own threads after the packets that
+     * match the specified scope were processed. The size of the queue of the interceptor, the
+     * number of threads and what to do when the queue is full are configured by the
+     * <tt>xmpp.interceptor.async.capacity</tt>, <tt>xmpp.interceptor.async.consumers</tt> and
+     * <tt>xmpp.interceptor.async.policy</tt> properties.
      *
-     * @param index the index in the list to insert the new interceptor at.
      * @param interceptor the interceptor to add.
+     * @param scope the packets to intercept or <tt>null</tt> to intercept all processed packets.
+     * @return the queue of the interceptor.
      */
-    public void addInterceptor(int index, PacketInterceptor interceptor) {
-        if (index < 0 || (index > globalInterceptors.size())) {
-            throw new IndexOutOfBoundsException("Index " + index + " invalid.");
+    public AsyncInterceptorQueue addAsyncInterceptor(PacketInterceptor interceptor, InterceptorScope scope) {
+        AsyncInterceptorQueue.OverflowPolicy policy;
+        try {
+            policy = AsyncInterceptorQueue.OverflowPolicy.valueOf(
+                    JiveGlobals.getProperty("xmpp.interceptor.async.policy", "drop"));
+        }
+        catch (IllegalArgumentException e) {
+            Log.warn("Invalid value of property xmpp.interceptor.async.policy", e);
+            policy = AsyncInterceptorQueue.OverflowPolicy.drop;
         }
+        return addAsyncInterceptor(interceptor, scope, policy);
+    }
+
+    /**
+     * Inserts a new asynchronous interceptor at the end of the list of currently configured
+     * interceptors with the specified overflow policy. The size of the queue of the interceptor
+     * and the number of threads are configured by the <tt>xmpp.interceptor.async.capacity</tt>
+     * and <tt>xmpp.interceptor.async.consumers</tt> properties.
+     *
+     * @param interceptor the interceptor to add.
+     * @param scope the packets to intercept or <tt>null</tt> to intercept all processed packets.
+     * @param policy what to do with the processed packets when the queue is full.
+     * @return the queue of the interceptor.
+     */
+    public AsyncInterceptorQueue addAsyncInterceptor(PacketInterceptor interceptor, InterceptorScope scope,
+            AsyncInterceptorQueue.OverflowPolicy policy) {
+        return addAsyncInterceptor(interceptor, scope,
+                JiveGlobals.getIntProperty("xmpp.interceptor.async.capacity", 10000),
+                JiveGlobals.getIntProperty("xmpp.interceptor.async.consumers", 1), policy);
+    }
+
+    /**
+     * Inserts a new asynchronous interceptor at the end of the list of currently configured
+     * interceptors. The interceptor will be invoked by its own threads after the packets that
+     * match the specified scope were processed. Packets are received in the order in which
+     * they were processed when the interceptor has a single thread.
+     *
+     * @param interceptor the interceptor to add.
+     * @param scope the packets to intercept or <tt>null</tt> to intercept all processed packets.
+     * @param capacity the maximum number of packets waiting to be intercepted.
+     * @param consumers the number of threads that invoke the interceptor.
+     * @param policy what to do with the processed packets when the queue is full.
+     * @return the queue of the interceptor.
+     */
+    public AsyncInterceptorQueue addAsyncInterceptor(PacketInterceptor interceptor,
+            InterceptorScope scope, int capacity, int consumers, AsyncInterceptorQueue.OverflowPolicy policy)
+    {
         if (interceptor == null) {
             throw new NullPointerException("Parameter interceptor was null.");
         }
-        // Remove the interceptor from the list since the position might have changed
-        if (globalInterceptors.contains(interceptor)) {
-            int oldIndex = globalInterceptors.indexOf(interceptor);
-            if (oldIndex < index) {
-                index -= 1;
-            }
+        AsyncInterceptorQueue queue = new AsyncInterceptorQueue(interceptor, capacity, consumers, policy,
+                JiveGlobals.getLongProperty("xmpp.interceptor.async.blockTimeout", 1000));
+        AsyncInterceptorQueue oldQueue;
+        synchronized (this) {
             globalInterceptors.remove(interceptor);
+            globalInterceptors.add(interceptor);
+            // New packets go to the new queue as soon as the interceptors are compiled again
+            oldQueue = asyncQueues.put(interceptor, queue);
+            setScope(interceptor, scope);
+        }
+        // Let the interceptor process the packets of the old queue without blocking other changes
+        shutdown(oldQueue);
+        return queue;
+    }
+
+    /**
+     * Returns the queues of the asynchronous interceptors. The queues keep statistics
+     * of the packets intercepted and dropped by each interceptor.
+     *
+     * @return the queues of the asynchronous interceptors.
+     */
+    public Collection<AsyncInterceptorQueue> getAsyncInterceptorQueues() {
+        return Collections.unmodifiableCollection(asyncQueues.values());
+    }
+
+    /**
+     * Stops an asynchronous queue once its packets were intercepted, waiting at most
+     * <tt>xmpp.interceptor.async.drainTimeout</tt> milliseconds (5 seconds by default).
+     */
+    private static void shutdown(AsyncInterceptorQueue queue) {
+        if (queue != null) {
+            queue.shutdown(JiveGlobals.getLongProperty("xmpp.interceptor.async.drainTimeout", 5000));
         }
+    }
+
+    /**
+     * Inserts a new interceptor at specified index in the list of currently configured
+     * interceptors. This interceptor will be used for all the sent and received packets.
+     *
+     * @param index the index in the list to insert the new interceptor at.
+     * @param interceptor the interceptor to add.
+     */
+    public void addInterceptor(int index, PacketInterceptor interceptor) {
+        addInterceptor(index, interceptor, null);
+    }
+
+    /**
+     * Inserts a new interceptor at specified index in the list of currently configured
+     * interceptors. This interceptor will only be used for the sent and received packets
+     * that match the specified scope.
+     *
+     * @param index the index in the list to insert the new interceptor at.
+     * @param interceptor the interceptor to add.
+     * @param scope the packets to intercept or <tt>null</tt> to intercept all packets.
+     */
+    public void addInterceptor(int index, PacketInterceptor interceptor, InterceptorScope scope) {
+        AsyncInterceptorQueue oldQueue;
+        synchronized (this) {
+            if (index < 0 || (index > globalInterceptors.size())) {
+                throw new IndexOutOfBoundsException("Index " + index + " invalid.");
+            }
+            if (interceptor == null) {
+                throw new NullPointerException("Parameter interceptor was null.");
+            }
+            // Remove the interceptor from the list since the position might have changed
+            if (globalInterceptors.contains(interceptor)) {
+                int oldIndex = globalInterceptors.indexOf(interceptor);
+                if (oldIndex < index) {
+                    index -= 1;
+                }
+                globalInterceptors.remove(interceptor);
+            }
 
-        globalInterceptors.add(index, interceptor);
+            globalInterceptors.add(index, interceptor);
+            oldQueue = asyncQueues.remove(interceptor);
+            setScope(interceptor, scope);
+        }
+        // Let the interceptor process the packets that it queued when it was asynchronous
+        shutdown(oldQueue);
     }
 
     /**
@@ -129,7 +297,81 @@ public class InterceptorManager {
      * @return true if the item was present in the list
      */
     public boolean removeInterceptor(PacketInterceptor interceptor) {
-        return globalInterceptors.remove(interceptor);
+        boolean answer;
+        AsyncInterceptorQueue queue = null;
+        synchronized (this) {
+            answer = globalInterceptors.remove(interceptor);
+            if (answer) {
+                scopes.remove(interceptor);
+                dispatch = compile();
+                queue = asyncQueues.remove(interceptor);
+            }
+        }
+        // Let the interceptor process its queued packets without blocking other changes
+        shutdown(queue);
+        return answer;
+    }
+
+    /**
+     * Returns the scope of a global interceptor.
+     *
+     * @param interceptor the global interceptor.
+     * @return the scope of the interceptor or {@link InterceptorScope#ALL} if the interceptor
+     *         was registered without a scope.
+     */
+    public InterceptorScope getScope(PacketInterceptor interceptor) {
+        InterceptorScope scope = scopes.get(interceptor);
+        return scope != null ? scope : InterceptorScope.ALL;
+    }
+
+    private void setScope(PacketInterceptor interceptor, InterceptorScope scope) {
+        if (scope != null) {
+            scopes.put(interceptor, scope);
+        }
+        else {
+            scopes.remove(interceptor);
+        }
+        dispatch = compile();
+    }
+
+    /**
+     * Builds the lists of global interceptors to invoke for each combination of packet type,
+     * direction and phase. The interceptors keep the order of the global interceptors list.
+     */
+    private ScopedInterceptor[][] compile() {
+        ScopedInterceptor[][] answer = new ScopedInterceptor[(InterceptorScope.PacketType.values().length + 1) * 4][];
+        for (int type = 0; type <= InterceptorScope.PacketType.values().length; type++) {
+            InterceptorScope.PacketType packetType =
+                    type < InterceptorScope.PacketType.values().length ? InterceptorScope.PacketType.values()[type] : null;
+            for (int flags = 0; flags < 4; flags++) {
+                boolean read = (flags & 2) != 0;
+                boolean processed = (flags & 1) != 0;
+                List<ScopedInterceptor> interceptors = new ArrayList<ScopedInterceptor>();
+                for (PacketInterceptor interceptor : globalInterceptors) {
+                    InterceptorScope scope = scopes.get(interceptor);
+                    AsyncInterceptorQueue queue = asyncQueues.get(interceptor);
+                    if (queue != null && !processed) {
+                        // Asynchronous interceptors only get processed packets
+                        continue;
+                    }
+                    if (scope == null) {
+                        interceptors.add(new ScopedInterceptor(interceptor, null, queue));
+                    }
+                    else if (scope.includes(packetType, read, processed)) {
+                        interceptors.add(new ScopedInterceptor(interceptor,
+                                scope.getNamespaces().isEmpty() ? null : scope, queue));
+                    }
+                }
+                answer[type * 4 + flags] = interceptors.toArray(new ScopedInterceptor[interceptors.size()]);
+            }
+        }
+        return answer;
+    }
+
+    private ScopedInterceptor[] getGlobalInterceptors(Packet packet, boolean read, boolean processed) {
+        InterceptorScope.PacketType packetType = InterceptorScope.getPacketType(packet);
+        int type = packetType != null ? packetType.ordinal() : InterceptorScope.PacketType.values().length;
+        return dispatch[type * 4 + (read ? 2 : 0) + (processed ? 1 : 0)];
     }
 
     /**
@@ -206,6 +448,53 @@ public class InterceptorManager {
         return answer;
     }
 
+    /**
+     * Returns true if there are interceptors that will be invoked for packets of the
+     * specified session. Interceptors may modify the packets so serialized forms of a
+     * packet should not be reused when this method returns true.
+     *
+     * @param session the session that received or is sending packets.
+     * @return true if there are interceptors that will be invoked for the session.
+     */
+    public boolean hasInterceptors(Session session) {
+        if (!globalInterceptors.isEmpty()) {
+            return true;
+        }
+        return hasUserInterceptors(session);
+    }
+
+    /**
+     * Returns true if there are interceptors that will be invoked for a packet of the
+     * specified session in the specified direction and phase.
+     *
+     * @param packet the packet that has been read or is about to be sent.
+     * @param session the session that received or is sending the packet.
+     * @param read true indicates that the packet was read. When false, the packet
+     *      is being sent to a user.
+     * @param processed true if the packet has already processed (incoming or outgoing).
+     * @return true if there are interceptors that will be invoked for the packet.
+     */
+    public boolean hasInterceptors(Packet packet, Session session, boolean read, boolean processed) {
+        for (ScopedInterceptor interceptor : getGlobalInterceptors(packet, read, processed)) {
+            if (interceptor.scope == null || interceptor.scope.matchesContent(packet)) {
+                return true;
+            }
+        }
+        return hasUserInterceptors(session);
+    }
+
+    private boolean hasUserInterceptors(Session session) {
+        if (usersInterceptors.isEmpty()) {
+            return false;
+        }
+        String username = session.getAddress().getNode();
+        if (username != null && server.isLocal(session.getAddress())) {
+            Collection<PacketInterceptor> userInterceptors = usersInterceptors.get(username);
+            return userInterceptors != null && !userInterceptors.isEmpty();
+        }
+        return false;
+    }
+
     /**
      * Invokes all currently-installed interceptors on the specified packet.
      * All global interceptors will be invoked as well as interceptors that
@@ -230,27 +519,35 @@ public class InterceptorManager {
     public void invokeInterceptors(Packet packet, Session session, boolean read, boolean processed)
             throws PacketRejectedException
     {
-        // Invoke the global interceptors for this packet
-        // Checking if collection is empty to prevent creating an iterator of
-        // a CopyOnWriteArrayList that is an expensive operation
-        if (!globalInterceptors.isEmpty()) {
-            for (PacketInterceptor interceptor : globalInterceptors) {
-                try {
-                    interceptor.interceptPacket(packet, session, read, processed);
+        // Invoke the global interceptors whose scope includes this packet
+        Packet snapshot = null;
+        for (ScopedInterceptor scoped : getGlobalInterceptors(packet, read, processed)) {
+            if (scoped.scope != null && !scoped.scope.matchesContent(packet)) {
+                continue;
+            }
+            if (scoped.queue != null) {
+                // Asynchronous interceptors share a copy of the processed packet
+                if (snapshot == null) {
+                    snapshot = packet.createCopy();
                 }
-                catch (PacketRejectedException e) {
-                    if (processed) {
-                        Log.error("Post interceptor cannot reject packet.", e);
-                    }
-                    else {
-                        // Throw this exception since we don't really want to catch it
-                        throw e;
-                    }
+                scoped.queue.add(snapshot, session, read);
+                continue;
+            }
+            try {
+                scoped.interceptor.interceptPacket(packet, session, read, processed);
+            }
+            catch (PacketRejectedException e) {
+                if (processed) {
+                    Log.error("Post interceptor cannot reject packet.", e);
                 }
-                catch (Throwable e) {
-                    Log.error("Error in interceptor: " + interceptor + " while intercepting: " + packet, e);
+                else {
+                    // Throw this exception since we don't really want to catch it
+                    throw e;
                 }
             }
+            catch (Throwable e) {
+                Log.error("Error in interceptor: " + scoped.interceptor + " while intercepting: " + packet, e);
+            }
         }
         // Invoke the interceptors that are related to the address of the session
         if (usersInterceptors.isEmpty()) {
@@ -281,4 +578,79 @@ public class InterceptorManager {
             }
         }
     }
+
+    /**
+     * Global interceptor and the scope to check against the content of the packets.
+     */
+    private static class ScopedInterceptor {
+
+        final PacketInterceptor interceptor;
+        /**
+         * The scope of the interceptor if it includes namespaces, otherwise null.
+         */
+        final InterceptorScope scope;
+        /**
+         * The queue of the interceptor if it is an asynchronous interceptor, otherwise null.
+         */
+        final AsyncInterceptorQueue queue;
+
+        ScopedInterceptor(PacketInterceptor interceptor, InterceptorScope scope, AsyncInterceptorQueue queue) {
+            this.interceptor = interceptor;
+            this.scope = scope;
+            this.queue = queue;
+        }
+    }
+
+    public static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(asyncQueuedStatKey, new AsyncQueuedStatistic());
+        StatisticsManager.getInstance().addStatistic(asyncDroppedStatKey, new AsyncDroppedStatistic());
+    }
+
+    /**
+     * Number of packets waiting to be intercepted by asynchronous interceptors.
+     */
+    private static class AsyncQueuedStatistic extends i18nStatistic {
+
+        public AsyncQueuedStatistic() {
+            super(asyncQueuedStatKey, Statistic.Type.count);
+        }
+
+        public double sample() {
+            long queued = 0;
+            for (AsyncInterceptorQueue queue : getInstance().getAsyncInterceptorQueues()) {
+                queued += queue.getQueueSize();
+            }
+            return queued;
+        }
+
+        public boolean isPartialSample() {
+            return false;
+        }
+    }
+
+    /**
+     * Number of packets dropped by asynchronous interceptors since the last sample.
+     */
+    private static class AsyncDroppedStatistic extends i18nStatistic {
+
+        private long lastValue = 0;
+
+        public AsyncDroppedStatistic() {
+            super(asyncDroppedStatKey, Statistic.Type.rate);
+        }
+
+        public synchronized double sample() {
+            long value = 0;
+            for (AsyncInterceptorQueue queue : getInstance().getAsyncInterceptorQueues()) {
+                value += queue.getDropped();
+            }
+            final long delta = Math.max(0, value - lastValue);
+            lastValue = value;
+            return delta;
+        }
+
+        public boolean isPartialSample() {
+            return true;
+        }
+    }
 }
\ No newline at end of file
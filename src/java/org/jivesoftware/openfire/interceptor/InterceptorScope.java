@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.interceptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.dom4j.Element;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Describes the packets that a global {@link PacketInterceptor} wants to intercept. The
+ * {@link InterceptorManager} only invokes an interceptor registered with a scope for the
+ * packets that match the scope, so interceptors do not need to be called for packets that
+ * they would ignore.<p>
+ *
+ * A packet matches a scope when its type, direction and phase are included in the scope and,
+ * if the scope includes namespaces, when the packet has a child element in one of them. For IQ
+ * packets the namespace of the child element of the IQ is checked. Packets that are neither an
+ * IQ, a message nor a presence only match scopes that include all the packet types.
+ */
+public class InterceptorScope {
+
+    /**
+     * Scope that matches all packets. Interceptors registered without a scope use this scope.
+     */
+    public static final InterceptorScope ALL = new InterceptorScope(EnumSet.allOf(PacketType.class),
+            EnumSet.allOf(Direction.class), EnumSet.allOf(Phase.class));
+
+    private final Set<PacketType> packetTypes;
+    private final Set<Direction> directions;
+    private final Set<Phase> phases;
+    private final Set<String> namespaces;
+
+    /**
+     * Creates a new scope.
+     *
+     * @param packetTypes the types of packets to intercept.
+     * @param directions the directions of the packets to intercept.
+     * @param phases the phases in which packets are intercepted.
+     * @param namespaces the namespaces of the child elements of the packets to intercept. When
+     *        no namespace is given the packets are intercepted regardless of their content.
+     */
+    public InterceptorScope(Set<PacketType> packetTypes, Set<Direction> directions, Set<Phase> phases,
+            String... namespaces) {
+        this.packetTypes = Collections.unmodifiableSet(EnumSet.copyOf(packetTypes));
+        this.directions = Collections.unmodifiableSet(EnumSet.copyOf(directions));
+        this.phases = Collections.unmodifiableSet(EnumSet.copyOf(phases));
+        this.namespaces = namespaces.length == 0 ? null :
+                Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(namespaces)));
+    }
+
+    /**
+     * Returns the types of packets to intercept.
+     *
+     * @return the types of packets to intercept.
+     */
+    public Set<PacketType> getPacketTypes() {
+        return packetTypes;
+    }
+
+    /**
+     * Returns the directions of the packets to intercept.
+     *
+     * @return the directions of the packets to intercept.
+     */
+    public Set<Direction> getDirections() {
+        return directions;
+    }
+
+    /**
+     * Returns the phases in which packets are intercepted.
+     *
+     * @return the phases in which packets are intercepted.
+     */
+    public Set<Phase> getPhases() {
+        return phases;
+    }
+
+    /**
+     * Returns the namespaces of the child elements of the packets to intercept or an empty
+     * set if packets are intercepted regardless of their content.
+     *
+     * @return the namespaces of the child elements of the packets to intercept.
+     */
+    public Set<String> getNamespaces() {
+        return namespaces == null ? Collections.<String>emptySet() : namespaces;
+    }
+
+    /**
+     * Returns true if the scope includes a type, direction and phase of packets.
+     *
+     * @param packetType the type of packet or <tt>null</tt> if the packet is not an IQ,
+     *        a message nor a presence.
+     * @param read true if the packet was read, false if it is being sent.
+     * @param processed true if the packet was processed.
+     * @return true if the packets are included in the scope, regardless of their content.
+     */
+    boolean includes(PacketType packetType, boolean read, boolean processed) {
+        if (packetType == null ? packetTypes.size() < PacketType.values().length : !packetTypes.contains(packetType)) {
+            return false;
+        }
+        return directions.contains(read ? Direction.read : Direction.sent) &&
+                phases.contains(processed ? Phase.processed : Phase.unprocessed);
+    }
+
+    /**
+     * Returns true if the content of a packet matches the namespaces of the scope.
+     *
+     * @param packet the packet to check.
+     * @return true if the scope has no namespaces or the packet has a child element in one
+     *         of the namespaces.
+     */
+    boolean matchesContent(Packet packet) {
+        if (namespaces == null) {
+            return true;
+        }
+        if (packet instanceof IQ) {
+            final Element childElement = ((IQ) packet).getChildElement();
+            return childElement != null && namespaces.contains(childElement.getNamespaceURI());
+        }
+        for (Iterator<?> it = packet.getElement().elementIterator(); it.hasNext();) {
+            if (namespaces.contains(((Element) it.next()).getNamespaceURI())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the type of a packet.
+     *
+     * @param packet the packet.
+     * @return the type of the packet or <tt>null</tt> if the packet is not an IQ,
+     *         a message nor a presence.
+     */
+    static PacketType getPacketType(Packet packet) {
+        if (packet instanceof Message) {
+            return PacketType.message;
+        }
+        else if (packet instanceof Presence) {
+            return PacketType.presence;
+        }
+        else if (packet instanceof IQ) {
+            return PacketType.iq;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "InterceptorScope{packetTypes=" + packetTypes + ", directions=" + directions +
+                ", phases=" + phases + ", namespaces=" + getNamespaces() + "}";
+    }
+
+    /**
+     * Types of packets that may be intercepted.
+     */
+    public enum PacketType {
+        iq, message, presence
+    }
+
+    /**
+     * Directions of the packets that may be intercepted.
+     */
+    public enum Direction {
+        /**
+         * Packets read by the server.
+         */
+        read,
+        /**
+         * Packets sent by the server.
+         */
+        sent
+    }
+
+    /**
+     * Phases in which packets may be intercepted.
+     */
+    public enum Phase {
+        /**
+         * Before the packet is processed or sent. Interceptors may reject the packet.
+         */
+        unprocessed,
+        /**
+         * After the packet was processed or sent.
+         */
+        processed
+    }
+}
@@ -87,6 +87,8 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
     private static final String usersStatKey = "muc_users";
     private static final String incomingStatKey = "muc_incoming";
     private static final String outgoingStatKey = "muc_outgoing";
+    private static final String logQueueStatKey = "muc_log_queue";
+    private static final String logDroppedStatKey = "muc_log_dropped";
     private static final String trafficStatGroup = "muc_traffic";
 
     private ConcurrentHashMap<String,MultiUserChatService> mucServices = new ConcurrentHashMap<String,MultiUserChatService>();
@@ -117,6 +119,8 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         addTotalConnectedUsers();
         addNumberIncomingMessages();
         addNumberOutgoingMessages();
+        addLogQueueStats();
+        addLogDroppedStats();
 
         ClusterManager.addListener(this);
         UserEventDispatcher.addListener(this);
@@ -138,6 +142,8 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         StatisticsManager.getInstance().removeStatistic(usersStatKey);
         StatisticsManager.getInstance().removeStatistic(incomingStatKey);
         StatisticsManager.getInstance().removeStatistic(outgoingStatKey);
+        StatisticsManager.getInstance().removeStatistic(logQueueStatKey);
+        StatisticsManager.getInstance().removeStatistic(logDroppedStatKey);
 
         for (MultiUserChatService service : mucServices.values()) {
             unregisterMultiUserChatService(service.getServiceName());
@@ -748,6 +754,83 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         StatisticsManager.getInstance().addMultiStatistic(outgoingStatKey, trafficStatGroup, statistic);
     }
 
+    private void addLogQueueStats() {
+        // Register a statistic.
+        Statistic statistic = new Statistic() {
+            public String getName() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_queue.name");
+            }
+
+            public Type getStatType() {
+                return Type.count;
+            }
+
+            public String getDescription() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_queue.description");
+            }
+
+            public String getUnits() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_queue.label");
+            }
+
+            public double sample() {
+                double entries = 0;
+                for (MultiUserChatService service : getMultiUserChatServices()) {
+                    if (service instanceof MultiUserChatServiceImpl) {
+                        entries += ((MultiUserChatServiceImpl) service).getLogQueueSize();
+                    }
+                }
+                return entries;
+            }
+
+            public boolean isPartialSample() {
+                return true;
+            }
+        };
+        StatisticsManager.getInstance().addStatistic(logQueueStatKey, statistic);
+    }
+
+    private void addLogDroppedStats() {
+        // Register a statistic.
+        Statistic statistic = new Statistic() {
+            private long lastDropped = 0;
+
+            public String getName() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_dropped.name");
+            }
+
+            public Type getStatType() {
+                return Type.rate;
+            }
+
+            public String getDescription() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_dropped.description");
+            }
+
+            public String getUnits() {
+                return LocaleUtils.getLocalizedString("muc.stats.log_dropped.label");
+            }
+
+            public synchronized double sample() {
+                long dropped = 0;
+                for (MultiUserChatService service : getMultiUserChatServices()) {
+                    if (service instanceof MultiUserChatServiceImpl) {
+                        dropped += ((MultiUserChatServiceImpl) service).getDroppedLogEntries();
+                    }
+                }
+                // Removed services may make the total go down
+                double delta = Math.max(0, dropped - lastDropped);
+                lastDropped = dropped;
+                return delta;
+            }
+
+            public boolean isPartialSample() {
+                return true;
+            }
+        };
+        StatisticsManager.getInstance().addStatistic(logDroppedStatKey, statistic);
+    }
+
     // Cluster management tasks
     public void joinedCluster() {
         if (!ClusterManager.isSeniorClusterMember()) {
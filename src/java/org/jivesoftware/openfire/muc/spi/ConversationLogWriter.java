@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc.spi;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the conversation logs of the rooms of a MUC service to the database. Entries are
+ * queued by the threads that broadcast room messages and written by a task of the
+ * {@link TaskEngine} in batches (see {@link MUCPersistenceManager#saveConversationLogEntries(List)}).
+ * A batch is written as soon as it is full, or when its oldest entry waited for the max delay.<p>
+ *
+ * When the database rejects a batch its entries are written one by one, and the entries that
+ * are still rejected are logged and skipped. Batches are only retried, in order, when the
+ * database could not be reached.<p>
+ *
+ * The queue is bounded. Entries that do not fit in the queue or that the database rejects
+ * are dropped and counted so that the number of lost entries can be monitored.
+ */
+class ConversationLogWriter implements Runnable {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConversationLogWriter.class);
+
+    /**
+     * Max number of entries waiting to be written.
+     */
+    static final int QUEUE_CAPACITY = 100000;
+
+    /**
+     * Max number of milliseconds to wait before writing again a batch that failed.
+     */
+    private static final long MAX_RETRY_DELAY = 30000;
+
+    private final String serviceName;
+    private final BlockingQueue<ConversationLogEntry> queue =
+            new LinkedBlockingQueue<ConversationLogEntry>(QUEUE_CAPACITY);
+    private final AtomicLong droppedEntries = new AtomicLong(0);
+
+    private volatile int batchSize;
+    private volatile long maxDelay;
+    private volatile boolean running = false;
+    /**
+     * Thread running the writer, or null if the writer is not running.
+     */
+    private Thread worker;
+    private CountDownLatch stopped;
+
+    /**
+     * Creates a writer for the conversation logs of a service.
+     *
+     * @param serviceName the name of the service whose conversations are logged.
+     * @param batchSize the max number of entries to write in a single batch.
+     * @param maxDelay the max number of milliseconds that an entry waits for a batch to fill.
+     */
+    ConversationLogWriter(String serviceName, int batchSize, long maxDelay) {
+        this.serviceName = serviceName;
+        setBatchSize(batchSize);
+        setMaxDelay(maxDelay);
+    }
+
+    void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    void setMaxDelay(long maxDelay) {
+        this.maxDelay = Math.max(0, maxDelay);
+    }
+
+    /**
+     * Queues an entry to be written.
+     *
+     * @param entry the entry to write.
+     * @return false if the entry was dropped because the queue is full.
+     */
+    boolean add(ConversationLogEntry entry) {
+        if (queue.offer(entry)) {
+            return true;
+        }
+        if (droppedEntries.getAndIncrement() % 1000 == 0) {
+            Log.warn("Conversation log queue of MUC service " + serviceName + " is full. " +
+                    droppedEntries.get() + " entries were dropped so far.");
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of entries waiting to be written.
+     *
+     * @return the number of entries waiting to be written.
+     */
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of entries that were dropped because the queue was full or
+     * because the database rejected them.
+     *
+     * @return the number of dropped entries.
+     */
+    long getDroppedEntries() {
+        return droppedEntries.get();
+    }
+
+    /**
+     * Starts the task that writes the entries.
+     */
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        stopped = new CountDownLatch(1);
+        TaskEngine.getInstance().submit(this);
+    }
+
+    /**
+     * Stops the task that writes the entries. The entries waiting to be written are
+     * written before returning.
+     */
+    void stop() {
+        final CountDownLatch stopped;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopped = this.stopped;
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+        try {
+            stopped.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        final CountDownLatch stopped;
+        synchronized (this) {
+            worker = Thread.currentThread();
+            stopped = this.stopped;
+        }
+        try {
+            List<ConversationLogEntry> batch = new ArrayList<ConversationLogEntry>();
+            long retryDelay = 1000;
+            while (running) {
+                try {
+                    if (batch.isEmpty()) {
+                        fill(batch);
+                    }
+                    if (batch.isEmpty() || write(batch)) {
+                        batch.clear();
+                        retryDelay = 1000;
+                    }
+                    else {
+                        // Keep the batch (and the order of the entries) until the database is back
+                        Thread.sleep(retryDelay);
+                        retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // The writer is being stopped
+                }
+                catch (Throwable e) {
+                    Log.error("Error logging conversations of MUC service " + serviceName, e);
+                }
+            }
+            // Write the remaining entries before stopping
+            queue.drainTo(batch);
+            if (!batch.isEmpty() && !write(batch)) {
+                Log.error("Conversation log entries of MUC service " + serviceName + " were lost: " +
+                        batch.size());
+            }
+        }
+        finally {
+            synchronized (this) {
+                worker = null;
+            }
+            // Do not leave the pooled thread interrupted
+            Thread.interrupted();
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Waits for entries and adds them to the batch until the batch is full or the
+     * max delay elapsed since the first entry was added.
+     *
+     * @param batch the empty batch to fill.
+     * @throws InterruptedException if the writer is being stopped.
+     */
+    private void fill(List<ConversationLogEntry> batch) throws InterruptedException {
+        batch.add(queue.take());
+        final int size = batchSize;
+        final long deadline = System.currentTimeMillis() + maxDelay;
+        while (batch.size() < size) {
+            queue.drainTo(batch, size - batch.size());
+            long remaining = deadline - System.currentTimeMillis();
+            if (batch.size() >= size || remaining <= 0) {
+                return;
+            }
+            ConversationLogEntry entry = queue.poll(remaining, TimeUnit.MILLISECONDS);
+            if (entry == null) {
+                return;
+            }
+            batch.add(entry);
+        }
+    }
+
+    /**
+     * Writes entries in batches of the configured size. Entries that the database rejects
+     * are skipped.
+     *
+     * @param entries the entries to write.
+     * @return false if the database could not be reached. The entries that were written or
+     *         skipped are then removed from the list, the others must be written again.
+     */
+    boolean write(List<ConversationLogEntry> entries) {
+        // Write large backlogs (e.g. when stopping) in batches of the configured size
+        final int size = batchSize;
+        int done = 0;
+        while (done < entries.size()) {
+            List<ConversationLogEntry> batch = entries.subList(done, Math.min(entries.size(), done + size));
+            try {
+                save(batch);
+                done += batch.size();
+                continue;
+            }
+            catch (SQLException e) {
+                if (DbConnectionManager.isConnectionError(e)) {
+                    Log.warn("Unable to log conversations of MUC service " + serviceName +
+                            ", they will be logged later: " + e);
+                    entries.subList(0, done).clear();
+                    return false;
+                }
+                if (batch.size() == 1) {
+                    skip(batch.get(0), e);
+                    done++;
+                    continue;
+                }
+            }
+            // Write the entries of the batch one by one to find the ones that the database rejects
+            for (ConversationLogEntry entry : new ArrayList<ConversationLogEntry>(batch)) {
+                try {
+                    save(Collections.singletonList(entry));
+                }
+                catch (SQLException e) {
+                    if (DbConnectionManager.isConnectionError(e)) {
+                        Log.warn("Unable to log conversations of MUC service " + serviceName +
+                                ", they will be logged later: " + e);
+                        entries.subList(0, done).clear();
+                        return false;
+                    }
+                    skip(entry, e);
+                }
+                done++;
+            }
+        }
+        return true;
+    }
+
+    private void skip(ConversationLogEntry entry, SQLException e) {
+        droppedEntries.incrementAndGet();
+        Log.error("Skipping conversation log entry of room " + entry.getRoomID() + " sent by " +
+                entry.getSender() + " that the database rejected", e);
+    }
+
+    /**
+     * Saves entries to the database in a single transaction.
+     *
+     * @param entries the entries to save.
+     * @throws SQLException if the entries were not saved.
+     */
+    void save(List<ConversationLogEntry> entries) throws SQLException {
+        MUCPersistenceManager.insertConversationLogEntries(entries);
+    }
+}
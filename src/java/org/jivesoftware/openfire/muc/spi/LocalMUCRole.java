@@ -30,7 +30,9 @@ import org.jivesoftware.openfire.muc.MUCRole;
 import org.jivesoftware.openfire.muc.MUCRoom;
 import org.jivesoftware.openfire.muc.MultiUserChatService;
 import org.jivesoftware.openfire.muc.NotAllowedException;
+import org.jivesoftware.openfire.nio.PacketTemplate;
 import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.util.ElementUtil;
 import org.xmpp.packet.JID;
@@ -253,6 +255,17 @@ public class LocalMUCRole implements MUCRole {
     }
 
     public void send(Packet packet) {
+        send(packet, null);
+    }
+
+    /**
+     * Sends the packet to the occupant using the already serialized form of the packet
+     * if possible. This is used when broadcasting the same packet to many occupants.
+     *
+     * @param packet the packet to send.
+     * @param template the serialized form of the packet or <tt>null</tt> if none.
+     */
+    public void send(Packet packet, PacketTemplate template) {
         if (packet == null) {
             return;
         }
@@ -260,7 +273,12 @@ public class LocalMUCRole implements MUCRole {
 
         if (session != null && session.getStatus() == Session.STATUS_AUTHENTICATED) {
             // Send the packet directly to the local user session
-            session.process(packet);
+            if (template != null && session instanceof LocalClientSession) {
+                ((LocalClientSession) session).process(packet, template);
+            }
+            else {
+                session.process(packet);
+            }
         }
         else {
             router.route(packet);
@@ -37,6 +37,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.dom4j.Element;
 import org.jivesoftware.database.SequenceManager;
+import org.jivesoftware.openfire.JIDCache;
 import org.jivesoftware.openfire.PacketRouter;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
@@ -78,6 +79,7 @@ import org.jivesoftware.openfire.muc.cluster.RoomUpdatedEvent;
 import org.jivesoftware.openfire.muc.cluster.UpdateOccupant;
 import org.jivesoftware.openfire.muc.cluster.UpdateOccupantRequest;
 import org.jivesoftware.openfire.muc.cluster.UpdatePresence;
+import org.jivesoftware.openfire.nio.PacketTemplate;
 import org.jivesoftware.openfire.user.UserAlreadyExistsException;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveConstants;
@@ -336,6 +338,12 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
      */
     private boolean savedToDB = false;
 
+    /**
+     * Indicates if the history, affiliations and members of the room were loaded from the
+     * database. Rooms loaded lazily at startup only have their configuration loaded.
+     */
+    private volatile boolean detailsLoaded = true;
+
     /**
      * Do not use this constructor. It was added to implement the Externalizable
      * interface required to work inside of a cluster.
@@ -390,7 +398,7 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
     }
 
     public JID getJID() {
-        return new JID(getName(), getMUCService().getServiceDomain(), null);
+        return JIDCache.get(getName(), getMUCService().getServiceDomain(), null);
     }
 
     public MultiUserChatService getMUCService() {
@@ -1116,14 +1124,19 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
         if (!canAnyoneDiscoverJID()) {
             jid = frag.element("item").attributeValue("jid");
         }
+        // Serialized forms of the presence for occupants that can (or cannot) see the JID
+        PacketTemplate jidTemplate = null;
+        PacketTemplate template = null;
         for (MUCRole occupant : occupantsByFullJID.values()) {
             if (!occupant.isLocal()) {
                 continue;
             }
+            boolean includeJID = true;
             // Don't include the occupant's JID if the room is semi-anon and the new occupant
             // is not a moderator
             if (!canAnyoneDiscoverJID()) {
-                if (MUCRole.Role.moderator == occupant.getRole()) {
+                includeJID = MUCRole.Role.moderator == occupant.getRole();
+                if (includeJID) {
                     frag.element("item").addAttribute("jid", jid);
                 }
                 else {
@@ -1151,6 +1164,19 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
                 }
 
                 occupant.send(selfPresence);
+            } else if (occupant instanceof LocalMUCRole) {
+                if (includeJID) {
+                    if (jidTemplate == null) {
+                        jidTemplate = new PacketTemplate(presence);
+                    }
+                    ((LocalMUCRole) occupant).send(presence, jidTemplate);
+                }
+                else {
+                    if (template == null) {
+                        template = new PacketTemplate(presence);
+                    }
+                    ((LocalMUCRole) occupant).send(presence, template);
+                }
             } else {
                 occupant.send(presence);
             }
@@ -1172,12 +1198,22 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
         Message message = messageRequest.getMessage();
         // Add message to the room history
         roomHistory.addMessage(message);
+        // Serialize the message only once for all the occupants connected to this JVM
+        PacketTemplate template = null;
         // Send message to occupants connected to this JVM
         for (MUCRole occupant : occupantsByFullJID.values()) {
             // Do not send broadcast messages to deaf occupants or occupants hosted in
             // other cluster nodes
             if (occupant.isLocal() && !occupant.isVoiceOnly()) {
-                occupant.send(message);
+                if (occupant instanceof LocalMUCRole) {
+                    if (template == null) {
+                        template = new PacketTemplate(message);
+                    }
+                    ((LocalMUCRole) occupant).send(message, template);
+                }
+                else {
+                    occupant.send(message);
+                }
             }
         }
         if (messageRequest.isOriginator() && isLogEnabled()) {
@@ -2341,6 +2377,26 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
         this.savedToDB = saved;
     }
 
+    /**
+     * Returns true if the history, affiliations and members of the room were loaded from
+     * the database. Only rooms that were loaded lazily when the service started may return
+     * false.
+     *
+     * @return true if the history, affiliations and members of the room were loaded.
+     */
+    public boolean isDetailsLoaded() {
+        return detailsLoaded;
+    }
+
+    /**
+     * Sets if the history, affiliations and members of the room were loaded from the database.
+     *
+     * @param detailsLoaded true if the history, affiliations and members of the room were loaded.
+     */
+    public void setDetailsLoaded(boolean detailsLoaded) {
+        this.detailsLoaded = detailsLoaded;
+    }
+
     public void setPersistent(boolean persistent) {
         this.persistent = persistent;
     }
@@ -26,15 +26,21 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.JIDCache;
 import org.jivesoftware.openfire.PacketRouter;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.group.Group;
 import org.jivesoftware.openfire.group.GroupJID;
 import org.jivesoftware.openfire.muc.*;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -57,6 +63,12 @@ public class MUCPersistenceManager {
 	// property name for optional number of days to limit persistent MUC history during reload (OF-764)
 	private static final String MUC_HISTORY_RELOAD_LIMIT = "xmpp.muc.history.reload.limit";
 
+    // property names to load only the configuration of the rooms at startup, and to load the
+    // rooms in parallel ranges of room IDs fetching the specified number of rows at a time
+    private static final String MUC_LOAD_LAZY = "xmpp.muc.load.lazy";
+    private static final String MUC_LOAD_THREADS = "xmpp.muc.load.threads";
+    private static final String MUC_LOAD_FETCH_SIZE = "xmpp.muc.load.fetchSize";
+
     private static final String GET_RESERVED_NAME =
         "SELECT nickname FROM ofMucMember WHERE roomID=? AND jid=?";
     private static final String LOAD_ROOM =
@@ -68,27 +80,38 @@ public class MUCPersistenceManager {
         "SELECT jid, affiliation FROM ofMucAffiliation WHERE roomID=?";
     private static final String LOAD_MEMBERS =
         "SELECT jid, nickname FROM ofMucMember WHERE roomID=?";
+    private static final String LOAD_AFFILIATED_ROOMS =
+        "SELECT ofMucAffiliation.roomID, ofMucAffiliation.jid FROM ofMucAffiliation,ofMucRoom " +
+        "WHERE ofMucAffiliation.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=? " +
+        "AND ofMucAffiliation.affiliation<>? AND (ofMucAffiliation.jid=? OR ofMucAffiliation.jid LIKE ?) " +
+        "UNION SELECT ofMucMember.roomID, ofMucMember.jid FROM ofMucMember,ofMucRoom " +
+        "WHERE ofMucMember.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=? " +
+        "AND (ofMucMember.jid=? OR ofMucMember.jid LIKE ?)";
     private static final String LOAD_HISTORY =
         "SELECT sender, nickname, logTime, subject, body FROM ofMucConversationLog " +
         "WHERE logTime>? AND roomID=? AND (nickname IS NOT NULL OR subject IS NOT NULL) ORDER BY logTime";
+    private static final String LOAD_ROOM_ID_BOUNDS =
+        "SELECT MIN(roomID), MAX(roomID) FROM ofMucRoom WHERE serviceID=?";
     private static final String LOAD_ALL_ROOMS =
         "SELECT roomID, creationDate, modificationDate, name, naturalName, description, " +
         "lockedDate, emptyDate, canChangeSubject, maxUsers, publicRoom, moderated, membersOnly, " +
         "canInvite, roomPassword, canDiscoverJID, logEnabled, subject, rolesToBroadcast, " +
         "useReservedNick, canChangeNick, canRegister " +
-        "FROM ofMucRoom WHERE serviceID=? AND (emptyDate IS NULL or emptyDate > ?)";
+        "FROM ofMucRoom WHERE serviceID=? AND (emptyDate IS NULL or emptyDate > ?) AND roomID BETWEEN ? AND ?";
     private static final String LOAD_ALL_AFFILIATIONS =
         "SELECT ofMucAffiliation.roomID,ofMucAffiliation.jid,ofMucAffiliation.affiliation " +
-        "FROM ofMucAffiliation,ofMucRoom WHERE ofMucAffiliation.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=?";
+        "FROM ofMucAffiliation,ofMucRoom WHERE ofMucAffiliation.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=? " +
+        "AND ofMucRoom.roomID BETWEEN ? AND ?";
     private static final String LOAD_ALL_MEMBERS =
         "SELECT ofMucMember.roomID,ofMucMember.jid,ofMucMember.nickname FROM ofMucMember,ofMucRoom " +
-        "WHERE ofMucMember.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=?";
+        "WHERE ofMucMember.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=? AND ofMucRoom.roomID BETWEEN ? AND ?";
     private static final String LOAD_ALL_HISTORY =
         "SELECT ofMucConversationLog.roomID, ofMucConversationLog.sender, ofMucConversationLog.nickname, " +
         "ofMucConversationLog.logTime, ofMucConversationLog.subject, ofMucConversationLog.body FROM " +
         "ofMucConversationLog, ofMucRoom WHERE ofMucConversationLog.roomID = ofMucRoom.roomID AND " +
-        "ofMucRoom.serviceID=? AND ofMucConversationLog.logTime>? AND (ofMucConversationLog.nickname IS NOT NULL " +
-        "OR ofMucConversationLog.subject IS NOT NULL) ORDER BY ofMucConversationLog.logTime";
+        "ofMucRoom.serviceID=? AND ofMucRoom.roomID BETWEEN ? AND ? AND ofMucConversationLog.logTime>? AND " +
+        "(ofMucConversationLog.nickname IS NOT NULL OR ofMucConversationLog.subject IS NOT NULL) " +
+        "ORDER BY ofMucConversationLog.logTime";
     private static final String UPDATE_ROOM =
         "UPDATE ofMucRoom SET modificationDate=?, naturalName=?, description=?, " +
         "canChangeSubject=?, maxUsers=?, publicRoom=?, moderated=?, membersOnly=?, " +
@@ -166,6 +189,77 @@ public class MUCPersistenceManager {
         return answer;
     }
 
+    /**
+     * Returns the IDs of the rooms of a service where a user is an owner, an admin or a member,
+     * either directly or through a group. The rooms are not loaded, so this can be used to
+     * check the affiliations of rooms that were loaded lazily when the service started.
+     *
+     * @param service the service of the rooms.
+     * @param bareJID the bare JID of the user.
+     * @return the IDs of the rooms where the user is an owner, an admin or a member.
+     */
+    public static Set<Long> loadAffiliatedRoomIDs(MultiUserChatService service, JID bareJID) {
+        final Long serviceID = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatServiceID(service.getServiceName());
+        Connection con = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            return loadAffiliatedRoomIDs(con, serviceID, bareJID);
+        }
+        catch (SQLException sqle) {
+            Log.error(sqle.getMessage(), sqle);
+            return Collections.emptySet();
+        }
+        finally {
+            DbConnectionManager.closeConnection(con);
+        }
+    }
+
+    /**
+     * Returns the IDs of the rooms of a service where a user is an owner, an admin or a member,
+     * either directly or through a group.
+     *
+     * @param con the connection to the database.
+     * @param serviceID the ID of the service of the rooms.
+     * @param bareJID the bare JID of the user.
+     * @return the IDs of the rooms where the user is an owner, an admin or a member.
+     * @throws SQLException if the affiliations could not be read.
+     */
+    static Set<Long> loadAffiliatedRoomIDs(Connection con, long serviceID, JID bareJID) throws SQLException {
+        final String jid = bareJID.toString();
+        Set<Long> roomIDs = new HashSet<Long>();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = con.prepareStatement(LOAD_AFFILIATED_ROOMS);
+            // Also read the group affiliations, which are the only ones whose JID has a resource
+            pstmt.setLong(1, serviceID);
+            pstmt.setInt(2, MUCRole.Affiliation.outcast.getValue());
+            pstmt.setString(3, jid);
+            pstmt.setString(4, "%/%");
+            pstmt.setLong(5, serviceID);
+            pstmt.setString(6, jid);
+            pstmt.setString(7, "%/%");
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                long roomID = rs.getLong(1);
+                String affiliationJID = rs.getString(2);
+                if (jid.equals(affiliationJID)) {
+                    roomIDs.add(roomID);
+                    continue;
+                }
+                JID groupJID = GroupJID.fromString(affiliationJID);
+                Group group = groupJID instanceof GroupJID ? Group.resolveFrom(groupJID) : null;
+                if (group != null && group.isUser(bareJID)) {
+                    roomIDs.add(roomID);
+                }
+            }
+        }
+        finally {
+            DbConnectionManager.closeStatement(rs, pstmt);
+        }
+        return roomIDs;
+    }
+
     /**
      * Loads the room configuration from the database if the room was persistent.
      * 
@@ -225,14 +319,46 @@ public class MUCPersistenceManager {
             room.setPersistent(true);
             DbConnectionManager.fastcloseStmt(rs, pstmt);
 
+            // Reload the history, using "muc.history.reload.limit" (days); defaults to 2
+            int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
+            long from = System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
+            loadRoomDetails(con, room, from);
+
+            // Set now that the room's configuration is updated in the database. Note: We need to
+            // set this now since otherwise the room's affiliations will be saved to the database
+            // "again" while adding them to the room!
+            room.setSavedToDB(true);
+            if (room.getEmptyDate() == null) {
+                // The service process was killed somehow while the room was being used. Since
+                // the room won't have occupants at this time we need to set the best date when
+                // the last occupant left the room that we can
+                room.setEmptyDate(new Date());
+            }
+        }
+        catch (SQLException sqle) {
+            Log.error(sqle.getMessage(), sqle);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+    }
+
+    /**
+     * Loads the history, affiliations and members of a room whose configuration was loaded.
+     *
+     * @param con the connection to use.
+     * @param room the room to load.
+     * @param historyFrom the date of the oldest message of the history to load.
+     */
+    private static void loadRoomDetails(Connection con, LocalMUCRoom room, long historyFrom) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
             // Recreate the history only for the rooms that have the conversation logging
             // enabled
             if (room.isLogEnabled()) {
                 pstmt = con.prepareStatement(LOAD_HISTORY);
-                // Reload the history, using "muc.history.reload.limit" (days); defaults to 2
-                int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
-                long from = System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
-                pstmt.setString(1, StringUtils.dateToMillis(new Date(from)));
+                pstmt.setString(1, StringUtils.dateToMillis(new Date(historyFrom)));
                 pstmt.setLong(2, room.getID());
                 rs = pstmt.executeQuery();
                 while (rs.next()) {
@@ -244,8 +370,8 @@ public class MUCPersistenceManager {
                     room.getRoomHistory().addOldMessage(senderJID, nickname, sentDate, subject,
                             body);
                 }
+                DbConnectionManager.fastcloseStmt(rs, pstmt);
             }
-            DbConnectionManager.fastcloseStmt(rs, pstmt);
 
             // If the room does not include the last subject in the history then recreate one if
             // possible
@@ -283,34 +409,21 @@ public class MUCPersistenceManager {
                 }
             }
             DbConnectionManager.fastcloseStmt(rs, pstmt);
-            
+
             pstmt = con.prepareStatement(LOAD_MEMBERS);
             pstmt.setLong(1, room.getID());
             rs = pstmt.executeQuery();
             while (rs.next()) {
                 try {
-                	room.addMember(new JID(rs.getString(1)), rs.getString(2), room.getRole());
+                	room.addMember(JIDCache.get(rs.getString(1)), rs.getString(2), room.getRole());
                 }
                 catch (Exception e) {
                     Log.error(e.getMessage(), e);
                 }
             }
-            // Set now that the room's configuration is updated in the database. Note: We need to
-            // set this now since otherwise the room's affiliations will be saved to the database
-            // "again" while adding them to the room!
-            room.setSavedToDB(true);
-            if (room.getEmptyDate() == null) {
-                // The service process was killed somehow while the room was being used. Since
-                // the room won't have occupants at this time we need to set the best date when
-                // the last occupant left the room that we can
-                room.setEmptyDate(new Date());
-            }
-        }
-        catch (SQLException sqle) {
-            Log.error(sqle.getMessage(), sqle);
         }
         finally {
-            DbConnectionManager.closeConnection(rs, pstmt, con);
+            DbConnectionManager.closeStatement(rs, pstmt);
         }
     }
 
@@ -430,55 +543,204 @@ public class MUCPersistenceManager {
 
     /**
      * Loads all the rooms that had occupants after a given date from the database. This query
-     * will be executed only when the service is starting up.
+     * will be executed only when the service is starting up.<p>
+     *
+     * The rooms are split in as many ranges of room IDs as the value of the
+     * <tt>xmpp.muc.load.threads</tt> property (default 1). Each range is loaded in parallel
+     * using its own connection, fetching <tt>xmpp.muc.load.fetchSize</tt> rows at a time.
+     * When the <tt>xmpp.muc.load.lazy</tt> property is <tt>true</tt> only the configuration of
+     * the rooms is loaded. The history, affiliations and members of those rooms must then be
+     * loaded using {@link #loadRoomDetailsFromDB(LocalMUCRoom)} before the rooms are used.
      *
      * @param chatserver the chat server that will hold the loaded rooms.
      * @param emptyDate rooms that hadn't been used before this date won't be loaded.
      * @param packetRouter the PacketRouter that loaded rooms will use to send packets.
      * @return a collection with all the persistent rooms.
      */
-    public static Collection<LocalMUCRoom> loadRoomsFromDB(MultiUserChatService chatserver, Date emptyDate, PacketRouter packetRouter) {
-        Long serviceID = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatServiceID(chatserver.getServiceName());
+    public static Collection<LocalMUCRoom> loadRoomsFromDB(final MultiUserChatService chatserver, final Date emptyDate, final PacketRouter packetRouter) {
+        final Long serviceID = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatServiceID(chatserver.getServiceName());
+        final boolean lazy = JiveGlobals.getBooleanProperty(MUC_LOAD_LAZY, false);
+        final int threads = Math.max(1, JiveGlobals.getIntProperty(MUC_LOAD_THREADS, 1));
+        final long start = System.currentTimeMillis();
+
+        if (!lazy && JiveGlobals.getProperty(MUC_HISTORY_RELOAD_LIMIT) != null) {
+            Log.warn("MUC history reload limit set to " + JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2) + " days");
+        }
 
-        final Map<Long, LocalMUCRoom> rooms;
+        final List<FutureTask<Map<Long, LocalMUCRoom>>> partitions = new ArrayList<FutureTask<Map<Long, LocalMUCRoom>>>();
+        final List<LocalMUCRoom> rooms = new ArrayList<LocalMUCRoom>();
         try {
-            rooms = loadRooms(serviceID, emptyDate, chatserver, packetRouter);
-            loadHistory(serviceID, rooms);
-            loadAffiliations(serviceID, rooms);
-            loadMembers(serviceID, rooms);
+            final long[] bounds = loadRoomIDBounds(serviceID);
+            if (bounds == null) {
+                return Collections.emptyList();
+            }
+            // Split the rooms in ranges of room IDs that are loaded using their own connection
+            final long rangeSize = (bounds[1] - bounds[0]) / threads + 1;
+            for (long from = bounds[0]; from <= bounds[1]; from += rangeSize) {
+                final long fromID = from;
+                final long toID = Math.min(from + rangeSize - 1, bounds[1]);
+                partitions.add(new FutureTask<Map<Long, LocalMUCRoom>>(new Callable<Map<Long, LocalMUCRoom>>() {
+                    public Map<Long, LocalMUCRoom> call() throws SQLException {
+                        return loadRooms(serviceID, fromID, toID, lazy, emptyDate, chatserver, packetRouter);
+                    }
+                }));
+            }
+            for (int i = 1; i < partitions.size(); i++) {
+                TaskEngine.getInstance().submit(partitions.get(i));
+            }
+            // Load the first range using this thread
+            partitions.get(0).run();
+            for (FutureTask<Map<Long, LocalMUCRoom>> partition : partitions) {
+                rooms.addAll(partition.get().values());
+            }
         }
         catch (SQLException sqle) {
             Log.error("A database error prevented MUC rooms to be loaded from the database.", sqle);
             return Collections.emptyList();
         }
+        catch (ExecutionException e) {
+            Log.error("A database error prevented MUC rooms to be loaded from the database.", e.getCause());
+            cancel(partitions);
+            return Collections.emptyList();
+        }
+        catch (InterruptedException e) {
+            Log.error("Interrupted while loading MUC rooms from the database.", e);
+            cancel(partitions);
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+
+        Log.info("Loaded " + rooms.size() + " MUC rooms of service " + chatserver.getServiceName() +
+                (lazy ? " (configuration only)" : "") + " in " + (System.currentTimeMillis() - start) + " ms");
+        return rooms;
+    }
 
-        // Set now that the room's configuration is updated in the database. Note: We need to
-        // set this now since otherwise the room's affiliations will be saved to the database
-        // "again" while adding them to the room!
-        for (final MUCRoom room : rooms.values()) {
+    /**
+     * Loads the history, affiliations and members of a room that was loaded by
+     * {@link #loadRoomsFromDB(MultiUserChatService, Date, PacketRouter)} when the
+     * <tt>xmpp.muc.load.lazy</tt> property was <tt>true</tt>. The room is not marked
+     * as loaded if a database error prevented the room to be loaded so that loading
+     * the room will be retried the next time it is used.
+     *
+     * @param room the room whose history, affiliations and members will be loaded.
+     */
+    public static void loadRoomDetailsFromDB(LocalMUCRoom room) {
+        Connection con = null;
+        // Note: The room's affiliations are already in the database so they must not be
+        // saved "again" while adding them to the room
+        room.setSavedToDB(false);
+        try {
+            con = DbConnectionManager.getConnection();
+            loadRoomDetails(con, room, getHistoryReloadDate());
+            room.setDetailsLoaded(true);
+        }
+        catch (SQLException sqle) {
+            Log.error("A database error prevented MUC room " + room.getName() + " to be loaded from the database.", sqle);
+        }
+        finally {
             room.setSavedToDB(true);
-            if (room.getEmptyDate() == null) {
-                // The service process was killed somehow while the room was being used. Since
-                // the room won't have occupants at this time we need to set the best date when
-                // the last occupant left the room that we can
-                room.setEmptyDate(new Date());
+            DbConnectionManager.closeConnection(con);
+        }
+    }
+
+    private static void cancel(List<FutureTask<Map<Long, LocalMUCRoom>>> partitions) {
+        for (FutureTask<Map<Long, LocalMUCRoom>> partition : partitions) {
+            partition.cancel(true);
+        }
+    }
+
+    /**
+     * Returns the lowest and highest IDs of the rooms of a service or <tt>null</tt> if the
+     * service has no rooms.
+     */
+    private static long[] loadRoomIDBounds(Long serviceID) throws SQLException {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            connection = DbConnectionManager.getConnection();
+            statement = connection.prepareStatement(LOAD_ROOM_ID_BOUNDS);
+            statement.setLong(1, serviceID);
+            resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                return null;
+            }
+            long lowest = resultSet.getLong(1);
+            if (resultSet.wasNull()) {
+                return null;
             }
+            return new long[] {lowest, resultSet.getLong(2)};
+        } finally {
+            DbConnectionManager.closeConnection(resultSet, statement, connection);
         }
+    }
 
-        return rooms.values();
+    private static int getLoadFetchSize() {
+        return JiveGlobals.getIntProperty(MUC_LOAD_FETCH_SIZE, 500);
     }
 
-    private static Map<Long, LocalMUCRoom> loadRooms(Long serviceID, Date emptyDate, MultiUserChatService chatserver, PacketRouter packetRouter) throws SQLException {
-        final Map<Long, LocalMUCRoom> rooms = new HashMap<Long, LocalMUCRoom>();
+    /**
+     * Returns the date of the oldest message of the history to load. The history is reloaded
+     * using "muc.history.reload.limit" (days) if present.
+     */
+    private static long getHistoryReloadDate() {
+        if (JiveGlobals.getProperty(MUC_HISTORY_RELOAD_LIMIT) == null) {
+            return 0;
+        }
+        // if the property is defined, but not numeric, default to 2 (days)
+        int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
+        return System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
+    }
 
+    /**
+     * Loads the rooms whose IDs are in the specified range using one connection.
+     */
+    private static Map<Long, LocalMUCRoom> loadRooms(Long serviceID, long fromID, long toID, boolean lazy, Date emptyDate, MultiUserChatService chatserver, PacketRouter packetRouter) throws SQLException {
         Connection connection = null;
+        try {
+            connection = DbConnectionManager.getConnection();
+            final Map<Long, LocalMUCRoom> rooms = loadRooms(connection, serviceID, fromID, toID, emptyDate, chatserver, packetRouter);
+            if (lazy) {
+                for (LocalMUCRoom room : rooms.values()) {
+                    room.setDetailsLoaded(false);
+                }
+            }
+            else {
+                loadHistory(connection, serviceID, fromID, toID, rooms);
+                loadAffiliations(connection, serviceID, fromID, toID, rooms);
+                loadMembers(connection, serviceID, fromID, toID, rooms);
+            }
+
+            // Set now that the room's configuration is updated in the database. Note: We need to
+            // set this now since otherwise the room's affiliations will be saved to the database
+            // "again" while adding them to the room!
+            for (final MUCRoom room : rooms.values()) {
+                room.setSavedToDB(true);
+                if (room.getEmptyDate() == null) {
+                    // The service process was killed somehow while the room was being used. Since
+                    // the room won't have occupants at this time we need to set the best date when
+                    // the last occupant left the room that we can
+                    room.setEmptyDate(new Date());
+                }
+            }
+            return rooms;
+        } finally {
+            DbConnectionManager.closeConnection(connection);
+        }
+    }
+
+    private static Map<Long, LocalMUCRoom> loadRooms(Connection connection, Long serviceID, long fromID, long toID, Date emptyDate, MultiUserChatService chatserver, PacketRouter packetRouter) throws SQLException {
+        final Map<Long, LocalMUCRoom> rooms = new HashMap<Long, LocalMUCRoom>();
+
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         try {
-            connection = DbConnectionManager.getConnection();
             statement = connection.prepareStatement(LOAD_ALL_ROOMS);
+            DbConnectionManager.setFetchSize(statement, getLoadFetchSize());
             statement.setLong(1, serviceID);
             statement.setString(2, StringUtils.dateToMillis(emptyDate));
+            statement.setLong(3, fromID);
+            statement.setLong(4, toID);
             resultSet = statement.executeQuery();
 
             while (resultSet.next()) {
@@ -528,31 +790,22 @@ public class MUCPersistenceManager {
                 }
             }
         } finally {
-            DbConnectionManager.closeConnection(resultSet, statement, connection);
+            DbConnectionManager.closeStatement(resultSet, statement);
         }
 
         return rooms;
     }
 
-    private static void loadHistory(Long serviceID, Map<Long, LocalMUCRoom> rooms) throws SQLException {
-        Connection connection = null;
+    private static void loadHistory(Connection connection, Long serviceID, long fromID, long toID, Map<Long, LocalMUCRoom> rooms) throws SQLException {
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         try {
-            connection = DbConnectionManager.getConnection();
             statement = connection.prepareStatement(LOAD_ALL_HISTORY);
-
-            // Reload the history, using "muc.history.reload.limit" (days) if present
-            long from = 0;
-            String reloadLimit = JiveGlobals.getProperty(MUC_HISTORY_RELOAD_LIMIT);
-            if (reloadLimit != null) {
-                // if the property is defined, but not numeric, default to 2 (days)
-                int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
-                Log.warn("MUC history reload limit set to " + reloadLimitDays + " days");
-                from = System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
-            }
+            DbConnectionManager.setFetchSize(statement, getLoadFetchSize());
             statement.setLong(1, serviceID);
-            statement.setString(2, StringUtils.dateToMillis(new Date(from)));
+            statement.setLong(2, fromID);
+            statement.setLong(3, toID);
+            statement.setString(4, StringUtils.dateToMillis(new Date(getHistoryReloadDate())));
             resultSet = statement.executeQuery();
 
             while (resultSet.next()) {
@@ -573,7 +826,7 @@ public class MUCPersistenceManager {
                 }
             }
         } finally {
-            DbConnectionManager.closeConnection(resultSet, statement, connection);
+            DbConnectionManager.closeStatement(resultSet, statement);
         }
 
         // Add the last known room subject to the room history only for those rooms that still
@@ -593,14 +846,15 @@ public class MUCPersistenceManager {
         }
     }
 
-    private static void loadAffiliations(Long serviceID, Map<Long, LocalMUCRoom> rooms) throws SQLException {
-        Connection connection = null;
+    private static void loadAffiliations(Connection connection, Long serviceID, long fromID, long toID, Map<Long, LocalMUCRoom> rooms) throws SQLException {
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         try {
-            connection = DbConnectionManager.getConnection();
             statement = connection.prepareStatement(LOAD_ALL_AFFILIATIONS);
+            DbConnectionManager.setFetchSize(statement, getLoadFetchSize());
             statement.setLong(1, serviceID);
+            statement.setLong(2, fromID);
+            statement.setLong(3, toID);
             resultSet = statement.executeQuery();
 
             while (resultSet.next()) {
@@ -654,19 +908,20 @@ public class MUCPersistenceManager {
             }
 
         } finally {
-            DbConnectionManager.closeConnection(resultSet, statement, connection);
+            DbConnectionManager.closeStatement(resultSet, statement);
         }
     }
 
-    private static void loadMembers(Long serviceID, Map<Long, LocalMUCRoom> rooms) throws SQLException {
-        Connection connection = null;
+    private static void loadMembers(Connection connection, Long serviceID, long fromID, long toID, Map<Long, LocalMUCRoom> rooms) throws SQLException {
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         JID affiliationJID = null;
         try {
-            connection = DbConnectionManager.getConnection();
             statement = connection.prepareStatement(LOAD_ALL_MEMBERS);
+            DbConnectionManager.setFetchSize(statement, getLoadFetchSize());
             statement.setLong(1, serviceID);
+            statement.setLong(2, fromID);
+            statement.setLong(3, toID);
             resultSet = statement.executeQuery();
 
             while (resultSet.next()) {
@@ -690,10 +945,11 @@ public class MUCPersistenceManager {
                 }
             }
         } finally {
-            DbConnectionManager.closeConnection(resultSet, statement, connection);
+            DbConnectionManager.closeStatement(resultSet, statement);
         }
     }
 
+
     /**
      * Updates the room's subject in the database. 
      * 
@@ -1049,6 +1305,61 @@ public class MUCPersistenceManager {
         }
     }
 
+    /**
+     * Saves conversation log entries to the database in a single transaction. Entries are
+     * written with a JDBC batch when the database supports batch updates.
+     *
+     * @param entries the ConversationLogEntry to save.
+     * @return true if all the entries were saved successfully to the database.
+     */
+    public static boolean saveConversationLogEntries(List<ConversationLogEntry> entries) {
+        try {
+            insertConversationLogEntries(entries);
+            return true;
+        }
+        catch (SQLException sqle) {
+            Log.error("Error saving conversation log entries", sqle);
+            return false;
+        }
+    }
+
+    /**
+     * Saves conversation log entries to the database in a single transaction.
+     *
+     * @param entries the ConversationLogEntry to save.
+     * @throws SQLException if the entries were not saved.
+     */
+    static void insertConversationLogEntries(List<ConversationLogEntry> entries) throws SQLException {
+        boolean batch = entries.size() > 1 && DbConnectionManager.isBatchUpdatesSupported();
+        Connection con = DbConnectionManager.getTransactionConnection();
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = true;
+        try {
+            pstmt = con.prepareStatement(ADD_CONVERSATION_LOG);
+            for (ConversationLogEntry entry : entries) {
+                pstmt.setLong(1, entry.getRoomID());
+                pstmt.setString(2, entry.getSender().toString());
+                pstmt.setString(3, entry.getNickname());
+                pstmt.setString(4, StringUtils.dateToMillis(entry.getDate()));
+                pstmt.setString(5, entry.getSubject());
+                pstmt.setString(6, entry.getBody());
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+            abortTransaction = false;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+    }
+
     /**
      * Returns an integer based on the binary representation of the roles to broadcast.
      * 
@@ -27,10 +27,9 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -114,17 +113,13 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      */
     private UserTimeoutTask userTimeoutTask;
     /**
-     * The time to elapse between logging the room conversations.
+     * The max time that a message to log waits for the batch of messages to log to fill.
      */
     private int log_timeout = 300000;
     /**
-     * The number of messages to log on each run of the logging process.
+     * The max number of messages to log in a single batch.
      */
     private int log_batch_size = 50;
-    /**
-     * Task that flushes room conversation logs to the database.
-     */
-    private LogConversationTask logConversationTask;
     /**
      * the chat service's hostname (subdomain)
      */
@@ -203,9 +198,9 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     private GroupAwareList<JID> sysadmins = new ConcurrentGroupList<JID>();
 
     /**
-     * Queue that holds the messages to log for the rooms that need to log their conversations.
+     * Writes the messages to log for the rooms that need to log their conversations.
      */
-    private Queue<ConversationLogEntry> logQueue = new LinkedBlockingQueue<ConversationLogEntry>(100000);
+    private final ConversationLogWriter logWriter;
 
     /**
      * Max number of hours that a persistent room may be empty before the service removes the
@@ -287,6 +282,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         }
         this.isHidden = isHidden;
         historyStrategy = new HistoryStrategy(null);
+        logWriter = new ConversationLogWriter(subdomain, log_batch_size, log_timeout);
     }
 
     public String getDescription() {
@@ -450,49 +446,6 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         }
     }
 
-    /**
-     * Logs the conversation of the rooms that have this feature enabled.
-     */
-    private class LogConversationTask extends TimerTask {
-        @Override
-		public void run() {
-            try {
-                logConversation();
-            }
-            catch (Throwable e) {
-                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-            }
-        }
-    }
-
-    private void logConversation() {
-        ConversationLogEntry entry;
-        boolean success;
-        for (int index = 0; index <= log_batch_size && !logQueue.isEmpty(); index++) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                success = MUCPersistenceManager.saveConversationLogEntry(entry);
-                if (!success) {
-                    logQueue.add(entry);
-                }
-            }
-        }
-    }
-
-    /**
-     * Logs all the remaining conversation log entries to the database. Use this method to force
-     * saving all the conversation log entries before the service becomes unavailable.
-     */
-    private void logAllConversation() {
-        ConversationLogEntry entry;
-        while (!logQueue.isEmpty()) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                MUCPersistenceManager.saveConversationLogEntry(entry);
-            }
-        }
-    }
-
     /**
      * Removes from memory rooms that have been without activity for a period of time. A room is
      * considered without activity when no occupants are present in the room for a while.
@@ -526,7 +479,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         boolean loaded = false;
         boolean created = false;
         synchronized (roomName.intern()) {
-            room = rooms.get(roomName);
+            room = loadRoomDetails(rooms.get(roomName));
             if (room == null) {
                 room = new LocalMUCRoom(this, roomName, router);
                 // If the room is persistent load the configuration values from the DB
@@ -591,7 +544,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
 
     public MUCRoom getChatRoom(String roomName) {
         boolean loaded = false;
-        LocalMUCRoom room = rooms.get(roomName);
+        LocalMUCRoom room = loadRoomDetails(rooms.get(roomName));
         if (room == null) {
             // Check if the room exists in the databclase and was not present in memory
             synchronized (roomName.intern()) {
@@ -627,7 +580,25 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     public LocalMUCRoom getLocalChatRoom(String roomName) {
-        return rooms.get(roomName);
+        return loadRoomDetails(rooms.get(roomName));
+    }
+
+    /**
+     * Loads the history, affiliations and members of a room that was loaded lazily when the
+     * service started.
+     *
+     * @param room the room to load or <tt>null</tt>.
+     * @return the same room.
+     */
+    private LocalMUCRoom loadRoomDetails(LocalMUCRoom room) {
+        if (room != null && !room.isDetailsLoaded()) {
+            synchronized (room.getName().intern()) {
+                if (!room.isDetailsLoaded()) {
+                    MUCPersistenceManager.loadRoomDetailsFromDB(room);
+                }
+            }
+        }
+        return room;
     }
 
     public List<MUCRoom> getChatRooms() {
@@ -793,14 +764,8 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         if (this.log_timeout == timeout) {
             return;
         }
-        // Cancel the existing task because the timeout has changed
-        if (logConversationTask != null) {
-            logConversationTask.cancel();
-        }
         this.log_timeout = timeout;
-        // Create a new task and schedule it with the new timeout
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        logWriter.setMaxDelay(timeout);
         // Set the new property value
         MUCPersistenceManager.setProperty(chatServiceName, "tasks.log.timeout", Integer.toString(timeout));
     }
@@ -814,6 +779,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
             return;
         }
         this.log_batch_size = size;
+        logWriter.setBatchSize(size);
         // Set the new property value
         MUCPersistenceManager.setProperty(chatServiceName, "tasks.log.batchsize", Integer.toString(size));
     }
@@ -1078,6 +1044,8 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                 Log.error("Wrong number format of property tasks.log.batchsize for service "+chatServiceName, e);
             }
         }
+        logWriter.setMaxDelay(log_timeout);
+        logWriter.setBatchSize(log_batch_size);
         value = MUCPersistenceManager.getProperty(chatServiceName, "unload.empty_days");
         emptyLimit = 30 * 24;
         if (value != null) {
@@ -1095,10 +1063,9 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         // values)
         userTimeoutTask = new UserTimeoutTask();
         TaskEngine.getInstance().schedule(userTimeoutTask, user_timeout, user_timeout);
-        // Log the room conversations every 5 minutes after a 5 minutes server startup delay
-        // (default values)
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        // Log the room conversations in batches of 50 messages, or after 5 minutes when
+        // there are fewer messages (default values)
+        logWriter.start();
         // Remove unused rooms from memory
         cleanupTask = new CleanupTask();
         TaskEngine.getInstance().schedule(cleanupTask, CLEANUP_FREQUENCY, CLEANUP_FREQUENCY);
@@ -1124,7 +1091,8 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         XMPPServer.getInstance().getServerItemsProviders().remove(this);
         // Remove the route to this service
         routingTable.removeComponentRoute(getAddress());
-        logAllConversation();
+        // Save all the conversation log entries before the service becomes unavailable
+        logWriter.stop();
 
     }
 
@@ -1238,10 +1206,29 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     public void logConversation(MUCRoom room, Message message, JID sender) {
         // Only log messages that have a subject or body. Otherwise ignore it.
         if (message.getSubject() != null || message.getBody() != null) {
-            logQueue.add(new ConversationLogEntry(new Date(), room, message, sender));
+            logWriter.add(new ConversationLogEntry(new Date(), room, message, sender));
         }
     }
 
+    /**
+     * Returns the number of messages that are waiting to be logged.
+     *
+     * @return the number of messages that are waiting to be logged.
+     */
+    public int getLogQueueSize() {
+        return logWriter.getQueueSize();
+    }
+
+    /**
+     * Returns the number of messages that were not logged because too many messages
+     * were waiting to be logged or because the database rejected them.
+     *
+     * @return the number of messages that were not logged.
+     */
+    public long getDroppedLogEntries() {
+        return logWriter.getDroppedEntries();
+    }
+
     public void messageBroadcastedTo(int numOccupants) {
         // Increment counter of received messages that where broadcasted by one
         inMessages.incrementAndGet();
@@ -1507,14 +1494,37 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
 		if (name == null && node == null)
 		{
 			// Answer all the public rooms as items
-			for (MUCRoom room : rooms.values())
+			List<MUCRoom> notLoadedRooms = new ArrayList<MUCRoom>();
+			for (LocalMUCRoom room : rooms.values())
 			{
-				if (canDiscoverRoom(room, senderJID))
+				if (!room.isPublicRoom() && !room.isDetailsLoaded())
+				{
+					// The affiliations of the room were not loaded yet
+					if (canDiscoverRoom(room))
+					{
+						notLoadedRooms.add(room);
+					}
+				}
+				else if (canDiscoverRoom(room, senderJID))
 				{
 					answer.add(new DiscoItem(room.getRole().getRoleAddress(),
 						room.getNaturalLanguageName(), null, null));
 				}
 			}
+			if (!notLoadedRooms.isEmpty())
+			{
+				// Read the affiliations of the sender with a single query instead of loading the rooms
+				Set<Long> affiliatedRoomIDs =
+						MUCPersistenceManager.loadAffiliatedRoomIDs(this, senderJID.asBareJID());
+				for (MUCRoom room : notLoadedRooms)
+				{
+					if (affiliatedRoomIDs.contains(room.getID()))
+					{
+						answer.add(new DiscoItem(room.getRole().getRoleAddress(),
+							room.getNaturalLanguageName(), null, null));
+					}
+				}
+			}
 		}
         else if (name != null && node == null) {
             // Answer the room occupants as items if that info is publicly available
@@ -1530,14 +1540,10 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     private boolean canDiscoverRoom(MUCRoom room, JID senderJID) {
-        // Check if locked rooms may be discovered
-        if (!allowToDiscoverLockedRooms && room.isLocked()) {
+        if (!canDiscoverRoom(room)) {
             return false;
         }
         if (!room.isPublicRoom()) {
-            if (!allowToDiscoverMembersOnlyRooms && room.isMembersOnly()) {
-                return false;
-            }
             MUCRole.Affiliation affiliation = room.getAffiliation(senderJID.asBareJID());
             if (affiliation != MUCRole.Affiliation.owner
                     && affiliation != MUCRole.Affiliation.admin
@@ -1548,6 +1554,18 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         return true;
     }
 
+    /**
+     * Returns true if a room may be discovered by the users that are affiliated with it, or
+     * by any user if the room is public.
+     */
+    private boolean canDiscoverRoom(MUCRoom room) {
+        // Check if locked rooms may be discovered
+        if (!allowToDiscoverLockedRooms && room.isLocked()) {
+            return false;
+        }
+        return room.isPublicRoom() || allowToDiscoverMembersOnlyRooms || !room.isMembersOnly();
+    }
+
     /**
      * Converts an array to a comma-delimited String.
      *
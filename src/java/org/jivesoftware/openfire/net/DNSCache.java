@@ -0,0 +1,364 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the answers to DNS SRV lookups. Answers are kept for as long as their TTL and
+ * lookups that found no records (or that failed) are kept for the negative TTL. An answer
+ * that is used after 80% of its TTL elapsed is refreshed in the background so that busy
+ * domains never wait for a lookup.<p>
+ *
+ * Concurrent lookups of the same name share a single query: the first thread performs
+ * the query and the other threads wait for its answer.
+ */
+public class DNSCache {
+
+    private static final Logger Log = LoggerFactory.getLogger(DNSCache.class);
+
+    /**
+     * Performs the actual DNS lookups.
+     */
+    interface Resolver {
+
+        /**
+         * Looks up the SRV records of a name.
+         *
+         * @param name the name to look up (e.g. "_xmpp-server._tcp.example.com").
+         * @return the answer, with no records if the name has no SRV records.
+         * @throws Exception if the lookup failed.
+         */
+        Answer lookup(String name) throws Exception;
+    }
+
+    /**
+     * SRV records of a name and the number of milliseconds that they may be cached.
+     */
+    static class Answer {
+
+        final List<DNSUtil.WeightedHostAddress> records;
+        final long ttl;
+
+        Answer(List<DNSUtil.WeightedHostAddress> records, long ttl) {
+            this.records = Collections.unmodifiableList(records);
+            this.ttl = ttl;
+        }
+    }
+
+    private static class Entry {
+
+        final List<DNSUtil.WeightedHostAddress> records;
+        final long refreshTime;
+        final long expirationTime;
+
+        Entry(List<DNSUtil.WeightedHostAddress> records, long refreshTime, long expirationTime) {
+            this.records = records;
+            this.refreshTime = refreshTime;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    private final Resolver resolver;
+    private final Executor executor;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /**
+     * Lookups in progress by name.
+     */
+    private final ConcurrentMap<String, FutureTask<Entry>> lookups =
+            new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+    private volatile long negativeTTL;
+    private volatile int maxEntries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong queryTime = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param resolver performs the actual lookups.
+     * @param executor runs the background refreshes.
+     * @param negativeTTL number of milliseconds to cache lookups that found no records or failed.
+     * @param maxEntries max number of cached names.
+     */
+    DNSCache(Resolver resolver, Executor executor, long negativeTTL, int maxEntries) {
+        this.resolver = resolver;
+        this.executor = executor;
+        this.negativeTTL = negativeTTL;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the SRV records of a name. Cached records are returned unless they expired,
+     * in which case the name is looked up again.
+     *
+     * @param name the name to look up (e.g. "_xmpp-server._tcp.example.com").
+     * @return the SRV records of the name or an empty list if it has none (or if the
+     *         lookup failed).
+     */
+    public List<DNSUtil.WeightedHostAddress> lookup(String name) {
+        Entry entry = entries.get(name);
+        long now = currentTimeMillis();
+        if (entry != null && now < entry.expirationTime) {
+            hits.incrementAndGet();
+            if (now >= entry.refreshTime) {
+                refresh(name);
+            }
+            return entry.records;
+        }
+        misses.incrementAndGet();
+        FutureTask<Entry> task = new FutureTask<Entry>(new Query(name));
+        FutureTask<Entry> running = lookups.putIfAbsent(name, task);
+        if (running == null) {
+            // Perform the query in this thread
+            running = task;
+            task.run();
+        }
+        try {
+            return running.get().records;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            Log.error("Error looking up " + name, e);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Looks up again a name in the background unless a lookup is already in progress.
+     *
+     * @param name the name to look up.
+     */
+    private void refresh(String name) {
+        FutureTask<Entry> task = new FutureTask<Entry>(new Query(name));
+        if (lookups.putIfAbsent(name, task) == null) {
+            refreshes.incrementAndGet();
+            try {
+                executor.execute(task);
+            }
+            catch (RuntimeException e) {
+                // The cached records will be looked up again once they expire
+                lookups.remove(name, task);
+                Log.warn("Error refreshing DNS lookup of " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached answers.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of milliseconds to cache lookups that found no records or failed.
+     *
+     * @return the number of milliseconds to cache lookups that found no records or failed.
+     */
+    public long getNegativeTTL() {
+        return negativeTTL;
+    }
+
+    /**
+     * Sets the number of milliseconds to cache lookups that found no records or failed.
+     *
+     * @param negativeTTL the number of milliseconds to cache negative lookups.
+     */
+    public void setNegativeTTL(long negativeTTL) {
+        this.negativeTTL = negativeTTL;
+    }
+
+    /**
+     * Returns the max number of cached names.
+     *
+     * @return the max number of cached names.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the max number of cached names.
+     *
+     * @param maxEntries the max number of cached names.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the number of cached names.
+     *
+     * @return the number of cached names.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups that were answered from the cache.
+     *
+     * @return the number of lookups that were answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that were not answered from the cache. Lookups that
+     * waited for a query of another thread are counted as misses too.
+     *
+     * @return the number of lookups that were not answered from the cache.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of DNS queries performed, including background refreshes.
+     *
+     * @return the number of DNS queries performed.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Returns the number of DNS queries that failed.
+     *
+     * @return the number of DNS queries that failed.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of background refreshes that were started.
+     *
+     * @return the number of background refreshes.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Returns the average time (in milliseconds) that DNS queries took.
+     *
+     * @return the average time that DNS queries took.
+     */
+    public double getAverageQueryTime() {
+        long count = queries.get();
+        return count == 0 ? 0 : queryTime.get() / 1000000.0 / count;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private void put(String name, Entry entry) {
+        if (entries.size() >= maxEntries && !entries.containsKey(name)) {
+            // Make room by removing the expired entries and, if that was not enough,
+            // some of the other entries
+            long now = currentTimeMillis();
+            int excess = entries.size() - maxEntries + 1;
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                if (it.next().expirationTime <= now) {
+                    it.remove();
+                    excess--;
+                }
+            }
+            for (Iterator<Entry> it = entries.values().iterator(); excess > 0 && it.hasNext(); excess--) {
+                it.next();
+                it.remove();
+            }
+        }
+        entries.put(name, entry);
+    }
+
+    /**
+     * Queries the resolver and caches its answer.
+     */
+    private class Query implements Callable<Entry> {
+
+        private final String name;
+
+        Query(String name) {
+            this.name = name;
+        }
+
+        public Entry call() {
+            try {
+                queries.incrementAndGet();
+                long start = System.nanoTime();
+                Answer answer = null;
+                try {
+                    answer = resolver.lookup(name);
+                }
+                catch (Exception e) {
+                    failures.incrementAndGet();
+                    Log.error("Can't process DNS lookup of " + name, e);
+                }
+                finally {
+                    queryTime.addAndGet(System.nanoTime() - start);
+                }
+
+                long now = currentTimeMillis();
+                Entry entry;
+                if (answer != null && !answer.records.isEmpty()) {
+                    long ttl = Math.max(0, answer.ttl);
+                    entry = new Entry(answer.records, now + ttl * 4 / 5, now + ttl);
+                }
+                else {
+                    Entry previous = entries.get(name);
+                    if (answer == null && previous != null && !previous.records.isEmpty()) {
+                        // Keep using the known records while the DNS server fails to answer
+                        entry = new Entry(previous.records, now + negativeTTL, now + negativeTTL);
+                    }
+                    else {
+                        List<DNSUtil.WeightedHostAddress> none = Collections.emptyList();
+                        entry = new Entry(none, Long.MAX_VALUE, now + negativeTTL);
+                    }
+                }
+                put(name, entry);
+                return entry;
+            }
+            finally {
+                lookups.remove(name);
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@ package org.jivesoftware.openfire.net;
 
 import org.eclipse.jetty.util.MultiMap;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,9 +35,15 @@ import javax.naming.directory.InitialDirContext;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 /**
- * Utilty class to perform DNS lookups for XMPP services.
+ * Utilty class to perform DNS lookups for XMPP services. The answers to SRV lookups are
+ * cached (see {@link DNSCache}). JNDI does not expose the TTL of the records so answers
+ * are cached for the number of seconds specified by the <tt>dnsutil.cache.ttl</tt>
+ * property (one hour by default). Lookups that found no records are cached for the
+ * number of seconds specified by the <tt>dnsutil.cache.negativeTTL</tt> property (five
+ * minutes by default).
  *
  * @author Matt Tucker
  */
@@ -52,6 +59,20 @@ public class DNSUtil {
      */
     private static Map<String, HostAddress> dnsOverride;
 
+    private static final DNSCache cache = new DNSCache(
+            new DNSCache.Resolver() {
+                public DNSCache.Answer lookup(String name) throws NamingException {
+                    return jndiLookup(name);
+                }
+            },
+            new Executor() {
+                public void execute(Runnable command) {
+                    TaskEngine.getInstance().submit(command);
+                }
+            },
+            JiveGlobals.getLongProperty("dnsutil.cache.negativeTTL", 300) * 1000,
+            JiveGlobals.getIntProperty("dnsutil.cache.size", 10000));
+
     static {
         try {
             Hashtable<String,String> env = new Hashtable<String,String>();
@@ -145,6 +166,15 @@ public class DNSUtil {
         return dnsOverride;
     }
 
+    /**
+     * Returns the cache of the answers to SRV lookups.
+     *
+     * @return the cache of the answers to SRV lookups.
+     */
+    public static DNSCache getCache() {
+        return cache;
+    }
+
     /**
      * Sets the internal DNS that allows to specify target IP addresses and ports
      * to use for domains. The internal DNS will be checked up before performing an
@@ -188,28 +218,33 @@ public class DNSUtil {
         if (lookup == null) {
             throw new NullPointerException("DNS lookup can't be null");
         }
+        List<WeightedHostAddress> records = cache.lookup(lookup);
+        if (records.isEmpty()) {
+            return new ArrayList<HostAddress>();
+        }
+        // Each caller gets its own (randomized) order of the cached records
+        return prioritize(records.toArray(new WeightedHostAddress[records.size()]));
+    }
+
+    private static DNSCache.Answer jndiLookup(String lookup) throws NamingException {
+        long ttl = JiveGlobals.getLongProperty("dnsutil.cache.ttl", 3600) * 1000;
+        List<WeightedHostAddress> hosts = new ArrayList<WeightedHostAddress>();
         try {
             Attributes dnsLookup =
                     context.getAttributes(lookup, new String[]{"SRV"});
             Attribute srvRecords = dnsLookup.get("SRV");
             if (srvRecords == null) {
                 logger.debug("No SRV record found for domain: " + lookup);
-                return new ArrayList<HostAddress>();
+                return new DNSCache.Answer(hosts, ttl);
             }
-            WeightedHostAddress[] hosts = new WeightedHostAddress[srvRecords.size()];
             for (int i = 0; i < srvRecords.size(); i++) {
-                hosts[i] = new WeightedHostAddress(((String)srvRecords.get(i)).split(" "));
+                hosts.add(new WeightedHostAddress(((String)srvRecords.get(i)).split(" ")));
             }
-
-            return prioritize(hosts);
         }
         catch (NameNotFoundException e) {
             logger.debug("No SRV record found for: " + lookup, e);
         }
-        catch (NamingException e) {
-            logger.error("Can't process DNS lookup!", e);
-        }
-        return new ArrayList<HostAddress>();
+        return new DNSCache.Answer(hosts, ttl);
     }
 
     /**
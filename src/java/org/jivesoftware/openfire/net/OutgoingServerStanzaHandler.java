@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import java.io.StringReader;
+
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.Connection;
+import org.jivesoftware.openfire.PacketRouter;
+import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
+import org.jivesoftware.openfire.session.OutgoingServerSession;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Handler of the XML sent by remote servers over outgoing server connections. Outgoing
+ * connections are only used for sending packets so the remote server only sends stream
+ * headers, stream features and the answers to the negotiation of the stream (e.g. TLS,
+ * SASL and server dialback). Received elements are queued in an
+ * {@link OutgoingServerSocketReader} where the outgoing session reads them.
+ */
+public class OutgoingServerStanzaHandler extends StanzaHandler {
+
+    private final OutgoingServerSocketReader socketReader = new OutgoingServerSocketReader();
+
+    public OutgoingServerStanzaHandler(PacketRouter router, String serverName, Connection connection) {
+        super(router, serverName, connection);
+    }
+
+    /**
+     * Returns the reader where the elements sent by the remote server are queued.
+     *
+     * @return the reader where the elements sent by the remote server are queued.
+     */
+    public OutgoingServerSocketReader getSocketReader() {
+        return socketReader;
+    }
+
+    /**
+     * Returns the connection to the remote server.
+     *
+     * @return the connection to the remote server.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void process(String stanza, XMPPPacketReader reader) throws Exception {
+        if (stanza.startsWith("<?xml")) {
+            // Ignore <?xml version="1.0"?>
+            return;
+        }
+        if (stanza.startsWith("<stream:stream")) {
+            // Queue the stream header with its attributes and namespaces
+            Element header = reader.read(new StringReader(stanza + "</stream:stream>")).getRootElement();
+            socketReader.elementReceived(header);
+            return;
+        }
+        if (stanza.equals("</stream:stream>")) {
+            // The remote server closed the stream
+            streamClosed();
+            return;
+        }
+        Element doc = reader.read(new StringReader(stanza)).getRootElement();
+        if (doc != null) {
+            socketReader.elementReceived(doc);
+        }
+    }
+
+    @Override
+    public void process(Element doc) throws Exception {
+        socketReader.elementReceived(doc);
+    }
+
+    private void streamClosed() {
+        socketReader.close();
+        OutgoingServerSession session = socketReader.getSession();
+        if (session != null) {
+            session.close();
+        }
+        else {
+            connection.close();
+        }
+    }
+
+    @Override
+    boolean processUnknowPacket(Element doc) {
+        // Elements are never processed by this handler
+        return false;
+    }
+
+    @Override
+    String getNamespace() {
+        return "jabber:server";
+    }
+
+    @Override
+    boolean validateHost() {
+        return false;
+    }
+
+    @Override
+    boolean validateJIDs() {
+        return false;
+    }
+
+    @Override
+    boolean createSession(String namespace, String serverName, XmlPullParser xpp, Connection connection) {
+        // Outgoing sessions are created by the thread that opened the connection
+        return false;
+    }
+
+    /**
+     * Does nothing. This handler queues all the elements sent by the remote server, including
+     * the answer to a <tt>starttls</tt> request, in the socket reader and never negotiates
+     * TLS itself. TLS is started by the outgoing session that opened the connection.
+     */
+    @Override
+    void startTLS() throws Exception {
+    }
+}
@@ -22,7 +22,9 @@ package org.jivesoftware.openfire.net;
 import org.dom4j.Element;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.PacketRouter;
+import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.server.ServerDialback;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.openfire.session.LocalIncomingServerSession;
 import org.jivesoftware.util.JiveGlobals;
@@ -31,6 +33,7 @@ import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.Presence;
@@ -47,7 +50,9 @@ import org.xmpp.packet.StreamError;
  * The connection used for receiving packets will use a ServerStanzaHandler since the other
  * connection will not receive packets.<p>
  *
- * TODO Finish migration of s2s to use NIO instead of blocking threads. Migrate from ServerSocketReader.
+ * Incoming server connections are read by the NIO acceptor of the server port (see
+ * {@link org.jivesoftware.openfire.nio.ServerConnectionHandler}). Outgoing connections
+ * use an {@link OutgoingServerStanzaHandler}.
  *
  * @author Gaston Dombiak
  */
@@ -82,11 +87,23 @@ public class ServerStanzaHandler extends StanzaHandler {
         return "jabber:server";
     }
 
+    @Override
+	String getExtraNamespaces() {
+        return "xmlns:db=\"jabber:server:dialback\"";
+    }
+
     @Override
 	boolean validateHost() {
         return true;
     }
 
+    @Override
+	boolean isHostUnknown(String host) {
+        // Remote servers may also address the components of this server
+        return super.isHostUnknown(host) &&
+                !XMPPServer.getInstance().getRoutingTable().hasComponentRoute(new JID(host));
+    }
+
     @Override
 	boolean validateJIDs() {
         // TODO Should we trust other servers???
@@ -96,24 +113,47 @@ public class ServerStanzaHandler extends StanzaHandler {
     @Override
 	boolean createSession(String namespace, String serverName, XmlPullParser xpp, Connection connection)
             throws XmlPullParserException {
-        // TODO Finish implementation
-        /*if ("jabber:server".equals(namespace)) {
+        if ("jabber:server".equals(namespace)) {
             // The connected client is a server so create an IncomingServerSession
-            session = LocalIncomingServerSession.createSession(serverName, reader, connection);
+            session = LocalIncomingServerSession.createSession(serverName, xpp, connection);
+            if (session == null) {
+                // The remote server was rejected
+                connection.close();
+            }
             return true;
-        }*/
+        }
         return false;
     }
 
     @Override
 	void startTLS() throws Exception {
-        // TODO Finish implementation. We need to get the name of the remote server if we want to validate certificates of the remote server that requested TLS
+        // Use the domain sent in the stream header (if any) to validate the certificate of the
+        // remote server
+        String remoteServer = getRemoteDomain();
+        if (remoteServer == null) {
+            // The 'from' attribute is optional so the certificate of the remote server can not be
+            // validated. Secure the connection anyway and leave the authentication of the remote
+            // server to dialback or SASL
+            connection.startTLS(false, null, Connection.ClientAuth.disabled);
+            return;
+        }
+        // Ask for the certificate of the remote server so that it may authenticate using SASL
+        // EXTERNAL, but only require it when server dialback cannot be used instead
+        boolean needed = !ServerDialback.isEnabled() && !ServerDialback.isEnabledForSelfSigned() &&
+                JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_VERIFY, true);
+        connection.startTLS(false, remoteServer, needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted);
+    }
 
-        boolean needed = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_VERIFY, true) &&
-                JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_CERTIFICATE_CHAIN_VERIFY, true) &&
-                !JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ACCEPT_SELFSIGNED_CERTS, false);
-        connection.startTLS(false, "IMPLEMENT_ME", needed ? Connection.ClientAuth.needed : Connection.ClientAuth.wanted);
+    /**
+     * Returns the domain that the remote server sent in the 'from' attribute of the stream
+     * header.
+     *
+     * @return the domain of the remote server or <tt>null</tt> if the stream header had none.
+     */
+    String getRemoteDomain() {
+        return ((LocalIncomingServerSession) session).getDefaultIdentity();
     }
+
     @Override
 	protected void processIQ(IQ packet) throws UnauthorizedException {
         packetReceived(packet);
@@ -26,6 +26,7 @@ import org.jivesoftware.openfire.PacketRouter;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.http.FlashCrossDomainServlet;
+import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.openfire.session.LocalSession;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.openfire.streammanagement.StreamManager;
@@ -108,10 +109,7 @@ public abstract class StanzaHandler {
             if (!initialStream) {
                 // Allow requests for flash socket policy files directly on the client listener port
                 if (stanza.startsWith("<policy-file-request/>")) {
-                    String crossDomainText = FlashCrossDomainServlet.CROSS_DOMAIN_TEXT +
-                            XMPPServer.getInstance().getConnectionManager().getClientListenerPort() +
-                            FlashCrossDomainServlet.CROSS_DOMAIN_END_TEXT + '\0';
-                    connection.deliverRawText(crossDomainText);
+                    deliverCrossDomainPolicy();
                     return;
                 }
                 else {
@@ -156,6 +154,29 @@ public abstract class StanzaHandler {
             // No document found.
             return;
         }
+        processElement(doc);
+    }
+
+    /**
+     * Processes a stanza that was already parsed into a DOM object. Stream headers and
+     * stream ends are not DOM objects so they are processed by
+     * {@link #process(String, XMPPPacketReader)}.
+     *
+     * @param doc the parsed stanza.
+     * @throws Exception if an error occured while processing the stanza.
+     */
+    public void process(Element doc) throws Exception {
+        if (!sessionCreated) {
+            // Allow requests for flash socket policy files directly on the client listener port
+            if ("policy-file-request".equals(doc.getName())) {
+                deliverCrossDomainPolicy();
+            }
+            return;
+        }
+        processElement(doc);
+    }
+
+    private void processElement(Element doc) throws Exception {
         String tag = doc.getName();
         if ("starttls".equals(tag)) {
             // Negotiate TLS
@@ -194,17 +215,37 @@ public abstract class StanzaHandler {
         		case "a":
         			session.getStreamManager().processClientAcknowledgement(doc);
         			break;
+        		case "resume":
+        			if (session instanceof LocalClientSession) {
+        				LocalClientSession resumed = XMPPServer.getInstance().getSessionManager()
+        						.resumeClientSession((LocalClientSession) session, doc);
+        				if (resumed != null) {
+        					// Keep reading the stream on behalf of the resumed session
+        					session = resumed;
+        				}
+        			}
+        			else {
+        				processPacket(doc);
+        			}
+        			break;
         		default:
-        			process(doc);
+        			processPacket(doc);
         			break;
         	}
         }
         else {
-            process(doc);
+            processPacket(doc);
         }
     }
 
-	private void process(Element doc) throws UnauthorizedException {
+    private void deliverCrossDomainPolicy() {
+        String crossDomainText = FlashCrossDomainServlet.CROSS_DOMAIN_TEXT +
+                XMPPServer.getInstance().getConnectionManager().getClientListenerPort() +
+                FlashCrossDomainServlet.CROSS_DOMAIN_END_TEXT + '\0';
+        connection.deliverRawText(crossDomainText);
+    }
+
+	private void processPacket(Element doc) throws UnauthorizedException {
         if (doc == null) {
             return;
         }
@@ -575,7 +616,12 @@ public abstract class StanzaHandler {
         }
         sb.append("xmlns:stream=\"http://etherx.jabber.org/streams\" xmlns=\"");
         sb.append(getNamespace());
-        sb.append("\" from=\"");
+        sb.append("\" ");
+        String extraNamespaces = getExtraNamespaces();
+        if (extraNamespaces != null) {
+            sb.append(extraNamespaces).append(" ");
+        }
+        sb.append("from=\"");
         sb.append(serverName);
         sb.append("\" id=\"");
         sb.append(session.getStreamID());
@@ -670,7 +716,14 @@ public abstract class StanzaHandler {
 
     }
 
-    private boolean isHostUnknown(String host) {
+    /**
+     * Returns true if the value of the 'to' attribute of the stream header does not match
+     * this server.
+     *
+     * @param host the value of the 'to' attribute of the stream header.
+     * @return true if the host is not served by this server.
+     */
+    boolean isHostUnknown(String host) {
         if (host == null) {
             // Answer false since when using server dialback the stream header will not
             // have a TO attribute
@@ -710,6 +763,17 @@ public abstract class StanzaHandler {
      */
     abstract String getNamespace();
 
+    /**
+     * Returns the namespace declarations, other than the stream namespaces, to include in the
+     * stream headers sent by this server (e.g. the namespace of server dialback) or
+     * <tt>null</tt> if none.
+     *
+     * @return the namespace declarations to include in the stream headers or <tt>null</tt>.
+     */
+    String getExtraNamespaces() {
+        return null;
+    }
+
     /**
      * Returns true if the value of the 'to' attribute in the stream header should be
      * validated. If the value of the 'to' attribute is not valid then a host-unknown error
@@ -23,6 +23,7 @@ import org.apache.mina.core.buffer.IoBuffer;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.CharBuffer;
 import java.nio.charset.CharsetEncoder;
 
 /**
@@ -40,9 +41,19 @@ public class ByteBufferWriter extends Writer {
         this.ioBuffer = byteBuffer;
     }
 
+    /**
+     * Sets the buffer where the written chars will be encoded. This allows reusing the
+     * same writer for writing into different buffers.
+     *
+     * @param byteBuffer the buffer where the written chars will be encoded.
+     */
+    public void setIoBuffer(IoBuffer byteBuffer) {
+        this.ioBuffer = byteBuffer;
+    }
+
     @Override
 	public void write(char cbuf[], int off, int len) throws IOException {
-        ioBuffer.putString(new String(cbuf, off, len), encoder);
+        ioBuffer.putString(CharBuffer.wrap(cbuf, off, len), encoder);
     }
 
     @Override
@@ -50,7 +50,7 @@ public class ClientConnectionHandler extends ConnectionHandler {
 
     @Override
 	NIOConnection createNIOConnection(IoSession session) {
-        return new NIOConnection(session, new OfflinePacketDeliverer());
+        return new NIOConnection(session, new OfflinePacketDeliverer(), OutboundQueue.createClientQueue());
     }
 
     @Override
@@ -22,11 +22,13 @@ package org.jivesoftware.openfire.nio;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
+import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
 import org.jivesoftware.openfire.net.StanzaHandler;
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParserException;
@@ -48,6 +50,13 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      */
     static final String CHARSET = "UTF-8";
     static final String XML_PARSER = "XML-PARSER";
+    static final String XML_STREAMING_PARSER = "XML-STREAMING-PARSER";
+    /**
+     * Property that indicates if received stanzas are parsed into DOM objects in a single
+     * pass by the {@link XMPPDecoder} instead of being parsed twice (first to find the stanza
+     * boundaries and then to create the DOM objects).
+     */
+    static final String STREAMING_PARSER_PROPERTY = "xmpp.parser.streaming";
     protected static final String HANDLER = "HANDLER";
     protected static final String CONNECTION = "CONNECTION";
 
@@ -84,12 +93,20 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     @Override
 	public void sessionOpened(IoSession session) throws Exception {
         // Create a new XML parser for the new connection. The parser will be used by the XMPPDecoder filter.
-        final XMLLightweightParser parser = new XMLLightweightParser(CHARSET);
-        session.setAttribute(XML_PARSER, parser);
-        // Create a new NIOConnection for the new session
-        final NIOConnection connection = createNIOConnection(session);
-        session.setAttribute(CONNECTION, connection);
-        session.setAttribute(HANDLER, createStanzaHandler(connection));
+        if (JiveGlobals.getBooleanProperty(STREAMING_PARSER_PROPERTY, false)) {
+            session.setAttribute(XML_STREAMING_PARSER, new XMLStreamingParser(CHARSET));
+        }
+        else {
+            final XMLLightweightParser parser = new XMLLightweightParser(CHARSET);
+            session.setAttribute(XML_PARSER, parser);
+        }
+        // Create a new NIOConnection for the new session unless it was created when the
+        // session was created (see OutgoingServerConnectionHandler)
+        if (session.getAttribute(CONNECTION) == null) {
+            final NIOConnection connection = createNIOConnection(session);
+            session.setAttribute(CONNECTION, connection);
+            session.setAttribute(HANDLER, createStanzaHandler(connection));
+        }
         // Set the max time a connection can be idle before closing it. This amount of seconds
         // is divided in two, as Openfire will ping idle clients first (at 50% of the max idle time)
         // before disconnecting them (at 100% of the max idle time). This prevents Openfire from
@@ -174,7 +191,13 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         //System.out.println("RCVD: " + message);
         // Let the stanza handler process the received stanza
         try {
-            handler.process((String) message, parser);
+            if (message instanceof Element) {
+                // Stanza was already parsed by the streaming decoder
+                handler.process((Element) message);
+            }
+            else {
+                handler.process((String) message, parser);
+            }
         } catch (Exception e) {
             Log.error("Closing connection due to error while processing message: " + message, e);
             final Connection connection = (Connection) session.getAttribute(CONNECTION);
@@ -188,6 +211,11 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     @Override
     public void messageSent(IoSession session, Object message) throws Exception {
         super.messageSent(session, message);
+        // Let the connection reuse the buffer of the sent message
+        final NIOConnection connection = (NIOConnection) session.getAttribute(CONNECTION);
+        if (connection != null) {
+            connection.messageSent(message);
+        }
         // Update counter of written btyes
         updateWrittenBytesCounter(session);
         //System.out.println("SENT: " + Charset.forName("UTF-8").decode(((ByteBuffer)message).buf()));
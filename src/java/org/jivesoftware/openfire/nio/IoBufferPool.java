@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
+
+/**
+ * Pool of auto-expanding buffers used for serializing outgoing stanzas. Buffers are taken
+ * from the pool by {@link NIOConnection} when delivering data and returned to the pool
+ * once MINA reports that the data was sent. The total capacity of the pooled buffers is
+ * limited by the <tt>xmpp.nio.buffer.pool.size</tt> property (in bytes) and buffers that
+ * grew bigger than <tt>xmpp.nio.buffer.pool.buffer.max</tt> bytes are discarded instead
+ * of being returned to the pool.
+ */
+public class IoBufferPool {
+
+    private static final String POOL_SIZE_PROPERTY = "xmpp.nio.buffer.pool.size";
+    private static final String MAX_BUFFER_PROPERTY = "xmpp.nio.buffer.pool.buffer.max";
+    private static final int DEFAULT_POOL_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_MAX_BUFFER = 64 * 1024;
+    /**
+     * Initial capacity of new buffers.
+     */
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private static final String hitsStatKey = "nio_buffer_pool_hits";
+    private static final String missesStatKey = "nio_buffer_pool_misses";
+
+    private static final Queue<IoBuffer> pool = new ConcurrentLinkedQueue<IoBuffer>();
+    private static final AtomicLong pooledBytes = new AtomicLong(0);
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong misses = new AtomicLong(0);
+
+    private static int maxPoolSize;
+    private static int maxBufferSize;
+
+    static {
+        maxPoolSize = JiveGlobals.getIntProperty(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+        maxBufferSize = JiveGlobals.getIntProperty(MAX_BUFFER_PROPERTY, DEFAULT_MAX_BUFFER);
+        // Listen for changes to these properties
+        PropertyEventDispatcher.addListener(new PropertyListener());
+    }
+
+    private IoBufferPool() {
+    }
+
+    /**
+     * Returns an empty auto-expanding buffer. The buffer is taken from the pool if
+     * available, otherwise a new buffer is created.
+     *
+     * @return an empty auto-expanding buffer.
+     */
+    public static IoBuffer acquire() {
+        IoBuffer buffer = pool.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = IoBuffer.allocate(INITIAL_CAPACITY);
+            buffer.setAutoExpand(true);
+            return buffer;
+        }
+        hits.incrementAndGet();
+        pooledBytes.addAndGet(-buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller (or MINA)
+     * after this method was invoked. Buffers are discarded if they are too big or if the
+     * pool already reached its max size.
+     *
+     * @param buffer the buffer to return to the pool.
+     */
+    public static void release(IoBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (capacity > maxBufferSize || buffer.isDerived() || buffer.isReadOnly()) {
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPoolSize) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    /**
+     * Returns the number of times a buffer was taken from the pool.
+     *
+     * @return the number of times a buffer was taken from the pool.
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of times a new buffer had to be created since the pool was empty.
+     *
+     * @return the number of times a new buffer had to be created.
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the total capacity in bytes of the buffers that are currently in the pool.
+     *
+     * @return the total capacity in bytes of the pooled buffers.
+     */
+    public static long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(hitsStatKey, new PoolStatistic(hitsStatKey, hits));
+        StatisticsManager.getInstance().addStatistic(missesStatKey, new PoolStatistic(missesStatKey, misses));
+    }
+
+    /**
+     * Statistic that reports the increment of a pool counter since it was last sampled.
+     */
+    private static class PoolStatistic extends i18nStatistic {
+
+        private final AtomicLong counter;
+        private long lastValue = 0;
+
+        public PoolStatistic(String resourceKey, AtomicLong counter) {
+            super(resourceKey, Statistic.Type.rate);
+            this.counter = counter;
+        }
+
+        public synchronized double sample() {
+            final long value = counter.get();
+            final long delta = value - lastValue;
+            lastValue = value;
+            return delta;
+        }
+
+        public boolean isPartialSample() {
+            return true;
+        }
+    }
+
+    private static class PropertyListener implements PropertyEventListener {
+        public void propertySet(String property, Map<String, Object> params) {
+            String value = (String) params.get("value");
+            if (value == null) {
+                return;
+            }
+            if (POOL_SIZE_PROPERTY.equals(property)) {
+                maxPoolSize = Integer.parseInt(value);
+            }
+            else if (MAX_BUFFER_PROPERTY.equals(property)) {
+                maxBufferSize = Integer.parseInt(value);
+            }
+        }
+
+        public void propertyDeleted(String property, Map<String, Object> params) {
+            // Use default value when none was specified
+            if (POOL_SIZE_PROPERTY.equals(property)) {
+                maxPoolSize = DEFAULT_POOL_SIZE;
+            }
+            else if (MAX_BUFFER_PROPERTY.equals(property)) {
+                maxBufferSize = DEFAULT_MAX_BUFFER;
+            }
+        }
+
+        public void xmlPropertySet(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+
+        public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+    }
+}
@@ -33,6 +33,9 @@ import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.ssl.KeyManager;
@@ -111,6 +114,18 @@ public class NIOConnection implements Connection {
      */
     private CompressionPolicy compressionPolicy = CompressionPolicy.disabled;
     private static ThreadLocal<CharsetEncoder> encoder = new ThreadLocalEncoder();
+    private static ThreadLocal<PacketSerializer> serializer = new ThreadLocalSerializer();
+
+    /**
+     * Buffers that were written to the MINA session and not reported as sent yet.
+     */
+    private final Queue<IoBuffer> writtenBuffers = new ConcurrentLinkedQueue<IoBuffer>();
+
+    /**
+     * Stanzas waiting to be written while the peer is not reading fast enough or <tt>null</tt>
+     * if stanzas are always written directly to the MINA session.
+     */
+    private final OutboundQueue outboundQueue;
 
     /**
      * Flag that specifies if the connection should be considered closed. Closing a NIO connection
@@ -132,8 +147,21 @@ public class NIOConnection implements Connection {
     private final ReentrantLock ioSessionLock = new ReentrantLock(true);
 
     public NIOConnection(IoSession session, PacketDeliverer packetDeliverer) {
+        this(session, packetDeliverer, null);
+    }
+
+    /**
+     * Creates a connection that keeps the stanzas that the peer is not reading fast enough
+     * in a bounded queue.
+     *
+     * @param session the MINA session of the connection.
+     * @param packetDeliverer the deliverer to use when a packet cannot be sent.
+     * @param outboundQueue the queue or <tt>null</tt> to write all stanzas to the session.
+     */
+    public NIOConnection(IoSession session, PacketDeliverer packetDeliverer, OutboundQueue outboundQueue) {
         this.ioSession = session;
         this.backupDeliverer = packetDeliverer;
+        this.outboundQueue = outboundQueue;
         state = State.RUNNING;
     }
 
@@ -276,6 +304,18 @@ public class NIOConnection implements Connection {
         {
             notifyCloseListeners(); // clean up session, etc.
         }
+        if (outboundQueue != null)
+        {
+            // Retry sending the queued stanzas. Most probably messages will be stored offline
+            final List<Packet> queued;
+            ioSessionLock.lock();
+            try {
+                queued = outboundQueue.clear();
+            } finally {
+                ioSessionLock.unlock();
+            }
+            deliverToBackup(queued);
+        }
     }
 
     public void systemShutdown() {
@@ -311,35 +351,46 @@ public class NIOConnection implements Connection {
     }
 
     public void deliver(Packet packet) throws UnauthorizedException {
+        deliver(packet, null);
+    }
+
+    /**
+     * Delivers the packet to this connection using the already serialized form of the packet
+     * (if the template is valid for the packet). Sending the same packet to many recipients
+     * using a template avoids serializing the packet for each recipient.
+     *
+     * @param packet the packet to deliver.
+     * @param template the serialized form of the packet or <tt>null</tt> to serialize the packet.
+     * @throws UnauthorizedException if a permission error was detected.
+     */
+    public void deliver(Packet packet, PacketTemplate template) throws UnauthorizedException {
         if (state != State.RUNNING) {
-        	backupDeliverer.deliver(packet);
+        	deliverToBackup(packet);
         }
         else {
             boolean errorDelivering = false;
-            IoBuffer buffer = IoBuffer.allocate(4096);
-            buffer.setAutoExpand(true);
+            IoBuffer buffer = IoBufferPool.acquire();
             try {
             	// OF-464: if the connection has been dropped, fail over to backupDeliverer (offline)
             	if (!ioSession.isConnected()) {
             		throw new IOException("Connection reset/closed by peer");
             	}
-                XMLWriter xmlSerializer =
-                        new XMLWriter(new ByteBufferWriter(buffer, encoder.get()), new OutputFormat());
-                xmlSerializer.write(packet.getElement());
-                xmlSerializer.flush();
+                if (template != null && template.isTemplateOf(packet)) {
+                    template.write(buffer, packet.getTo());
+                }
+                else {
+                    serializer.get().write(packet, buffer);
+                }
                 if (flashClient) {
                     buffer.put((byte) '\0');
                 }
                 buffer.flip();
                 
-                ioSessionLock.lock();
-                try {
-                    ioSession.write(buffer);
-                } finally {
-                    ioSessionLock.unlock();
-                }
+                send(packet, buffer);
             }
             catch (Exception e) {
+                // The serializer may have been left in an inconsistent state
+                serializer.remove();
                 Log.debug("Error delivering packet:\n" + packet, e);
                 errorDelivering = true;
             }
@@ -347,7 +398,7 @@ public class NIOConnection implements Connection {
                 close();
                 // Retry sending the packet again. Most probably if the packet is a
                 // Message it will be stored offline
-                backupDeliverer.deliver(packet);
+                deliverToBackup(packet);
             }
             else {
                 session.incrementServerPacketCount();
@@ -358,27 +409,18 @@ public class NIOConnection implements Connection {
     public void deliverRawText(String text) {
         if (state != State.CLOSED) {
             boolean errorDelivering = false;
-            IoBuffer buffer = IoBuffer.allocate(text.length());
-            buffer.setAutoExpand(true);
+            IoBuffer buffer = IoBufferPool.acquire();
             try {
-                //Charset charset = Charset.forName(CHARSET);
-                //buffer.putString(text, charset.newEncoder());
                 buffer.put(text.getBytes(CHARSET));
                 if (flashClient) {
                     buffer.put((byte) '\0');
                 }
                 buffer.flip();
-                ioSessionLock.lock();
-                try {
-                    // OF-464: handle dropped connections (no backupDeliverer in this case?)
-                    if (!ioSession.isConnected()) {
-                        throw new IOException("Connection reset/closed by peer");
-                    }
-                    ioSession.write(buffer);
-                }
-                finally {
-                    ioSessionLock.unlock();
+                // OF-464: handle dropped connections (no backupDeliverer in this case?)
+                if (!ioSession.isConnected()) {
+                    throw new IOException("Connection reset/closed by peer");
                 }
+                send(null, buffer);
             }
             catch (Exception e) {
                 Log.debug("Error delivering raw text:\n" + text, e);
@@ -392,6 +434,151 @@ public class NIOConnection implements Connection {
         }
     }
 
+    /**
+     * Writes the buffer of a packet, or of text when <tt>packet</tt> is <tt>null</tt>, to the
+     * MINA session. If the connection has an outbound queue and the peer is not reading the
+     * bytes already written fast enough the buffer is added to the queue instead, and written
+     * as MINA reports that the pending bytes were sent. The connection is closed if the queue
+     * exceeds its limits and its policies cannot free enough space.
+     *
+     * @param packet the packet or null if text is being sent.
+     * @param buffer the serialized packet or text.
+     */
+    private void send(Packet packet, IoBuffer buffer) {
+        if (outboundQueue == null) {
+            write(buffer);
+            return;
+        }
+        final boolean overflow;
+        final List<Packet> spilled;
+        ioSessionLock.lock();
+        try {
+            if (outboundQueue.isEmpty() && ioSession.getScheduledWriteBytes() < outboundQueue.getThreshold()) {
+                write(buffer);
+                return;
+            }
+            outboundQueue.add(packet, buffer);
+            // The policies would drop or spill stanzas that the stream manager counts as sent,
+            // so a stream managed connection is closed instead and the client may resume it
+            overflow = isStreamManaged() ? outboundQueue.isFull() : !outboundQueue.applyPolicies();
+            spilled = outboundQueue.removeSpilled();
+        } finally {
+            ioSessionLock.unlock();
+        }
+        deliverToBackup(spilled);
+        if (overflow) {
+            Log.debug("Closing session whose outbound queue is full: " + session);
+            close();
+        }
+    }
+
+    /**
+     * Writes the queued buffers to the MINA session while the number of bytes pending in the
+     * session is below the threshold of the outbound queue.
+     */
+    private void writeQueued() {
+        ioSessionLock.lock();
+        try {
+            while (!outboundQueue.isEmpty() && ioSession.getScheduledWriteBytes() < outboundQueue.getThreshold()) {
+                write(outboundQueue.poll());
+            }
+        } finally {
+            ioSessionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if stream management is enabled for the session of the connection. The
+     * stanzas sent to such a session are kept until the client acknowledges them, sent again
+     * when the stream is resumed and rerouted (i.e. stored offline) when the session is closed.
+     */
+    private boolean isStreamManaged() {
+        return session != null && session.getStreamManager().isEnabled();
+    }
+
+    private void deliverToBackup(Packet packet) throws UnauthorizedException {
+        // The stream manager already owns the stanzas of a stream managed session. Delivering
+        // them to the backup deliverer too would deliver them twice.
+        if (!isStreamManaged()) {
+            backupDeliverer.deliver(packet);
+        }
+    }
+
+    private void deliverToBackup(List<Packet> packets) {
+        if (packets.isEmpty() || isStreamManaged()) {
+            return;
+        }
+        for (Packet packet : packets) {
+            try {
+                backupDeliverer.deliver(packet);
+            }
+            catch (Exception e) {
+                Log.error("Error delivering packet to backup deliverer:\n" + packet, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written to the peer, either in the outbound
+     * queue of the connection or in the MINA session.
+     *
+     * @return the number of bytes waiting to be written.
+     */
+    public long getQueuedBytes() {
+        long bytes = ioSession.getScheduledWriteBytes();
+        if (outboundQueue != null) {
+            bytes += outboundQueue.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of stanzas in the outbound queue of the connection.
+     *
+     * @return the number of queued stanzas.
+     */
+    public int getQueuedStanzas() {
+        return outboundQueue != null ? outboundQueue.getStanzas() : 0;
+    }
+
+    /**
+     * Writes the buffer to the MINA session. The buffer is returned to the {@link IoBufferPool}
+     * once MINA reports that it was sent (see {@link #messageSent(Object)}).
+     *
+     * @param buffer the buffer to write.
+     */
+    private void write(IoBuffer buffer) {
+        ioSessionLock.lock();
+        try {
+            // Buffers are added in the same order as they are written so that
+            // they can be matched with the messageSent events
+            writtenBuffers.add(buffer);
+            ioSession.write(buffer);
+        } finally {
+            ioSessionLock.unlock();
+        }
+    }
+
+    /**
+     * Notification that MINA sent a message that was written to the session. MINA sends
+     * the messages of a session in the same order that they were written so the sent
+     * message is the oldest written buffer that was not reported as sent yet. The buffer
+     * is then returned to the {@link IoBufferPool}.
+     *
+     * @param message the message that was sent.
+     */
+    void messageSent(Object message) {
+        final IoBuffer buffer = writtenBuffers.poll();
+        // Only reuse the buffer if MINA is reporting the same object that was written
+        // (i.e. no filter replaced the written message)
+        if (buffer != null && buffer == message) {
+            IoBufferPool.release(buffer);
+        }
+        if (outboundQueue != null) {
+            writeQueued();
+        }
+    }
+
     public void startTLS(boolean clientMode, String remoteServer, ClientAuth authentication) throws Exception {
         boolean c2s = (remoteServer == null);
         KeyStore ksKeys = SSLConfig.getKeyStore();
@@ -441,10 +628,13 @@ public class NIOConnection implements Connection {
             // good
             filter.setWantClientAuth(true);
         }
+        // Held writes were meant to be sent before negotiating TLS
+        WriteCoalescingFilter.flush(ioSession);
         ioSession.getFilterChain().addBefore(EXECUTOR_FILTER_NAME, TLS_FILTER_NAME, filter);
-        ioSession.setAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
 
         if (!clientMode) {
+            // The <proceed> answer must be sent in plain text
+            ioSession.setAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
             // Indicate the client that the server is ready to negotiate TLS
             deliverRawText("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
         }
@@ -456,6 +646,7 @@ public class NIOConnection implements Connection {
         if (chain.contains(TLS_FILTER_NAME)) {
             baseFilter = TLS_FILTER_NAME;
         }
+        WriteCoalescingFilter.flush(ioSession);
         chain.addAfter(baseFilter, COMPRESSION_FILTER_NAME, new CompressionFilter(true, false, CompressionFilter.COMPRESSION_MAX));
     }
 
@@ -518,6 +709,35 @@ public class NIOConnection implements Connection {
         return super.toString() + " MINA Session: " + ioSession;
     }
 
+    /**
+     * Reusable serializer of packets. Each thread keeps its own serializer so that the
+     * writers are not created for each delivered packet.
+     */
+    private static class PacketSerializer {
+
+        private final ByteBufferWriter writer = new ByteBufferWriter(null, encoder.get());
+        private final XMLWriter xmlSerializer = new XMLWriter(writer, new OutputFormat());
+
+        void write(Packet packet, IoBuffer buffer) throws IOException {
+            writer.setIoBuffer(buffer);
+            try {
+                xmlSerializer.write(packet.getElement());
+                xmlSerializer.flush();
+            }
+            finally {
+                writer.setIoBuffer(null);
+            }
+        }
+    }
+
+    private static class ThreadLocalSerializer extends ThreadLocal<PacketSerializer> {
+
+        @Override
+        protected PacketSerializer initialValue() {
+            return new PacketSerializer();
+        }
+    }
+
     private static class ThreadLocalEncoder extends ThreadLocal<CharsetEncoder> {
 
         @Override
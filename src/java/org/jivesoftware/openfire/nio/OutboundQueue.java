@@ -0,0 +1,518 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.jivesoftware.openfire.session.ConnectionSettings;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.ClassUtils;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Queue of the stanzas that are waiting to be written to a connection whose peer is not
+ * reading the data already written fast enough. Stanzas are written directly to the MINA
+ * session while the number of bytes pending in the session is below a threshold. Once the
+ * threshold is reached stanzas are kept in this queue and written as MINA reports that the
+ * pending data was sent.<p>
+ *
+ * The queue is bounded by a number of bytes and a number of stanzas. When a limit is exceeded
+ * the {@link OverflowPolicy overflow policies} of the queue are applied in order until the
+ * queue is within its limits again. A queue that is still over its limits after all the policies
+ * were applied asks for its connection to be closed. The available policies are:
+ * <ul>
+ *     <li><tt>collapse-presence</tt>: removes availability presences that were superseded by
+ *     a later presence from the same address.</li>
+ *     <li><tt>drop-presence</tt>: removes availability presences, oldest first, except the
+ *     last presence of a sender when it is an unavailable presence.</li>
+ *     <li><tt>offline</tt>: removes messages, newest first, and stores them offline.</li>
+ *     <li><tt>disconnect</tt>: closes the connection.</li>
+ * </ul>
+ * The name of a class that implements {@link OverflowPolicy} may be used as well.<p>
+ *
+ * Instances of this class are not thread safe. {@link NIOConnection} uses them while holding
+ * the lock of the session.
+ */
+public class OutboundQueue {
+
+    private static final Logger Log = LoggerFactory.getLogger(OutboundQueue.class);
+
+    private static final String queuedBytesStatKey = "client_queued_bytes";
+    private static final String overflowsStatKey = "client_queue_overflows";
+
+    /**
+     * Number of bytes queued in all the queues.
+     */
+    private static final AtomicLong totalBytes = new AtomicLong(0);
+    /**
+     * Number of stanzas that were removed from queues by an overflow policy.
+     */
+    private static final AtomicLong overflows = new AtomicLong(0);
+
+    private final long threshold;
+    private final int maxBytes;
+    private final int maxStanzas;
+    private final List<OverflowPolicy> policies;
+
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+    private volatile int bytes = 0;
+    private volatile int stanzas = 0;
+    private List<Packet> spilled = new ArrayList<Packet>();
+    private boolean disconnect = false;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param threshold the number of bytes pending in the MINA session above which stanzas are queued.
+     * @param maxBytes the maximum number of queued bytes.
+     * @param maxStanzas the maximum number of queued stanzas.
+     * @param policies the policies to apply, in order, when a limit is exceeded.
+     */
+    public OutboundQueue(long threshold, int maxBytes, int maxStanzas, List<OverflowPolicy> policies) {
+        this.threshold = threshold;
+        this.maxBytes = maxBytes;
+        this.maxStanzas = maxStanzas;
+        this.policies = policies;
+    }
+
+    /**
+     * Returns a new queue for a client connection configured with the
+     * <tt>xmpp.client.outbound.queue.*</tt> properties or <tt>null</tt> if client connections
+     * should not use a queue.
+     *
+     * @return a new queue for a client connection or null.
+     */
+    public static OutboundQueue createClientQueue() {
+        if (!JiveGlobals.getBooleanProperty(ConnectionSettings.Client.OUTBOUND_QUEUE, true)) {
+            return null;
+        }
+        final List<OverflowPolicy> policies = new ArrayList<OverflowPolicy>();
+        final String names = JiveGlobals.getProperty(ConnectionSettings.Client.OUTBOUND_QUEUE_POLICIES,
+                "collapse-presence,drop-presence,offline,disconnect");
+        for (String name : names.split(",")) {
+            final OverflowPolicy policy = getPolicy(name.trim());
+            if (policy != null) {
+                policies.add(policy);
+            }
+        }
+        return new OutboundQueue(
+                JiveGlobals.getLongProperty(ConnectionSettings.Client.OUTBOUND_QUEUE_THRESHOLD, 65536),
+                JiveGlobals.getIntProperty(ConnectionSettings.Client.OUTBOUND_QUEUE_MAX_BYTES, 1048576),
+                JiveGlobals.getIntProperty(ConnectionSettings.Client.OUTBOUND_QUEUE_MAX_STANZAS, 5000),
+                policies);
+    }
+
+    private static OverflowPolicy getPolicy(String name) {
+        if ("collapse-presence".equals(name)) {
+            return new CollapsePresencePolicy();
+        }
+        if ("drop-presence".equals(name)) {
+            return new DropPresencePolicy();
+        }
+        if ("offline".equals(name)) {
+            return new OfflinePolicy();
+        }
+        if ("disconnect".equals(name)) {
+            return new DisconnectPolicy();
+        }
+        if (name.length() > 0) {
+            try {
+                final Class<?> policyClass = ClassUtils.forName(name);
+                return (OverflowPolicy) policyClass.getDeclaredConstructor().newInstance();
+            }
+            catch (Exception e) {
+                Log.error("Error loading outbound queue policy: " + name, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes pending in the MINA session above which stanzas are queued.
+     *
+     * @return the number of pending bytes above which stanzas are queued.
+     */
+    public long getThreshold() {
+        return threshold;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Returns true if the queue exceeds its limits.
+     *
+     * @return true if the queue exceeds its limits.
+     */
+    public boolean isFull() {
+        return bytes > maxBytes || stanzas > maxStanzas;
+    }
+
+    /**
+     * Returns the number of bytes of the queued stanzas and text.
+     *
+     * @return the number of queued bytes.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of queued stanzas.
+     *
+     * @return the number of queued stanzas.
+     */
+    public int getStanzas() {
+        return stanzas;
+    }
+
+    /**
+     * Adds the serialized form of a stanza, or of text when <tt>packet</tt> is <tt>null</tt>,
+     * to the end of the queue. Text is never removed by the overflow policies.
+     *
+     * @param packet the queued stanza or null if text is queued.
+     * @param buffer the bytes to write.
+     */
+    void add(Packet packet, IoBuffer buffer) {
+        entries.add(new Entry(packet, buffer));
+        bytes += buffer.remaining();
+        totalBytes.addAndGet(buffer.remaining());
+        if (packet != null) {
+            stanzas++;
+        }
+    }
+
+    /**
+     * Removes the oldest entry of the queue and returns its buffer.
+     *
+     * @return the buffer of the oldest entry or null if the queue is empty.
+     */
+    IoBuffer poll() {
+        final Entry entry = entries.poll();
+        if (entry == null) {
+            return null;
+        }
+        removed(entry);
+        return entry.buffer;
+    }
+
+    /**
+     * Applies the overflow policies if the queue exceeds its limits.
+     *
+     * @return false if the connection of the queue should be closed.
+     */
+    boolean applyPolicies() {
+        for (OverflowPolicy policy : policies) {
+            if (disconnect || !isFull()) {
+                break;
+            }
+            policy.overflow(this);
+        }
+        return !disconnect && !isFull();
+    }
+
+    /**
+     * Returns the stanzas that were removed by a policy to be delivered to the backup
+     * deliverer of the connection.
+     *
+     * @return the stanzas that were removed to be delivered offline.
+     */
+    List<Packet> removeSpilled() {
+        final List<Packet> result = spilled;
+        if (!result.isEmpty()) {
+            spilled = new ArrayList<Packet>();
+        }
+        return result;
+    }
+
+    /**
+     * Empties the queue and returns the queued stanzas, oldest first.
+     *
+     * @return the stanzas that were in the queue.
+     */
+    List<Packet> clear() {
+        final List<Packet> packets = new ArrayList<Packet>(removeSpilled());
+        for (Entry entry : entries) {
+            removed(entry);
+            IoBufferPool.release(entry.buffer);
+            if (entry.packet != null) {
+                packets.add(entry.packet);
+            }
+        }
+        entries.clear();
+        return packets;
+    }
+
+    /**
+     * Returns an iterator over the queued stanzas that an overflow policy can use to remove
+     * stanzas. Stanzas removed with {@link Iterator#remove()} are dropped.
+     *
+     * @param newestFirst true to iterate from the newest to the oldest stanza.
+     * @return an iterator over the queued stanzas.
+     */
+    public Iterator<Packet> iterator(boolean newestFirst) {
+        return new PacketIterator(newestFirst ? entries.descendingIterator() : entries.iterator());
+    }
+
+    /**
+     * Hands a stanza that was removed from the queue to the backup deliverer of the
+     * connection. For client connections messages are stored offline.
+     *
+     * @param packet the stanza removed from the queue.
+     */
+    public void spill(Packet packet) {
+        spilled.add(packet);
+    }
+
+    /**
+     * Asks for the connection of the queue to be closed. Queued stanzas are then handed to the
+     * backup deliverer of the connection.
+     */
+    public void disconnect() {
+        disconnect = true;
+    }
+
+    private void removed(Entry entry) {
+        bytes -= entry.size;
+        totalBytes.addAndGet(-entry.size);
+        if (entry.packet != null) {
+            stanzas--;
+        }
+    }
+
+    /**
+     * Returns true if the packet is a presence that announces the availability of its sender.
+     *
+     * @param packet the packet.
+     * @return true if the packet is an available or unavailable presence.
+     */
+    static boolean isAvailability(Packet packet) {
+        if (packet instanceof Presence) {
+            final Presence.Type type = ((Presence) packet).getType();
+            return type == null || type == Presence.Type.unavailable;
+        }
+        return false;
+    }
+
+    public static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(queuedBytesStatKey, new QueuedBytesStatistic());
+        StatisticsManager.getInstance().addStatistic(overflowsStatKey, new OverflowsStatistic());
+    }
+
+    /**
+     * Policy that removes stanzas from a queue that exceeds its limits.
+     */
+    public interface OverflowPolicy {
+
+        /**
+         * Removes stanzas from the queue. Policies should stop removing stanzas once
+         * {@link OutboundQueue#isFull()} returns false.
+         *
+         * @param queue the queue that exceeds its limits.
+         */
+        void overflow(OutboundQueue queue);
+    }
+
+    /**
+     * Removes the availability presences that were superseded by a later presence from the
+     * same address.
+     */
+    public static class CollapsePresencePolicy implements OverflowPolicy {
+
+        public void overflow(OutboundQueue queue) {
+            final Set<JID> senders = new HashSet<JID>();
+            for (Iterator<Packet> it = queue.iterator(true); it.hasNext() && queue.isFull();) {
+                final Packet packet = it.next();
+                if (isAvailability(packet) && !senders.add(packet.getFrom())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes availability presences, oldest first. The last presence of a sender is kept
+     * when it is an unavailable presence so that the client still learns that the sender went
+     * offline. The earlier presences of that sender are removed, which collapses them into
+     * the unavailable presence.
+     */
+    public static class DropPresencePolicy implements OverflowPolicy {
+
+        public void overflow(OutboundQueue queue) {
+            // Find the last unavailable presence of each sender
+            final Set<JID> senders = new HashSet<JID>();
+            final Map<Packet, Boolean> kept = new IdentityHashMap<Packet, Boolean>();
+            for (Iterator<Packet> it = queue.iterator(true); it.hasNext();) {
+                final Packet packet = it.next();
+                if (isAvailability(packet) && senders.add(packet.getFrom())
+                        && ((Presence) packet).getType() == Presence.Type.unavailable) {
+                    kept.put(packet, Boolean.TRUE);
+                }
+            }
+            for (Iterator<Packet> it = queue.iterator(false); it.hasNext() && queue.isFull();) {
+                final Packet packet = it.next();
+                if (isAvailability(packet) && !kept.containsKey(packet)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes messages, newest first, and hands them to the backup deliverer of the connection.
+     */
+    public static class OfflinePolicy implements OverflowPolicy {
+
+        public void overflow(OutboundQueue queue) {
+            for (Iterator<Packet> it = queue.iterator(true); it.hasNext() && queue.isFull();) {
+                final Packet packet = it.next();
+                if (packet instanceof Message) {
+                    it.remove();
+                    queue.spill(packet);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the connection.
+     */
+    public static class DisconnectPolicy implements OverflowPolicy {
+
+        public void overflow(OutboundQueue queue) {
+            queue.disconnect();
+        }
+    }
+
+    /**
+     * Statistic that reports the number of bytes queued for all the client connections.
+     */
+    private static class QueuedBytesStatistic extends i18nStatistic {
+
+        public QueuedBytesStatistic() {
+            super(queuedBytesStatKey, Statistic.Type.count);
+        }
+
+        public double sample() {
+            return totalBytes.get();
+        }
+
+        public boolean isPartialSample() {
+            return false;
+        }
+    }
+
+    /**
+     * Statistic that reports the number of stanzas removed by overflow policies since it was
+     * last sampled.
+     */
+    private static class OverflowsStatistic extends i18nStatistic {
+
+        private long lastValue = 0;
+
+        public OverflowsStatistic() {
+            super(overflowsStatKey, Statistic.Type.rate);
+        }
+
+        public synchronized double sample() {
+            final long value = overflows.get();
+            final long delta = value - lastValue;
+            lastValue = value;
+            return delta;
+        }
+
+        public boolean isPartialSample() {
+            return true;
+        }
+    }
+
+    private static class Entry {
+
+        final Packet packet;
+        final IoBuffer buffer;
+        final int size;
+
+        Entry(Packet packet, IoBuffer buffer) {
+            this.packet = packet;
+            this.buffer = buffer;
+            this.size = buffer.remaining();
+        }
+    }
+
+    /**
+     * Iterator over the stanzas of the queue that skips queued text.
+     */
+    private class PacketIterator implements Iterator<Packet> {
+
+        private final Iterator<Entry> entryIterator;
+        private Entry next;
+        private Entry current;
+
+        PacketIterator(Iterator<Entry> entryIterator) {
+            this.entryIterator = entryIterator;
+        }
+
+        public boolean hasNext() {
+            while (next == null && entryIterator.hasNext()) {
+                final Entry entry = entryIterator.next();
+                if (entry.packet != null) {
+                    next = entry;
+                }
+            }
+            return next != null;
+        }
+
+        public Packet next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = null;
+            return current.packet;
+        }
+
+        public void remove() {
+            if (current == null || next != null) {
+                throw new IllegalStateException();
+            }
+            entryIterator.remove();
+            removed(current);
+            IoBufferPool.release(current.buffer);
+            overflows.incrementAndGet();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import org.apache.mina.core.session.IoSession;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.net.OutgoingServerStanzaHandler;
+import org.jivesoftware.openfire.net.StanzaHandler;
+
+/**
+ * ConnectionHandler of the connections that this server establishes with remote servers
+ * for sending packets. The elements sent by the remote server are queued by an
+ * {@link OutgoingServerStanzaHandler} and read by the thread that negotiates the
+ * outgoing session.<p>
+ *
+ * The connection and stanza handler are created as soon as the MINA session is created
+ * (i.e. before the connect future is notified) so that the connecting thread can start
+ * the negotiation as soon as the connection is established.
+ */
+public class OutgoingServerConnectionHandler extends ConnectionHandler {
+
+    public OutgoingServerConnectionHandler(String serverName) {
+        super(serverName);
+    }
+
+    /**
+     * Returns the handler of the elements sent by the remote server over the specified
+     * connection.
+     *
+     * @param session the MINA session of an outgoing server connection.
+     * @return the handler of the elements sent by the remote server.
+     */
+    public static OutgoingServerStanzaHandler getStanzaHandler(IoSession session) {
+        return (OutgoingServerStanzaHandler) session.getAttribute(HANDLER);
+    }
+
+    @Override
+    public void sessionCreated(IoSession session) throws Exception {
+        super.sessionCreated(session);
+        final NIOConnection connection = createNIOConnection(session);
+        session.setAttribute(CONNECTION, connection);
+        session.setAttribute(HANDLER, createStanzaHandler(connection));
+    }
+
+    @Override
+    public void sessionClosed(IoSession session) throws Exception {
+        super.sessionClosed(session);
+        // Stop waiting for answers from the remote server
+        final OutgoingServerStanzaHandler handler = getStanzaHandler(session);
+        if (handler != null) {
+            handler.getSocketReader().close();
+        }
+    }
+
+    @Override
+    NIOConnection createNIOConnection(IoSession session) {
+        return new NIOConnection(session, XMPPServer.getInstance().getPacketDeliverer());
+    }
+
+    @Override
+    StanzaHandler createStanzaHandler(NIOConnection connection) {
+        return new OutgoingServerStanzaHandler(XMPPServer.getInstance().getPacketRouter(), serverName, connection);
+    }
+
+    @Override
+    int getMaxIdleTime() {
+        // Remote servers do not send traffic over outgoing connections once the session was
+        // established. Idle outgoing sessions are closed by the session manager.
+        return 0;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.Element;
+import org.dom4j.io.OutputFormat;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.XMLWriter;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+/**
+ * Serialized form of a packet that is going to be sent to many recipients. The packet is
+ * serialized only once (without its <tt>to</tt> attribute) and the address of each recipient
+ * is spliced into the serialized bytes when the packet is delivered.<p>
+ *
+ * A template is only valid for the packet that was used for creating it, and only as long as
+ * that packet is not modified other than by setting its recipient (e.g. when broadcasting a
+ * message to the occupants of a room). Use {@link #isTemplateOf(Packet)} to verify that the
+ * template can be used for delivering a packet.
+ */
+public class PacketTemplate {
+
+    private static final Charset UTF8 = Charset.forName(NIOConnection.CHARSET);
+
+    private final Packet packet;
+    /**
+     * Serialized bytes before the <tt>to</tt> attribute (i.e. the start of the tag name).
+     */
+    private final byte[] head;
+    /**
+     * Serialized bytes after the <tt>to</tt> attribute.
+     */
+    private final byte[] tail;
+
+    /**
+     * Creates a new template for the specified packet. The packet is serialized during
+     * the creation of the template.
+     *
+     * @param packet the packet that is going to be sent to many recipients.
+     */
+    public PacketTemplate(Packet packet) {
+        this.packet = packet;
+        Element element = packet.getElement().createCopy();
+        element.addAttribute("to", null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try {
+            Writer writer = new OutputStreamWriter(out, UTF8);
+            XMLWriter xmlSerializer = new XMLWriter(writer, new OutputFormat());
+            xmlSerializer.write(element);
+            xmlSerializer.flush();
+        }
+        catch (IOException e) {
+            // Should never happen when writing to memory
+            throw new IllegalStateException("Error serializing packet: " + packet, e);
+        }
+        byte[] bytes = out.toByteArray();
+        int split = ("<" + element.getQualifiedName()).getBytes(UTF8).length;
+        head = Arrays.copyOfRange(bytes, 0, split);
+        tail = Arrays.copyOfRange(bytes, split, bytes.length);
+    }
+
+    /**
+     * Returns true if this template was created for the specified packet.
+     *
+     * @param packet the packet to deliver.
+     * @return true if this template was created for the specified packet.
+     */
+    public boolean isTemplateOf(Packet packet) {
+        return this.packet == packet;
+    }
+
+    /**
+     * Writes the serialized packet addressed to the specified recipient to the buffer.
+     *
+     * @param buffer the auto-expanding buffer where the packet will be written.
+     * @param recipient the recipient of the packet or <tt>null</tt> if the packet
+     *        has no <tt>to</tt> attribute.
+     */
+    public void write(IoBuffer buffer, JID recipient) {
+        buffer.put(head);
+        if (recipient != null) {
+            buffer.put((" to=\"" + StringUtils.escapeForXML(recipient.toString()) + "\"").getBytes(UTF8));
+        }
+        buffer.put(tail);
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.DefaultWriteFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.core.write.WriteToClosedSessionException;
+import org.apache.mina.filter.ssl.SslFilter;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.TaskEngine;
+
+/**
+ * Filter that coalesces the buffers written to a session in a short period of time into a
+ * single write. The filter is placed above the TLS and compression filters so that a burst
+ * of stanzas sent to a client is encrypted as one TLS record and written with one system
+ * call instead of one per stanza.<p>
+ *
+ * A buffer that is written when no other buffer was written to the session during the last
+ * <tt>delay</tt> microseconds is passed along immediately. Otherwise it is held and all the
+ * held buffers are written together once the delay expires or once they add up to
+ * <tt>maxBytes</tt>. The held buffers are written by the {@link TaskEngine}, whose timer
+ * works in milliseconds, so the delay before writing them is rounded up to the next
+ * millisecond. MINA reports each held write as sent, in the order in which they were
+ * written, once the combined buffer was sent.<p>
+ *
+ * The number of writes, the number of buffers (records) and the number of bytes that were
+ * passed along are kept for each session and for the whole server.
+ */
+public class WriteCoalescingFilter extends IoFilterAdapter {
+
+    private static final String recordsStatKey = "nio_write_records";
+    private static final String bytesStatKey = "nio_write_bytes";
+
+    private static final AttributeKey BATCH = new AttributeKey(WriteCoalescingFilter.class, "batch");
+
+    private static final AtomicLong totalWrites = new AtomicLong(0);
+    private static final AtomicLong totalRecords = new AtomicLong(0);
+    private static final AtomicLong totalBytes = new AtomicLong(0);
+
+    private final long delay;
+    private final long flushDelay;
+    private final int maxBytes;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param delay the number of microseconds that buffers may be held.
+     * @param maxBytes the number of held bytes that causes the held buffers to be written.
+     */
+    public WriteCoalescingFilter(long delay, int maxBytes) {
+        this.delay = delay;
+        this.flushDelay = (delay + 999) / 1000;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+        final Batch batch = getBatch(session);
+        synchronized (batch) {
+            final long now = System.nanoTime();
+            final boolean recent = now - batch.lastWrite < TimeUnit.MICROSECONDS.toNanos(delay);
+            batch.lastWrite = now;
+            final Object message = writeRequest.getMessage();
+            if (!(message instanceof IoBuffer)) {
+                flush(nextFilter, session, batch);
+                nextFilter.filterWrite(session, writeRequest);
+                return;
+            }
+            if (session.containsAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE)) {
+                // Everything held so far has to be sent in plain text along with this buffer
+                batch.add(writeRequest);
+                flush(nextFilter, session, batch);
+                return;
+            }
+            if (!recent && batch.requests.isEmpty()) {
+                batch.count(1, ((IoBuffer) message).remaining());
+                nextFilter.filterWrite(session, writeRequest);
+                return;
+            }
+            batch.add(writeRequest);
+            if (batch.bytes >= maxBytes) {
+                flush(nextFilter, session, batch);
+            }
+            else if (!batch.scheduled) {
+                batch.scheduled = true;
+                TaskEngine.getInstance().schedule(new FlushTask(nextFilter, session, batch), flushDelay);
+            }
+        }
+    }
+
+    @Override
+    public void messageSent(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+        if (writeRequest instanceof CoalescedWriteRequest) {
+            for (WriteRequest request : ((CoalescedWriteRequest) writeRequest).requests) {
+                nextFilter.messageSent(session, request);
+            }
+        }
+        else {
+            nextFilter.messageSent(session, writeRequest);
+        }
+    }
+
+    @Override
+    public void filterClose(NextFilter nextFilter, IoSession session) throws Exception {
+        final Batch batch = getBatch(session);
+        synchronized (batch) {
+            flush(nextFilter, session, batch);
+        }
+        nextFilter.filterClose(session);
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        final Batch batch = (Batch) session.removeAttribute(BATCH);
+        if (batch != null) {
+            synchronized (batch) {
+                for (WriteRequest request : batch.requests) {
+                    request.getFuture().setException(new WriteToClosedSessionException(request));
+                }
+                batch.requests.clear();
+            }
+        }
+        nextFilter.sessionClosed(session);
+    }
+
+    /**
+     * Writes the buffers held for the session. This must be done before adding filters that
+     * change the written bytes, such as TLS or compression, so that the held buffers are sent
+     * as they were when they were written.
+     *
+     * @param session the session.
+     */
+    public static void flush(IoSession session) {
+        final IoFilterChain.Entry entry = session.getFilterChain().getEntry(WriteCoalescingFilter.class);
+        if (entry == null) {
+            return;
+        }
+        final Batch batch = getBatch(session);
+        synchronized (batch) {
+            ((WriteCoalescingFilter) entry.getFilter()).flush(entry.getNextFilter(), session, batch);
+        }
+    }
+
+    /**
+     * Returns the number of writes that the filter passed along for the session.
+     *
+     * @param session the session.
+     * @return the number of writes of the session.
+     */
+    public static long getWrites(IoSession session) {
+        final Batch batch = (Batch) session.getAttribute(BATCH);
+        return batch != null ? batch.writes.get() : 0;
+    }
+
+    /**
+     * Returns the number of buffers that were written to the session. Dividing this value by
+     * the number of writes gives the number of records per write.
+     *
+     * @param session the session.
+     * @return the number of buffers written to the session.
+     */
+    public static long getRecords(IoSession session) {
+        final Batch batch = (Batch) session.getAttribute(BATCH);
+        return batch != null ? batch.records.get() : 0;
+    }
+
+    /**
+     * Returns the number of bytes that were written to the session. Dividing this value by
+     * the number of writes gives the number of bytes per write.
+     *
+     * @param session the session.
+     * @return the number of bytes written to the session.
+     */
+    public static long getWrittenBytes(IoSession session) {
+        final Batch batch = (Batch) session.getAttribute(BATCH);
+        return batch != null ? batch.bytesWritten.get() : 0;
+    }
+
+    public static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(recordsStatKey, new WriteStatistic(recordsStatKey, totalRecords));
+        StatisticsManager.getInstance().addStatistic(bytesStatKey, new WriteStatistic(bytesStatKey, totalBytes));
+    }
+
+    private static Batch getBatch(IoSession session) {
+        Batch batch = (Batch) session.getAttribute(BATCH);
+        if (batch == null) {
+            batch = new Batch();
+            Batch existing = (Batch) session.setAttributeIfAbsent(BATCH, batch);
+            if (existing != null) {
+                batch = existing;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Writes the held buffers as one buffer. Must be invoked while holding the lock of the batch.
+     */
+    private void flush(NextFilter nextFilter, IoSession session, Batch batch) {
+        if (batch.requests.isEmpty()) {
+            return;
+        }
+        batch.count(batch.requests.size(), batch.bytes);
+        if (batch.requests.size() == 1) {
+            nextFilter.filterWrite(session, batch.requests.get(0));
+        }
+        else {
+            final IoBuffer buffer = IoBuffer.allocate(batch.bytes);
+            for (WriteRequest request : batch.requests) {
+                // Leave the written buffers untouched since MINA reports them as sent
+                buffer.put(((IoBuffer) request.getMessage()).duplicate());
+            }
+            buffer.flip();
+            nextFilter.filterWrite(session, new CoalescedWriteRequest(session, buffer, batch.requests));
+        }
+        batch.requests = new ArrayList<WriteRequest>();
+        batch.bytes = 0;
+    }
+
+    /**
+     * Buffers held for a session and the write counters of the session.
+     */
+    private static class Batch {
+
+        List<WriteRequest> requests = new ArrayList<WriteRequest>();
+        int bytes = 0;
+        long lastWrite = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+        boolean scheduled = false;
+
+        final AtomicLong writes = new AtomicLong(0);
+        final AtomicLong records = new AtomicLong(0);
+        final AtomicLong bytesWritten = new AtomicLong(0);
+
+        void add(WriteRequest request) {
+            requests.add(request);
+            bytes += ((IoBuffer) request.getMessage()).remaining();
+        }
+
+        void count(int recordCount, int byteCount) {
+            writes.incrementAndGet();
+            records.addAndGet(recordCount);
+            bytesWritten.addAndGet(byteCount);
+            totalWrites.incrementAndGet();
+            totalRecords.addAndGet(recordCount);
+            totalBytes.addAndGet(byteCount);
+        }
+    }
+
+    private class FlushTask extends TimerTask {
+
+        private final NextFilter nextFilter;
+        private final IoSession session;
+        private final Batch batch;
+
+        FlushTask(NextFilter nextFilter, IoSession session, Batch batch) {
+            this.nextFilter = nextFilter;
+            this.session = session;
+            this.batch = batch;
+        }
+
+        public void run() {
+            synchronized (batch) {
+                batch.scheduled = false;
+                if (!session.isClosing()) {
+                    flush(nextFilter, session, batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write of the buffers of several write requests. The futures of the write requests are
+     * completed once the combined buffer was written.
+     */
+    private static class CoalescedWriteRequest extends DefaultWriteRequest {
+
+        private final List<WriteRequest> requests;
+
+        CoalescedWriteRequest(IoSession session, IoBuffer buffer, final List<WriteRequest> requests) {
+            super(buffer, new DefaultWriteFuture(session));
+            this.requests = requests;
+            getFuture().addListener(new IoFutureListener<WriteFuture>() {
+                public void operationComplete(WriteFuture future) {
+                    for (WriteRequest request : requests) {
+                        if (future.isWritten()) {
+                            request.getFuture().setWritten();
+                        }
+                        else {
+                            request.getFuture().setException(future.getException());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Statistic that reports the average number of records or bytes per write since it was
+     * last sampled.
+     */
+    private static class WriteStatistic extends i18nStatistic {
+
+        private final AtomicLong counter;
+        private long lastValue = 0;
+        private long lastWrites = 0;
+
+        public WriteStatistic(String resourceKey, AtomicLong counter) {
+            super(resourceKey, Statistic.Type.count);
+            this.counter = counter;
+        }
+
+        public synchronized double sample() {
+            final long value = counter.get();
+            final long writes = totalWrites.get();
+            final double average = writes == lastWrites ? 0 : (double) (value - lastValue) / (writes - lastWrites);
+            lastValue = value;
+            lastWrites = writes;
+            return average;
+        }
+
+        public boolean isPartialSample() {
+            return false;
+        }
+    }
+}
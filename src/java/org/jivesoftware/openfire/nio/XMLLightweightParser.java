@@ -391,6 +391,15 @@ class XMLLightweightParser {
         }
     }
 
+    /**
+     * Returns the max number of chars that a single stanza may have before parsing is aborted.
+     *
+     * @return the max number of chars that a single stanza may have.
+     */
+    static int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
 	/**
 	 * This method verifies if the provided argument contains at least one numeric character reference (
 	 * <code>CharRef	   ::=   	'&#' [0-9]+ ';' | '&#x' [0-9a-fA-F]+ ';</code>) for which the decimal or hexidecimal
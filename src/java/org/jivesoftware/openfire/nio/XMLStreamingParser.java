@@ -0,0 +1,720 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.jivesoftware.util.StringUtils;
+
+/**
+ * Incremental (push) XML parser that builds the DOM of each stanza while the bytes of the
+ * stanza are being read from the network.<p>
+ *
+ * Unlike {@link XMLLightweightParser}, which only finds the boundaries of each stanza and
+ * leaves the actual parsing to a second pass, this parser tokenizes the received data once
+ * and creates the {@link Element} of the stanza on the fly. Complete stanzas are returned as
+ * elements while stream headers and stream ends are returned as Strings (e.g.
+ * <tt>&lt;stream:stream ...&gt;</tt> and <tt>&lt;/stream:stream&gt;</tt>) so that they can be
+ * processed as before by the {@link org.jivesoftware.openfire.net.StanzaHandler}.<p>
+ *
+ * Elements in the stream namespaces (e.g. <tt>jabber:client</tt>) are created without a
+ * namespace, the same way {@link org.dom4j.io.XMPPPacketReader} does.
+ */
+class XMLStreamingParser {
+
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+
+    /**
+     * Namespaces of the stream that are not going to be included in the created elements.
+     */
+    private static final String[] STREAM_NAMESPACES = {"jabber:client", "jabber:server",
+            "jabber:connectionmanager", "jabber:component:accept", "http://jabber.org/protocol/httpbind"};
+
+    // Max length of an entity or character reference (e.g. &#x0000000020;)
+    private static final int MAX_REFERENCE_LENGTH = 32;
+
+    // ---- INTERNAL STATUS -------
+    // Status used when reading character data (or whitespace between stanzas)
+    private static final int TEXT = 0;
+    // Status used when a '<' was found
+    private static final int TAG_OPEN = 1;
+    // Status used when reading the name of a start tag
+    private static final int START_TAG_NAME = 2;
+    // Status used when inside a start tag and looking for attributes or the tag end
+    private static final int START_TAG = 3;
+    // Status used when reading the name of an attribute
+    private static final int ATTRIBUTE_NAME = 4;
+    // Status used when the attribute name was read and looking for '='
+    private static final int ATTRIBUTE_EQUALS = 5;
+    // Status used when '=' was found and looking for the opening quote
+    private static final int ATTRIBUTE_QUOTE = 6;
+    // Status used when reading the value of an attribute
+    private static final int ATTRIBUTE_VALUE = 7;
+    // Status used when a '/' was found inside a start tag to check '/>'
+    private static final int EMPTY_TAG = 8;
+    // Status used when reading the name of an end tag
+    private static final int END_TAG_NAME = 9;
+    // Status used when the end tag name was read and looking for '>'
+    private static final int END_TAG = 10;
+    // Status used when a '<!' was found to check for a comment or CDATA section
+    private static final int MARKUP = 11;
+    // Status used when inside a comment
+    private static final int COMMENT = 12;
+    // Status used when inside a CDATA section
+    private static final int CDATA = 13;
+    // Status used when inside a processing instruction (e.g. <?xml version="1.0"?>)
+    private static final int PI = 14;
+
+    // Current robot status
+    private int status = TEXT;
+
+    private final CharsetDecoder decoder;
+    private CharBuffer charBuffer;
+    private final DocumentFactory factory = DocumentFactory.getInstance();
+
+    // Character data, attribute values, comments and CDATA sections being read
+    private final StringBuilder text = new StringBuilder();
+    // Name of the tag being read
+    private final StringBuilder name = new StringBuilder();
+    // Name of the attribute being read
+    private final StringBuilder attributeName = new StringBuilder();
+    // Entity or character reference being read
+    private final StringBuilder reference = new StringBuilder();
+    private boolean insideReference = false;
+    // Quote character that opened the current attribute value
+    private char quote;
+    // Name of the start tag that is being read
+    private String elementName;
+    // Name/value pairs of the attributes of the start tag being read
+    private final List<String> attributes = new ArrayList<String>();
+
+    // Open elements of the stanza being parsed and their (qualified) tag names
+    private final List<Element> elements = new ArrayList<Element>();
+    private final List<String> elementNames = new ArrayList<String>();
+    // Namespace declarations in scope. Each open element (or stream header) starts a new scope.
+    private final List<String> namespacePrefixes = new ArrayList<String>();
+    private final List<String> namespaceURIs = new ArrayList<String>();
+    private int[] scopes = new int[16];
+    private int scopeCount = 0;
+    // Qualified name of the stream root element (e.g. stream:stream) or null if none was found
+    private String streamName;
+
+    private boolean isHighSurrogate = false;
+    // Number of chars read for the stanza being parsed
+    private int stanzaLength = 0;
+    // Flag that indicates that an error was found and the remaining data should be discarded
+    private boolean failed = false;
+
+    // List with all finished messages found.
+    private final List<Object> msgs = new ArrayList<Object>();
+
+    public XMLStreamingParser(String charset) {
+        decoder = Charset.forName(charset).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Returns true if the parser has found some complete stanza, stream header or stream end.
+     *
+     * @return true if the parser has found some complete stanza, stream header or stream end.
+     */
+    public boolean areThereMsgs() {
+        return !msgs.isEmpty();
+    }
+
+    /**
+     * Returns the stanzas (as {@link Element}s) and stream headers or ends (as Strings) that
+     * were found since the last time this method was invoked.
+     *
+     * @return the stanzas, stream headers and stream ends found.
+     */
+    public List<Object> getMsgs() {
+        List<Object> res = new ArrayList<Object>(msgs);
+        msgs.clear();
+        return res;
+    }
+
+    /**
+     * Decodes the bytes of the buffer and parses as much XML as possible. Bytes of
+     * incomplete characters are left in the buffer.
+     *
+     * @param byteBuffer the buffer with the received bytes.
+     * @throws Exception if the received data is not well-formed XML or the stanza being
+     *         parsed exceeds the max allowed size.
+     */
+    public void read(IoBuffer byteBuffer) throws Exception {
+        if (failed) {
+            // exception was thrown before, avoid duplicate exception(s)
+            // "read" and discard remaining data
+            byteBuffer.position(byteBuffer.limit());
+            return;
+        }
+        if (charBuffer == null || charBuffer.capacity() < byteBuffer.remaining()) {
+            charBuffer = CharBuffer.allocate(byteBuffer.remaining());
+        }
+        charBuffer.clear();
+        decoder.reset();
+        decoder.decode(byteBuffer.buf(), charBuffer, false);
+        charBuffer.flip();
+
+        final char[] chars = charBuffer.array();
+        final int length = charBuffer.limit();
+        try {
+            for (int i = 0; i < length; i++) {
+                parse(chars[i]);
+            }
+        }
+        catch (Exception e) {
+            // purge the local state / free memory
+            failed = true;
+            elements.clear();
+            elementNames.clear();
+            text.setLength(0);
+            throw e;
+        }
+    }
+
+    private void parse(char ch) throws Exception {
+        if (ch < 0x20 && ch != 0x9 && ch != 0xA && ch != 0xD) {
+            if (ch == 0x0) {
+                // We need to allow the NULL character for Flash XMLSocket clients to work.
+                return;
+            }
+            //Unicode characters in the range 0x0000-0x001F other than 9, A, and D are not allowed in XML
+            throw new XMLNotWellFormedException("Character is invalid in: " + ch);
+        }
+        if (isHighSurrogate) {
+            if (!Character.isLowSurrogate(ch)) {
+                throw new Exception("Found high surrogate not followed by low surrogate");
+            }
+            isHighSurrogate = false;
+        }
+        else if (Character.isHighSurrogate(ch)) {
+            isHighSurrogate = true;
+        }
+        else if (Character.isLowSurrogate(ch)) {
+            throw new Exception("Found low surrogate char without a preceding high surrogate");
+        }
+
+        // Check that the stanza is not bigger than the max allowed size. For security reasons
+        // we will abort parsing when that many chars were found for a single stanza.
+        if ((status != TEXT || !elements.isEmpty()) &&
+                ++stanzaLength > XMLLightweightParser.getMaxBufferSize()) {
+            final ProtocolDecoderException ex = new ProtocolDecoderException("Stopped parsing never ending stanza");
+            ex.setHexdump("(redacted hex dump of never ending stanza)");
+            throw ex;
+        }
+
+        if (insideReference) {
+            if (ch == ';') {
+                insideReference = false;
+                appendReference();
+            }
+            else if (ch == '<' || ch == '&' || reference.length() >= MAX_REFERENCE_LENGTH) {
+                throw new XMLNotWellFormedException("Invalid entity reference: &" + reference);
+            }
+            else {
+                reference.append(ch);
+            }
+            return;
+        }
+
+        switch (status) {
+            case TEXT:
+                if (ch == '<') {
+                    flushText();
+                    status = TAG_OPEN;
+                }
+                else if (!elements.isEmpty()) {
+                    if (ch == '&') {
+                        startReference();
+                    }
+                    else {
+                        text.append(ch);
+                    }
+                }
+                // Character data between stanzas (e.g. whitespace keep-alives) is ignored
+                break;
+
+            case TAG_OPEN:
+                if (ch == '/') {
+                    name.setLength(0);
+                    status = END_TAG_NAME;
+                }
+                else if (ch == '!') {
+                    name.setLength(0);
+                    status = MARKUP;
+                }
+                else if (ch == '?') {
+                    text.setLength(0);
+                    status = PI;
+                }
+                else if (isNameChar(ch) && ch != '-' && ch != '.' && !Character.isDigit(ch)) {
+                    name.setLength(0);
+                    name.append(ch);
+                    attributes.clear();
+                    status = START_TAG_NAME;
+                }
+                else {
+                    throw new XMLNotWellFormedException("Invalid character after '<': " + ch);
+                }
+                break;
+
+            case START_TAG_NAME:
+                if (isNameChar(ch)) {
+                    name.append(ch);
+                }
+                else {
+                    elementName = name.toString();
+                    status = START_TAG;
+                    parseStartTag(ch);
+                }
+                break;
+
+            case START_TAG:
+                parseStartTag(ch);
+                break;
+
+            case ATTRIBUTE_NAME:
+                if (isNameChar(ch)) {
+                    attributeName.append(ch);
+                }
+                else if (ch == '=') {
+                    status = ATTRIBUTE_QUOTE;
+                }
+                else if (isWhitespace(ch)) {
+                    status = ATTRIBUTE_EQUALS;
+                }
+                else {
+                    throw new XMLNotWellFormedException("Invalid character in attribute name: " + ch);
+                }
+                break;
+
+            case ATTRIBUTE_EQUALS:
+                if (ch == '=') {
+                    status = ATTRIBUTE_QUOTE;
+                }
+                else if (!isWhitespace(ch)) {
+                    throw new XMLNotWellFormedException("Attribute without value: " + attributeName);
+                }
+                break;
+
+            case ATTRIBUTE_QUOTE:
+                if (ch == '"' || ch == '\'') {
+                    quote = ch;
+                    text.setLength(0);
+                    status = ATTRIBUTE_VALUE;
+                }
+                else if (!isWhitespace(ch)) {
+                    throw new XMLNotWellFormedException("Attribute value not quoted: " + attributeName);
+                }
+                break;
+
+            case ATTRIBUTE_VALUE:
+                if (ch == quote) {
+                    attributes.add(attributeName.toString());
+                    attributes.add(text.toString());
+                    text.setLength(0);
+                    status = START_TAG;
+                }
+                else if (ch == '&') {
+                    startReference();
+                }
+                else if (ch == '<') {
+                    throw new XMLNotWellFormedException("Character '<' is not allowed in attribute values");
+                }
+                else {
+                    text.append(ch);
+                }
+                break;
+
+            case EMPTY_TAG:
+                if (ch != '>') {
+                    throw new XMLNotWellFormedException("Expected '>' after '/' in tag: " + elementName);
+                }
+                status = TEXT;
+                startElement(true);
+                break;
+
+            case END_TAG_NAME:
+                if (isNameChar(ch)) {
+                    name.append(ch);
+                }
+                else if (ch == '>') {
+                    status = TEXT;
+                    endElement(name.toString());
+                }
+                else if (isWhitespace(ch)) {
+                    status = END_TAG;
+                }
+                else {
+                    throw new XMLNotWellFormedException("Invalid character in end tag: " + ch);
+                }
+                break;
+
+            case END_TAG:
+                if (ch == '>') {
+                    status = TEXT;
+                    endElement(name.toString());
+                }
+                else if (!isWhitespace(ch)) {
+                    throw new XMLNotWellFormedException("Invalid character in end tag: " + ch);
+                }
+                break;
+
+            case MARKUP:
+                name.append(ch);
+                if (name.length() == 2 && "--".contentEquals(name)) {
+                    text.setLength(0);
+                    status = COMMENT;
+                }
+                else if (name.length() == 7 && "[CDATA[".contentEquals(name)) {
+                    text.setLength(0);
+                    status = CDATA;
+                }
+                else if (!"--".startsWith(name.toString()) && !"[CDATA[".startsWith(name.toString())) {
+                    // Document type declarations are not allowed in XMPP
+                    throw new XMLNotWellFormedException("Invalid markup declaration: <!" + name);
+                }
+                break;
+
+            case COMMENT:
+                text.append(ch);
+                if (endsWith(text, "-->")) {
+                    text.setLength(text.length() - 3);
+                    if (!elements.isEmpty()) {
+                        elements.get(elements.size() - 1).addComment(text.toString());
+                    }
+                    text.setLength(0);
+                    status = TEXT;
+                }
+                break;
+
+            case CDATA:
+                text.append(ch);
+                if (endsWith(text, "]]>")) {
+                    text.setLength(text.length() - 3);
+                    if (!elements.isEmpty()) {
+                        elements.get(elements.size() - 1).addCDATA(text.toString());
+                    }
+                    text.setLength(0);
+                    status = TEXT;
+                }
+                break;
+
+            case PI:
+                // Processing instructions (e.g. <?xml version="1.0"?>) are ignored
+                if (ch == '>' && text.length() > 0 && text.charAt(text.length() - 1) == '?') {
+                    text.setLength(0);
+                    status = TEXT;
+                }
+                else {
+                    text.setLength(0);
+                    text.append(ch);
+                }
+                break;
+        }
+    }
+
+    private void parseStartTag(char ch) throws Exception {
+        if (ch == '>') {
+            status = TEXT;
+            startElement(false);
+        }
+        else if (ch == '/') {
+            status = EMPTY_TAG;
+        }
+        else if (isNameChar(ch)) {
+            attributeName.setLength(0);
+            attributeName.append(ch);
+            status = ATTRIBUTE_NAME;
+        }
+        else if (!isWhitespace(ch)) {
+            throw new XMLNotWellFormedException("Invalid character in tag " + elementName + ": " + ch);
+        }
+    }
+
+    private void startElement(boolean empty) throws Exception {
+        if (elements.isEmpty() && isStreamRoot(elementName)) {
+            // Found a stream header. A new stream header (e.g. after TLS, SASL or compression
+            // was negotiated) replaces the previous stream so reset the namespaces in scope.
+            scopeCount = 0;
+            namespacePrefixes.clear();
+            namespaceURIs.clear();
+            openScope();
+            streamName = elementName;
+            msgs.add(getStreamHeader());
+            stanzaLength = 0;
+            if (empty) {
+                closeStream();
+            }
+            return;
+        }
+
+        openScope();
+        final String prefix = getPrefix(elementName);
+        final String localName = getLocalName(elementName);
+        final String namespace = getNamespace(prefix);
+        if (namespace == null) {
+            throw new XMLNotWellFormedException("Undeclared namespace prefix in tag: " + elementName);
+        }
+        final Element element;
+        // Do not include the namespace if this is a stream namespace. This avoids
+        // including "jabber:client", "jabber:server" or "jabber:component:accept"
+        if (isStreamNamespace(namespace)) {
+            element = factory.createElement(localName);
+        }
+        else {
+            final QName qname = prefix.length() == 0 ? factory.createQName(localName, namespace) :
+                    factory.createQName(localName, prefix, namespace);
+            element = factory.createElement(qname);
+        }
+        for (int i = 0; i < attributes.size(); i += 2) {
+            final String attribute = attributes.get(i);
+            if ("xmlns".equals(attribute)) {
+                continue;
+            }
+            if (attribute.startsWith("xmlns:")) {
+                element.addNamespace(attribute.substring(6), attributes.get(i + 1));
+                continue;
+            }
+            final String attributePrefix = getPrefix(attribute);
+            if (attributePrefix.length() == 0) {
+                element.addAttribute(factory.createQName(attribute), attributes.get(i + 1));
+            }
+            else {
+                final String attributeNamespace = getNamespace(attributePrefix);
+                if (attributeNamespace == null) {
+                    throw new XMLNotWellFormedException("Undeclared namespace prefix in attribute: " + attribute);
+                }
+                element.addAttribute(factory.createQName(getLocalName(attribute), attributePrefix,
+                        attributeNamespace), attributes.get(i + 1));
+            }
+        }
+        attributes.clear();
+
+        if (elements.isEmpty()) {
+            factory.createDocument().add(element);
+        }
+        else {
+            elements.get(elements.size() - 1).add(element);
+        }
+        elements.add(element);
+        elementNames.add(elementName);
+        if (empty) {
+            endElement(elementName);
+        }
+    }
+
+    private void endElement(String tagName) throws Exception {
+        if (elements.isEmpty()) {
+            if (isStreamRoot(tagName)) {
+                // Found closing stream:stream
+                closeStream();
+                return;
+            }
+            throw new XMLNotWellFormedException("Found end tag without start tag: " + tagName);
+        }
+        final int last = elements.size() - 1;
+        if (!tagName.equals(elementNames.get(last))) {
+            throw new XMLNotWellFormedException("Expected end tag " + elementNames.get(last) +
+                    " but found " + tagName);
+        }
+        final Element element = elements.remove(last);
+        elementNames.remove(last);
+        closeScope();
+        if (elements.isEmpty()) {
+            // Found a complete stanza
+            msgs.add(element);
+            stanzaLength = 0;
+        }
+    }
+
+    private void closeStream() {
+        streamName = null;
+        scopeCount = 0;
+        namespacePrefixes.clear();
+        namespaceURIs.clear();
+        msgs.add("</stream:stream>");
+    }
+
+    private String getStreamHeader() {
+        final StringBuilder header = new StringBuilder(128);
+        header.append('<').append(streamName);
+        for (int i = 0; i < attributes.size(); i += 2) {
+            header.append(' ').append(attributes.get(i)).append("=\"")
+                    .append(StringUtils.escapeForXML(attributes.get(i + 1))).append('"');
+        }
+        header.append('>');
+        attributes.clear();
+        return header.toString();
+    }
+
+    private void flushText() {
+        if (text.length() > 0) {
+            elements.get(elements.size() - 1).addText(text.toString());
+            text.setLength(0);
+        }
+    }
+
+    private void startReference() {
+        reference.setLength(0);
+        insideReference = true;
+    }
+
+    private void appendReference() throws XMLNotWellFormedException {
+        final String ref = reference.toString();
+        if ("lt".equals(ref)) {
+            text.append('<');
+        }
+        else if ("gt".equals(ref)) {
+            text.append('>');
+        }
+        else if ("amp".equals(ref)) {
+            text.append('&');
+        }
+        else if ("quot".equals(ref)) {
+            text.append('"');
+        }
+        else if ("apos".equals(ref)) {
+            text.append('\'');
+        }
+        else if (ref.length() > 1 && ref.charAt(0) == '#') {
+            final int value;
+            try {
+                if (ref.charAt(1) == 'x' || ref.charAt(1) == 'X') {
+                    value = Integer.parseInt(ref.substring(2), 16);
+                }
+                else {
+                    value = Integer.parseInt(ref.substring(1));
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new XMLNotWellFormedException("Invalid character reference: &" + ref + ";", e);
+            }
+            if (!XMLLightweightParser.isLegalXmlCharacter(value)) {
+                throw new XMLNotWellFormedException("Illegal character reference found: &" + ref + ";");
+            }
+            text.appendCodePoint(value);
+        }
+        else {
+            throw new XMLNotWellFormedException("Undeclared entity reference: &" + ref + ";");
+        }
+    }
+
+    private void openScope() {
+        if (scopeCount == scopes.length) {
+            int[] newScopes = new int[scopes.length * 2];
+            System.arraycopy(scopes, 0, newScopes, 0, scopes.length);
+            scopes = newScopes;
+        }
+        scopes[scopeCount++] = namespacePrefixes.size();
+        for (int i = 0; i < attributes.size(); i += 2) {
+            final String attribute = attributes.get(i);
+            if ("xmlns".equals(attribute)) {
+                namespacePrefixes.add("");
+                namespaceURIs.add(attributes.get(i + 1));
+            }
+            else if (attribute.startsWith("xmlns:")) {
+                namespacePrefixes.add(attribute.substring(6));
+                namespaceURIs.add(attributes.get(i + 1));
+            }
+        }
+    }
+
+    private void closeScope() {
+        final int start = scopes[--scopeCount];
+        for (int i = namespacePrefixes.size() - 1; i >= start; i--) {
+            namespacePrefixes.remove(i);
+            namespaceURIs.remove(i);
+        }
+    }
+
+    private String getNamespace(String prefix) {
+        for (int i = namespacePrefixes.size() - 1; i >= 0; i--) {
+            if (prefix.equals(namespacePrefixes.get(i))) {
+                return namespaceURIs.get(i);
+            }
+        }
+        if (prefix.length() == 0) {
+            return "";
+        }
+        if ("xml".equals(prefix)) {
+            return XML_NAMESPACE;
+        }
+        return null;
+    }
+
+    private static String getPrefix(String qualifiedName) {
+        final int index = qualifiedName.indexOf(':');
+        return index > 0 ? qualifiedName.substring(0, index) : "";
+    }
+
+    private static String getLocalName(String qualifiedName) {
+        final int index = qualifiedName.indexOf(':');
+        return index > 0 ? qualifiedName.substring(index + 1) : qualifiedName;
+    }
+
+    private static boolean isStreamRoot(String qualifiedName) {
+        return "stream:stream".equals(qualifiedName) || "flash:stream".equals(qualifiedName);
+    }
+
+    private static boolean isStreamNamespace(String namespace) {
+        for (String streamNamespace : STREAM_NAMESPACES) {
+            if (streamNamespace.equals(namespace)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNameChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == ':' || ch == '_' || ch == '-' || ch == '.' ||
+                Character.isSurrogate(ch);
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r';
+    }
+
+    private static boolean endsWith(StringBuilder builder, String suffix) {
+        final int offset = builder.length() - suffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (builder.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
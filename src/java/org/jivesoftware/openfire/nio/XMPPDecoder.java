@@ -26,7 +26,12 @@ import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 
 /**
  * Decoder class that parses ByteBuffers and generates XML stanzas. Generated
- * stanzas are then passed to the next filters.
+ * stanzas are then passed to the next filters.<p>
+ *
+ * By default stanzas are generated as Strings that are later parsed into DOM objects
+ * by the {@link org.jivesoftware.openfire.net.StanzaHandler}. When the streaming mode
+ * is enabled (see {@link ConnectionHandler#STREAMING_PARSER_PROPERTY}) stanzas are
+ * generated as {@link org.dom4j.Element}s in a single pass over the received bytes.
  *
  * @author Gaston Dombiak
  */
@@ -35,6 +40,20 @@ public class XMPPDecoder extends CumulativeProtocolDecoder {
     @Override
 	protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out)
             throws Exception {
+        // Get the XML streaming parser from the IoSession (only present in streaming mode)
+        final XMLStreamingParser streamingParser =
+                (XMLStreamingParser) session.getAttribute(ConnectionHandler.XML_STREAMING_PARSER);
+        if (streamingParser != null) {
+            // Parse and build as many stanzas as possible from the received data
+            streamingParser.read(in);
+
+            if (streamingParser.areThereMsgs()) {
+                for (Object stanza : streamingParser.getMsgs()) {
+                    out.write(stanza);
+                }
+            }
+            return !in.hasRemaining();
+        }
         // Get the XML light parser from the IoSession
         XMLLightweightParser parser = (XMLLightweightParser) session.getAttribute(ConnectionHandler.XML_PARSER);
         // Parse as many stanzas as possible from the received data
@@ -93,6 +93,10 @@ public class PrivacyList implements Cacheable, Externalizable {
     private String name;
     private boolean isDefault;
     private List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+    /**
+     * Number of times that the items of the list were set.
+     */
+    private volatile int version = 0;
 
     /**
      * Constructor added for Externalizable. Do not use this constructor.
@@ -179,6 +183,16 @@ public class PrivacyList implements Cacheable, Externalizable {
         return false;
     }
 
+    /**
+     * Returns the version of the list. The version changes every time that the items of
+     * the list are updated so that decisions based on the list can be cached.
+     *
+     * @return the version of the list.
+     */
+    public int getVersion() {
+        return version;
+    }
+
     /**
      * Returns an Element with the privacy list XML representation.
      *
@@ -233,6 +247,7 @@ public class PrivacyList implements Cacheable, Externalizable {
         }
         // Sort items collections
         Collections.sort(items);
+        version++;
         if (notify) {
             // Trigger event that this list has been modified
             PrivacyListManager.getInstance().dispatchModifiedEvent(this);
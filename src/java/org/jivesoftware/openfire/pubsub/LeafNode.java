@@ -21,6 +21,7 @@
 package org.jivesoftware.openfire.pubsub;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -29,6 +30,8 @@ import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.dom4j.Element;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.xmpp.forms.DataForm;
@@ -70,9 +73,12 @@ public class LeafNode extends Node {
      */
     private boolean sendItemSubscribe;
     /**
-     * The last item published to this node.  In a cluster this may have occurred on a different cluster node.
+     * Index of the items published to this node, bounded by the max number of published
+     * items. Items are read from the index instead of the database. In a cluster the index
+     * does not contain the items published on other cluster nodes, so it is only used for
+     * the last published item (see {@link #isItemIndexUsed()}).
      */
-    private PublishedItem lastPublished;
+    private final PublishedItemIndex itemIndex;
 
     // TODO Add checking of max payload size. Return <not-acceptable> plus a application specific error condition of <payload-too-big/>.
 
@@ -84,6 +90,7 @@ public class LeafNode extends Node {
         this.maxPublishedItems = defaultConfiguration.getMaxPublishedItems();
         this.maxPayloadSize = defaultConfiguration.getMaxPayloadSize();
         this.sendItemSubscribe = defaultConfiguration.isSendItemSubscribe();
+        this.itemIndex = new PublishedItemIndex(getItemIndexCapacity());
     }
 
     @Override
@@ -120,6 +127,7 @@ public class LeafNode extends Node {
                 maxPublishedItems = values.size() > 0 ? Integer.parseInt(values.get(0)) : 50;
             }
         }
+        itemIndex.setCapacity(getItemIndexCapacity());
     }
 
     @Override
@@ -168,10 +176,13 @@ public class LeafNode extends Node {
 	protected void deletingNode() {
     }
 
-	public synchronized void setLastPublishedItem(PublishedItem item)
+	public void setLastPublishedItem(PublishedItem item)
 	{
-		if ((lastPublished == null) || (item != null) && item.getCreationDate().after(lastPublished.getCreationDate()))
-			lastPublished = item;
+		synchronized (itemIndex) {
+			PublishedItem lastPublished = itemIndex.getLast();
+			if ((item != null) && ((lastPublished == null) || item.getCreationDate().after(lastPublished.getCreationDate())))
+				itemIndex.add(item);
+		}
     }
 
     public int getMaxPayloadSize() {
@@ -245,7 +256,7 @@ public class LeafNode extends Node {
                 newItem.setPayload(payload);
                 // Add the new item to the list of published items
                 newPublishedItems.add(newItem);
-                setLastPublishedItem(newItem);
+                itemIndex.add(newItem);
                 // Add the new published item to the queue of items to add to the database. The
                 // queue is going to be processed by another thread
                 if (isPersistPublishedItems()) {
@@ -286,6 +297,7 @@ public class LeafNode extends Node {
     public void deleteItems(List<PublishedItem> toDelete) {
         // Remove deleted items from the database
         for (PublishedItem item : toDelete) {
+            itemIndex.remove(item.getID());
             PubSubPersistenceManager.removePublishedItem(item);
         }
         if (isNotifiedOfRetract()) {
@@ -318,9 +330,11 @@ public class LeafNode extends Node {
      * @param publishedItems the list of published items to send to the subscriber.
      * @param forceToIncludePayload true if the item payload should be include if one exists. When
      *        false the decision is up to the node.
+     * @param setElement the result set management element describing the page of items that is
+     *        sent, or <tt>null</tt> if the items were not requested using result set management.
      */
     void sendPublishedItems(IQ originalRequest, List<PublishedItem> publishedItems,
-            boolean forceToIncludePayload) {
+            boolean forceToIncludePayload, Element setElement) {
         IQ result = IQ.createResultIQ(originalRequest);
         Element pubsubElem = result.setChildElement("pubsub", "http://jabber.org/protocol/pubsub");
         Element items = pubsubElem.addElement("items");
@@ -336,6 +350,9 @@ public class LeafNode extends Node {
                 item.add(publishedItem.getPayload().createCopy());
             }
         }
+        if (setElement != null) {
+            pubsubElem.add(setElement);
+        }
         // Send the result
         service.send(result);
     }
@@ -345,12 +362,13 @@ public class LeafNode extends Node {
         if (!isItemRequired()) {
             return null;
         }
-        synchronized (this) {
-            if (lastPublished != null && lastPublished.getID().equals(itemID)) {
-                return lastPublished;
-            }
+        PublishedItem item = getItemIndex().get(itemID);
+        if (item == null && (!isItemIndexUsed() || getMaxPublishedItems() == -1)) {
+            // The item may have been published on another cluster node, or may be older
+            // than the items kept in memory for a node without a max number of items
+            item = PubSubPersistenceManager.getPublishedItem(this, itemID);
         }
-        return PubSubPersistenceManager.getPublishedItem(this, itemID);
+        return item;
     }
 
     @Override
@@ -359,8 +377,21 @@ public class LeafNode extends Node {
     }
 
     @Override
-    public synchronized List<PublishedItem> getPublishedItems(int recentItems) {
+    public List<PublishedItem> getPublishedItems(int recentItems) {
+        if (!isItemIndexUsed()) {
+            return loadPublishedItems(recentItems);
+        }
+        List<PublishedItem> publishedItems = getItemIndex().getRecent(
+                recentItems == -1 ? PubSubPersistenceManager.MAX_ROWS_FETCH : recentItems);
+        if (JiveGlobals.getBooleanProperty("xmpp.pubsub.order.descending", false)) {
+            Collections.reverse(publishedItems);
+        }
+        return publishedItems;
+    }
+
+    private List<PublishedItem> loadPublishedItems(int recentItems) {
         List<PublishedItem> publishedItems = PubSubPersistenceManager.getPublishedItems(this, recentItems);
+        PublishedItem lastPublished = getLastPublishedItem();
         if (lastPublished != null) {
             // The persistent items may not contain the last item, if it wasn't persisted anymore (e.g. if node configuration changed).
             // Therefore check, if the last item has been persisted.
@@ -385,11 +416,47 @@ public class LeafNode extends Node {
     }
 
     @Override
-	public synchronized PublishedItem getLastPublishedItem() {
-    	if (lastPublished == null){
-    		lastPublished = PubSubPersistenceManager.getLastPublishedItem(this);
-    	}
-    	return lastPublished;
+	public PublishedItem getLastPublishedItem() {
+    	return getItemIndex().getLast();
+    }
+
+    /**
+     * Returns the index of the items published to this node. The index is loaded from the
+     * database the first time that it is used.
+     *
+     * @return the index of the items published to this node.
+     */
+    private PublishedItemIndex getItemIndex() {
+        synchronized (itemIndex) {
+            if (!itemIndex.isLoaded()) {
+                PubSubPersistenceManager.flushPendingItems(this);
+                itemIndex.load(PubSubPersistenceManager.loadPublishedItems(this, itemIndex.getCapacity()));
+            }
+        }
+        return itemIndex;
+    }
+
+    /**
+     * Returns true if the published items are read from the index. When running in a
+     * cluster the items published on other cluster nodes are read from the database.
+     *
+     * @return true if the published items are read from the index.
+     */
+    private boolean isItemIndexUsed() {
+        return !ClusterManager.isClusteringEnabled();
+    }
+
+    /**
+     * Returns the max number of items kept in the index. Nodes that do not persist
+     * items only keep the last published item.
+     *
+     * @return the max number of items kept in the index.
+     */
+    private int getItemIndexCapacity() {
+        if (!persistPublishedItems) {
+            return 1;
+        }
+        return maxPublishedItems == -1 ? PubSubPersistenceManager.MAX_ROWS_FETCH : maxPublishedItems;
     }
 
     /**
@@ -408,10 +475,12 @@ public class LeafNode extends Node {
 
     void setPersistPublishedItems(boolean persistPublishedItems) {
         this.persistPublishedItems = persistPublishedItems;
+        itemIndex.setCapacity(getItemIndexCapacity());
     }
 
     void setMaxPublishedItems(int maxPublishedItems) {
         this.maxPublishedItems = maxPublishedItems;
+        itemIndex.setCapacity(getItemIndexCapacity());
     }
 
     void setSendItemSubscribe(boolean sendItemSubscribe) {
@@ -425,6 +494,7 @@ public class LeafNode extends Node {
      */
     public void purge() {
         PubSubPersistenceManager.purgeNode(this);
+        itemIndex.purge();
         // Broadcast purge notification to subscribers
         // Build packet to broadcast to subscribers
         Message message = new Message();
@@ -55,6 +55,8 @@ import org.xmpp.packet.Message;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.PacketError.Condition;
 import org.xmpp.packet.Presence;
+import org.xmpp.resultsetmanagement.ResultSet;
+import org.xmpp.resultsetmanagement.ResultSetImpl;
 
 /**
  * A PubSubEngine is responsible for handling packets sent to a pub-sub service.
@@ -1101,8 +1103,29 @@ public class PubSubEngine {
             }
         }
 
+        // Apply the result set management directives (if any) to the requested items
+        Element rsmElement = iq.getChildElement().element(
+                QName.get("set", ResultSet.NAMESPACE_RESULT_SET_MANAGEMENT));
+        Element setElement = null;
+        if (rsmElement != null && !items.isEmpty()) {
+            if (!ResultSet.isValidRSMRequest(rsmElement)) {
+                sendErrorPacket(iq, PacketError.Condition.bad_request, null);
+                return;
+            }
+            ResultSet<PublishedItem> resultSet = new ResultSetImpl<PublishedItem>(items);
+            try {
+                items = resultSet.applyRSMDirectives(rsmElement);
+            }
+            catch (NullPointerException e) {
+                // The item referred by the 'after' or 'before' element does not exist
+                sendErrorPacket(iq, PacketError.Condition.item_not_found, null);
+                return;
+            }
+            setElement = resultSet.generateSetElementFromResults(items);
+        }
+
         // Send items to the user
-        leafNode.sendPublishedItems(iq, items, forceToIncludePayload);
+        leafNode.sendPublishedItems(iq, items, forceToIncludePayload, setElement);
     }
 
     private void createNode(PubSubService service, IQ iq, Element childElement, Element createElement) {
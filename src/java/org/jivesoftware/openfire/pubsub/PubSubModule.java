@@ -58,6 +58,7 @@ import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.Presence;
+import org.xmpp.resultsetmanagement.ResultSet;
 
 /**
  * Module that implements JEP-60: Publish-Subscribe. By default node collections and
@@ -606,6 +607,8 @@ public class PubSubModule extends BasicModule implements ServerItemsProvider, Di
             features.add("http://jabber.org/protocol/pubsub#retrieve-default");
             // Item retrieval is supported
             features.add("http://jabber.org/protocol/pubsub#retrieve-items");
+            // Paging of retrieved items is supported
+            features.add(ResultSet.NAMESPACE_RESULT_SET_MANAGEMENT);
             // Retrieval of current subscriptions is supported.
             features.add("http://jabber.org/protocol/pubsub#retrieve-subscriptions");
             // Subscribing and unsubscribing are supported
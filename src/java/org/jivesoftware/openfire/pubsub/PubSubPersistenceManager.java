@@ -35,6 +35,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.StringTokenizer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
 import org.jivesoftware.database.DbConnectionManager;
@@ -232,10 +234,16 @@ public class PubSubPersistenceManager {
      */
 	private static final int MAX_ITEMS_FLUSH = JiveGlobals.getIntProperty("xmpp.pubsub.flush.max", 1000);
 
+    /**
+     * Number of queues of the write cache. The items of a node are always queued
+     * in the same queue so that they are written to the database in order.
+     */
+    private static final int FLUSH_STRIPES = Math.max(1, JiveGlobals.getIntProperty("xmpp.pubsub.flush.stripes", 16));
+
     /**
      * Maximum number of rows that will be fetched from the published items table.
      */
-    private static final int MAX_ROWS_FETCH = JiveGlobals.getIntProperty("xmpp.pubsub.fetch.max", 2000);
+    static final int MAX_ROWS_FETCH = JiveGlobals.getIntProperty("xmpp.pubsub.fetch.max", 2000);
 
     /**
      * Number of retry attempts we will make trying to write an item to the DB
@@ -243,21 +251,21 @@ public class PubSubPersistenceManager {
 	private static final int MAX_ITEM_RETRY = JiveGlobals.getIntProperty("xmpp.pubsub.item.retry", 1);
     
     /**
-     * Queue that holds the (wrapped) items that need to be added to the database.
+     * Queues of the write cache. Each node is mapped to one of the queues (see
+     * {@link #getPendingItems(String, String)}) so that publishing and flushing
+     * items of different nodes does not contend on a single lock.
      */
-    private static LinkedList<RetryWrapper> itemsToAdd = new LinkedList<RetryWrapper>();
+    private static final PendingItems[] pendingItems = new PendingItems[FLUSH_STRIPES];
 
     /**
-     * Queue that holds the items that need to be deleted from the database.
+     * Number of published items in the write cache (all queues).
      */
-    private static LinkedList<PublishedItem> itemsToDelete = new LinkedList<PublishedItem>();
+    private static final AtomicInteger pendingCount = new AtomicInteger(0);
 
     /**
-     * Keeps reference to published items that haven't been persisted yet so they 
-     * can be removed before being deleted. Note these items are wrapped via the 
-     * RetryWrapper to allow multiple persistence attempts when needed.
+     * True while a flush triggered by a full write cache is waiting to be executed.
      */
-    private static final HashMap<String, LinkedListNode<RetryWrapper>> itemsPending = new HashMap<String, LinkedListNode<RetryWrapper>>();
+    private static final AtomicBoolean flushSubmitted = new AtomicBoolean(false);
     
     /**
      * Cache name for recently accessed published items.
@@ -270,6 +278,9 @@ public class PubSubPersistenceManager {
     private static final Cache<String, PublishedItem> itemCache = CacheFactory.createCache(ITEM_CACHE);
     
     static {
+        for (int i = 0; i < pendingItems.length; i++) {
+            pendingItems[i] = new PendingItems();
+        }
     	try {
         	if (MAX_ITEMS_FLUSH > 0) {
         		TaskEngine.getInstance().schedule(new TimerTask() {
@@ -1165,23 +1176,87 @@ public class PubSubPersistenceManager {
 		String itemKey = item.getItemKey();
 		itemCache.put(itemKey, item);
 		log.debug("Added new (inbound) item to cache");
-        synchronized (itemsPending) {
-    		LinkedListNode<RetryWrapper> itemToReplace = itemsPending.remove(itemKey);
+		PendingItems pending = getPendingItems(item);
+        synchronized (pending) {
+    		String pendingKey = getPendingKey(item);
+    		LinkedListNode<RetryWrapper> itemToReplace = pending.itemsPending.remove(pendingKey);
     		if (itemToReplace != null) {
     			itemToReplace.remove(); // remove duplicate from itemsToAdd linked list
     		}
+    		else {
+    			pendingCount.incrementAndGet();
+    		}
     		LinkedListNode<RetryWrapper> listNode = firstPass ? 
-    							itemsToAdd.addLast(wrapper) : 
-    							itemsToAdd.addFirst(wrapper);
-    		itemsPending.put(itemKey, listNode);
+    							pending.itemsToAdd.addLast(wrapper) : 
+    							pending.itemsToAdd.addFirst(wrapper);
+    		pending.itemsPending.put(pendingKey, listNode);
         }
         // skip the flush step if this is a retry attempt
-		if (firstPass && itemsPending.size() > MAX_ITEMS_FLUSH) {
+		if (firstPass && pendingCount.get() > MAX_ITEMS_FLUSH && flushSubmitted.compareAndSet(false, true)) {
 			TaskEngine.getInstance().submit(new Runnable() {
-				public void run() { flushPendingItems(false); }
+				public void run() {
+					flushSubmitted.set(false);
+					flushPendingItems(false);
+				}
 			});
 		}
     }
+
+    /**
+     * Returns the queue of the write cache that holds the pending items of a node.
+     *
+     * @param serviceID the ID of the service hosting the node.
+     * @param nodeID the ID of the node.
+     * @return the queue that holds the pending items of the node.
+     */
+    private static PendingItems getPendingItems(String serviceID, String nodeID) {
+        int hash = 31 * serviceID.hashCode() + nodeID.hashCode();
+        return pendingItems[(hash & 0x7fffffff) % pendingItems.length];
+    }
+
+    private static PendingItems getPendingItems(PublishedItem item) {
+        return getPendingItems(item.getNode().getService().getServiceID(), item.getNodeID());
+    }
+
+    /**
+     * Returns the key of a published item in the write cache. Unlike the item key, the
+     * pending key includes the service ID, since nodes of different PEP services often
+     * share the same node ID and item IDs.
+     *
+     * @param item the published item.
+     * @return the key of the item in the write cache.
+     */
+    private static String getPendingKey(PublishedItem item) {
+        return item.getNode().getService().getServiceID() + ":" + item.getItemKey();
+    }
+
+    /**
+     * Queue of the write cache. Holds the items of the nodes mapped to this queue that
+     * need to be added to and deleted from the database. The lists are guarded by the
+     * queue itself, while writing the items of the queue to the database is guarded by
+     * its flush lock so that the items of a node are written in order.
+     */
+    private static class PendingItems {
+
+        /**
+         * Queue that holds the (wrapped) items that need to be added to the database.
+         */
+        private LinkedList<RetryWrapper> itemsToAdd = new LinkedList<RetryWrapper>();
+
+        /**
+         * Queue that holds the items that need to be deleted from the database.
+         */
+        private LinkedList<PublishedItem> itemsToDelete = new LinkedList<PublishedItem>();
+
+        /**
+         * Keeps reference to published items that haven't been persisted yet so they
+         * can be removed before being deleted. Note these items are wrapped via the
+         * RetryWrapper to allow multiple persistence attempts when needed.
+         */
+        private final HashMap<String, LinkedListNode<RetryWrapper>> itemsPending = new HashMap<String, LinkedListNode<RetryWrapper>>();
+
+        private final Object flushLock = new Object();
+    }
     
     /**
      * This class is used internally to wrap PublishedItems. It adds
@@ -1215,10 +1290,51 @@ public class PubSubPersistenceManager {
             CacheFactory.doSynchronousClusterTask(new FlushTask(), false);
         }
 
-		if (itemsToAdd.getFirst() == null && itemsToDelete.getFirst() == null) {
+		for (PendingItems pending : pendingItems) {
+			flushPendingItems(pending);
+		}
+	}
+
+    /**
+     * Flush the pending items of a node to the database. Items of other nodes that share
+     * the same queue of the write cache are flushed too. When running in a cluster the
+     * pending items of all the nodes are flushed on every cluster member.
+     *
+     * @param node the node whose pending items are to be flushed.
+     */
+    static void flushPendingItems(LeafNode node)
+    {
+        if (ClusterManager.isClusteringEnabled()) {
+            flushPendingItems(true);
+        }
+        else {
+            flushPendingItems(getPendingItems(node.getService().getServiceID(), node.getNodeID()));
+        }
+    }
+
+    /**
+     * Flush one queue of the write cache.
+     * @param pending The queue to flush
+     */
+    private static void flushPendingItems(PendingItems pending)
+    {
+		if (pending.itemsToAdd.getFirst() == null && pending.itemsToDelete.getFirst() == null) {
         	return;	 // nothing to do for this cluster member
         }
-        
+
+    	// Only one thread at a time writes the items of a queue, so that items of
+    	// the same node are not written out of order
+    	synchronized (pending.flushLock) {
+    		writePendingItems(pending);
+    	}
+	}
+
+    /**
+     * Swap the lists of the given queue and write their items to the database.
+     * @param pending The queue to write
+     */
+	private static void writePendingItems(PendingItems pending)
+	{
 		Connection con = null;
 		boolean rollback = false;
     	LinkedList<RetryWrapper> addList = null;
@@ -1226,28 +1342,33 @@ public class PubSubPersistenceManager {
 
     	// Swap pending items so we can parse and save the contents from this point in time
     	// while not blocking new entries from being cached.
-    	synchronized(itemsPending) 
+    	synchronized(pending) 
     	{
-    		addList = itemsToAdd;
-    		delList = itemsToDelete;
+    		addList = pending.itemsToAdd;
+    		delList = pending.itemsToDelete;
 
-    		itemsToAdd = new LinkedList<RetryWrapper>();
-    		itemsToDelete = new LinkedList<PublishedItem>();
+    		pending.itemsToAdd = new LinkedList<RetryWrapper>();
+    		pending.itemsToDelete = new LinkedList<PublishedItem>();
     		
     		// Ensure pending items are available via the item read cache;
     		// this allows the item(s) to be fetched by other request threads
     		// while being written to the DB from this thread
     		int copied = 0;
-    		for (String key : itemsPending.keySet()) {
-    			if (!itemCache.containsKey(key)) {
-    				itemCache.put(key, (((RetryWrapper)itemsPending.get(key).object)).get());
+    		for (LinkedListNode<RetryWrapper> pendingNode : pending.itemsPending.values()) {
+    			PublishedItem item = pendingNode.object.get();
+    			if (!itemCache.containsKey(item.getItemKey())) {
+    				itemCache.put(item.getItemKey(), item);
     				copied++;
     			}
     		}
     		if (log.isDebugEnabled() && copied > 0) {
     			log.debug("Added " + copied + " pending items to published item cache");
     		}
-    		itemsPending.clear();
+    		if (log.isDebugEnabled()) {
+    			log.debug("Flush " + pending.itemsPending.size() + " pending items to database");
+    		}
+    		pendingCount.addAndGet(-pending.itemsPending.size());
+    		pending.itemsPending.clear();
     	}
 
     	// Note that we now make multiple attempts to write cached items to the DB:
@@ -1290,10 +1411,6 @@ public class PubSubPersistenceManager {
         
         // is there anything to do?
         if ((addItem == null) && (delItem == null)) { return; }
-        
-    	if (log.isDebugEnabled()) {
-    		log.debug("Flush " + itemsPending.size() + " pending items to database");
-    	}
 
         // ensure there are no duplicates by deleting before adding
         if (addItem != null) {
@@ -1401,12 +1518,15 @@ public class PubSubPersistenceManager {
     public static void removePublishedItem(PublishedItem item) {
     	String itemKey = item.getItemKey();
         itemCache.remove(itemKey);
-        synchronized (itemsPending)
+        PendingItems pending = getPendingItems(item);
+        synchronized (pending)
     	{
-    		itemsToDelete.addLast(item);
-			LinkedListNode<RetryWrapper> itemToAdd = itemsPending.remove(itemKey);
-			if (itemToAdd != null)
+    		pending.itemsToDelete.addLast(item);
+			LinkedListNode<RetryWrapper> itemToAdd = pending.itemsPending.remove(getPendingKey(item));
+			if (itemToAdd != null) {
 				itemToAdd.remove();  // drop from itemsToAdd linked list
+				pendingCount.decrementAndGet();
+			}
 		}
     }
 
@@ -1581,9 +1701,6 @@ public class PubSubPersistenceManager {
         } finally {
         	itemLock.unlock();
         }
-    	Connection con = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
         int max = MAX_ROWS_FETCH;
         int maxPublished = node.getMaxPublishedItems();
 
@@ -1593,9 +1710,27 @@ public class PubSubPersistenceManager {
         else if (maxPublished != -1)
         	max = Math.min(MAX_ROWS_FETCH, maxPublished);
 
-        // We don't know how many items are in the db, so we will start with an allocation of 500
-		java.util.LinkedList<PublishedItem> results = new java.util.LinkedList<PublishedItem>();
+        List<PublishedItem> results = loadPublishedItems(node, max);
 		boolean descending = JiveGlobals.getBooleanProperty("xmpp.pubsub.order.descending", false);
+		if (descending) {
+			Collections.reverse(results);
+		}
+        return results;
+    }
+
+    /**
+     * Loads the most recent items of the specified node from the database. Items in the
+     * write cache are not flushed before loading, see {@link #flushPendingItems(LeafNode)}.
+     *
+     * @param node the leaf node to load its published items.
+     * @param max the max number of items to load.
+     * @return the loaded items, from the oldest to the most recent item.
+     */
+    static List<PublishedItem> loadPublishedItems(LeafNode node, int max) {
+    	Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+		java.util.LinkedList<PublishedItem> results = new java.util.LinkedList<PublishedItem>();
 
 		try
 		{
@@ -1620,10 +1755,7 @@ public class PubSubPersistenceManager {
                 	item.setPayloadXML(rs.getString(4));
                 }
                 // Add the published item to the node
-				if (descending)
-					results.add(item);
-				else
-					results.addFirst(item);
+				results.addFirst(item);
                 counter++;
             }
         }
@@ -1757,18 +1889,23 @@ public class PubSubPersistenceManager {
 
 			// Delete all the entries from the itemsToAdd list and pending map
 			// that match this node.
-			synchronized (itemsPending)
+			String serviceID = leafNode.getService().getServiceID();
+			PendingItems pending = getPendingItems(serviceID, leafNode.getNodeID());
+			synchronized (pending)
 			{
-				Iterator<Map.Entry<String, LinkedListNode<RetryWrapper>>> pendingIt = itemsPending.entrySet().iterator();
+				Iterator<Map.Entry<String, LinkedListNode<RetryWrapper>>> pendingIt = pending.itemsPending.entrySet().iterator();
 
 				while (pendingIt.hasNext())
 				{
 					LinkedListNode<RetryWrapper> itemNode = pendingIt.next().getValue();
+					PublishedItem item = itemNode.object.get();
 
-					if (itemNode.object.get().getNodeID().equals(leafNode.getNodeID()))
+					if (item.getNodeID().equals(leafNode.getNodeID()) &&
+							item.getNode().getService().getServiceID().equals(serviceID))
 					{
 						itemNode.remove();
 						pendingIt.remove();
+						pendingCount.decrementAndGet();
 					}
 				}
 			}
@@ -33,6 +33,7 @@ import org.jivesoftware.openfire.pep.PEPServiceManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
+import org.xmpp.resultsetmanagement.Result;
 
 /**
  * A published item to a node. Once an item was published to a node, node subscribers will be
@@ -46,7 +47,7 @@ import org.xmpp.packet.JID;
  *
  * @author Matt Tucker
  */
-public class PublishedItem implements Serializable {
+public class PublishedItem implements Serializable, Result {
 
     private static final Logger log = LoggerFactory.getLogger(PublishedItem.class);
 
@@ -288,6 +289,16 @@ public class PublishedItem implements Serializable {
     	return getItemKey(nodeId,id);
     }
 
+    /**
+     * Returns the ID of the item, which identifies the item in a result set
+     * of items of the same node.
+     *
+     * @see org.xmpp.resultsetmanagement.Result#getUID()
+     */
+    public String getUID() {
+        return id;
+    }
+
 	/**
      * Returns a string that uniquely identifies this published item
      * in the following format: <i>nodeId:itemId</i>
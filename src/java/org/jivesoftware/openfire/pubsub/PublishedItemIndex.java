@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * In-memory index of the items published to a {@link LeafNode}. Items are kept in the
+ * order that they were published and can be looked up by ID. The index holds at most
+ * <tt>capacity</tt> items; the oldest items are dropped when that number is exceeded.<p>
+ *
+ * The index is loaded from the database the first time that it is used. From then on
+ * the node keeps it up to date as items are published, retracted and purged so that
+ * reading items does not need to hit the database.
+ */
+class PublishedItemIndex {
+
+    /**
+     * Items of the node by ID, from the oldest to the most recently published item.
+     */
+    private final LinkedHashMap<String, PublishedItem> items = new LinkedHashMap<String, PublishedItem>();
+    private PublishedItem last;
+    private int capacity;
+    private boolean loaded = false;
+
+    PublishedItemIndex(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Returns the max number of items in the index.
+     *
+     * @return the max number of items in the index.
+     */
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the max number of items in the index. The oldest items are dropped if the index
+     * holds more items than the new capacity.
+     *
+     * @param capacity the max number of items in the index.
+     */
+    synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        trim();
+    }
+
+    /**
+     * Returns true if the items stored in the database were loaded into the index.
+     *
+     * @return true if the index was loaded.
+     */
+    synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Loads the items stored in the database. Items that were added to the index before
+     * it was loaded are newer than the stored items and stay the most recent ones.
+     *
+     * @param storedItems the stored items, from the oldest to the most recent item.
+     */
+    synchronized void load(List<PublishedItem> storedItems) {
+        List<PublishedItem> added = new ArrayList<PublishedItem>(items.values());
+        items.clear();
+        for (PublishedItem item : storedItems) {
+            items.put(item.getID(), item);
+        }
+        for (PublishedItem item : added) {
+            items.remove(item.getID());
+            items.put(item.getID(), item);
+        }
+        trim();
+        last = findLast();
+        loaded = true;
+    }
+
+    /**
+     * Adds a newly published item to the index. An item with the same ID is replaced and
+     * the new item becomes the most recent item.
+     *
+     * @param item the published item.
+     */
+    synchronized void add(PublishedItem item) {
+        items.remove(item.getID());
+        items.put(item.getID(), item);
+        last = item;
+        trim();
+    }
+
+    /**
+     * Returns the item with the specified ID or <tt>null</tt> if the index has no such item.
+     *
+     * @param itemID the ID of the item.
+     * @return the item or <tt>null</tt> if the index has no such item.
+     */
+    synchronized PublishedItem get(String itemID) {
+        return items.get(itemID);
+    }
+
+    /**
+     * Returns the most recently published item or <tt>null</tt> if the index is empty.
+     *
+     * @return the most recently published item or <tt>null</tt> if the index is empty.
+     */
+    synchronized PublishedItem getLast() {
+        return last;
+    }
+
+    /**
+     * Returns the most recently published items.
+     *
+     * @param max the max number of items to return.
+     * @return the items, from the oldest to the most recent item.
+     */
+    synchronized List<PublishedItem> getRecent(int max) {
+        int skip = items.size() - Math.max(0, max);
+        List<PublishedItem> recent = new ArrayList<PublishedItem>(Math.min(items.size(), Math.max(0, max)));
+        for (PublishedItem item : items.values()) {
+            if (skip-- <= 0) {
+                recent.add(item);
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * Removes the item with the specified ID from the index.
+     *
+     * @param itemID the ID of the item.
+     * @return true if the index had such item.
+     */
+    synchronized boolean remove(String itemID) {
+        PublishedItem removed = items.remove(itemID);
+        if (removed == null) {
+            return false;
+        }
+        if (removed == last) {
+            last = findLast();
+        }
+        return true;
+    }
+
+    /**
+     * Removes all the items from the index except the most recently published item.
+     */
+    synchronized void purge() {
+        items.clear();
+        if (last != null) {
+            items.put(last.getID(), last);
+        }
+    }
+
+    synchronized int size() {
+        return items.size();
+    }
+
+    private PublishedItem findLast() {
+        PublishedItem item = null;
+        for (PublishedItem each : items.values()) {
+            item = each;
+        }
+        return item;
+    }
+
+    private void trim() {
+        Iterator<PublishedItem> it = items.values().iterator();
+        for (int excess = items.size() - capacity; excess > 0; excess--) {
+            it.next();
+            it.remove();
+        }
+    }
+}
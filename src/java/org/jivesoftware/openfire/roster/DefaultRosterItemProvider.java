@@ -25,11 +25,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.SequenceManager;
@@ -72,12 +70,10 @@ public class DefaultRosterItemProvider implements RosterItemProvider {
             "SELECT DISTINCT username from ofRoster WHERE jid=?";
     private static final String COUNT_ROSTER_ITEMS =
             "SELECT COUNT(rosterID) FROM ofRoster WHERE username=?";
-     private static final String LOAD_ROSTER =
-             "SELECT jid, rosterID, sub, ask, recv, nick FROM ofRoster WHERE username=?";
-    private static final String LOAD_ROSTER_ITEM_GROUPS =
-             "SELECT ofRosterGroups.rosterID,groupName FROM ofRosterGroups " +
-             "INNER JOIN ofRoster ON ofRosterGroups.rosterID = ofRoster.rosterID " +
-             "WHERE username=? ORDER BY ofRosterGroups.rosterID, rank";
+    private static final String LOAD_ROSTER =
+            "SELECT ofRoster.rosterID, jid, sub, ask, recv, nick, groupName FROM ofRoster " +
+            "LEFT OUTER JOIN ofRosterGroups ON ofRoster.rosterID = ofRosterGroups.rosterID " +
+            "WHERE username=? ORDER BY ofRoster.rosterID, rank";
 
     /* (non-Javadoc)
 	 * @see org.jivesoftware.openfire.roster.RosterItemProvider#createItem(java.lang.String, org.jivesoftware.openfire.roster.RosterItem)
@@ -235,55 +231,63 @@ public class DefaultRosterItemProvider implements RosterItemProvider {
 	 * @see org.jivesoftware.openfire.roster.RosterItemProvider#getItems(java.lang.String)
 	 */
 	public Iterator<RosterItem> getItems(String username) {
-        LinkedList<RosterItem> itemList = new LinkedList<RosterItem>();
-        Map<Long, RosterItem> itemsByID = new HashMap<Long, RosterItem>();
+        List<RosterItem> itemList = new LinkedList<RosterItem>();
         Connection con = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            itemList = loadItems(con, username);
+        }
+        catch (SQLException e) {
+            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(con);
+        }
+        return itemList.iterator();
+    }
+
+    /**
+     * Loads all the contacts in the roster of a user and their groups with a single query.
+     * Each contact has one row per group (or a single row without group), ordered by contact.
+     *
+     * @param con the database connection to use for the operation.
+     * @param username the username of the owner of the roster.
+     * @return the contacts of the roster with their groups in the order of their rank.
+     * @throws SQLException if an SQL exception occurs.
+     */
+    static List<RosterItem> loadItems(Connection con, String username) throws SQLException {
+        List<RosterItem> itemList = new LinkedList<RosterItem>();
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         try {
-            // Load all the contacts in the roster
-            con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(LOAD_ROSTER);
             pstmt.setString(1, username);
             rs = pstmt.executeQuery();
+            RosterItem item = null;
             while (rs.next()) {
-                // Create a new RosterItem (ie. user contact) from the stored information
-                RosterItem item = new RosterItem(rs.getLong(2),
-                        new JID(rs.getString(1)),
-                        RosterItem.SubType.getTypeFromInt(rs.getInt(3)),
-                        RosterItem.AskType.getTypeFromInt(rs.getInt(4)),
-                        RosterItem.RecvType.getTypeFromInt(rs.getInt(5)),
-                        rs.getString(6),
-                        null);
-                // Add the loaded RosterItem (ie. user contact) to the result
-                itemList.add(item);
-                itemsByID.put(item.getID(), item);
-            }
-            // Close the statement and result set
-            DbConnectionManager.fastcloseStmt(rs, pstmt);
-            // Set null to pstmt to be sure that it's not closed twice. It seems that
-            // Sybase driver is raising an error when trying to close an already closed statement.
-            // it2000 comment: TODO interesting, that's the only place with the sybase fix
-            // it2000 comment: one should move this in closeStatement()
-            pstmt = null;
-
-            // Load the groups for the loaded contact
-            if (!itemList.isEmpty()) {
-            	pstmt = con.prepareStatement(LOAD_ROSTER_ITEM_GROUPS);
-            	pstmt.setString(1, username);
-                rs = pstmt.executeQuery();
-                while (rs.next()) {
-                    itemsByID.get(rs.getLong(1)).getGroups().add(rs.getString(2));
+                long rosterID = rs.getLong(1);
+                if (item == null || item.getID() != rosterID) {
+                    // Create a new RosterItem (ie. user contact) from the stored information
+                    item = new RosterItem(rosterID,
+                            new JID(rs.getString(2)),
+                            RosterItem.SubType.getTypeFromInt(rs.getInt(3)),
+                            RosterItem.AskType.getTypeFromInt(rs.getInt(4)),
+                            RosterItem.RecvType.getTypeFromInt(rs.getInt(5)),
+                            rs.getString(6),
+                            null);
+                    // Add the loaded RosterItem (ie. user contact) to the result
+                    itemList.add(item);
+                }
+                String groupName = rs.getString(7);
+                if (groupName != null) {
+                    item.getGroups().add(groupName);
                 }
             }
         }
-        catch (SQLException e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-        }
         finally {
-            DbConnectionManager.closeConnection(rs, pstmt, con);
+            DbConnectionManager.closeStatement(rs, pstmt);
         }
-        return itemList.iterator();
+        return itemList;
     }
 
     /**
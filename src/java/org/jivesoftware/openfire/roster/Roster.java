@@ -33,8 +33,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jivesoftware.database.JiveID;
+import org.jivesoftware.openfire.JIDCache;
 import org.jivesoftware.openfire.PresenceManager;
 import org.jivesoftware.openfire.RoutingTable;
 import org.jivesoftware.openfire.SessionManager;
@@ -42,6 +44,7 @@ import org.jivesoftware.openfire.SharedGroupException;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.group.Group;
 import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.nio.PacketTemplate;
 import org.jivesoftware.openfire.privacy.PrivacyList;
 import org.jivesoftware.openfire.privacy.PrivacyListManager;
 import org.jivesoftware.openfire.session.ClientSession;
@@ -95,6 +98,15 @@ public class Roster implements Cacheable, Externalizable {
      * Note: Used only for shared groups logic.
      */
     private RosterManager rosterManager;
+    /**
+     * Number of times that the items of the roster were modified. Used for detecting that
+     * the presence targets need to be rebuilt.
+     */
+    private final AtomicInteger modifications = new AtomicInteger();
+    /**
+     * Contacts that receive the presence of the user, as of the last presence broadcast.
+     */
+    private volatile PresenceTargets presenceTargets;
 
 
     /**
@@ -362,6 +374,7 @@ public class Roster implements Cacheable, Externalizable {
         }
 
         rosterItems.put(user.toBareJID(), rosterItem);
+        itemsModified();
 
         // Fire event indicating that a roster item has been added
         RosterEventDispatcher.contactAdded(this, rosterItem);
@@ -383,6 +396,8 @@ public class Roster implements Cacheable, Externalizable {
             // Fire event indicating that a roster item has been updated
             RosterEventDispatcher.contactUpdated(this, item);
         }
+        // The subscription of the item may have changed
+        itemsModified();
         if (rosterItems.putIfAbsent(item.getJid().toBareJID(), item) == null) {
             rosterItems.remove(item.getJid().toBareJID());
             if (item.getSubStatus() != RosterItem.SUB_NONE) {
@@ -470,6 +485,7 @@ public class Roster implements Cacheable, Externalizable {
 
             // If removing the user was successful, remove the user from the subscriber list:
             RosterItem item = rosterItems.remove(user.toBareJID());
+            itemsModified();
 
             if (item != null) {
                 // Delete the item from the provider if the item is persistent. RosteItems that only
@@ -495,6 +511,7 @@ public class Roster implements Cacheable, Externalizable {
             RosterItem item = getImplicitRosterItem(user);
             if (item != null) {
                 implicitFrom.remove(user.toBareJID());
+                itemsModified();
                 // If the contact being removed is not a local user then ACK unsubscription
                 if (!server.isLocal(user)) {
                     Presence presence = new Presence();
@@ -595,42 +612,20 @@ public class Roster implements Cacheable, Externalizable {
             // No privacy list was found (based on the session) so check if there is a default list
             list = PrivacyListManager.getInstance().getDefaultPrivacyList(username);
         }
-        // Broadcast presence to subscribed entities
-        for (RosterItem item : rosterItems.values()) {
-            if (item.getSubStatus() == RosterItem.SUB_BOTH || item.getSubStatus() == RosterItem.SUB_FROM) {
-                packet.setTo(item.getJid());
-                if (list != null && list.shouldBlockPacket(packet)) {
-                    // Outgoing presence notifications are blocked for this contact
-                    continue;
-                }
-                JID searchNode = new JID(item.getJid().getNode(), item.getJid().getDomain(), null, true);
-                for (JID jid : routingTable.getRoutes(searchNode, null)) {
-                    try {
-                        routingTable.routePacket(jid, packet, false);
-                    } catch (Exception e) {
-                        // Theoretically only happens if session has been closed.
-                        Log.debug(e.getMessage(), e);
-                    }
-                }
-            }
-        }
-        // Broadcast presence to shared contacts whose subscription status is FROM
-        for (String contact : implicitFrom.keySet()) {
-            if (contact.contains("@")) {
-                String node = contact.substring(0, contact.lastIndexOf("@"));
-                String domain = contact.substring(contact.lastIndexOf("@") + 1);
-                node = JID.escapeNode(node);
-                contact = new JID(node, domain, null).toBareJID();
-            }
-
+        // Serialize the presence only once for all the local recipients
+        PacketTemplate template = null;
+        // Broadcast presence to subscribed entities and to shared contacts whose
+        // subscription status is FROM
+        PresenceTargets targets = getPresenceTargets();
+        JID[] contacts = list == null ? targets.contacts : targets.getAllowedContacts(list, packet);
+        for (JID contact : contacts) {
             packet.setTo(contact);
-            if (list != null && list.shouldBlockPacket(packet)) {
-                // Outgoing presence notifications are blocked for this contact
-                continue;
-            }
-            for (JID jid : routingTable.getRoutes(new JID(contact), null)) {
+            for (JID jid : routingTable.getRoutes(contact, null)) {
+                if (template == null) {
+                    template = new PacketTemplate(packet);
+                }
                 try {
-                    routingTable.routePacket(jid, packet, false);
+                    routingTable.routePacket(jid, packet, false, template);
                 } catch (Exception e) {
                     // Theoretically only happens if session has been closed.
                     Log.debug(e.getMessage(), e);
@@ -643,6 +638,48 @@ public class Roster implements Cacheable, Externalizable {
         }
     }
 
+    /**
+     * Returns the contacts that receive the presence of the user. The contacts are
+     * collected again if the roster was modified since they were last collected.
+     *
+     * @return the contacts that receive the presence of the user.
+     */
+    private PresenceTargets getPresenceTargets() {
+        PresenceTargets targets = presenceTargets;
+        int version = modifications.get();
+        if (targets != null && targets.version == version) {
+            return targets;
+        }
+        List<JID> contacts = new ArrayList<JID>(rosterItems.size() + implicitFrom.size());
+        for (RosterItem item : rosterItems.values()) {
+            if (item.getSubStatus() == RosterItem.SUB_BOTH || item.getSubStatus() == RosterItem.SUB_FROM) {
+                contacts.add(JIDCache.getBare(item.getJid()));
+            }
+        }
+        for (String contact : implicitFrom.keySet()) {
+            if (contact.contains("@")) {
+                String node = contact.substring(0, contact.lastIndexOf("@"));
+                String domain = contact.substring(contact.lastIndexOf("@") + 1);
+                node = JID.escapeNode(node);
+                contacts.add(JIDCache.get(node, domain, null));
+            }
+            else {
+                contacts.add(JIDCache.get(contact));
+            }
+        }
+        targets = new PresenceTargets(version, contacts.toArray(new JID[contacts.size()]));
+        presenceTargets = targets;
+        return targets;
+    }
+
+    /**
+     * Invalidates the contacts that receive the presence of the user. Must be invoked
+     * after the items of the roster (or their subscription status) were modified.
+     */
+    private void itemsModified() {
+        modifications.incrementAndGet();
+    }
+
     /**
      * Returns the list of users that belong ONLY to a shared group of this user. If the contact
      * belongs to the personal roster and a shared group then it wont' be included in the answer.
@@ -847,6 +884,7 @@ public class Roster implements Cacheable, Externalizable {
                 probePresence(item.getJid());
             }
         }
+        itemsModified();
         if (newItem) {
             // Fire event indicating that a roster item has been added
             RosterEventDispatcher.contactAdded(this, item);
@@ -960,6 +998,7 @@ public class Roster implements Cacheable, Externalizable {
                 probePresence(item.getJid());
             }
         }
+        itemsModified();
         if (newItem) {
             // Fire event indicating that a roster item has been added
             RosterEventDispatcher.contactAdded(this, item);
@@ -1014,6 +1053,7 @@ public class Roster implements Cacheable, Externalizable {
                         item.setSubStatus(RosterItem.SUB_TO);
                     }
                 }
+                itemsModified();
                 // Brodcast to all the user resources of the updated roster item
                 broadcast(item, false);
             }
@@ -1075,6 +1115,7 @@ public class Roster implements Cacheable, Externalizable {
                         }
                     }
                 }
+                itemsModified();
                 // Brodcast to all the user resources of the updated roster item
                 broadcast(item, false);
             }
@@ -1113,6 +1154,69 @@ public class Roster implements Cacheable, Externalizable {
         return XMPPServer.getInstance().createJID(getUsername(), null, true);
     }
 
+    /**
+     * Contacts that receive the presence of the user (i.e. contacts with a FROM or BOTH
+     * subscription and shared contacts whose subscription status is FROM). The contacts
+     * that are not blocked by a privacy list are kept for the last used version of the list.
+     */
+    private static class PresenceTargets {
+
+        final int version;
+        final JID[] contacts;
+        private volatile AllowedContacts allowed;
+
+        PresenceTargets(int version, JID[] contacts) {
+            this.version = version;
+            this.contacts = contacts;
+        }
+
+        /**
+         * Returns the contacts whose presence notifications are not blocked by the privacy
+         * list.
+         *
+         * @param list the privacy list of the user.
+         * @param packet the presence to broadcast.
+         * @return the contacts whose presence notifications are not blocked.
+         */
+        JID[] getAllowedContacts(PrivacyList list, Presence packet) {
+            // Only available and unavailable presences sent by the user are filtered the
+            // same way for all the contacts
+            boolean cacheable = (packet.getType() == null || packet.getType() == Presence.Type.unavailable) &&
+                    packet.getFrom() != null &&
+                    list.getUserJID().toBareJID().equals(packet.getFrom().toBareJID());
+            int listVersion = list.getVersion();
+            AllowedContacts cached = allowed;
+            if (cacheable && cached != null && cached.list == list && cached.listVersion == listVersion) {
+                return cached.contacts;
+            }
+            List<JID> answer = new ArrayList<JID>(contacts.length);
+            for (JID contact : contacts) {
+                packet.setTo(contact);
+                if (!list.shouldBlockPacket(packet)) {
+                    answer.add(contact);
+                }
+            }
+            JID[] allowedContacts = answer.toArray(new JID[answer.size()]);
+            if (cacheable) {
+                allowed = new AllowedContacts(list, listVersion, allowedContacts);
+            }
+            return allowedContacts;
+        }
+    }
+
+    private static class AllowedContacts {
+
+        final PrivacyList list;
+        final int listVersion;
+        final JID[] contacts;
+
+        AllowedContacts(PrivacyList list, int listVersion, JID[] contacts) {
+            this.list = list;
+            this.listVersion = listVersion;
+            this.contacts = contacts;
+        }
+    }
+
     public void writeExternal(ObjectOutput out) throws IOException {
         ExternalizableUtil.getInstance().writeSafeUTF(out, username);
         ExternalizableUtil.getInstance().writeExternalizableMap(out, rosterItems);
@@ -66,6 +66,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     private XMPPServer server;
     private RoutingTable routingTable;
     private RosterItemProvider provider;
+    private final SharedGroupIndex sharedGroupIndex = new SharedGroupIndex();
 
     /**
      * Returns true if the roster service is enabled. When disabled it is not possible to
@@ -187,27 +188,13 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
      */
     public Collection<Group> getSharedGroups(String username) {
         Collection<Group> answer = new HashSet<Group>();
-        Collection<Group> groups = GroupManager.getInstance().getSharedGroups(username);
-        for (Group group : groups) {
-            String showInRoster = group.getProperties().get("sharedRoster.showInRoster");
-            if ("onlyGroup".equals(showInRoster)) {
-                if (group.isUser(username)) {
-                    // The user belongs to the group so add the group to the answer
-                    answer.add(group);
-                }
-                else {
-                    // Check if the user belongs to a group that may see this group
-                    Collection<Group> groupList = parseGroups(group.getProperties().get("sharedRoster.groupList"));
-                    for (Group groupInList : groupList) {
-                        if (groupInList.isUser(username)) {
-                            answer.add(group);
-                        }
-                    }
-                }
+        // The index keeps the shared groups that each user may see
+        for (String groupName : sharedGroupIndex.getSharedGroupNames(username)) {
+            try {
+                answer.add(GroupManager.getInstance().getGroup(groupName));
             }
-            else if ("everybody".equals(showInRoster)) {
-                // Anyone can see this group so add the group to the answer
-                answer.add(group);
+            catch (GroupNotFoundException e) {
+                // Do nothing. The group was deleted after the index was built
             }
         }
         return answer;
@@ -262,11 +249,41 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         return answer;
     }
 
+    /**
+     * Returns the index of the shared groups used to load rosters.
+     *
+     * @return the index of the shared groups.
+     */
+    SharedGroupIndex getSharedGroupIndex() {
+        return sharedGroupIndex;
+    }
+
+    /**
+     * Updates the index of the shared groups of this cluster node and of the other cluster
+     * nodes, which do not receive the group and user events, after a group was created,
+     * modified or deleted.
+     */
+    private void sharedGroupsChanged() {
+        sharedGroupIndex.reset();
+        CacheFactory.doClusterTask(SharedGroupIndexTask.createResetTask());
+    }
+
+    private void sharedGroupUserChanged(Group group, JID user) {
+        sharedGroupIndex.userChanged(group, user);
+        CacheFactory.doClusterTask(SharedGroupIndexTask.createUserChangedTask(group, user));
+    }
+
+    private void sharedGroupUsersChanged() {
+        sharedGroupIndex.usersChanged();
+        CacheFactory.doClusterTask(SharedGroupIndexTask.createUsersChangedTask());
+    }
+
     public void groupCreated(Group group, Map params) {
-        //Do nothing
+        sharedGroupsChanged();
     }
 
     public void groupDeleting(Group group, Map params) {
+        sharedGroupsChanged();
         // Get group members
         Collection<JID> users = new HashSet<JID>(group.getMembers());
         users.addAll(group.getAdmins());
@@ -279,6 +296,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     }
 
     public void groupModified(Group group, Map params) {
+        sharedGroupsChanged();
         // Do nothing if no group property has been modified
         if ("propertyDeleted".equals(params.get("type"))) {
              return;
@@ -428,6 +446,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     public void memberAdded(Group group, Map params) {
         JID addedUser = new JID((String) params.get("member"));
+        sharedGroupUserChanged(group, addedUser);
         // Do nothing if the user was an admin that became a member
         if (group.getAdmins().contains(addedUser)) {
             return;
@@ -451,6 +470,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
             return;
         }
         JID deletedUser = new JID(member);
+        sharedGroupUserChanged(group, deletedUser);
         // Do nothing if the user is still an admin
         if (group.getAdmins().contains(deletedUser)) {
             return;
@@ -470,6 +490,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     public void adminAdded(Group group, Map params) {
         JID addedUser = new JID((String) params.get("admin"));
+        sharedGroupUserChanged(group, addedUser);
         // Do nothing if the user was a member that became an admin
         if (group.getMembers().contains(addedUser)) {
             return;
@@ -489,6 +510,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     public void adminRemoved(Group group, Map params) {
         JID deletedUser = new JID((String) params.get("admin"));
+        sharedGroupUserChanged(group, deletedUser);
         // Do nothing if the user is still a member
         if (group.getMembers().contains(deletedUser)) {
             return;
@@ -516,6 +538,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
      * @param params event parameters.
      */
     public void userCreated(User newUser, Map<String,Object> params) {
+        sharedGroupUsersChanged();
         JID newUserJID = server.createJID(newUser.getUsername(), null);
         // Shared public groups that are public should have a presence subscription
         // of type FROM for the new user
@@ -552,6 +575,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     }
 
     public void userDeleting(User user, Map<String,Object> params) {
+        sharedGroupUsersChanged();
         // Shared public groups that have a presence subscription of type FROM
         // for the deleted user should no longer have a reference to the deleted user
         JID userJID = server.createJID(user.getUsername(), null);
@@ -765,9 +789,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                  return true;
             }
             // Check if the user belongs to a group that may see this group
-            Collection<Group> groupList = parseGroups(group.getProperties().get(
-                    "sharedRoster.groupList"));
-            for (Group groupInList : groupList) {
+            for (Group groupInList : sharedGroupIndex.getGroupList(group)) {
                 if (groupInList.isUser(user)) {
                     return true;
                 }
@@ -828,38 +850,15 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     }
 
     Collection<JID> getSharedUsersForRoster(Group group, Roster roster) {
-        String showInRoster = group.getProperties().get("sharedRoster.showInRoster");
-        String groupNames = group.getProperties().get("sharedRoster.groupList");
-
         // Answer an empty collection if the group is not being shown in users' rosters
-        if (!"onlyGroup".equals(showInRoster) && !"everybody".equals(showInRoster)) {
+        if (!isSharedGroup(group)) {
             return new ArrayList<JID>();
         }
 
-        // Add the users of the group
-        Collection<JID> users = new HashSet<JID>(group.getMembers());
-        users.addAll(group.getAdmins());
-
-        // If the user of the roster belongs to the shared group then we should return
-        // users that need to be in the roster with subscription "from"
-        if (group.isUser(roster.getUsername())) {
-            // Check if anyone can see this shared group
-            if ("everybody".equals(showInRoster)) {
-                // Add all users in the system
-                for (String username : UserManager.getInstance().getUsernames()) {
-                    users.add(server.createJID(username, null, true));
-                }
-            }
-            else {
-                // Add the users that may see the group
-                Collection<Group> groupList = parseGroups(groupNames);
-                for (Group groupInList : groupList) {
-                    users.addAll(groupInList.getMembers());
-                    users.addAll(groupInList.getAdmins());
-                }
-            }
-        }
-        return users;
+        // Return the users of the group and, if the user of the roster belongs to the shared
+        // group, the users that need to be in the roster with subscription "from". The index
+        // computes them once after the group (or a group that may see it) changes.
+        return sharedGroupIndex.getSharedUsers(group, group.isUser(roster.getUsername()));
     }
 
     /**
@@ -903,8 +902,8 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                             return true;
                         }
                         // Check if each shared group can be seen by a group where each user belongs
-                        Collection<Group> groupList = parseGroups(groupNames);
-                        Collection<Group> otherGroupList = parseGroups(otherGroupNames);
+                        Collection<Group> groupList = sharedGroupIndex.getGroupList(group);
+                        Collection<Group> otherGroupList = sharedGroupIndex.getGroupList(otherGroup);
                         for (Group groupName : groupList) {
                             if (groupName.isUser(otherUser)) {
                                 for (Group otherGroupName : otherGroupList) {
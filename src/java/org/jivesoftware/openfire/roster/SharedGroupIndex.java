@@ -0,0 +1,414 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.roster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.JiveGlobals;
+import org.xmpp.packet.JID;
+
+/**
+ * Index of the shared groups used by the {@link RosterManager} to load rosters. The index keeps
+ * the shared groups that each local user may see and, for each shared group, the users that
+ * should be included in the rosters of the group users. Both are computed when a group changes
+ * instead of each time a roster is loaded:
+ * <ul>
+ *     <li>The shared groups that a user may see are computed for all users in one pass over
+ *     the shared groups and recomputed for a single user when the user is added to or removed
+ *     from a group.</li>
+ *     <li>The users to include in the rosters of a group are computed the first time a roster
+ *     of a group user is loaded after the group, or a group that may see it, changed. The users
+ *     of groups visible by everybody are computed again when users are created or deleted.</li>
+ * </ul>
+ * Group events are only received by the cluster node where the change was made, so the
+ * {@link RosterManager} of that node updates the index of the other cluster nodes with a
+ * {@link SharedGroupIndexTask}. Group providers backed by a directory or another database
+ * (e.g. LDAP or JDBC) do not send events at all. The index is therefore also rebuilt once it
+ * is older than <tt>xmpp.roster.sharedgroups.maxAge</tt> milliseconds (5 minutes by default).
+ */
+class SharedGroupIndex {
+
+    private static final String SHOW_IN_ROSTER = "sharedRoster.showInRoster";
+    private static final String GROUP_LIST = "sharedRoster.groupList";
+
+    /**
+     * Incremented each time the index is invalidated so that values computed while a group
+     * was changing are not kept.
+     */
+    private final AtomicLong version = new AtomicLong(0);
+
+    private volatile Snapshot snapshot;
+    private final Map<String, Expansion> expansions = new ConcurrentHashMap<String, Expansion>();
+    private volatile Set<JID> allUsers;
+
+    /**
+     * Returns the names of the shared groups that a user may include in his roster.
+     *
+     * @param username the username of a local user.
+     * @return the names of the shared groups that the user may see.
+     */
+    Collection<String> getSharedGroupNames(String username) {
+        final Snapshot current = getSnapshot();
+        final Set<String> userGroups = current.userGroups.get(username);
+        if (userGroups == null) {
+            return current.publicGroups;
+        }
+        final List<String> names = new ArrayList<String>(current.publicGroups.size() + userGroups.size());
+        names.addAll(current.publicGroups);
+        names.addAll(userGroups);
+        return names;
+    }
+
+    /**
+     * Returns the users that should be included in the roster of a user of a shared group.
+     *
+     * @param group the shared group.
+     * @param groupUser true if the roster belongs to a user of the group. The users that may
+     *        see the group are then included in the answer.
+     * @return the members and administrators of the group and, when <tt>groupUser</tt> is
+     *         true, the users that may see the group.
+     */
+    Collection<JID> getSharedUsers(Group group, boolean groupUser) {
+        final Expansion expansion = getExpansion(group);
+        return groupUser ? expansion.usersAndViewers : expansion.users;
+    }
+
+    /**
+     * Returns the groups that were allowed to see a shared group (i.e. the groups listed in
+     * the <tt>sharedRoster.groupList</tt> property of the group).
+     *
+     * @param group the shared group.
+     * @return the groups that may see the group.
+     */
+    Collection<Group> getGroupList(Group group) {
+        return getExpansion(group).groupList;
+    }
+
+    /**
+     * Discards the whole index. Used when a group was created, modified or deleted.
+     */
+    void reset() {
+        version.incrementAndGet();
+        snapshot = null;
+        expansions.clear();
+    }
+
+    /**
+     * Updates the index after a user was added to or removed from a group.
+     *
+     * @param group the group that was modified.
+     * @param user the user that was added or removed.
+     */
+    void userChanged(Group group, JID user) {
+        version.incrementAndGet();
+        final Snapshot current = snapshot;
+        if (current == null) {
+            // The groups that may see the modified group are unknown
+            expansions.clear();
+            return;
+        }
+        expansions.remove(group.getName());
+        // Groups that may be seen by the modified group include its users in their rosters
+        for (Map.Entry<String, Collection<String>> entry : current.groupLists.entrySet()) {
+            if (entry.getValue().contains(group.getName())) {
+                expansions.remove(entry.getKey());
+            }
+        }
+        if (isLocal(user)) {
+            final Set<String> userGroups = getUserGroups(current, user);
+            if (userGroups.isEmpty()) {
+                current.userGroups.remove(user.getNode());
+            }
+            else {
+                current.userGroups.put(user.getNode(), userGroups);
+            }
+        }
+    }
+
+    /**
+     * Updates the index after a user was created or deleted. Groups that are visible by
+     * everybody include all users in the rosters of their group users.
+     */
+    void usersChanged() {
+        version.incrementAndGet();
+        allUsers = null;
+        final Snapshot current = snapshot;
+        if (current == null) {
+            // The groups visible by everybody are unknown
+            expansions.clear();
+            return;
+        }
+        for (String name : current.publicGroups) {
+            expansions.remove(name);
+        }
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current != null && System.currentTimeMillis() - current.created > getMaxAge()) {
+            reset();
+            current = null;
+        }
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    final long start = version.get();
+                    current = buildSnapshot();
+                    if (version.get() == start) {
+                        snapshot = current;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    private Snapshot buildSnapshot() {
+        final Snapshot answer = new Snapshot();
+        for (Group group : getSharedGroups()) {
+            final String showInRoster = group.getProperties().get(SHOW_IN_ROSTER);
+            if ("everybody".equals(showInRoster)) {
+                answer.publicGroups.add(group.getName());
+            }
+            else if ("onlyGroup".equals(showInRoster)) {
+                final Collection<String> groupList = parseGroupNames(group.getProperties().get(GROUP_LIST));
+                answer.groupLists.put(group.getName(), groupList);
+                // The group users and the users of the groups in the list may see the group
+                addGroup(answer, group, group);
+                for (String name : groupList) {
+                    try {
+                        addGroup(answer, group, getGroup(name));
+                    }
+                    catch (GroupNotFoundException e) {
+                        // Do nothing. Silently ignore the invalid reference to the group
+                    }
+                }
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Adds a group to the groups that the users of other group may see.
+     */
+    private void addGroup(Snapshot answer, Group group, Group usersGroup) {
+        final Set<JID> users = new HashSet<JID>(usersGroup.getMembers());
+        users.addAll(usersGroup.getAdmins());
+        for (JID user : users) {
+            if (isLocal(user)) {
+                Set<String> userGroups = answer.userGroups.get(user.getNode());
+                if (userGroups == null) {
+                    userGroups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    answer.userGroups.put(user.getNode(), userGroups);
+                }
+                userGroups.add(group.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns the groups visible by group users only that a user may see. Used to update the
+     * index when the user was added to or removed from a group.
+     */
+    private Set<String> getUserGroups(Snapshot current, JID user) {
+        final Set<String> answer = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        for (Map.Entry<String, Collection<String>> entry : current.groupLists.entrySet()) {
+            try {
+                if (getGroup(entry.getKey()).isUser(user)) {
+                    answer.add(entry.getKey());
+                    continue;
+                }
+            }
+            catch (GroupNotFoundException e) {
+                continue;
+            }
+            for (String name : entry.getValue()) {
+                try {
+                    if (getGroup(name).isUser(user)) {
+                        answer.add(entry.getKey());
+                        break;
+                    }
+                }
+                catch (GroupNotFoundException e) {
+                    // Do nothing. Silently ignore the invalid reference to the group
+                }
+            }
+        }
+        return answer;
+    }
+
+    private Expansion getExpansion(Group group) {
+        Expansion expansion = expansions.get(group.getName());
+        if (expansion == null) {
+            final long start = version.get();
+            expansion = new Expansion(group);
+            if (version.get() == start) {
+                expansions.put(group.getName(), expansion);
+            }
+        }
+        return expansion;
+    }
+
+    private Set<JID> getAllUsers() {
+        Set<JID> users = allUsers;
+        if (users == null) {
+            final long start = version.get();
+            users = Collections.unmodifiableSet(new HashSet<JID>(loadAllUsers()));
+            if (version.get() == start) {
+                allUsers = users;
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Returns the number of milliseconds after which the index is rebuilt.
+     *
+     * @return the max age of the index.
+     */
+    long getMaxAge() {
+        return JiveGlobals.getLongProperty("xmpp.roster.sharedgroups.maxAge", 300000);
+    }
+
+    /**
+     * Returns the shared groups.
+     *
+     * @return the shared groups.
+     */
+    Collection<Group> getSharedGroups() {
+        return GroupManager.getInstance().getSharedGroups();
+    }
+
+    /**
+     * Returns a group by name.
+     *
+     * @param name the name of the group.
+     * @return the group.
+     * @throws GroupNotFoundException if the group does not exist.
+     */
+    Group getGroup(String name) throws GroupNotFoundException {
+        return GroupManager.getInstance().getGroup(name);
+    }
+
+    /**
+     * Returns true if the user belongs to this server.
+     *
+     * @param user the address of the user.
+     * @return true if the user is a local user.
+     */
+    boolean isLocal(JID user) {
+        return XMPPServer.getInstance().isLocal(user);
+    }
+
+    /**
+     * Returns the addresses of all the local users.
+     *
+     * @return the addresses of all the local users.
+     */
+    Collection<JID> loadAllUsers() {
+        final List<JID> users = new ArrayList<JID>();
+        for (String username : UserManager.getInstance().getUsernames()) {
+            users.add(XMPPServer.getInstance().createJID(username, null, true));
+        }
+        return users;
+    }
+
+    private static Collection<String> parseGroupNames(String groupNames) {
+        final Collection<String> answer = new HashSet<String>();
+        if (groupNames != null) {
+            final StringTokenizer tokenizer = new StringTokenizer(groupNames, ",");
+            while (tokenizer.hasMoreTokens()) {
+                answer.add(tokenizer.nextToken());
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Shared groups that each local user may see.
+     */
+    private static class Snapshot {
+
+        final long created = System.currentTimeMillis();
+        /**
+         * Groups visible by everybody.
+         */
+        final List<String> publicGroups = new ArrayList<String>();
+        /**
+         * Groups visible by group users only, by username.
+         */
+        final Map<String, Set<String>> userGroups = new ConcurrentHashMap<String, Set<String>>();
+        /**
+         * Groups that may see each group visible by group users only.
+         */
+        final Map<String, Collection<String>> groupLists = new ConcurrentHashMap<String, Collection<String>>();
+    }
+
+    /**
+     * Users to include in the rosters of the users of a shared group.
+     */
+    private class Expansion {
+
+        final Collection<JID> users;
+        final Collection<JID> usersAndViewers;
+        final Collection<Group> groupList;
+
+        Expansion(Group group) {
+            final Set<JID> groupUsers = new HashSet<JID>(group.getMembers());
+            groupUsers.addAll(group.getAdmins());
+            users = Collections.unmodifiableSet(groupUsers);
+
+            final List<Group> groups = new ArrayList<Group>();
+            for (String name : parseGroupNames(group.getProperties().get(GROUP_LIST))) {
+                try {
+                    groups.add(getGroup(name));
+                }
+                catch (GroupNotFoundException e) {
+                    // Do nothing. Silently ignore the invalid reference to the group
+                }
+            }
+            groupList = Collections.unmodifiableList(groups);
+
+            final Set<JID> viewers = new HashSet<JID>(groupUsers);
+            if ("everybody".equals(group.getProperties().get(SHOW_IN_ROSTER))) {
+                viewers.addAll(getAllUsers());
+            }
+            else {
+                for (Group groupInList : groups) {
+                    viewers.addAll(groupInList.getMembers());
+                    viewers.addAll(groupInList.getAdmins());
+                }
+            }
+            usersAndViewers = Collections.unmodifiableSet(viewers);
+        }
+    }
+}
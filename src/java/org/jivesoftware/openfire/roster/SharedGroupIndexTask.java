@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.roster;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.xmpp.packet.JID;
+
+/**
+ * Task that updates the {@link SharedGroupIndex} of the other cluster nodes. Group and user
+ * events are only received by the cluster node where the change was made, which then sends
+ * this task to the rest of the cluster nodes.
+ */
+public class SharedGroupIndexTask implements ClusterTask {
+
+    private Type event;
+    private String groupName;
+    private JID user;
+
+    /**
+     * Creates a task that discards the whole index after a group was created, modified
+     * or deleted.
+     *
+     * @return the task.
+     */
+    public static SharedGroupIndexTask createResetTask() {
+        SharedGroupIndexTask task = new SharedGroupIndexTask();
+        task.event = Type.reset;
+        return task;
+    }
+
+    /**
+     * Creates a task that updates the index after a user was added to or removed from
+     * a group.
+     *
+     * @param group the group that was modified.
+     * @param user the user that was added or removed.
+     * @return the task.
+     */
+    public static SharedGroupIndexTask createUserChangedTask(Group group, JID user) {
+        SharedGroupIndexTask task = new SharedGroupIndexTask();
+        task.event = Type.userChanged;
+        task.groupName = group.getName();
+        task.user = user;
+        return task;
+    }
+
+    /**
+     * Creates a task that updates the index after a user was created or deleted.
+     *
+     * @return the task.
+     */
+    public static SharedGroupIndexTask createUsersChangedTask() {
+        SharedGroupIndexTask task = new SharedGroupIndexTask();
+        task.event = Type.usersChanged;
+        return task;
+    }
+
+    public Object getResult() {
+        return null;
+    }
+
+    public void run() {
+        SharedGroupIndex index = XMPPServer.getInstance().getRosterManager().getSharedGroupIndex();
+        if (Type.reset == event) {
+            index.reset();
+        }
+        else if (Type.userChanged == event) {
+            try {
+                index.userChanged(GroupManager.getInstance().getGroup(groupName), user);
+            }
+            catch (GroupNotFoundException e) {
+                // The group was deleted in the meantime
+                index.reset();
+            }
+        }
+        else if (Type.usersChanged == event) {
+            index.usersChanged();
+        }
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeInt(out, event.ordinal());
+        if (Type.userChanged == event) {
+            ExternalizableUtil.getInstance().writeSafeUTF(out, groupName);
+            ExternalizableUtil.getInstance().writeSafeUTF(out, user.toString());
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        event = Type.values()[ExternalizableUtil.getInstance().readInt(in)];
+        if (Type.userChanged == event) {
+            groupName = ExternalizableUtil.getInstance().readSafeUTF(in);
+            user = new JID(ExternalizableUtil.getInstance().readSafeUTF(in));
+        }
+    }
+
+    private static enum Type {
+        /**
+         * A group was created, modified or deleted.
+         */
+        reset,
+        /**
+         * A user was added to or removed from a group.
+         */
+        userChanged,
+        /**
+         * A user was created or deleted.
+         */
+        usersChanged
+    }
+}
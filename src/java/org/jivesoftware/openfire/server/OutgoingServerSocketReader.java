@@ -20,25 +20,27 @@
 
 package org.jivesoftware.openfire.server;
 
-import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
-import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.session.OutgoingServerSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * An OutgoingServerSocketReader is responsible for reading and queueing the DOM Element sent by
+ * An OutgoingServerSocketReader is responsible for queueing the DOM Elements sent by
  * a remote server. Since the DOM Elements are received using the outgoing connection only special
  * stanzas may be sent by the remote server (eg. db:result stanzas for answering if the
  * Authoritative Server verified the key sent by this server).<p>
  *
- * This class is also responsible for closing the outgoing connection if the remote server sent
- * an end of the stream element.
+ * The reader does not read from the connection. Elements are read by the NIO connection of
+ * the outgoing session (see {@link org.jivesoftware.openfire.net.OutgoingServerStanzaHandler})
+ * and queued here so that no thread is dedicated to each outgoing connection. Stream headers
+ * sent by the remote server are queued as <tt>stream:stream</tt> elements that include the
+ * attributes and namespaces of the header.
  *
  * @author Gaston Dombiak
  */
@@ -46,19 +48,18 @@ public class OutgoingServerSocketReader {
 
 	private static final Logger Log = LoggerFactory.getLogger(OutgoingServerSocketReader.class);
 
+    /**
+     * Element queued when the stream or connection was closed to wake up the readers.
+     */
+    private static final Element END_OF_STREAM = DocumentHelper.createElement("end-of-stream");
+
     private OutgoingServerSession session;
-    private boolean open = true;
-    private XMPPPacketReader reader = null;
+    private volatile boolean open = true;
     /**
-     * Queue that holds the elements read by the XMPPPacketReader.
+     * Queue that holds the elements sent by the remote server.
      */
     private BlockingQueue<Element> elements = new LinkedBlockingQueue<Element>(10000);
 
-    public OutgoingServerSocketReader(XMPPPacketReader reader) {
-        this.reader = reader;
-        init();
-    }
-
     /**
      * Returns the OutgoingServerSession for which this reader is working for or <tt>null</tt> if
      * a OutgoingServerSession was not created yet. While the OutgoingServerSession is being
@@ -87,65 +88,72 @@ public class OutgoingServerSocketReader {
      * @param timeout how long to wait before giving up, in units of <tt>unit</tt>.
      * @param unit a <tt>TimeUnit</tt> determining how to interpret the <tt>timeout</tt> parameter.
      * @return the head of this queue, or <tt>null</tt> if the specified waiting time elapses
-     *         before an element is present.
+     *         before an element is present or if the stream was closed.
      * @throws InterruptedException if interrupted while waiting.
      */
     public Element getElement(long timeout, TimeUnit unit) throws InterruptedException {
-        return elements.poll(timeout, unit);
+        Element doc = elements.poll(timeout, unit);
+        if (doc == END_OF_STREAM) {
+            // Keep the marker so that other readers do not wait for elements that will never come
+            elements.offer(END_OF_STREAM);
+            return null;
+        }
+        return doc;
     }
 
-    private void init() {
-        // Create a thread that will read and store DOM Elements.
-        Thread thread = new Thread("Outgoing Server Reader") {
-            @Override
-			public void run() {
-                while (open) {
-                    Element doc;
-                    try {
-                        doc = reader.parseDocument().getRootElement();
+    /**
+     * Retrieves and removes the stream header that the remote server sent when a new stream
+     * was opened, waiting if necessary up to the specified wait time.
+     *
+     * @param timeout how long to wait before giving up, in units of <tt>unit</tt>.
+     * @param unit a <tt>TimeUnit</tt> determining how to interpret the <tt>timeout</tt> parameter.
+     * @return the <tt>stream:stream</tt> element or <tt>null</tt> if the specified waiting time
+     *         elapses, the stream was closed or the remote server sent something else.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Element getStreamHeader(long timeout, TimeUnit unit) throws InterruptedException {
+        Element doc = getElement(timeout, unit);
+        if (doc != null && "stream".equals(doc.getName()) && "stream".equals(doc.getNamespacePrefix())) {
+            return doc;
+        }
+        if (doc != null) {
+            Log.debug("OutgoingServerSocketReader: Expected a stream header but received: " + doc.asXML());
+        }
+        return null;
+    }
 
-                        if (doc == null) {
-                            // Stop reading the stream since the remote server has sent an end of
-                            // stream element and probably closed the connection.
-                            closeSession();
-                        }
-                        else {
-                            elements.add(doc);
-                        }
-                    }
-                    catch (IOException e) {
-                        String message = "Finishing Outgoing Server Reader. ";
-                        if (session != null) {
-                            message = message + "Closing session: " + session.toString();
-                        }
-                        else {
-                            message = message + "No session to close.";
-                        }
-                        Log.debug("OutgoingServerSocketReader: "+message, e);
-                        closeSession();
-                    }
-                    catch (Exception e) {
-                        String message = "Finishing Outgoing Server Reader. ";
-                        if (session != null) {
-                            message = message + "Closing session: " + session.toString();
-                        }
-                        else {
-                            message = message + "No session to close.";
-                        }
-                        Log.error(message, e);
-                        closeSession();
-                    }
-                }
-            }
-        };
-        thread.setDaemon(true);
-        thread.start();
+    /**
+     * Queues an element sent by the remote server.
+     *
+     * @param doc the received element.
+     */
+    public void elementReceived(Element doc) {
+        if (!open) {
+            return;
+        }
+        if (!elements.offer(doc)) {
+            Log.warn("OutgoingServerSocketReader: Too many unprocessed elements. Discarding element: " +
+                    doc.asXML());
+        }
     }
 
-    private void closeSession() {
-        open = false;
-        if (session != null) {
-            session.close();
+    /**
+     * Returns true if the stream sent by the remote server is still open.
+     *
+     * @return true if the stream sent by the remote server is still open.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Stops queueing elements since the remote server closed the stream or the connection
+     * was closed. Threads waiting for elements will stop waiting.
+     */
+    public void close() {
+        if (open) {
+            open = false;
+            elements.offer(END_OF_STREAM);
         }
     }
 }
@@ -35,6 +35,7 @@ import java.util.concurrent.locks.Lock;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
+import org.dom4j.Namespace;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.RemoteConnectionFailedException;
@@ -45,9 +46,8 @@ import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.AuthFactory;
 import org.jivesoftware.openfire.net.DNSUtil;
 import org.jivesoftware.openfire.net.MXParser;
+import org.jivesoftware.openfire.net.OutgoingServerStanzaHandler;
 import org.jivesoftware.openfire.net.SASLAuthentication;
-import org.jivesoftware.openfire.net.ServerTrafficCounter;
-import org.jivesoftware.openfire.net.SocketConnection;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.openfire.session.IncomingServerSession;
 import org.jivesoftware.openfire.session.LocalIncomingServerSession;
@@ -212,11 +212,10 @@ public class ServerDialback {
         String hostname = null;
         int realPort = port;
         try {
-            // Establish a TCP connection to the Receiving Server
-            Socket socket = new Socket();
+            OutgoingServerStanzaHandler handler = null;
             // Get a list of real hostnames to connect to using DNS lookup of the specified hostname
             List<DNSUtil.HostAddress> hosts = DNSUtil.resolveXMPPDomain(remoteDomain, port);
-            for (Iterator<DNSUtil.HostAddress> it = hosts.iterator(); it.hasNext();) {
+            for (Iterator<DNSUtil.HostAddress> it = hosts.iterator(); handler == null && it.hasNext();) {
                 try {
                     DNSUtil.HostAddress address = it.next();
                     hostname = address.getHost();
@@ -224,20 +223,20 @@ public class ServerDialback {
                     Log.debug("ServerDialback: OS - Trying to connect to " + remoteDomain + ":" + port +
                             "(DNS lookup: " + hostname + ":" + realPort + ")");
                     // Establish a TCP connection to the Receiving Server
-                    socket.connect(new InetSocketAddress(hostname, realPort),
-                            RemoteServerManager.getSocketTimeout());
+                    handler = XMPPServer.getInstance().getConnectionManager().createOutgoingServerConnection(
+                            new InetSocketAddress(hostname, realPort));
                     Log.debug("ServerDialback: OS - Connection to " + remoteDomain + ":" + port + " successful");
-                    break;
                 }
                 catch (Exception e) {
                     Log.warn("Error trying to connect to remote server: " + remoteDomain +
                             "(DNS lookup: " + hostname + ":" + realPort + ")", e);
                 }
             }
-            connection =
-                    new SocketConnection(XMPPServer.getInstance().getPacketDeliverer(), socket,
-                            false);
-            // Get a writer for sending the open stream tag
+            if (handler == null) {
+                return null;
+            }
+            connection = handler.getConnection();
+            OutgoingServerSocketReader socketReader = handler.getSocketReader();
             // Send to the Receiving Server a stream header
             StringBuilder stream = new StringBuilder();
             stream.append("<stream:stream");
@@ -249,24 +248,17 @@ public class ServerDialback {
             stream.append(" version=\"1.0\">");
             connection.deliverRawText(stream.toString());
 
-            // Set a read timeout (of 5 seconds) so we don't keep waiting forever
-            int soTimeout = socket.getSoTimeout();
-            socket.setSoTimeout(RemoteServerManager.getSocketTimeout());
-
-            XMPPPacketReader reader = new XMPPPacketReader();
-            reader.setXPPFactory(FACTORY);
-            reader.getXPPParser().setInput(new InputStreamReader(
-                    ServerTrafficCounter.wrapInputStream(socket.getInputStream()), CHARSET));
-            // Get the answer from the Receiving Server
-            XmlPullParser xpp = reader.getXPPParser();
-            for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-                eventType = xpp.next();
+            // Get the answer from the Receiving Server (wait for the configured timeout so we
+            // don't keep waiting forever)
+            Element header = socketReader.getStreamHeader(RemoteServerManager.getSocketTimeout(),
+                    TimeUnit.MILLISECONDS);
+            if (header == null) {
+                Log.debug("ServerDialback: OS - No stream header was received from: " + remoteDomain);
+                // Close the connection
+                connection.close();
             }
-            if ("jabber:server:dialback".equals(xpp.getNamespace("db"))) {
-                // Restore default timeout
-                socket.setSoTimeout(soTimeout);
-                String id = xpp.getAttributeValue("", "id");
-                OutgoingServerSocketReader socketReader = new OutgoingServerSocketReader(reader);
+            else if (isDialbackNamespaceDeclared(header)) {
+                String id = header.attributeValue("id");
                 if (authenticateDomain(socketReader, localDomain, remoteDomain, id)) {
                     // Domain was validated so create a new OutgoingServerSession
                     StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
@@ -282,7 +274,7 @@ public class ServerDialback {
                 }
             }
             else {
-                Log.debug("ServerDialback: OS - Invalid namespace in packet: " + xpp.getText());
+                Log.debug("ServerDialback: OS - Invalid namespace in packet: " + header.asXML());
                 // Send an invalid-namespace stream error condition in the response
                 connection.deliverRawText(
                         new StreamError(StreamError.Condition.invalid_namespace).toXML());
@@ -290,14 +282,6 @@ public class ServerDialback {
                 connection.close();
             }
         }
-        catch (IOException e) {
-            Log.debug("ServerDialback: Error connecting to the remote server: " + remoteDomain + "(DNS lookup: " +
-                    hostname + ":" + realPort + ")", e);
-            // Close the connection
-            if (connection != null) {
-                connection.close();
-            }
-        }
         catch (Exception e) {
             Log.error("Error creating outgoing session to remote server: " + remoteDomain +
                     "(DNS lookup: " +
@@ -312,6 +296,18 @@ public class ServerDialback {
         return null;
     }
 
+    /**
+     * Returns true if the stream header sent by a remote server declares the namespace of
+     * server dialback.
+     *
+     * @param header the stream header sent by the remote server.
+     * @return true if the remote server supports server dialback.
+     */
+    public static boolean isDialbackNamespaceDeclared(Element header) {
+        Namespace namespace = header.getNamespaceForPrefix("db");
+        return namespace != null && "jabber:server:dialback".equals(namespace.getURI());
+    }
+
     /**
      * Authenticates the Originating Server domain with the Receiving Server. Once the domain has
      * been authenticated the Receiving Server will start accepting packets from the Originating
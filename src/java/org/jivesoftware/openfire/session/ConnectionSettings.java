@@ -24,6 +24,16 @@ public final class ConnectionSettings {
         public static final String MAX_THREADS = "xmpp.client.processing.threads";
         public static final String MAX_READ_BUFFER = "xmpp.client.maxReadBufferSize";
 
+        public static final String WRITE_COALESCING = "xmpp.client.write.coalescing";
+        public static final String WRITE_COALESCING_DELAY = "xmpp.client.write.coalescing.delay";
+        public static final String WRITE_COALESCING_SIZE = "xmpp.client.write.coalescing.size";
+
+        public static final String OUTBOUND_QUEUE = "xmpp.client.outbound.queue";
+        public static final String OUTBOUND_QUEUE_THRESHOLD = "xmpp.client.outbound.queue.threshold";
+        public static final String OUTBOUND_QUEUE_MAX_BYTES = "xmpp.client.outbound.queue.maxBytes";
+        public static final String OUTBOUND_QUEUE_MAX_STANZAS = "xmpp.client.outbound.queue.maxStanzas";
+        public static final String OUTBOUND_QUEUE_POLICIES = "xmpp.client.outbound.queue.policies";
+
         public static final String MAX_THREADS_SSL = "xmpp.client_ssl.processing.threads";
         public static final String MAX_READ_BUFFER_SSL = "xmpp.client_ssl.maxReadBufferSize";
         public static final String TLS_ALGORITHM = "xmpp.socket.ssl.algorithm";
@@ -37,6 +37,8 @@ import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.net.SASLAuthentication;
 import org.jivesoftware.openfire.net.SSLConfig;
 import org.jivesoftware.openfire.net.SocketConnection;
+import org.jivesoftware.openfire.nio.NIOConnection;
+import org.jivesoftware.openfire.nio.PacketTemplate;
 import org.jivesoftware.openfire.privacy.PrivacyList;
 import org.jivesoftware.openfire.privacy.PrivacyListManager;
 import org.jivesoftware.openfire.streammanagement.StreamManager;
@@ -106,6 +108,14 @@ public class LocalClientSession extends LocalSession implements ClientSession {
 
     private int conflictCount = 0;
 
+    /**
+     * Flag that indicates that the connection of the session was broken and that the session
+     * is waiting for the client to resume the stream (XEP-0198). Packets sent to a detached
+     * session are kept with the unacknowledged stanzas until the stream is resumed. Guarded
+     * by the stream manager of the session.
+     */
+    private boolean detached = false;
+
     /**
      * Privacy list that overrides the default privacy list. This list affects only this
      * session and only for the duration of the session.
@@ -862,19 +872,108 @@ public class LocalClientSession extends LocalSession implements ClientSession {
 
     @Override
 	public void deliver(Packet packet) throws UnauthorizedException {
+        deliver(packet, null);
+    }
 
-        conn.deliver(packet);
+    @Override
+    void deliver(Packet packet, PacketTemplate template) throws UnauthorizedException {
+        if (streamManager.isEnabled()) {
+            // Sending and storing the packet must be atomic so that the unacknowledged stanzas
+            // are in the order of the stream when they are sent again on a resumed stream
+            synchronized (streamManager) {
+                if (!detached) {
+                    deliverToConnection(packet, template);
+                }
+                packetDelivered(packet);
+            }
+        }
+        else {
+            deliverToConnection(packet, template);
+        }
+    }
 
+    private void deliverToConnection(Packet packet, PacketTemplate template) throws UnauthorizedException {
+        if (template != null && conn instanceof NIOConnection) {
+            ((NIOConnection) conn).deliver(packet, template);
+        }
+        else {
+            conn.deliver(packet);
+        }
+    }
+
+    private void packetDelivered(Packet packet) {
         if(streamManager.isEnabled()) {
         	streamManager.incrementServerSentStanzas();
         	// Temporarily store packet until delivery confirmed
         	streamManager.getUnacknowledgedServerStanzas().addLast(new StreamManager.UnackedPacket(new Date(), packet.createCopy()));
-	        if(getNumServerPackets() % JiveGlobals.getLongProperty("stream.management.requestFrequency", 5) == 0) {
+	        if(!detached && getNumServerPackets() % JiveGlobals.getLongProperty("stream.management.requestFrequency", 5) == 0) {
 	        	streamManager.sendServerRequest();
 	        }
         }
     }
 
+    @Override
+    protected void enableStreamResumption() {
+        int timeout = JiveGlobals.getIntProperty("stream.management.resume.timeout", 300);
+        if (timeout > 0) {
+            streamManager.setResumable(sessionManager.addResumableSession(this), timeout);
+        }
+    }
+
+    /**
+     * Returns true if the connection of the session was broken and the session is waiting
+     * for the client to resume the stream. The caller must hold the lock of the stream manager.
+     *
+     * @return true if the session is waiting for the client to resume the stream.
+     */
+    public boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * Sets whether the session is waiting for the client to resume the stream. The caller
+     * must hold the lock of the stream manager.
+     *
+     * @param detached true if the connection of the session was broken.
+     */
+    public void setDetached(boolean detached) {
+        this.detached = detached;
+        if (detached) {
+            // The broken connection marked the session as closed but the session is still
+            // available to other entities while it can be resumed
+            setStatus(STATUS_AUTHENTICATED);
+        }
+    }
+
+    /**
+     * Moves this session to the connection of a resumed stream. The resumption is confirmed
+     * to the client and the stanzas that were not acknowledged are sent again.
+     *
+     * @param connection the connection where the client resumed the stream.
+     * @throws UnauthorizedException if a permission error was detected.
+     */
+    public void reattach(Connection connection) throws UnauthorizedException {
+        synchronized (streamManager) {
+            conn = connection;
+            streamManager.setConnection(connection);
+            detached = false;
+            setStatus(STATUS_AUTHENTICATED);
+            streamManager.sendResumed();
+            for (StreamManager.UnackedPacket unacked : streamManager.getUnacknowledgedServerStanzas()) {
+                connection.deliver(unacked.packet);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // A stream that was closed on purpose cannot be resumed. A detached session has no
+        // connection to close so the session manager closes the session instead.
+        if (!sessionManager.removeResumableSession(this)) {
+            super.close();
+        }
+    }
+
     @Override
 	public String toString() {
         return super.toString() + " presence: " + presence;
@@ -107,8 +107,21 @@ public class LocalIncomingServerSession extends LocalServerSession implements In
      */
     public static LocalIncomingServerSession createSession(String serverName, XMPPPacketReader reader,
             SocketConnection connection) throws XmlPullParserException, IOException {
-        XmlPullParser xpp = reader.getXPPParser();
-                
+        return createSession(serverName, reader.getXPPParser(), connection);
+    }
+
+    /**
+     * Creates a new session that will receive packets. The stream header sent by the remote
+     * server is answered and the stream features are offered. The remote server will then
+     * secure and authenticate the connection.
+     *
+     * @param serverName hostname of this server.
+     * @param xpp the parser positioned at the stream header sent by the remote server.
+     * @param connection the new established connection with the remote server.
+     * @return a new session that will receive packets or null if the remote server was rejected.
+     */
+    public static LocalIncomingServerSession createSession(String serverName, XmlPullParser xpp,
+            Connection connection) {
         String version = xpp.getAttributeValue("", "version");
         String fromDomain = xpp.getAttributeValue("", "from");
         int[] serverVersion = version != null ? decodeVersion(version) : new int[] {0,0};
@@ -20,22 +20,16 @@
 
 package org.jivesoftware.openfire.session;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-import javax.net.ssl.SSLHandshakeException;
-
-import org.dom4j.DocumentException;
 import org.dom4j.Element;
-import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.RoutingTable;
 import org.jivesoftware.openfire.SessionManager;
@@ -43,9 +37,8 @@ import org.jivesoftware.openfire.StreamID;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.net.DNSUtil;
-import org.jivesoftware.openfire.net.MXParser;
+import org.jivesoftware.openfire.net.OutgoingServerStanzaHandler;
 import org.jivesoftware.openfire.net.SASLAuthentication;
-import org.jivesoftware.openfire.net.SocketConnection;
 import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
 import org.jivesoftware.openfire.server.RemoteServerConfiguration;
 import org.jivesoftware.openfire.server.RemoteServerManager;
@@ -55,8 +48,6 @@ import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.IQ.Type;
 import org.xmpp.packet.JID;
@@ -66,9 +57,6 @@ import org.xmpp.packet.PacketError;
 import org.xmpp.packet.PacketExtension;
 import org.xmpp.packet.Presence;
 
-import com.jcraft.jzlib.JZlib;
-import com.jcraft.jzlib.ZInputStream;
-
 /**
  * Server-to-server communication is done using two TCP connections between the servers. One
  * connection is used for sending packets while the other connection is used for receiving packets.
@@ -215,46 +203,33 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         // Connect to remote server using XMPP 1.0 (TLS + SASL EXTERNAL or TLS + server dialback or server dialback)
         String realHostname = null;
         int realPort = port;
-        Socket socket = null;
+        OutgoingServerStanzaHandler handler = null;
         // Get a list of real hostnames to connect to using DNS lookup of the specified hostname
         List<DNSUtil.HostAddress> hosts = DNSUtil.resolveXMPPDomain(hostname, port);
-        for (Iterator<DNSUtil.HostAddress> it = hosts.iterator(); it.hasNext();) {
+        for (Iterator<DNSUtil.HostAddress> it = hosts.iterator(); handler == null && it.hasNext();) {
             try {
-                socket = new Socket();
                 DNSUtil.HostAddress address = it.next();
                 realHostname = address.getHost();
                 realPort = address.getPort();
                 Log.debug("LocalOutgoingServerSession: OS - Trying to connect to " + hostname + ":" + port +
                         "(DNS lookup: " + realHostname + ":" + realPort + ")");
                 // Establish a TCP connection to the Receiving Server
-                socket.connect(new InetSocketAddress(realHostname, realPort),
-                        RemoteServerManager.getSocketTimeout());
+                handler = XMPPServer.getInstance().getConnectionManager()
+                        .createOutgoingServerConnection(new InetSocketAddress(realHostname, realPort));
                 Log.debug("LocalOutgoingServerSession: OS - Plain connection to " + hostname + ":" + port + " successful");
-                break;
             }
             catch (Exception e) {
                 Log.warn("Error trying to connect to remote server: " + hostname +
                         "(DNS lookup: " + realHostname + ":" + realPort + "): " + e.toString());
-                try {
-                    if (socket != null) {
-                        socket.close();
-                    }
-                }
-                catch (IOException ex) {
-                    Log.debug("Additional exception while trying to close socket when connection to remote server failed: " + ex.toString());
-                }
             }
         }
-        if (!socket.isConnected()) {
+        if (handler == null) {
             return null;
         }
 
-        SocketConnection connection = null;
+        Connection connection = handler.getConnection();
+        OutgoingServerSocketReader socketReader = handler.getSocketReader();
         try {
-            connection =
-                    new SocketConnection(XMPPServer.getInstance().getPacketDeliverer(), socket,
-                            false);
-
             // Send the stream header
             StringBuilder openingStream = new StringBuilder();
             openingStream.append("<stream:stream");
@@ -266,34 +241,22 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
             openingStream.append(" version=\"1.0\">");
             connection.deliverRawText(openingStream.toString());
 
-            // Set a read timeout (of 5 seconds) so we don't keep waiting forever
-            int soTimeout = socket.getSoTimeout();
-            socket.setSoTimeout(5000);
-
-            XMPPPacketReader reader = new XMPPPacketReader();
-            reader.getXPPParser().setInput(new InputStreamReader(socket.getInputStream(),
-                    CHARSET));
-            // Get the answer from the Receiving Server
-            XmlPullParser xpp = reader.getXPPParser();
-            for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-                eventType = xpp.next();
-            }
-
-            String serverVersion = xpp.getAttributeValue("", "version");
-            String id = xpp.getAttributeValue("", "id");
+            // Get the answer from the Receiving Server (wait up to 5 seconds)
+            Element header = socketReader.getStreamHeader(5000, TimeUnit.MILLISECONDS);
+            String serverVersion = header != null ? header.attributeValue("version") : null;
+            String id = header != null ? header.attributeValue("id") : null;
 
             // Check if the remote server is XMPP 1.0 compliant
             if (serverVersion != null && decodeVersion(serverVersion)[0] >= 1) {
-                // Restore default timeout
-                socket.setSoTimeout(soTimeout);
                 // Get the stream features
-                Element features = reader.parseDocument().getRootElement();
+                Element features = socketReader.getElement(RemoteServerManager.getSocketTimeout(),
+                        TimeUnit.MILLISECONDS);
                 if (features != null) {
                     // Check if TLS is enabled
                     if (useTLS && features.element("starttls") != null) {
                         // Secure the connection with TLS and authenticate using SASL
                         LocalOutgoingServerSession answer;
-                        answer = secureAndAuthenticate(hostname, connection, reader, openingStream,
+                        answer = secureAndAuthenticate(hostname, connection, socketReader, openingStream,
                                 domain);
                         if (answer != null) {
                             // Everything went fine so return the secured and
@@ -305,11 +268,10 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                     else if (ServerDialback.isEnabled() && features.element("dialback") != null) {
                         Log.debug("LocalOutgoingServerSession: OS - About to try connecting using server dialback XMPP 1.0 with: " + hostname);
                         ServerDialback method = new ServerDialback(connection, domain);
-                        OutgoingServerSocketReader newSocketReader = new OutgoingServerSocketReader(reader);
-                        if (method.authenticateDomain(newSocketReader, domain, hostname, id)) {
+                        if (method.authenticateDomain(socketReader, domain, hostname, id)) {
                             Log.debug("LocalOutgoingServerSession: OS - SERVER DIALBACK XMPP 1.0 with " + hostname + " was successful");
                             StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
-                            LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, newSocketReader, streamID);
+                            LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, socketReader, streamID);
                             connection.init(session);
                             // Set the hostname as the address of the session
                             session.setAddress(new JID(null, hostname, null));
@@ -326,34 +288,13 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
             }
             // Something went wrong so close the connection and try server dialback over
             // a plain connection
-            if (connection != null) {
-                connection.close();
-            }
-        }
-        catch (SSLHandshakeException e) {
-            Log.debug("LocalOutgoingServerSession: Handshake error while creating secured outgoing session to remote " +
-                    "server: " + hostname + "(DNS lookup: " + realHostname + ":" + realPort +
-                    "):" + e.toString());
-            // Close the connection
-            if (connection != null) {
-                connection.close();
-            }
-        }
-        catch (XmlPullParserException e) {
-            Log.warn("Error creating secured outgoing session to remote server: " + hostname +
-                    "(DNS lookup: " + realHostname + ":" + realPort + "): " + e.toString());
-            // Close the connection
-            if (connection != null) {
-                connection.close();
-            }
+            connection.close();
         }
         catch (Exception e) {
             Log.error("Error creating secured outgoing session to remote server: " + hostname +
                     "(DNS lookup: " + realHostname + ":" + realPort + "): " + e.toString());
             // Close the connection
-            if (connection != null) {
-                connection.close();
-            }
+            connection.close();
         }
 
         if (ServerDialback.isEnabled()) {
@@ -365,16 +306,16 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
     }
 
     private static LocalOutgoingServerSession secureAndAuthenticate(String hostname,
-            SocketConnection connection, XMPPPacketReader reader, StringBuilder openingStream,
+            Connection connection, OutgoingServerSocketReader socketReader, StringBuilder openingStream,
             String domain) throws Exception {
     	final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
+        final int timeout = RemoteServerManager.getSocketTimeout();
         Element features;
         log.debug("Indicating we want TLS to " + hostname);
         connection.deliverRawText("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
 
-        MXParser xpp = reader.getXPPParser();
         // Wait for the <proceed> response
-        Element proceed = reader.parseDocument().getRootElement();
+        Element proceed = socketReader.getElement(timeout, TimeUnit.MILLISECONDS);
         if (proceed != null && proceed.getName().equals("proceed")) {
             log.debug("Negotiating TLS...");
             try {
@@ -386,6 +327,17 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                 log.debug("Got an exception whilst negotiating TLS: " + e.getMessage());
                 throw e;
             }
+
+            // Initiate a new stream. The TLS handshake runs in the background and the stream
+            // header is sent once it is done
+            connection.deliverRawText(openingStream.toString());
+
+            // Wait for the new stream header (i.e. for the TLS handshake to finish)
+            Element header = socketReader.getStreamHeader(timeout, TimeUnit.MILLISECONDS);
+            if (header == null) {
+                log.debug("TLS negotiation failed.");
+                return null;
+            }
             log.debug("TLS negotiation was successful.");
             if (!SASLAuthentication.verifyCertificates(connection.getPeerCertificates(), hostname)) {
                 log.debug("X.509/PKIX failure on outbound session");
@@ -397,19 +349,10 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                 }
             }
 
-            // TLS negotiation was successful so initiate a new stream
-            connection.deliverRawText(openingStream.toString());
-
-            // Reset the parser to use the new secured reader
-            xpp.setInput(new InputStreamReader(connection.getTLSStreamHandler().getInputStream(), CHARSET));
-            // Skip new stream element
-            for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-                eventType = xpp.next();
-            }
             // Get the stream ID 
-            String id = xpp.getAttributeValue("", "id");
+            String id = header.attributeValue("id");
             // Get new stream features
-            features = reader.parseDocument().getRootElement();
+            features = socketReader.getElement(timeout, TimeUnit.MILLISECONDS);
             if (features != null) {
                 // Check if we can use stream compression
                 String policyName = JiveGlobals.getProperty(ConnectionSettings.Server.COMPRESSION_SETTINGS, Connection.CompressionPolicy.disabled.toString());
@@ -426,34 +369,25 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                                 zlibSupported = true;
                             }
                         }
-                        if (zlibSupported) {
-                            log.debug("Suppressing request to perform compression; unsupported in this version.");
-                            zlibSupported = false;
-                        }
                         if (zlibSupported) {
                             log.debug("Requesting stream compression (zlib).");
                             connection.deliverRawText("<compress xmlns='http://jabber.org/protocol/compress'><method>zlib</method></compress>");
                             // Check if we are good to start compression
-                            Element answer = reader.parseDocument().getRootElement();
-                            if ("compressed".equals(answer.getName())) {
+                            Element answer = socketReader.getElement(timeout, TimeUnit.MILLISECONDS);
+                            if (answer != null && "compressed".equals(answer.getName())) {
                                 // Server confirmed that we can use zlib compression
                                 connection.addCompression();
                                 connection.startCompression();
                                 log.debug("Stream compression was successful.");
                                 // Stream compression was successful so initiate a new stream
                                 connection.deliverRawText(openingStream.toString());
-                                // Reset the parser to use stream compression over TLS
-                                ZInputStream in = new ZInputStream(
-                                        connection.getTLSStreamHandler().getInputStream());
-                                in.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
-                                xpp.setInput(new InputStreamReader(in, CHARSET));
-                                // Skip the opening stream sent by the server
-                                for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;)
-                                {
-                                    eventType = xpp.next();
+                                // Get the stream ID of the compressed stream
+                                header = socketReader.getStreamHeader(timeout, TimeUnit.MILLISECONDS);
+                                if (header != null) {
+                                    id = header.attributeValue("id");
                                 }
                                 // Get new stream features
-                                features = reader.parseDocument().getRootElement();
+                                features = header != null ? socketReader.getElement(timeout, TimeUnit.MILLISECONDS) : null;
                                 if (features == null) {
                                     log.debug("Error, EXTERNAL SASL was not offered.");
                                     return null;
@@ -494,11 +428,11 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                 LocalOutgoingServerSession result = null;
             	// first, try SASL
             	if (saslEXTERNALoffered) {
-            		result = attemptSASLexternal(connection, xpp, reader, domain, hostname, id, openingStream);
+            		result = attemptSASLexternal(connection, socketReader, domain, hostname, id, openingStream);
             	}
             	if (result == null) {
             		// SASL unavailable or failed, try dialback.
-            		result = attemptDialbackOverTLS(connection, reader, domain, hostname, id);
+            		result = attemptDialbackOverTLS(connection, socketReader, domain, hostname, id);
             	}
                 
                 return result;
@@ -514,16 +448,15 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         }
     }
 
-    private static LocalOutgoingServerSession attemptDialbackOverTLS(Connection connection, XMPPPacketReader reader, String domain, String hostname, String id) {
+    private static LocalOutgoingServerSession attemptDialbackOverTLS(Connection connection, OutgoingServerSocketReader socketReader, String domain, String hostname, String id) {
     	final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
         if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
             log.debug("Trying to connecting using dialback over TLS.");
             ServerDialback method = new ServerDialback(connection, domain);
-            OutgoingServerSocketReader newSocketReader = new OutgoingServerSocketReader(reader);
-            if (method.authenticateDomain(newSocketReader, domain, hostname, id)) {
+            if (method.authenticateDomain(socketReader, domain, hostname, id)) {
                 log.debug("Dialback over TLS was successful.");
                 StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
-                LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, newSocketReader, streamID);
+                LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain, connection, socketReader, streamID);
                 connection.init(session);
                 // Set the hostname as the address of the session
                 session.setAddress(new JID(null, hostname, null));
@@ -540,28 +473,27 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         }    	
     }
     
-    private static LocalOutgoingServerSession attemptSASLexternal(SocketConnection connection, MXParser xpp, XMPPPacketReader reader, String domain, String hostname, String id, StringBuilder openingStream) throws DocumentException, IOException, XmlPullParserException {
+    private static LocalOutgoingServerSession attemptSASLexternal(Connection connection, OutgoingServerSocketReader socketReader, String domain, String hostname, String id, StringBuilder openingStream) throws InterruptedException {
     	final Logger log = LoggerFactory.getLogger(LocalOutgoingServerSession.class.getName()+"['"+hostname+"']");
         log.debug("Starting EXTERNAL SASL.");
-        if (doExternalAuthentication(domain, connection, reader)) {
+        if (doExternalAuthentication(domain, connection, socketReader)) {
             log.debug("EXTERNAL SASL was successful.");
             // SASL was successful so initiate a new stream
             connection.deliverRawText(openingStream.toString());
-            
-            // Reset the parser
-            //xpp.resetInput();
-            //             // Reset the parser to use the new secured reader
-            xpp.setInput(new InputStreamReader(connection.getTLSStreamHandler().getInputStream(), CHARSET));
-            // Skip the opening stream sent by the server
-            for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-                eventType = xpp.next();
+
+            // Get the stream header sent by the server
+            Element header = socketReader.getStreamHeader(RemoteServerManager.getSocketTimeout(),
+                    TimeUnit.MILLISECONDS);
+            if (header == null) {
+                log.debug("No stream header was received after EXTERNAL SASL.");
+                return null;
             }
 
             // SASL authentication was successful so create new OutgoingServerSession
-            id = xpp.getAttributeValue("", "id");
+            id = header.attributeValue("id");
             StreamID streamID = new BasicStreamIDFactory().createStreamID(id);
             LocalOutgoingServerSession session = new LocalOutgoingServerSession(domain,
-                    connection, new OutgoingServerSocketReader(reader), streamID);
+                    connection, socketReader, streamID);
             connection.init(session);
             // Set the hostname as the address of the session
             session.setAddress(new JID(null, hostname, null));
@@ -575,8 +507,8 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         }  	
     }
     
-    private static boolean doExternalAuthentication(String domain, SocketConnection connection,
-            XMPPPacketReader reader) throws DocumentException, IOException, XmlPullParserException {
+    private static boolean doExternalAuthentication(String domain, Connection connection,
+            OutgoingServerSocketReader socketReader) throws InterruptedException {
 
         StringBuilder sb = new StringBuilder();
         sb.append("<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism=\"EXTERNAL\">");
@@ -584,7 +516,8 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         sb.append("</auth>");
         connection.deliverRawText(sb.toString());
 
-        Element response = reader.parseDocument().getRootElement();
+        Element response = socketReader.getElement(RemoteServerManager.getSocketTimeout(),
+                TimeUnit.MILLISECONDS);
         return response != null && "success".equals(response.getName());
     }
 
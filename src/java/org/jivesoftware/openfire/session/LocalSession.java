@@ -34,6 +34,7 @@ import org.jivesoftware.openfire.interceptor.InterceptorManager;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.net.SocketConnection;
 import org.jivesoftware.openfire.net.TLSStreamHandler;
+import org.jivesoftware.openfire.nio.PacketTemplate;
 import org.jivesoftware.openfire.streammanagement.StreamManager;
 import org.jivesoftware.util.LocaleUtils;
 import org.slf4j.Logger;
@@ -75,9 +76,10 @@ public abstract class LocalSession implements Session {
     protected int status = STATUS_CONNECTED;
 
     /**
-     * The connection that this session represents.
+     * The connection that this session represents. The connection is replaced when
+     * a client resumes the session on a new stream (XEP-0198).
      */
-    protected final Connection conn;
+    protected volatile Connection conn;
 
     protected SessionManager sessionManager;
 
@@ -296,14 +298,32 @@ public abstract class LocalSession implements Session {
     }
 
     public void process(Packet packet) {
+        process(packet, null);
+    }
+
+    /**
+     * Process the packet using the already serialized form of the packet when possible. This
+     * is used when the same packet is sent to many recipients (e.g. the occupants of a room).
+     * The template is not used if some interceptor could have modified the packet.
+     *
+     * @param packet the packet to process.
+     * @param template the serialized form of the packet or <tt>null</tt> if none.
+     */
+    public void process(Packet packet, PacketTemplate template) {
         // Check that the requested packet can be processed
         if (canProcess(packet)) {
             // Perform the actual processing of the packet. This usually implies sending
             // the packet to the entity
             try {
+                final InterceptorManager interceptorManager = InterceptorManager.getInstance();
                 // Invoke the interceptors before we send the packet
-                InterceptorManager.getInstance().invokeInterceptors(packet, this, false, false);
-                deliver(packet);
+                interceptorManager.invokeInterceptors(packet, this, false, false);
+                if (template != null && !interceptorManager.hasInterceptors(packet, this, false, false)) {
+                    deliver(packet, template);
+                }
+                else {
+                    deliver(packet);
+                }
                 // Invoke the interceptors after we have sent the packet
                 InterceptorManager.getInstance().invokeInterceptors(packet, this, false, true);
             }
@@ -347,6 +367,18 @@ public abstract class LocalSession implements Session {
 
     abstract void deliver(Packet packet) throws UnauthorizedException;
 
+    /**
+     * Delivers the packet using its already serialized form. By default the template is
+     * ignored and the packet is delivered using {@link #deliver(Packet)}.
+     *
+     * @param packet the packet to deliver.
+     * @param template the serialized form of the packet.
+     * @throws UnauthorizedException if a permission error was detected.
+     */
+    void deliver(Packet packet, PacketTemplate template) throws UnauthorizedException {
+        deliver(packet);
+    }
+
     public void deliverRawText(String text) {
         conn.deliverRawText(text);
     }
@@ -449,7 +481,20 @@ public abstract class LocalSession implements Session {
     		return;
     	}
 
+    	String resume = enable.attributeValue("resume");
+    	if("true".equals(resume) || "1".equals(resume)) {
+    		enableStreamResumption();
+    	}
+
     	streamManager.setEnabled(true);
 	}
 
+    /**
+     * Allows the stream of this session to be resumed after it was broken. Invoked when
+     * the client requested stream resumption while enabling stream management. By default
+     * sessions cannot be resumed so the request is ignored.
+     */
+    protected void enableStreamResumption() {
+    }
+
 }
@@ -47,6 +47,7 @@ import javax.net.ssl.TrustManagerFactory;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.buffer.SimpleBufferAllocator;
+import org.apache.mina.core.future.ConnectFuture;
 import org.apache.mina.core.service.IoService;
 import org.apache.mina.core.service.IoServiceListener;
 import org.apache.mina.core.session.IdleStatus;
@@ -58,6 +59,7 @@ import org.apache.mina.integration.jmx.IoServiceMBean;
 import org.apache.mina.integration.jmx.IoSessionMBean;
 import org.apache.mina.transport.socket.SocketSessionConfig;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
 import org.jivesoftware.openfire.ConnectionManager;
 import org.jivesoftware.openfire.JMXManager;
 import org.jivesoftware.openfire.PacketDeliverer;
@@ -70,9 +72,9 @@ import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.container.PluginManager;
 import org.jivesoftware.openfire.container.PluginManagerListener;
 import org.jivesoftware.openfire.http.HttpBindManager;
+import org.jivesoftware.openfire.net.OutgoingServerStanzaHandler;
 import org.jivesoftware.openfire.net.SSLConfig;
 import org.jivesoftware.openfire.net.ServerSocketReader;
-import org.jivesoftware.openfire.net.SocketAcceptThread;
 import org.jivesoftware.openfire.net.SocketConnection;
 import org.jivesoftware.openfire.net.SocketReader;
 import org.jivesoftware.openfire.net.SocketSendingTracker;
@@ -80,7 +82,11 @@ import org.jivesoftware.openfire.net.StalledSessionsFilter;
 import org.jivesoftware.openfire.nio.ClientConnectionHandler;
 import org.jivesoftware.openfire.nio.ComponentConnectionHandler;
 import org.jivesoftware.openfire.nio.MultiplexerConnectionHandler;
+import org.jivesoftware.openfire.nio.OutgoingServerConnectionHandler;
+import org.jivesoftware.openfire.nio.ServerConnectionHandler;
+import org.jivesoftware.openfire.nio.WriteCoalescingFilter;
 import org.jivesoftware.openfire.nio.XMPPCodecFactory;
+import org.jivesoftware.openfire.server.RemoteServerManager;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.util.*;
 import org.slf4j.Logger;
@@ -95,18 +101,21 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     public static final String COMPRESSION_FILTER_NAME = "compression";
     public static final String XMPP_CODEC_FILTER_NAME = "xmpp";
     public static final String CAPACITY_FILTER_NAME = "outCap";
+    public static final String WRITE_COALESCING_FILTER_NAME = "writeCoalescing";
 
     private static final String CLIENT_SOCKET_ACCEPTOR_NAME = "client";
     private static final String CLIENT_SSL_SOCKET_ACCEPTOR_NAME = "client_ssl";
     private static final String COMPONENT_SOCKET_ACCEPTOR_NAME = "component";
     private static final String MULTIPLEXER_SOCKET_ACCEPTOR_NAME = "multiplexer";
+    private static final String SERVER_SOCKET_ACCEPTOR_NAME = "server";
 
     private static final Logger Log = LoggerFactory.getLogger(ConnectionManagerImpl.class);
 
     private NioSocketAcceptor socketAcceptor;
     private NioSocketAcceptor sslSocketAcceptor;
     private NioSocketAcceptor componentAcceptor;
-    private SocketAcceptThread serverSocketThread;
+    private NioSocketAcceptor serverSocketAcceptor;
+    private NioSocketConnector serverSocketConnector;
     private NioSocketAcceptor multiplexerSocketAcceptor;
     private ArrayList<ServerPort> ports;
 
@@ -131,6 +140,8 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         }
         // Create the port listener for s2s communication
         createServerListener(localIPAddress);
+        // Create the connector for outgoing s2s communication
+        createServerConnector();
         // Create the port listener for Connections Multiplexers
         createConnectionManagerListener();
         // Create the port listener for external components
@@ -187,32 +198,44 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
 
     private void createServerListener(String localIPAddress) {
         // Start servers socket unless it's been disabled.
-        if (isServerListenerEnabled()) {
-            int port = getServerListenerPort();
-            try {
-                serverSocketThread = new SocketAcceptThread(this, new ServerPort(port, serverName,
-                        localIPAddress, false, null, ServerPort.Type.server));
-                ports.add(serverSocketThread.getServerPort());
-                serverSocketThread.setDaemon(true);
-                serverSocketThread.setPriority(Thread.MAX_PRIORITY);
-            }
-            catch (Exception e) {
-                System.err.println("Error creating server listener on port " + port + ": " +
-                        e.getMessage());
-                Log.error(LocaleUtils.getLocalizedString("admin.error.socket-setup"), e);
-            }
+        if (isServerListenerEnabled() && serverSocketAcceptor == null) {
+            // Create SocketAcceptor with correct number of processors
+            serverSocketAcceptor = buildSocketAcceptor(SERVER_SOCKET_ACCEPTOR_NAME);
+            // Customize Executor that will be used by processors to process incoming stanzas
+            int maxPoolSize = JiveGlobals.getIntProperty("xmpp.server.processing.threads", 16);
+            ExecutorFilter executorFilter = new ExecutorFilter(getCorePoolSize(maxPoolSize), maxPoolSize, 60, TimeUnit.SECONDS);
+            ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)executorFilter.getExecutor();
+            ThreadFactory threadFactory = eventExecutor.getThreadFactory();
+            threadFactory = new DelegatingThreadFactory("S2S-Thread-", threadFactory);
+            eventExecutor.setThreadFactory(threadFactory);
+            serverSocketAcceptor.getFilterChain().addFirst(EXECUTOR_FILTER_NAME, executorFilter);
+            // Add the XMPP codec filter
+            serverSocketAcceptor.getFilterChain().addAfter(EXECUTOR_FILTER_NAME, XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
         }
     }
 
     private void startServerListener() {
         // Start servers socket unless it's been disabled.
-        if (isServerListenerEnabled()) {
+        if (isServerListenerEnabled() && serverSocketAcceptor != null &&
+                serverSocketAcceptor.getManagedSessionCount() == 0) {
             int port = getServerListenerPort();
             try {
-                serverSocketThread.start();
+                // Listen on a specific network interface if it has been set.
+                String interfaceName = JiveGlobals.getXMLProperty("network.interface");
+                InetAddress bindInterface = null;
+                if (interfaceName != null) {
+                    if (interfaceName.trim().length() > 0) {
+                        bindInterface = InetAddress.getByName(interfaceName);
+                    }
+                }
+                // Start accepting connections
+                serverSocketAcceptor.setHandler(new ServerConnectionHandler(serverName));
+                serverSocketAcceptor.bind(new InetSocketAddress(bindInterface, port));
+
+                ports.add(new ServerPort(port, serverName, localIPAddress, false, null, ServerPort.Type.server));
 
                 List<String> params = new ArrayList<String>();
-                params.add(Integer.toString(serverSocketThread.getPort()));
+                params.add(Integer.toString(port));
                 Log.info(LocaleUtils.getLocalizedString("startup.server", params));
             }
             catch (Exception e) {
@@ -224,13 +247,63 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     }
 
     private void stopServerListener() {
-        if (serverSocketThread != null) {
-            serverSocketThread.shutdown();
-            ports.remove(serverSocketThread.getServerPort());
-            serverSocketThread = null;
+        if (serverSocketAcceptor != null) {
+            serverSocketAcceptor.unbind();
+            for (ServerPort port : ports) {
+                if (port.isServerPort()) {
+                    ports.remove(port);
+                    break;
+                }
+            }
+            serverSocketAcceptor = null;
         }
     }
 
+    private void createServerConnector() {
+        if (serverSocketConnector != null) {
+            return;
+        }
+        // Create SocketConnector with correct number of processors. All the connections to
+        // remote servers share the processors and threads of the connector.
+        int processorCount = JiveGlobals.getIntProperty("xmpp.processor.count", Runtime.getRuntime().availableProcessors());
+        serverSocketConnector = new NioSocketConnector(processorCount);
+        serverSocketConnector.getSessionConfig().setTcpNoDelay(
+                JiveGlobals.getBooleanProperty("xmpp.socket.tcp-nodelay", serverSocketConnector.getSessionConfig().isTcpNoDelay()));
+        // Customize Executor that will be used by processors to process received stanzas
+        int maxPoolSize = JiveGlobals.getIntProperty("xmpp.server.outgoing.processing.threads", 16);
+        ExecutorFilter executorFilter = new ExecutorFilter(getCorePoolSize(maxPoolSize), maxPoolSize, 60, TimeUnit.SECONDS);
+        ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)executorFilter.getExecutor();
+        ThreadFactory threadFactory = eventExecutor.getThreadFactory();
+        threadFactory = new DelegatingThreadFactory("S2S-Outgoing-Thread-", threadFactory);
+        eventExecutor.setThreadFactory(threadFactory);
+        serverSocketConnector.getFilterChain().addFirst(EXECUTOR_FILTER_NAME, executorFilter);
+        // Add the XMPP codec filter
+        serverSocketConnector.getFilterChain().addAfter(EXECUTOR_FILTER_NAME, XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
+        serverSocketConnector.setHandler(new OutgoingServerConnectionHandler(serverName));
+    }
+
+    private void stopServerConnector() {
+        if (serverSocketConnector != null) {
+            serverSocketConnector.dispose();
+            serverSocketConnector = null;
+        }
+    }
+
+    public OutgoingServerStanzaHandler createOutgoingServerConnection(InetSocketAddress address)
+            throws IOException {
+        final NioSocketConnector connector = serverSocketConnector;
+        if (connector == null) {
+            throw new IOException("Connector for outgoing server connections is not running");
+        }
+        connector.setConnectTimeoutMillis(RemoteServerManager.getSocketTimeout());
+        final ConnectFuture future = connector.connect(address);
+        future.awaitUninterruptibly();
+        if (!future.isConnected()) {
+            throw new IOException("Error connecting to " + address, future.getException());
+        }
+        return OutgoingServerConnectionHandler.getStanzaHandler(future.getSession());
+    }
+
     private void createConnectionManagerListener() {
         // Start multiplexers socket unless it's been disabled.
         if (isConnectionManagerListenerEnabled()) {
@@ -375,6 +448,8 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
             socketAcceptor.getFilterChain().addAfter(EXECUTOR_FILTER_NAME, XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
             // Kill sessions whose outgoing queues keep growing and fail to send traffic
             socketAcceptor.getFilterChain().addAfter(XMPP_CODEC_FILTER_NAME, CAPACITY_FILTER_NAME, new StalledSessionsFilter());
+            // Coalesce bursts of stanzas sent to a client into a single write
+            addWriteCoalescingFilter(socketAcceptor);
             // Throttle sessions who send data too fast
             int maxBufferSize = JiveGlobals.getIntProperty(ConnectionSettings.Client.MAX_READ_BUFFER, 10 * MB);
             socketAcceptor.getSessionConfig().setMaxReadBufferSize(maxBufferSize);
@@ -383,6 +458,23 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         }
     }
 
+    /**
+     * Adds a {@link WriteCoalescingFilter} between the TLS and XMPP codec filters of the
+     * client connections unless disabled by the <tt>xmpp.client.write.coalescing</tt> property.
+     * The filter holds writes for <tt>xmpp.client.write.coalescing.delay</tt> microseconds
+     * or until they add up to <tt>xmpp.client.write.coalescing.size</tt> bytes.
+     *
+     * @param acceptor the acceptor of the client connections.
+     */
+    private void addWriteCoalescingFilter(NioSocketAcceptor acceptor) {
+        if (JiveGlobals.getBooleanProperty(ConnectionSettings.Client.WRITE_COALESCING, true)) {
+            long delay = JiveGlobals.getLongProperty(ConnectionSettings.Client.WRITE_COALESCING_DELAY, 1000);
+            int maxBytes = JiveGlobals.getIntProperty(ConnectionSettings.Client.WRITE_COALESCING_SIZE, 16 * 1024);
+            acceptor.getFilterChain().addBefore(XMPP_CODEC_FILTER_NAME, WRITE_COALESCING_FILTER_NAME,
+                    new WriteCoalescingFilter(delay, maxBytes));
+        }
+    }
+
     private void startClientListeners(String localIPAddress) {
         // Start clients plain socket unless it's been disabled.
         if (isClientListenerEnabled()) {
@@ -449,6 +541,8 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
                 sslSocketAcceptor.getFilterChain().addAfter(EXECUTOR_FILTER_NAME, XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
                 // Kill sessions whose outgoing queues keep growing and fail to send traffic
                 sslSocketAcceptor.getFilterChain().addAfter(XMPP_CODEC_FILTER_NAME, CAPACITY_FILTER_NAME, new StalledSessionsFilter());
+                // Coalesce bursts of stanzas sent to a client into a single write
+                addWriteCoalescingFilter(sslSocketAcceptor);
                 
 				// Throttle sessions who send data too fast
 				int maxBufferSize = JiveGlobals.getIntProperty(ConnectionSettings.Client.MAX_READ_BUFFER_SSL, 10 * MB);
@@ -955,6 +1049,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         stopComponentListener();
         stopConnectionManagerListener();
         stopServerListener();
+        stopServerConnector();
         HttpBindManager.getInstance().stop();
         SocketSendingTracker.getInstance().shutdown();
         CertificateManager.removeListener(this);
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.spi;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Index of the client routes hosted by this JVM grouped by bare JID. The RoutingTable uses this
+ * index to resolve local full and bare JIDs without taking cluster locks or doing one cache
+ * lookup per resource.<p>
+ *
+ * The index is split in shards. Each shard maps bare JIDs to an immutable snapshot of the routes
+ * of the user's resources. Lookups read the current snapshot without locking. Binding or unbinding
+ * a resource replaces the snapshot of the user while holding the lock of the shard.<p>
+ *
+ * Each shard also has a queue of tasks that are run in order by the {@link TaskEngine}. The
+ * RoutingTable uses these queues to update the route caches after the index was updated, keeping
+ * the updates of the same user in order.
+ */
+class LocalClientRouteIndex {
+
+    private static final Logger Log = LoggerFactory.getLogger(LocalClientRouteIndex.class);
+
+    private final Shard[] shards;
+    private final int mask;
+
+    /**
+     * Creates a new index.
+     *
+     * @param shardCount the number of shards of the index, rounded up to a power of two.
+     */
+    LocalClientRouteIndex(int shardCount) {
+        int count = 1;
+        while (count < shardCount) {
+            count <<= 1;
+        }
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard();
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Adds or replaces the route to a full JID.
+     *
+     * @param address the full JID of the client session.
+     * @param clientRoute the node and availability of the session.
+     * @param anonymous true if the session belongs to an anonymous user.
+     * @return the route that was replaced or null if the full JID had no route.
+     */
+    Route add(JID address, ClientRoute clientRoute, boolean anonymous) {
+        final String bareJID = address.toBareJID();
+        final Shard shard = getShard(bareJID);
+        final Route route = new Route(address, clientRoute, anonymous);
+        synchronized (shard) {
+            final Map<String, Route> current = shard.users.get(bareJID);
+            final Map<String, Route> routes = current == null ?
+                    new LinkedHashMap<String, Route>(4) : new LinkedHashMap<String, Route>(current);
+            final Route previous = routes.put(address.getResource(), route);
+            shard.users.put(bareJID, Collections.unmodifiableMap(routes));
+            return previous;
+        }
+    }
+
+    /**
+     * Removes the route to a full JID.
+     *
+     * @param address the full JID of the client session.
+     * @return the removed route or null if the full JID had no route.
+     */
+    Route remove(JID address) {
+        final String bareJID = address.toBareJID();
+        final Shard shard = getShard(bareJID);
+        synchronized (shard) {
+            final Map<String, Route> current = shard.users.get(bareJID);
+            if (current == null || !current.containsKey(address.getResource())) {
+                return null;
+            }
+            if (current.size() == 1) {
+                shard.users.remove(bareJID);
+                return current.get(address.getResource());
+            }
+            final Map<String, Route> routes = new LinkedHashMap<String, Route>(current);
+            final Route previous = routes.remove(address.getResource());
+            shard.users.put(bareJID, Collections.unmodifiableMap(routes));
+            return previous;
+        }
+    }
+
+    /**
+     * Returns the route to a full JID or <tt>null</tt> if the session is not hosted by this JVM.
+     *
+     * @param address the full JID of the client session.
+     * @return the route to the full JID or null.
+     */
+    Route get(JID address) {
+        if (address.getResource() == null) {
+            return null;
+        }
+        final String bareJID = address.toBareJID();
+        final Map<String, Route> routes = getShard(bareJID).users.get(bareJID);
+        return routes != null ? routes.get(address.getResource()) : null;
+    }
+
+    /**
+     * Returns the routes to the sessions of a user hosted by this JVM. The returned collection
+     * is a snapshot that is not affected by later changes.
+     *
+     * @param bareJID the bare JID of the user.
+     * @return the routes to the sessions of the user.
+     */
+    Collection<Route> getRoutes(String bareJID) {
+        final Map<String, Route> routes = getShard(bareJID).users.get(bareJID);
+        return routes != null ? routes.values() : Collections.<Route>emptyList();
+    }
+
+    /**
+     * Runs a task after all the tasks previously queued for the same user.
+     *
+     * @param bareJID the bare JID of the user.
+     * @param task the task to run.
+     */
+    void execute(String bareJID, Runnable task) {
+        getShard(bareJID).tasks.execute(task);
+    }
+
+    private Shard getShard(String bareJID) {
+        int hash = bareJID.hashCode();
+        // Spread the bits of the hash as HashMap does
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return shards[hash & mask];
+    }
+
+    /**
+     * Route to a client session hosted by this JVM.
+     */
+    static class Route {
+
+        final JID address;
+        final ClientRoute clientRoute;
+        final boolean anonymous;
+
+        Route(JID address, ClientRoute clientRoute, boolean anonymous) {
+            this.address = address;
+            this.clientRoute = clientRoute;
+            this.anonymous = anonymous;
+        }
+    }
+
+    private static class Shard {
+
+        final Map<String, Map<String, Route>> users = new ConcurrentHashMap<String, Map<String, Route>>();
+        final SerialExecutor tasks = new SerialExecutor();
+    }
+
+    /**
+     * Runs the queued tasks one at a time, in the order in which they were queued.
+     */
+    private static class SerialExecutor implements Runnable {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean running = new AtomicBoolean(false);
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (running.compareAndSet(false, true)) {
+                TaskEngine.getInstance().submit(this);
+            }
+        }
+
+        public void run() {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    }
+                    catch (Exception e) {
+                        Log.error("Error updating client routes", e);
+                    }
+                }
+            }
+            finally {
+                running.set(false);
+                if (!tasks.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -32,6 +32,7 @@ import org.jivesoftware.openfire.component.ExternalComponentManager;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.forward.Forwarded;
 import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
+import org.jivesoftware.openfire.nio.PacketTemplate;
 import org.jivesoftware.openfire.server.OutgoingSessionPromise;
 import org.jivesoftware.openfire.session.*;
 import org.jivesoftware.util.ConcurrentHashSet;
@@ -96,11 +97,16 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      * (includes anonymous).
      * Key: bare JID, Value: list of full JIDs of the user
      */
-    private Cache<String, Collection<String>> usersSessions;
+    private Cache<String, Collection<JID>> usersSessions;
 
     private String serverName;
     private XMPPServer server;
     private LocalRoutingTable localRoutingTable;
+    /**
+     * Index of the client sessions hosted by this JVM by bare JID.
+     */
+    private LocalClientRouteIndex localClientRoutes;
+    private boolean asyncCacheUpdates;
     private RemotePacketRouter remotePacketRouter;
     private IQRouter iqRouter;
     private MessageRouter messageRouter;
@@ -115,6 +121,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         anonymousUsersCache = CacheFactory.createCache(ANONYMOUS_C2S_CACHE_NAME);
         usersSessions = CacheFactory.createCache(C2S_SESSION_NAME);
         localRoutingTable = new LocalRoutingTable();
+        localClientRoutes = new LocalClientRouteIndex(JiveGlobals.getIntProperty("xmpp.routing.shards", 64));
     }
 
     public void addServerRoute(JID route, LocalOutgoingServerSession destination) {
@@ -147,16 +154,35 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         }
     }
 
-    public boolean addClientRoute(JID route, LocalClientSession destination) {
-        boolean added;
-        boolean available = destination.getPresence().isAvailable();
+    public boolean addClientRoute(final JID route, LocalClientSession destination) {
+        final boolean anonymous = destination.getAuthToken().isAnonymous();
+        final ClientRoute clientRoute = new ClientRoute(server.getNodeID(), destination.getPresence().isAvailable());
         localRoutingTable.addRoute(route.toString(), destination);
-        if (destination.getAuthToken().isAnonymous()) {
+        boolean added = localClientRoutes.add(route, clientRoute, anonymous) == null;
+        updateCaches(route, new Runnable() {
+            public void run() {
+                addClientRouteToCaches(route, clientRoute, anonymous);
+            }
+        });
+        return added;
+    }
+
+    /**
+     * Adds the route to a client session hosted by this JVM to the route caches that are
+     * shared with other cluster nodes.
+     *
+     * @param route the full JID of the session.
+     * @param clientRoute the node and availability of the session.
+     * @param anonymous true if the session belongs to an anonymous user.
+     */
+    private void addClientRouteToCaches(JID route, ClientRoute clientRoute, boolean anonymous) {
+        boolean added;
+        boolean available = clientRoute.isAvailable();
+        if (anonymous) {
             Lock lockAn = CacheFactory.getLock(route.toString(), anonymousUsersCache);
             try {
                 lockAn.lock();
-                added = anonymousUsersCache.put(route.toString(), new ClientRoute(server.getNodeID(), available)) ==
-                        null;
+                added = anonymousUsersCache.put(route.toString(), clientRoute) == null;
             }
             finally {
                 lockAn.unlock();
@@ -166,7 +192,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 Lock lock = CacheFactory.getLock(route.toBareJID(), usersSessions);
                 try {
                     lock.lock();
-                    usersSessions.put(route.toBareJID(), Arrays.asList(route.toString()));
+                    usersSessions.put(route.toBareJID(), Arrays.asList(route));
                 }
                 finally {
                     lock.unlock();
@@ -177,7 +203,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
             Lock lockU = CacheFactory.getLock(route.toString(), usersCache);
             try {
                 lockU.lock();
-                added = usersCache.put(route.toString(), new ClientRoute(server.getNodeID(), available)) == null;
+                added = usersCache.put(route.toString(), clientRoute) == null;
             }
             finally {
                 lockU.unlock();
@@ -187,17 +213,17 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 Lock lock = CacheFactory.getLock(route.toBareJID(), usersSessions);
                 try {
                     lock.lock();
-                    Collection<String> jids = usersSessions.get(route.toBareJID());
+                    Collection<JID> jids = usersSessions.get(route.toBareJID());
                     if (jids == null) {
                         // Optimization - use different class depending on current setup
                         if (ClusterManager.isClusteringStarted()) {
-                            jids = new HashSet<String>();
+                            jids = new HashSet<JID>();
                         }
                         else {
-                            jids = new ConcurrentHashSet<String>();
+                            jids = new ConcurrentHashSet<JID>();
                         }
                     }
-                    jids.add(route.toString());
+                    jids.add(route);
                     usersSessions.put(route.toBareJID(), jids);
                 }
                 finally {
@@ -205,13 +231,34 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 }
             }
         }
-        return added;
+    }
+
+    /**
+     * Updates the route caches after the route to a client session hosted by this JVM was added
+     * or removed. Unless <tt>xmpp.routing.cache.async</tt> is false, the caches are updated by
+     * the TaskEngine in the same order as the routes of the user were updated.
+     *
+     * @param route the full JID of the session.
+     * @param update the task that updates the caches.
+     */
+    private void updateCaches(JID route, Runnable update) {
+        if (asyncCacheUpdates) {
+            localClientRoutes.execute(route.toBareJID(), update);
+        }
+        else {
+            update.run();
+        }
     }
 
     public void broadcastPacket(Message packet, boolean onlyLocal) {
-        // Send the message to client sessions connected to this JVM
-        for(ClientSession session : localRoutingTable.getClientRoutes()) {
-            session.process(packet);
+        // Send the message to client sessions connected to this JVM. The message is
+        // serialized only once for all the sessions.
+        PacketTemplate template = null;
+        for(LocalClientSession session : localRoutingTable.getClientRoutes()) {
+            if (template == null) {
+                template = new PacketTemplate(packet);
+            }
+            session.process(packet, template);
         }
 
         // Check if we need to broadcast the message to client sessions connected to remote cluter nodes
@@ -232,11 +279,16 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      *      session being shutdown).
      */
     public void routePacket(JID jid, Packet packet, boolean fromServer) throws PacketException {
+        routePacket(jid, packet, fromServer, null);
+    }
+
+    public void routePacket(JID jid, Packet packet, boolean fromServer, PacketTemplate template)
+            throws PacketException {
         boolean routed = false;
         try {
 	        if (serverName.equals(jid.getDomain())) {
 	        	// Packet sent to our domain.
-	            routed = routeToLocalDomain(jid, packet, fromServer);
+	            routed = routeToLocalDomain(jid, packet, fromServer, template);
 	        }
 	        else if (jid.getDomain().endsWith(serverName) && hasComponentRoute(jid)) {
 	            // Packet sent to component hosted in this server
@@ -289,7 +341,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
 	 *         <tt>false</tt> otherwise.
 	 */
 	private boolean routeToLocalDomain(JID jid, Packet packet,
-			boolean fromServer) {
+			boolean fromServer, PacketTemplate template) {
 		boolean routed = false;
         Element privateElement = packet.getElement().element(QName.get("private", "urn:xmpp:carbons:2"));
         boolean isPrivate = privateElement != null;
@@ -308,10 +360,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
 		}
 		else {
 		    // Packet sent to local user (full JID)
-		    ClientRoute clientRoute = usersCache.get(jid.toString());
-		    if (clientRoute == null) {
-		        clientRoute = anonymousUsersCache.get(jid.toString());
-		    }
+		    ClientRoute clientRoute = findClientRoute(jid);
 		    if (clientRoute != null) {
 		        if (!clientRoute.isAvailable() && routeOnlyAvailable(packet, fromServer) &&
 		                !presenceUpdateHandler.hasDirectPresence(packet.getTo(), packet.getFrom())) {
@@ -351,7 +400,14 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
 
                         // This is a route to a local user hosted in this node
                         try {
-		                    localRoutingTable.getRoute(jid.toString()).process(packet);
+                            RoutableChannelHandler route = localRoutingTable.getRoute(jid.toString());
+                            if (template != null && !isPrivate && route instanceof LocalClientSession) {
+                                // Use the serialized form of the packet shared by all recipients
+                                ((LocalClientSession) route).process(packet, template);
+                            }
+                            else {
+                                route.process(packet);
+                            }
 		                    routed = true;
 		                } catch (UnauthorizedException e) {
 		                    Log.error("Unable to route packet " + packet.toXML(), e);
@@ -691,10 +747,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
             RemoteSessionLocator locator = server.getRemoteSessionLocator();
             if (locator != null) {
                 // Check if the session is hosted by other cluster node
-                ClientRoute route = usersCache.get(jid.toString());
-                if (route == null) {
-                    route = anonymousUsersCache.get(jid.toString());
-                }
+                ClientRoute route = findRemoteClientRoute(jid);
                 if (route != null) {
                     session = locator.getClientSession(route.getNodeID().toByteArray(), jid);
                 }
@@ -714,14 +767,14 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 for (Map.Entry<String, ClientRoute> entry : usersCache.entrySet()) {
                     ClientRoute route = entry.getValue();
                     if (!server.getNodeID().equals(route.getNodeID())) {
-                        sessions.add(locator.getClientSession(route.getNodeID().toByteArray(), new JID(entry.getKey())));
+                        sessions.add(locator.getClientSession(route.getNodeID().toByteArray(), JIDCache.get(entry.getKey())));
                     }
                 }
                 // Add sessions of anonymous users hosted by other cluster nodes
                 for (Map.Entry<String, ClientRoute> entry : anonymousUsersCache.entrySet()) {
                     ClientRoute route = entry.getValue();
                     if (!server.getNodeID().equals(route.getNodeID())) {
-                        sessions.add(locator.getClientSession(route.getNodeID().toByteArray(), new JID(entry.getKey())));
+                        sessions.add(locator.getClientSession(route.getNodeID().toByteArray(), JIDCache.get(entry.getKey())));
                     }
                 }
             }
@@ -759,11 +812,55 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
     }
 
     public boolean hasClientRoute(JID jid) {
-        return usersCache.containsKey(jid.toString()) || isAnonymousRoute(jid);
+        return findClientRoute(jid) != null;
     }
 
     public boolean isAnonymousRoute(JID jid) {
-        return anonymousUsersCache.containsKey(jid.toString());
+        LocalClientRouteIndex.Route localRoute = localClientRoutes.get(jid);
+        if (localRoute != null) {
+            return localRoute.anonymous;
+        }
+        if (ClusterManager.isClusteringStarted()) {
+            ClientRoute clientRoute = anonymousUsersCache.get(jid.toString());
+            return clientRoute != null && !server.getNodeID().equals(clientRoute.getNodeID());
+        }
+        return false;
+    }
+
+    /**
+     * Returns the route to the client session of a full JID. Sessions hosted by this JVM are
+     * found in the local index. Sessions hosted by other cluster nodes are found in the caches.
+     *
+     * @param jid the full JID of the session.
+     * @return the route to the session or null if the session was not found.
+     */
+    private ClientRoute findClientRoute(JID jid) {
+        LocalClientRouteIndex.Route localRoute = localClientRoutes.get(jid);
+        if (localRoute != null) {
+            return localRoute.clientRoute;
+        }
+        if (ClusterManager.isClusteringStarted()) {
+            return findRemoteClientRoute(jid);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the route to a client session hosted by other cluster node. Routes of this node
+     * found in the caches are ignored since the caches may not be updated yet.
+     *
+     * @param jid the full JID of the session.
+     * @return the route to the session or null if no other cluster node hosts the session.
+     */
+    private ClientRoute findRemoteClientRoute(JID jid) {
+        ClientRoute clientRoute = usersCache.get(jid.toString());
+        if (clientRoute == null) {
+            clientRoute = anonymousUsersCache.get(jid.toString());
+        }
+        if (clientRoute != null && server.getNodeID().equals(clientRoute.getNodeID())) {
+            return null;
+        }
+        return clientRoute;
     }
 
     public boolean isLocalRoute(JID jid) {
@@ -784,10 +881,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
             // Address belongs to local user
             if (route.getResource() != null) {
                 // Address is a full JID of a user
-                ClientRoute clientRoute = usersCache.get(route.toString());
-                if (clientRoute == null) {
-                    clientRoute = anonymousUsersCache.get(route.toString());
-                }
+                ClientRoute clientRoute = findClientRoute(route);
                 if (clientRoute != null &&
                         (clientRoute.isAvailable() || presenceUpdateHandler.hasDirectPresence(route, requester))) {
                     jids.add(route);
@@ -795,33 +889,39 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
             }
             else {
                 // Address is a bare JID so return all AVAILABLE resources of user
-                Lock lock = CacheFactory.getLock(route.toBareJID(), usersSessions);
-                try {
-                    lock.lock(); // temporarily block new sessions for this JID
-	                Collection<String> sessions = usersSessions.get(route.toBareJID());
-	                if (sessions != null) {
-	                    // Select only available sessions
-	                    for (String jid : sessions) {
-	                        ClientRoute clientRoute = usersCache.get(jid);
-	                        if (clientRoute == null) {
-	                            clientRoute = anonymousUsersCache.get(jid);
-	                        }
-	                        if (clientRoute != null && (clientRoute.isAvailable() ||
-	                                presenceUpdateHandler.hasDirectPresence(new JID(jid), requester))) {
-	                            jids.add(new JID(jid));
-	                        }
-	                    }
-	                }
+                for (LocalClientRouteIndex.Route localRoute : localClientRoutes.getRoutes(route.toBareJID())) {
+                    if (localRoute.clientRoute.isAvailable() ||
+                            presenceUpdateHandler.hasDirectPresence(localRoute.address, requester)) {
+                        jids.add(localRoute.address);
+                    }
                 }
-                finally {
-                	lock.unlock();
+                if (ClusterManager.isClusteringStarted()) {
+                    // Add the resources of the user hosted by other cluster nodes
+                    Lock lock = CacheFactory.getLock(route.toBareJID(), usersSessions);
+                    try {
+                        lock.lock(); // temporarily block new sessions for this JID
+                        Collection<JID> sessions = usersSessions.get(route.toBareJID());
+                        if (sessions != null) {
+                            // Select only available sessions
+                            for (JID jid : sessions) {
+                                ClientRoute clientRoute = findRemoteClientRoute(jid);
+                                if (clientRoute != null && (clientRoute.isAvailable() ||
+                                        presenceUpdateHandler.hasDirectPresence(jid, requester))) {
+                                    jids.add(jid);
+                                }
+                            }
+                        }
+                    }
+                    finally {
+                        lock.unlock();
+                    }
                 }
             }
         }
         else if (route.getDomain().contains(serverName)) {
             // Packet sent to component hosted in this server
             if (componentsCache.containsKey(route.getDomain())) {
-                jids.add(new JID(route.getDomain()));
+                jids.add(JIDCache.get(route.getDomain()));
             }
         }
         else {
@@ -831,7 +931,29 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         return jids;
     }
 
-    public boolean removeClientRoute(JID route) {
+    public boolean removeClientRoute(final JID route) {
+        if (localClientRoutes.remove(route) != null) {
+            localRoutingTable.removeRoute(route.toString());
+            updateCaches(route, new Runnable() {
+                public void run() {
+                    removeClientRouteFromCaches(route);
+                }
+            });
+            return true;
+        }
+        // The route belongs to a session hosted by other cluster node
+        boolean removed = removeClientRouteFromCaches(route);
+        localRoutingTable.removeRoute(route.toString());
+        return removed;
+    }
+
+    /**
+     * Removes the route to a client session from the route caches.
+     *
+     * @param route the full JID of the session.
+     * @return true if the caches contained the route.
+     */
+    private boolean removeClientRouteFromCaches(JID route) {
         boolean anonymous = false;
         String address = route.toString();
         ClientRoute clientRoute = null;
@@ -862,9 +984,9 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                     usersSessions.remove(route.toBareJID());
                 }
                 else {
-                    Collection<String> jids = usersSessions.get(route.toBareJID());
+                    Collection<JID> jids = usersSessions.get(route.toBareJID());
                     if (jids != null) {
-                        jids.remove(route.toString());
+                        jids.remove(route);
                         if (!jids.isEmpty()) {
                             usersSessions.put(route.toBareJID(), jids);
                         }
@@ -878,7 +1000,6 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 lock.unlock();
             }
         }
-        localRoutingTable.removeRoute(address);
         return clientRoute != null;
     }
 
@@ -937,6 +1058,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         messageRouter = server.getMessageRouter();
         presenceRouter = server.getPresenceRouter();
         presenceUpdateHandler = server.getPresenceUpdateHandler();
+        asyncCacheUpdates = JiveGlobals.getBooleanProperty("xmpp.routing.cache.async", true);
         // Listen to cluster events
         ClusterManager.addListener(this);
     }
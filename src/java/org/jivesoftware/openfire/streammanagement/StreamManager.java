@@ -35,7 +35,7 @@ public class StreamManager {
 	/**
 	 * Connection (stream) to client for the session the manager belongs to
 	 */
-	private final Connection connection;
+	private volatile Connection connection;
 
 	/**
 	 * Whether Stream Management is enabled for session
@@ -73,6 +73,17 @@ public class StreamManager {
      */
     private Deque<UnackedPacket> unacknowledgedServerStanzas = new LinkedList<UnackedPacket>();
 
+    /**
+     * Identifier used by the client for resuming the stream or <tt>null</tt>
+     * if the stream cannot be resumed.
+     */
+    private String resumptionId;
+
+    /**
+     * Max number of seconds that the session will wait to be resumed after the stream was broken.
+     */
+    private int maxResumptionTime;
+
     public StreamManager(Connection connection) {
     	this.connection = connection;
     }
@@ -110,10 +121,32 @@ public class StreamManager {
 	}
 
 	/**
-	 * Receive and process acknowledgement packet from client
+	 * Send a <failed /> error when the client tried to resume a stream that is unknown,
+	 * timed out or that belongs to a different user.
+	 */
+	public void sendItemNotFoundError() {
+		StringBuilder sb = new StringBuilder(150);
+		sb.append(String.format("<failed xmlns='%s'>", getNamespace()));
+		sb.append(new PacketError(PacketError.Condition.item_not_found).toXML());
+		sb.append("</failed>");
+		getConnection().deliverRawText(sb.toString());
+	}
+
+	/**
+	 * Sends XEP-0198 <resumed /> to the client once the stream was resumed.
+	 */
+	public void sendResumed() {
+		String resumed = String.format("<resumed xmlns='%s' h='%s' previd='%s'/>", getNamespace(),
+				getServerProcessedStanzas() & mask, resumptionId);
+		getConnection().deliverRawText(resumed);
+	}
+
+	/**
+	 * Receive and process acknowledgement packet from client. The <resume /> element
+	 * sent by the client is processed here too since it also acknowledges stanzas.
 	 * @param ack XEP-0198 acknowledgement <a /> stanza to process
 	 */
-	public void processClientAcknowledgement(Element ack) {
+	public synchronized void processClientAcknowledgement(Element ack) {
 		if(isEnabled()) {
 			if(ack.attribute("h") != null) {
 				long count = Long.valueOf(ack.attributeValue("h"));
@@ -128,7 +161,7 @@ public class StreamManager {
                                         }
                                     }
                                 }
-				while(i < count) {
+				while(i < count && !unacknowledgedStanzas.isEmpty()) {
 					unacknowledgedStanzas.removeFirst();
 					i++;
 				}
@@ -146,6 +179,15 @@ public class StreamManager {
 		return connection;
 	}
 
+	/**
+	 * Sets the connection (stream) of the session after the session was resumed
+	 * on a new connection.
+	 * @param connection the new connection of the session.
+	 */
+	public void setConnection(Connection connection) {
+		this.connection = connection;
+	}
+
 	/**
 	 * Determines whether Stream Management enabled for session this
 	 * manager belongs to.
@@ -164,11 +206,53 @@ public class StreamManager {
 		this.enabled = enabled;
 
 		if(enabled) {
-	    	String enabledStanza = String.format("<enabled xmlns='%s'/>", getNamespace());
+			String enabledStanza;
+			if(isResumable()) {
+				enabledStanza = String.format("<enabled xmlns='%s' id='%s' resume='true' max='%s'/>",
+						getNamespace(), resumptionId, maxResumptionTime);
+			}
+			else {
+				enabledStanza = String.format("<enabled xmlns='%s'/>", getNamespace());
+			}
 	    	getConnection().deliverRawText(enabledStanza);
 		}
 	}
 
+	/**
+	 * Allows the stream to be resumed. Must be invoked before Stream Management is enabled
+	 * so that the id of the stream is sent to the client.
+	 * @param resumptionId the identifier used by the client for resuming the stream.
+	 * @param maxResumptionTime max number of seconds to wait for the stream to be resumed.
+	 */
+	public void setResumable(String resumptionId, int maxResumptionTime) {
+		this.resumptionId = resumptionId;
+		this.maxResumptionTime = maxResumptionTime;
+	}
+
+	/**
+	 * Determines whether the stream can be resumed after it was broken.
+	 * @return
+	 */
+	public boolean isResumable() {
+		return resumptionId != null;
+	}
+
+	/**
+	 * Retrieves the identifier used by the client for resuming the stream.
+	 * @return the resumption identifier or null if the stream cannot be resumed.
+	 */
+	public String getResumptionId() {
+		return resumptionId;
+	}
+
+	/**
+	 * Retrieves the max number of seconds to wait for the stream to be resumed.
+	 * @return
+	 */
+	public int getMaxResumptionTime() {
+		return maxResumptionTime;
+	}
+
 	/**
 	 * Retrieve configured XEP-0198 namespace
 	 * @return
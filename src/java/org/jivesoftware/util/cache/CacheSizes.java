@@ -21,6 +21,7 @@
 package org.jivesoftware.util.cache;
 
 import org.jivesoftware.util.cache.Cacheable;
+import org.xmpp.packet.JID;
 
 import java.io.IOException;
 import java.io.ObjectOutputStream;
@@ -201,6 +202,10 @@ public class CacheSizes {
         else if (object instanceof Collection) {
             return sizeOfCollection((Collection)object);
         }
+        else if (object instanceof JID) {
+            // The parts of the JID and its cached string representations
+            return sizeOfObject() + 2 * sizeOfString(object.toString());
+        }
         else if (object instanceof byte[]) {
             byte [] array = (byte[])object;
             return sizeOfObject() + array.length;
@@ -0,0 +1,708 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-distributed implementation of the Cache interface that can be used by many threads
+ * at the same time. Unlike {@link DefaultCache}, which synchronizes every operation on the
+ * whole cache, this cache works as follows:<ul>
+ *
+ * <li> Entries are stored in a ConcurrentHashMap so lookups never block.
+ * <li> Keys are spread over a number of segments, each one guarded by its own lock. A segment
+ * keeps the access order and the age order of its entries in two intrusive linked lists, and
+ * its own share of the max cache size. Writes only lock the segment of the key.
+ * <li> Reads do not update the access order directly. Instead they are recorded in a small
+ * lossy buffer of the segment, which is drained (i.e. the entries are moved to the front of
+ * the access list) by the next write or by the reader that fills the buffer, if the segment
+ * lock is available at that moment. The access order is therefore an approximation of the
+ * real LRU order, which is enough for deciding which entries to evict.</ul><p>
+ *
+ * As in {@link DefaultCache}, the size of the cached objects is estimated using
+ * {@link CacheSizes} (outside of any lock) and the least recently used entries of a segment
+ * are evicted when the segment grows bigger than its share of the max cache size. Objects
+ * that are bigger than 90% of that share are not cached at all. Unlike {@link DefaultCache},
+ * <tt>null</tt> keys are not supported.
+ *
+ * @see ConcurrentLocalCacheStrategy
+ */
+public class ConcurrentCache<K, V> implements Cache<K, V> {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConcurrentCache.class);
+
+    /**
+     * Default number of segments of a cache.
+     */
+    static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    /**
+     * Smallest max size (in bytes) of a segment. Caches with a small max size use fewer
+     * segments so that the objects they store are not much bigger than a segment.
+     */
+    private static final long MIN_SEGMENT_SIZE = 16 * 1024;
+
+    /**
+     * Number of reads that can be recorded by a segment before they are applied to its
+     * access list. Must be a power of two.
+     */
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /**
+     * Number of recorded reads after which the reader tries to drain the buffer.
+     * Must be a power of two.
+     */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 16;
+
+    /**
+     * The map the keys and values are stored in.
+     */
+    private final ConcurrentHashMap<K, CacheEntry<K, V>> map;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    /**
+     * Maximum size in bytes that the cache can grow to.
+     */
+    private volatile long maxCacheSize;
+
+    /**
+     * Maximum length of time objects can exist in cache before expiring.
+     */
+    private volatile long maxLifetime;
+
+    /**
+     * The name of the cache.
+     */
+    private String name;
+
+    /**
+     * Create a new concurrent cache and specify the maximum size of for the cache in
+     * bytes, and the maximum lifetime of objects.
+     *
+     * @param name a name for the cache.
+     * @param maxSize the maximum size of the cache in bytes. -1 means the cache
+     *      has no max size.
+     * @param maxLifetime the maximum amount of time objects can exist in
+     *      cache before being deleted. -1 means objects never expire.
+     */
+    public ConcurrentCache(String name, long maxSize, long maxLifetime) {
+        this(name, maxSize, maxLifetime, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Create a new concurrent cache that uses up to the specified number of segments.
+     *
+     * @param name a name for the cache.
+     * @param maxSize the maximum size of the cache in bytes. -1 means the cache
+     *      has no max size.
+     * @param maxLifetime the maximum amount of time objects can exist in
+     *      cache before being deleted. -1 means objects never expire.
+     * @param concurrencyLevel the max number of segments of the cache.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentCache(String name, long maxSize, long maxLifetime, int concurrencyLevel) {
+        this.name = name;
+        this.maxCacheSize = maxSize;
+        this.maxLifetime = maxLifetime;
+
+        // Use a power of two number of segments, but avoid segments that are too small
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel &&
+                (maxSize < 0 || maxSize / (segmentCount * 2) >= MIN_SEGMENT_SIZE)) {
+            segmentCount <<= 1;
+        }
+        segments = (Segment[]) new ConcurrentCache<?, ?>.Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+        segmentMask = segmentCount - 1;
+        map = new ConcurrentHashMap<K, CacheEntry<K, V>>(103, 0.75f, segmentCount);
+    }
+
+    public V put(K key, V value) {
+        int objectSize = 1;
+        try {
+             objectSize = CacheSizes.sizeOfAnything(value);
+        }
+        catch (CannotCalculateSizeException e) {
+             Log.warn(e.getMessage(), e);
+        }
+
+        // If the object is bigger than the share of the cache of a segment, simply don't add it.
+        // Otherwise it would evict the other entries of its segment and then itself.
+        final long maxSize = maxCacheSize;
+        if (maxSize > 0 && objectSize > maxSize / segments.length * .90) {
+            Log.warn("Cache: " + name + " -- object with key " + key +
+                    " is too large to fit in cache. Size is " + objectSize);
+            remove(key);
+            return value;
+        }
+
+        final long now = System.currentTimeMillis();
+        final CacheEntry<K, V> entry = new CacheEntry<K, V>(key, value, objectSize, now);
+        final Segment segment = segmentFor(key);
+        CacheEntry<K, V> old;
+        segment.lock();
+        try {
+            segment.drainReadBuffer();
+            old = map.put(key, entry);
+            if (old != null) {
+                segment.unlink(old);
+            }
+            segment.link(entry);
+            segment.expireEntries(now);
+            segment.cull();
+        }
+        finally {
+            segment.unlock();
+        }
+        return old == null || old.isExpired(now, maxLifetime) ? null : old.object;
+    }
+
+    public V get(Object key) {
+        final Segment segment = segmentFor(key);
+        final CacheEntry<K, V> entry = map.get(key);
+        if (entry == null) {
+            // The object didn't exist in cache, so increment cache misses.
+            segment.misses.incrementAndGet();
+            return null;
+        }
+        final long lifetime = maxLifetime;
+        if (lifetime > 0 && entry.isExpired(System.currentTimeMillis(), lifetime)) {
+            segment.lock();
+            try {
+                segment.remove(entry);
+            }
+            finally {
+                segment.unlock();
+            }
+            segment.misses.incrementAndGet();
+            return null;
+        }
+
+        segment.hits.incrementAndGet();
+        segment.recordRead(entry);
+        return entry.object;
+    }
+
+    public V remove(Object key) {
+        final Segment segment = segmentFor(key);
+        CacheEntry<K, V> entry;
+        segment.lock();
+        try {
+            entry = map.remove(key);
+            if (entry != null) {
+                segment.unlink(entry);
+            }
+        }
+        finally {
+            segment.unlock();
+        }
+        return entry == null ? null : entry.object;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.clear();
+            }
+            finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    public int size() {
+        // First, clear all entries that have been in cache longer than the
+        // maximum defined age.
+        deleteExpiredEntries();
+
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        // First, clear all entries that have been in cache longer than the
+        // maximum defined age.
+        deleteExpiredEntries();
+
+        return map.isEmpty();
+    }
+
+    public boolean containsKey(Object key) {
+        final CacheEntry<K, V> entry = map.get(key);
+        if (entry == null) {
+            return false;
+        }
+        final long lifetime = maxLifetime;
+        return lifetime <= 0 || !entry.isExpired(System.currentTimeMillis(), lifetime);
+    }
+
+    public boolean containsValue(Object value) {
+        for (V object : values()) {
+            if (value == null ? object == null : value.equals(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public Collection<V> values() {
+        final long now = System.currentTimeMillis();
+        final Collection<V> result = new ArrayList<V>(map.size());
+        for (CacheEntry<K, V> entry : map.values()) {
+            if (!entry.isExpired(now, maxLifetime)) {
+                result.add(entry.object);
+            }
+        }
+        return result;
+    }
+
+    public Set<K> keySet() {
+        final long now = System.currentTimeMillis();
+        final Set<K> result = new HashSet<K>(map.size());
+        for (CacheEntry<K, V> entry : map.values()) {
+            if (!entry.isExpired(now, maxLifetime)) {
+                result.add(entry.key);
+            }
+        }
+        return result;
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        final long now = System.currentTimeMillis();
+        final Map<K, V> result = new HashMap<K, V>(map.size());
+        for (CacheEntry<K, V> entry : map.values()) {
+            if (!entry.isExpired(now, maxLifetime)) {
+                result.put(entry.key, entry.object);
+            }
+        }
+        return result.entrySet();
+    }
+
+    /**
+     * Returns the name of this cache. The name is completely arbitrary
+     * and used only for display to administrators.
+     *
+     * @return the name of this cache.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name of this cache.
+     *
+     * @param name the name of this cache.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the number of cache hits. A cache hit occurs every
+     * time the get method is called and the cache contains the requested
+     * object.
+     *
+     * @return the number of cache hits.
+     */
+    public long getCacheHits() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            hits += segment.hits.get();
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the number of cache misses. A cache miss occurs every
+     * time the get method is called and the cache does not contain the
+     * requested object.
+     *
+     * @return the number of cache misses.
+     */
+    public long getCacheMisses() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            misses += segment.misses.get();
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the size of the cache contents in bytes. This value is only a
+     * rough approximation, so cache users should expect that actual VM
+     * memory used by the cache could be significantly higher than the value
+     * reported by this method.
+     *
+     * @return the size of the cache contents in bytes.
+     */
+    public int getCacheSize() {
+        long cacheSize = 0;
+        for (Segment segment : segments) {
+            cacheSize += segment.cacheSize;
+        }
+        return (int) cacheSize;
+    }
+
+    /**
+     * Returns the maximum size of the cache (in bytes). If the cache grows larger
+     * than the max size, the least recently used items will be removed. If
+     * the max cache size is set to -1, there is no size limit.
+     *
+     * @return the maximum size of the cache (-1 indicates unlimited max size).
+     */
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * Sets the maximum size of the cache. If the cache grows larger
+     * than the max size, the least recently used items will be removed. If
+     * the max cache size is set to -1, there is no size limit.
+     *
+     * @param maxCacheSize the maximum size of this cache (-1 indicates unlimited max size).
+     */
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+        CacheFactory.setMaxSizeProperty(name, maxCacheSize);
+        // It's possible that the new max size is smaller than our current cache
+        // size. If so, we need to delete infrequently used items.
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.cull();
+            }
+            finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of milliseconds that any object can live
+     * in cache. Once the specified number of milliseconds passes, the object
+     * will be automatically expired from cache. If the max lifetime is set
+     * to -1, then objects never expire.
+     *
+     * @return the maximum number of milliseconds before objects are expired.
+     */
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * Sets the maximum number of milliseconds that any object can live
+     * in cache. Once the specified number of milliseconds passes, the object
+     * will be automatically expired from cache. If the max lifetime is set
+     * to -1, then objects never expire.
+     *
+     * @param maxLifetime the maximum number of milliseconds before objects are expired.
+     */
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+        CacheFactory.setMaxLifetimeProperty(name, maxLifetime);
+    }
+
+    /**
+     * Clears all entries out of cache where the entries are older than the
+     * maximum defined age.
+     */
+    protected void deleteExpiredEntries() {
+        // Check if expiration is turned on.
+        if (maxLifetime <= 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.expireEntries(now);
+            }
+            finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    private Segment segmentFor(Object key) {
+        // Spread the bits of the hash code so that keys with similar hashes use different segments
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    /**
+     * Group of entries of the cache that share a lock, an access list and an age list.
+     * The lists and the size of the segment are guarded by the segment lock.
+     */
+    private final class Segment extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Head of the circular list that keeps the entries in the order they were
+         * accessed, most used to least used.
+         */
+        private final CacheEntry<K, V> accessHead = new CacheEntry<K, V>(null, null, 0, 0);
+
+        /**
+         * Head of the circular list that keeps the entries in the order they were
+         * added to the segment, most recently added to oldest added.
+         */
+        private final CacheEntry<K, V> ageHead = new CacheEntry<K, V>(null, null, 0, 0);
+
+        /**
+         * Maintains the current size of the segment in bytes.
+         */
+        private volatile long cacheSize = 0;
+
+        private final AtomicReferenceArray<CacheEntry<K, V>> readBuffer =
+                new AtomicReferenceArray<CacheEntry<K, V>>(READ_BUFFER_SIZE);
+        private final AtomicInteger readCount = new AtomicInteger(0);
+        /**
+         * Value of the read count when the buffer was last drained.
+         */
+        private int drainedCount = 0;
+
+        private final AtomicLong hits = new AtomicLong(0);
+        private final AtomicLong misses = new AtomicLong(0);
+
+        Segment() {
+            accessHead.nextAccess = accessHead.previousAccess = accessHead;
+            ageHead.nextAge = ageHead.previousAge = ageHead;
+        }
+
+        /**
+         * Records that an entry was read. Reads are applied to the access list when the
+         * buffer is drained, and may be lost if the buffer is full.
+         */
+        void recordRead(CacheEntry<K, V> entry) {
+            final int index = readCount.getAndIncrement();
+            readBuffer.lazySet(index & READ_BUFFER_MASK, entry);
+            if ((index & (READ_BUFFER_DRAIN_THRESHOLD - 1)) == READ_BUFFER_DRAIN_THRESHOLD - 1 && tryLock()) {
+                try {
+                    drainReadBuffer();
+                }
+                finally {
+                    unlock();
+                }
+            }
+        }
+
+        /**
+         * Moves the entries that were recently read to the front of the access list.
+         * Must be invoked while holding the lock.
+         */
+        void drainReadBuffer() {
+            final int count = readCount.get();
+            final int pending = Math.min(count - drainedCount, READ_BUFFER_SIZE);
+            for (int i = count - pending; i != count; i++) {
+                final int index = i & READ_BUFFER_MASK;
+                final CacheEntry<K, V> entry = readBuffer.get(index);
+                if (entry != null) {
+                    readBuffer.lazySet(index, null);
+                    if (entry.linked) {
+                        unlinkAccess(entry);
+                        linkAccess(entry);
+                    }
+                }
+            }
+            drainedCount = count;
+        }
+
+        /**
+         * Adds a new entry to the front of the lists. Must be invoked while holding the lock.
+         */
+        void link(CacheEntry<K, V> entry) {
+            linkAccess(entry);
+            entry.nextAge = ageHead.nextAge;
+            entry.previousAge = ageHead;
+            ageHead.nextAge.previousAge = entry;
+            ageHead.nextAge = entry;
+            entry.linked = true;
+            cacheSize += entry.size;
+        }
+
+        /**
+         * Removes an entry from the lists. Must be invoked while holding the lock.
+         */
+        void unlink(CacheEntry<K, V> entry) {
+            if (!entry.linked) {
+                return;
+            }
+            unlinkAccess(entry);
+            entry.previousAge.nextAge = entry.nextAge;
+            entry.nextAge.previousAge = entry.previousAge;
+            entry.nextAge = entry.previousAge = null;
+            entry.linked = false;
+            cacheSize -= entry.size;
+        }
+
+        /**
+         * Removes an entry from the cache unless it was already replaced. Must be invoked
+         * while holding the lock.
+         */
+        void remove(CacheEntry<K, V> entry) {
+            if (map.remove(entry.key, entry)) {
+                unlink(entry);
+            }
+        }
+
+        /**
+         * Removes the entries that are older than the max lifetime of the cache. The oldest
+         * entries are at the end of the age list so no more entries than needed are looked at.
+         * Must be invoked while holding the lock.
+         */
+        void expireEntries(long now) {
+            final long lifetime = maxLifetime;
+            if (lifetime <= 0) {
+                return;
+            }
+            CacheEntry<K, V> entry = ageHead.previousAge;
+            while (entry != ageHead && entry.isExpired(now, lifetime)) {
+                remove(entry);
+                entry = ageHead.previousAge;
+            }
+        }
+
+        /**
+         * Removes entries from the segment if it is too full. "Too full" is defined as within
+         * 3% of the share of the max cache size of the segment. Whenever the segment is too
+         * big, the least recently used entries are deleted until the segment is at least 10%
+         * empty. Must be invoked while holding the lock.
+         */
+        void cull() {
+            final long maxSize = maxCacheSize;
+            // Check if a max cache size is defined.
+            if (maxSize < 0) {
+                return;
+            }
+            final long segmentSize = maxSize / segments.length;
+            if (cacheSize >= (long) (segmentSize * .97)) {
+                // First, delete any old entries to see how much memory that frees.
+                expireEntries(System.currentTimeMillis());
+                final long desiredSize = (long) (segmentSize * .90);
+                if (cacheSize > desiredSize) {
+                    int culled = 0;
+                    do {
+                        remove(accessHead.previousAccess);
+                        culled++;
+                    } while (cacheSize > desiredSize && accessHead.previousAccess != accessHead);
+                    if (Log.isDebugEnabled()) {
+                        Log.debug("Cache " + name + " segment was full, removed " + culled + " entries.");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes all entries of the segment and resets its statistics. Must be invoked while
+         * holding the lock.
+         */
+        void clear() {
+            CacheEntry<K, V> entry = ageHead.previousAge;
+            while (entry != ageHead) {
+                remove(entry);
+                entry = ageHead.previousAge;
+            }
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                readBuffer.set(i, null);
+            }
+            hits.set(0);
+            misses.set(0);
+        }
+
+        private void linkAccess(CacheEntry<K, V> entry) {
+            entry.nextAccess = accessHead.nextAccess;
+            entry.previousAccess = accessHead;
+            accessHead.nextAccess.previousAccess = entry;
+            accessHead.nextAccess = entry;
+        }
+
+        private void unlinkAccess(CacheEntry<K, V> entry) {
+            entry.previousAccess.nextAccess = entry.nextAccess;
+            entry.nextAccess.previousAccess = entry.previousAccess;
+            entry.nextAccess = entry.previousAccess = null;
+        }
+    }
+
+    /**
+     * Wrapper for all objects put into cache. Besides the cached object and its size, an
+     * entry has the links of the access list and the age list of its segment. The links
+     * are guarded by the lock of the segment.
+     */
+    private static final class CacheEntry<K, V> {
+
+        final K key;
+        final V object;
+
+        /**
+         * The size of the object, computed only once when it is added to the cache.
+         */
+        final int size;
+
+        /**
+         * Time when the object was added to the cache.
+         */
+        final long creationTime;
+
+        /**
+         * True while the entry is in the lists of its segment.
+         */
+        boolean linked;
+
+        CacheEntry<K, V> previousAccess;
+        CacheEntry<K, V> nextAccess;
+        CacheEntry<K, V> previousAge;
+        CacheEntry<K, V> nextAge;
+
+        CacheEntry(K key, V object, int size, long creationTime) {
+            this.key = key;
+            this.object = object;
+            this.size = size;
+            this.creationTime = creationTime;
+        }
+
+        boolean isExpired(long now, long maxLifetime) {
+            return maxLifetime > 0 && now - creationTime > maxLifetime;
+        }
+    }
+}
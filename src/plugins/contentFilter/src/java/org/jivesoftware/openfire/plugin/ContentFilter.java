@@ -20,11 +20,7 @@
 
 package org.jivesoftware.openfire.plugin;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Iterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.dom4j.Element;
 import org.xmpp.packet.Message;
@@ -32,7 +28,11 @@ import org.xmpp.packet.Packet;
 
 /**
  * Filters message content using regular expressions. If a content mask is
- * provided message content will be altered.
+ * provided message content will be altered.<p>
+ *
+ * All the patterns are compiled into a single {@link MultiPatternMatcher}, so
+ * the content is scanned once regardless of the number of patterns and all
+ * the matches are masked in a single pass.
  *
  * @author Conor Hayes
  */
@@ -40,7 +40,7 @@ public class ContentFilter {
 
     private String patterns;
 
-    private Collection<Pattern> compiledPatterns = new ArrayList<Pattern>();
+    private volatile MultiPatternMatcher matcher;
 
     private String mask;
 
@@ -62,13 +62,7 @@ public class ContentFilter {
     public void setPatterns(String patterns) {
         if (patterns != null) {
             this.patterns = patterns;
-            String[] data = patterns.split(",");
-
-            compiledPatterns.clear();
-
-            for (int i = 0; i < data.length; i++) {
-                compiledPatterns.add(Pattern.compile(data[i]));
-            }
+            matcher = new MultiPatternMatcher(patterns.split(","));
         }
         else {
             clearPatterns();
@@ -86,7 +80,7 @@ public class ContentFilter {
      */
     public void clearPatterns() {
         patterns = null;
-        compiledPatterns.clear();
+        matcher = null;
     }
 
     /**
@@ -152,28 +146,24 @@ public class ContentFilter {
     
     private boolean mask(Element element) {
         
-        boolean match = false;
+        final MultiPatternMatcher matcher = this.matcher;
+        final String mask = this.mask;
         
         String content = element.getText();
         
-        if ((content != null) && (content.length() > 0)) {
-            
-            for (Pattern pattern : compiledPatterns) {                
-                
-                Matcher matcher = pattern.matcher(content);
-                
-                if (matcher.find()) {
-                    
-                    match = true;
-                    
-                    if (isMaskingContent()) {
-                        content = matcher.replaceAll(mask);
-                        element.setText(content);
-                    }
-                }  
-            }    
+        if (matcher == null || content == null || content.length() == 0) {
+            return false;
         }
         
-        return match;
+        if (mask == null) {
+            return matcher.find(content);
+        }
+        
+        String masked = matcher.mask(content, mask);
+        if (masked == content) {
+            return false;
+        }
+        element.setText(masked);
+        return true;
     }
 }
\ No newline at end of file
@@ -21,6 +21,7 @@
 package org.jivesoftware.openfire.plugin;
 
 import java.io.File;
+import java.util.EnumSet;
 import java.util.regex.PatternSyntaxException;
 
 import org.jivesoftware.openfire.MessageRouter;
@@ -28,6 +29,7 @@ import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.container.Plugin;
 import org.jivesoftware.openfire.container.PluginManager;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
+import org.jivesoftware.openfire.interceptor.InterceptorScope;
 import org.jivesoftware.openfire.interceptor.PacketInterceptor;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.session.Session;
@@ -410,8 +412,10 @@ public class ContentFilterPlugin implements Plugin, PacketInterceptor {
         // configure this plugin
         initFilter();
 
-        // register with interceptor manager
-        interceptorManager.addInterceptor(this);
+        // register with interceptor manager. Only incoming messages and presences are filtered
+        interceptorManager.addInterceptor(this, new InterceptorScope(
+                EnumSet.of(InterceptorScope.PacketType.message, InterceptorScope.PacketType.presence),
+                EnumSet.of(InterceptorScope.Direction.read), EnumSet.of(InterceptorScope.Phase.unprocessed)));
     }
 
     private void initFilter() {
@@ -0,0 +1,459 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Finds the matches of many patterns in a text scanning the text only once, instead of once
+ * per pattern.<p>
+ *
+ * Patterns without regular expression metacharacters, which is usually the case of the words
+ * of a word list, are searched with an Aho-Corasick automaton. The other patterns are combined
+ * into a single regular expression that has one alternative per pattern. Patterns with back
+ * references can not be combined because the groups are renumbered, so each of them is
+ * searched on its own. So is each pattern that does not keep its meaning once wrapped in a
+ * group, such as a quote without <tt>\E</tt> or a comment in comments mode, since it would
+ * swallow the end of its group and the following alternatives.<p>
+ *
+ * The matches of all the patterns are merged into a list of matches that do not overlap. When
+ * matches overlap the one that starts first wins and, if they start at the same position, the
+ * longest one wins.
+ */
+class MultiPatternMatcher {
+
+    private static final Comparator<Match> MATCH_ORDER = new Comparator<Match>() {
+        public int compare(Match m1, Match m2) {
+            if (m1.start != m2.start) {
+                return m1.start < m2.start ? -1 : 1;
+            }
+            return m2.end - m1.end;
+        }
+    };
+
+    private final String[] patterns;
+    private final LiteralAutomaton literals;
+    private final Pattern combined;
+    /**
+     * Group of the combined expression of each alternative followed by the index of its pattern.
+     */
+    private final int[] alternatives;
+    private final Pattern[] separate;
+    private final int[] separateIndexes;
+
+    /**
+     * Compiles a list of patterns.
+     *
+     * @param patterns the regular expressions to search.
+     * @throws java.util.regex.PatternSyntaxException if a pattern is not a valid regular expression.
+     */
+    MultiPatternMatcher(String... patterns) {
+        this.patterns = patterns.clone();
+
+        final List<Integer> literalIndexes = new ArrayList<Integer>();
+        final StringBuilder expression = new StringBuilder();
+        final List<Integer> combinedAlternatives = new ArrayList<Integer>();
+        final List<Pattern> separatePatterns = new ArrayList<Pattern>();
+        final List<Integer> separatePatternIndexes = new ArrayList<Integer>();
+        int group = 1;
+        for (int i = 0; i < patterns.length; i++) {
+            final String pattern = patterns[i];
+            if (isLiteral(pattern)) {
+                literalIndexes.add(i);
+                continue;
+            }
+            // Fails with the same exception as before for invalid patterns
+            final Pattern compiled = Pattern.compile(pattern);
+            if (hasBackReference(pattern) || !isGroupable(pattern, compiled)) {
+                separatePatterns.add(compiled);
+                separatePatternIndexes.add(i);
+                continue;
+            }
+            if (expression.length() > 0) {
+                expression.append('|');
+            }
+            expression.append('(').append(pattern).append(')');
+            combinedAlternatives.add(group);
+            combinedAlternatives.add(i);
+            group += compiled.matcher("").groupCount() + 1;
+        }
+
+        if (literalIndexes.isEmpty()) {
+            literals = null;
+        }
+        else {
+            final String[] words = new String[literalIndexes.size()];
+            final int[] indexes = new int[words.length];
+            for (int i = 0; i < words.length; i++) {
+                indexes[i] = literalIndexes.get(i);
+                words[i] = patterns[indexes[i]];
+            }
+            literals = new LiteralAutomaton(words, indexes);
+        }
+        combined = expression.length() > 0 ? Pattern.compile(expression.toString()) : null;
+        alternatives = toArray(combinedAlternatives);
+        separate = separatePatterns.toArray(new Pattern[separatePatterns.size()]);
+        separateIndexes = toArray(separatePatternIndexes);
+    }
+
+    /**
+     * Returns the patterns of the matcher.
+     *
+     * @return the patterns of the matcher.
+     */
+    String[] getPatterns() {
+        return patterns.clone();
+    }
+
+    /**
+     * Returns true if any of the patterns is found in a text.
+     *
+     * @param text the text to search.
+     * @return true if the text matches any of the patterns.
+     */
+    boolean find(String text) {
+        if (literals != null && literals.find(text)) {
+            return true;
+        }
+        if (combined != null && combined.matcher(text).find()) {
+            return true;
+        }
+        for (Pattern pattern : separate) {
+            if (pattern.matcher(text).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the matches of the patterns in a text, sorted by position. Matches do not overlap.
+     *
+     * @param text the text to search.
+     * @return the matches found in the text or an empty list if no pattern was found.
+     */
+    List<Match> findAll(String text) {
+        final List<Match> matches = new ArrayList<Match>();
+        if (literals != null) {
+            literals.findAll(text, matches);
+        }
+        if (combined != null) {
+            final Matcher matcher = combined.matcher(text);
+            while (matcher.find()) {
+                int alternative = 0;
+                while (alternative + 2 < alternatives.length && matcher.start(alternatives[alternative]) == -1) {
+                    alternative += 2;
+                }
+                matches.add(new Match(matcher.start(), matcher.end(), alternatives[alternative + 1]));
+            }
+        }
+        for (int i = 0; i < separate.length; i++) {
+            final Matcher matcher = separate[i].matcher(text);
+            while (matcher.find()) {
+                matches.add(new Match(matcher.start(), matcher.end(), separateIndexes[i]));
+            }
+        }
+        if (matches.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Collections.sort(matches, MATCH_ORDER);
+
+        // Drop the matches that overlap a previous match
+        final List<Match> result = new ArrayList<Match>(matches.size());
+        Match last = null;
+        for (Match match : matches) {
+            if (last == null || match.start >= last.end && (match.start > last.start || last.end > last.start)) {
+                result.add(match);
+                last = match;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces all the matches of the patterns in a text with a mask.
+     *
+     * @param text the text to search.
+     * @param mask the text that replaces the matches.
+     * @return the masked text or the same text if no pattern was found.
+     */
+    String mask(String text, String mask) {
+        final List<Match> matches = findAll(text);
+        if (matches.isEmpty()) {
+            return text;
+        }
+        final StringBuilder masked = new StringBuilder(text.length() + matches.size() * mask.length());
+        int position = 0;
+        for (Match match : matches) {
+            masked.append(text, position, match.start).append(mask);
+            position = match.end;
+        }
+        return masked.append(text, position, text.length()).toString();
+    }
+
+    /**
+     * Returns true if a pattern has no regular expression metacharacters, so it only matches
+     * itself.
+     */
+    static boolean isLiteral(String pattern) {
+        if (pattern.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("\\^$.|?*+()[]{}".indexOf(pattern.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a pattern wrapped in a group is a valid expression with one more group
+     * than the pattern, so it can be an alternative of the combined expression.
+     */
+    private static boolean isGroupable(String pattern, Pattern compiled) {
+        try {
+            final Pattern group = Pattern.compile("(" + pattern + ")");
+            return group.matcher("").groupCount() == compiled.matcher("").groupCount() + 1;
+        }
+        catch (PatternSyntaxException e) {
+            return false;
+        }
+    }
+
+    private static boolean hasBackReference(String pattern) {
+        for (int i = 0; i < pattern.length() - 1; i++) {
+            if (pattern.charAt(i) == '\\') {
+                final char next = pattern.charAt(++i);
+                if (Character.isDigit(next) || next == 'k') {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * A match of a pattern in a text.
+     */
+    static class Match {
+
+        private final int start;
+        private final int end;
+        private final int pattern;
+
+        Match(int start, int end, int pattern) {
+            this.start = start;
+            this.end = end;
+            this.pattern = pattern;
+        }
+
+        /**
+         * Returns the position of the first character of the match.
+         *
+         * @return the position of the first character of the match.
+         */
+        int getStart() {
+            return start;
+        }
+
+        /**
+         * Returns the position after the last character of the match.
+         *
+         * @return the position after the last character of the match.
+         */
+        int getEnd() {
+            return end;
+        }
+
+        /**
+         * Returns the index of the pattern that matched in the list of patterns of the matcher.
+         *
+         * @return the index of the pattern that matched.
+         */
+        int getPattern() {
+            return pattern;
+        }
+
+        @Override
+        public String toString() {
+            return "Match{start=" + start + ", end=" + end + ", pattern=" + pattern + "}";
+        }
+    }
+
+    /**
+     * Aho-Corasick automaton that finds all the occurrences of a list of words in a single pass.
+     * The transitions of each state are kept in sorted arrays, which is compact enough for word
+     * lists with thousands of words.
+     */
+    private static class LiteralAutomaton {
+
+        private final char[][] keys;
+        private final int[][] targets;
+        private final int[] failure;
+        /**
+         * Index of the word that ends in each state or -1.
+         */
+        private final int[] word;
+        /**
+         * Next state through the failure links where a word ends or -1.
+         */
+        private final int[] output;
+        private final int[] lengths;
+        private final int[] indexes;
+        /**
+         * Characters that appear in the words, used to skip the characters that can not match.
+         */
+        private final boolean[] alphabet = new boolean[Character.MAX_VALUE + 1];
+
+        LiteralAutomaton(String[] words, int[] indexes) {
+            this.indexes = indexes;
+            this.lengths = new int[words.length];
+
+            // Build the trie
+            final List<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+            final List<Integer> wordOfState = new ArrayList<Integer>();
+            trie.add(new HashMap<Character, Integer>());
+            wordOfState.add(-1);
+            for (int w = 0; w < words.length; w++) {
+                final String text = words[w];
+                lengths[w] = text.length();
+                int state = 0;
+                for (int i = 0; i < text.length(); i++) {
+                    final char c = text.charAt(i);
+                    alphabet[c] = true;
+                    Integer next = trie.get(state).get(c);
+                    if (next == null) {
+                        next = trie.size();
+                        trie.add(new HashMap<Character, Integer>());
+                        wordOfState.add(-1);
+                        trie.get(state).put(c, next);
+                    }
+                    state = next;
+                }
+                // Keep the first of duplicated words
+                if (wordOfState.get(state) == -1) {
+                    wordOfState.set(state, w);
+                }
+            }
+
+            final int size = trie.size();
+            keys = new char[size][];
+            targets = new int[size][];
+            word = new int[size];
+            for (int state = 0; state < size; state++) {
+                final Map<Character, Integer> transitions = trie.get(state);
+                final char[] chars = new char[transitions.size()];
+                int i = 0;
+                for (Character c : transitions.keySet()) {
+                    chars[i++] = c;
+                }
+                Arrays.sort(chars);
+                final int[] next = new int[chars.length];
+                for (i = 0; i < chars.length; i++) {
+                    next[i] = transitions.get(chars[i]);
+                }
+                keys[state] = chars;
+                targets[state] = next;
+                word[state] = wordOfState.get(state);
+            }
+
+            // Compute the failure and output links breadth first
+            failure = new int[size];
+            output = new int[size];
+            output[0] = -1;
+            final int[] queue = new int[size];
+            int head = 0;
+            int tail = 0;
+            for (int child : targets[0]) {
+                failure[child] = 0;
+                output[child] = -1;
+                queue[tail++] = child;
+            }
+            while (head < tail) {
+                final int state = queue[head++];
+                for (int i = 0; i < keys[state].length; i++) {
+                    final char c = keys[state][i];
+                    final int child = targets[state][i];
+                    int fallback = failure[state];
+                    while (fallback != 0 && next(fallback, c) == -1) {
+                        fallback = failure[fallback];
+                    }
+                    final int target = next(fallback, c);
+                    failure[child] = target == -1 ? 0 : target;
+                    output[child] = word[failure[child]] != -1 ? failure[child] : output[failure[child]];
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        boolean find(String text) {
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                state = step(state, text.charAt(i));
+                if (state != 0 && (word[state] != -1 || output[state] != -1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void findAll(String text, List<Match> matches) {
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                state = step(state, text.charAt(i));
+                for (int s = word[state] != -1 ? state : output[state]; s > 0; s = output[s]) {
+                    final int w = word[s];
+                    matches.add(new Match(i + 1 - lengths[w], i + 1, indexes[w]));
+                }
+            }
+        }
+
+        private int step(int state, char c) {
+            if (!alphabet[c]) {
+                return 0;
+            }
+            int next;
+            while ((next = next(state, c)) == -1 && state != 0) {
+                state = failure[state];
+            }
+            return next == -1 ? 0 : next;
+        }
+
+        private int next(int state, char c) {
+            final int i = Arrays.binarySearch(keys[state], c);
+            return i < 0 ? -1 : targets[state][i];
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link MultiPatternMatcher} used by the {@link ContentFilter} with the
+ * previous implementation, which ran each pattern over the content and replaced the matches
+ * of each pattern with <tt>replaceAll</tt>. The patterns are a list of 5,000 words, optionally
+ * with a few regular expressions added (<tt>mixed</tt>), and the content is a message body of
+ * about 200 characters that either has no matches (<tt>clean</tt>) or has three of the words.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentFilterBenchmark {
+
+    private static final int WORDS = 5000;
+    private static final String MASK = "***";
+
+    @Param({"words", "mixed"})
+    public String patternList;
+
+    @Param({"clean", "matching"})
+    public String content;
+
+    private List<Pattern> compiledPatterns;
+    private MultiPatternMatcher matcher;
+    private String body;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        final List<String> patterns = new ArrayList<String>(WORDS + 3);
+        for (int i = 0; i < WORDS; i++) {
+            // Words of 5 to 10 upper case letters never appear in the lower case text
+            final StringBuilder word = new StringBuilder();
+            for (int length = 5 + random.nextInt(6); word.length() < length;) {
+                word.append((char) ('A' + random.nextInt(26)));
+            }
+            patterns.add(word.toString());
+        }
+        if ("mixed".equals(patternList)) {
+            patterns.add("(?i)\\bfree\\s+money\\b");
+            patterns.add("\\d{4}-\\d{4}-\\d{4}-\\d{4}");
+            patterns.add("[a-z]+@spam\\.example\\.com");
+        }
+
+        compiledPatterns = new ArrayList<Pattern>(patterns.size());
+        for (String pattern : patterns) {
+            compiledPatterns.add(Pattern.compile(pattern));
+        }
+        matcher = new MultiPatternMatcher(patterns.toArray(new String[patterns.size()]));
+
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 200) {
+            text.append("the quick brown fox jumps over the lazy dog ");
+        }
+        if ("matching".equals(content)) {
+            text.insert(0, patterns.get(0) + " ");
+            text.insert(text.length() / 2, " " + patterns.get(WORDS / 2) + " ");
+            text.append(patterns.get(WORDS - 1));
+        }
+        body = text.toString();
+    }
+
+    @Benchmark
+    public String regexLoop() {
+        String masked = body;
+        for (Pattern pattern : compiledPatterns) {
+            final Matcher m = pattern.matcher(masked);
+            if (m.find()) {
+                masked = m.replaceAll(MASK);
+            }
+        }
+        return masked;
+    }
+
+    @Benchmark
+    public String multiPatternMatcher() {
+        return matcher.mask(body, MASK);
+    }
+
+    @Benchmark
+    public boolean regexLoopFind() {
+        for (Pattern pattern : compiledPatterns) {
+            if (pattern.matcher(body).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean multiPatternMatcherFind() {
+        return matcher.find(body);
+    }
+}
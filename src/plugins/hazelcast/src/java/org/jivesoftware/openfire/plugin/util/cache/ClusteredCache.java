@@ -50,6 +50,12 @@ public class ClusteredCache implements Cache {
     private String name;
     private long numberOfGets = 0;
 
+    /**
+     * Local copy of the entries read by this JVM or null if the cache does not use a near cache.
+     */
+    private final NearCache nearCache;
+    private String nearCacheRegistration;
+
     /**
      * Create a new cache using the supplied named cache as the actual cache implementation
      *
@@ -57,8 +63,24 @@ public class ClusteredCache implements Cache {
      * @param cache the cache implementation
      */
     protected ClusteredCache(String name, IMap cache) {
+        this(name, cache, null);
+    }
+
+    /**
+     * Create a new cache using the supplied named cache as the actual cache implementation
+     * and a near cache to keep local copies of the entries read by this JVM.
+     *
+     * @param name a name for the cache, which should be unique per vm.
+     * @param cache the cache implementation
+     * @param nearCache the near cache to use or null to always read from the cluster.
+     */
+    protected ClusteredCache(String name, IMap cache, NearCache nearCache) {
         map = cache;
         setName(name);
+        this.nearCache = nearCache;
+        if (nearCache != null) {
+            nearCacheRegistration = map.addEntryListener(nearCache, false);
+        }
     }
 
     public void addEntryListener(EntryListener listener, boolean includeValue) {
@@ -84,20 +106,40 @@ public class ClusteredCache implements Cache {
 
     public Object put(Object key, Object object) {
     	if (object == null) { return null; }
-        return map.put(key, object);
+        try {
+            return map.put(key, object);
+        }
+        finally {
+            invalidate(key);
+        }
     }
 
     public Object get(Object key) {
     	numberOfGets++;
+    	if (nearCache != null) {
+    	    return nearCache.get(key, map);
+    	}
         return map.get(key);
     }
 
     public Object remove(Object key) {
-        return map.remove(key);
+        try {
+            return map.remove(key);
+        }
+        finally {
+            invalidate(key);
+        }
     }
 
     public void clear() {
-        map.clear();
+        try {
+            map.clear();
+        }
+        finally {
+            if (nearCache != null) {
+                nearCache.clear();
+            }
+        }
     }
 
     public int size() {
@@ -106,6 +148,9 @@ public class ClusteredCache implements Cache {
     }
 
     public boolean containsKey(Object key) {
+        if (nearCache != null && nearCache.containsKey(key)) {
+            return true;
+        }
         return map.containsKey(key);
     }
 
@@ -126,7 +171,14 @@ public class ClusteredCache implements Cache {
     }
 
     public void putAll(Map entries) {
-        map.putAll(entries);
+        try {
+            map.putAll(entries);
+        }
+        finally {
+            for (Object key : entries.keySet()) {
+                invalidate(key);
+            }
+        }
     }
 
     public Collection values() {
@@ -134,11 +186,12 @@ public class ClusteredCache implements Cache {
     }
 
     public long getCacheHits() {
-    	return map.getLocalMapStats().getHits();
+    	long hits = map.getLocalMapStats().getHits();
+    	return nearCache != null ? hits + nearCache.getHits() : hits;
     }
 
     public long getCacheMisses() {
-    	long hits = map.getLocalMapStats().getHits();
+    	long hits = getCacheHits();
     	return numberOfGets > hits ? numberOfGets - hits : 0;
     }
 
@@ -164,9 +217,28 @@ public class ClusteredCache implements Cache {
     }
 
     public void destroy() {
+        if (nearCacheRegistration != null) {
+            map.removeEntryListener(nearCacheRegistration);
+            nearCache.clear();
+        }
         map.destroy();
     }
 
+    /**
+     * Returns the near cache of this cache or null if the cache does not use a near cache.
+     *
+     * @return the near cache of this cache or null.
+     */
+    NearCache getNearCache() {
+        return nearCache;
+    }
+
+    private void invalidate(Object key) {
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+    }
+
     public boolean lock(Object key, long timeout) {
     	boolean result = true;
     	if (timeout < 0) {
@@ -181,6 +253,10 @@ public class ClusteredCache implements Cache {
     			result = false;
     		}
     	}
+    	if (result && nearCache != null) {
+    	    // Values read while holding the lock are read from the cluster
+    	    nearCache.locked(key);
+    	}
         return result;
     }
 
@@ -191,6 +267,9 @@ public class ClusteredCache implements Cache {
         	 logger.error("Falied to release cluster lock", e);
         	 result = false;
          }
+         if (result && nearCache != null) {
+             nearCache.unlocked(key);
+         }
          return result;
     }
 
@@ -83,6 +83,15 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
     private static final boolean HAZELCAST_JMX_ENABLED = 
     		JiveGlobals.getBooleanProperty("hazelcast.config.jmx.enabled", false);
 
+    /**
+     * Caches read when routing packets use a near cache unless configured otherwise.
+     */
+    private static final Set<String> NEAR_CACHE_NAMES = new HashSet<String>(Arrays.asList(
+            "Routing Users Cache", "Routing AnonymousUsers Cache", "Routing Servers Cache",
+            "Routing Components Cache", "Routing User Sessions"));
+    private static final int NEAR_CACHE_DEFAULT_SIZE = 10000;
+    private static final long NEAR_CACHE_DEFAULT_LIFETIME = 60 * 1000;
+
 	private static Logger logger = LoggerFactory.getLogger(ClusteredCacheFactory.class);
 
     /**
@@ -99,6 +108,7 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
     private static HazelcastInstance hazelcast = null;
     private static Cluster cluster = null;
     private ClusterListener clusterListener;
+    private ClusterPacketRouter packetRouter;
 
     /**
      * Keeps that running state. Initial state is stopped.
@@ -114,7 +124,8 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
         // Set session locator to use when in a cluster
         XMPPServer.getInstance().setRemoteSessionLocator(new RemoteSessionLocator());
         // Set packet router to use to deliver packets to remote cluster nodes
-        XMPPServer.getInstance().getRoutingTable().setRemotePacketRouter(new ClusterPacketRouter());
+        packetRouter = new ClusterPacketRouter();
+        XMPPServer.getInstance().getRoutingTable().setRemotePacketRouter(packetRouter);
 
         ClassLoader oldLoader = null;
         // Store previous class loader (in case we change it)
@@ -185,6 +196,7 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
 
         // Reset packet router to use to deliver packets to remote cluster nodes
         XMPPServer.getInstance().getRoutingTable().setRemotePacketRouter(null);
+        packetRouter.shutdown();
         // Reset the session locator to use
         XMPPServer.getInstance().setRemoteSessionLocator(null);
         // Set the old serialization strategy was using before clustering was loaded
@@ -205,7 +217,28 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
         if (state == State.stopped) {
             throw new IllegalStateException("Cannot create clustered cache when not in a cluster");
         }
-        return new ClusteredCache(name, hazelcast.getMap(name));
+        return new ClusteredCache(name, hazelcast.getMap(name), createNearCache(name));
+    }
+
+    /**
+     * Creates the near cache of a cache. The size and max lifetime of the near cache are
+     * set by the <tt>hazelcast.nearcache.[cache name].size</tt> and
+     * <tt>hazelcast.nearcache.[cache name].maxLifetime</tt> properties, where spaces are
+     * removed from the cache name. The size is a number of entries and a size of 0 disables
+     * the near cache.
+     *
+     * @param name the name of the cache.
+     * @return the near cache or null if the cache does not use a near cache.
+     */
+    private NearCache createNearCache(String name) {
+        String propertyName = "hazelcast.nearcache." + name.replaceAll(" ", "");
+        int size = JiveGlobals.getIntProperty(propertyName + ".size",
+                NEAR_CACHE_NAMES.contains(name) ? NEAR_CACHE_DEFAULT_SIZE : 0);
+        if (size <= 0) {
+            return null;
+        }
+        return new NearCache(size, JiveGlobals.getLongProperty(propertyName + ".maxLifetime",
+                NEAR_CACHE_DEFAULT_LIFETIME));
     }
 
     public void destroyCache(Cache cache) {
@@ -418,12 +451,29 @@ public class ClusteredCacheFactory implements CacheFactoryStrategy {
                 info[3] = cache.getCacheHits();
                 info[4] = cache.getCacheMisses();
                 stats.put(cacheName, info);
+                logNearCacheStats(cache);
             }
             // Publish message
             cacheStats.put(uid, stats);
         }
     }
 
+    private void logNearCacheStats(Cache cache) {
+        if (cache instanceof CacheWrapper) {
+            cache = ((CacheWrapper)cache).getWrappedCache();
+        }
+        if (logger.isDebugEnabled() && cache instanceof ClusteredCache) {
+            NearCache nearCache = ((ClusteredCache) cache).getNearCache();
+            if (nearCache != null) {
+                logger.debug("Near cache of " + cache.getName() + ": size=" + nearCache.size() +
+                        ", hits=" + nearCache.getHits() + ", misses=" + nearCache.getMisses() +
+                        ", invalidations=" + nearCache.getInvalidations() +
+                        ", evictions=" + nearCache.getEvictions() +
+                        ", expirations=" + nearCache.getExpirations());
+            }
+        }
+    }
+
 	public String getPluginName() {
 		return "hazelcast";
 	}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 1999-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin.util.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryListener;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapEvent;
+
+/**
+ * Local copy of the entries of a {@link ClusteredCache} that were recently read by this JVM.
+ * Reading an entry found in the near cache does not require a remote call nor deserializing
+ * the value.<p>
+ *
+ * Entries are invalidated when they are modified through the clustered cache of this JVM and
+ * when this JVM is notified that they were modified by another cluster member. Entries are
+ * also discarded once they are older than the max lifetime of the near cache, which limits the
+ * time that an entry may be stale if a notification is delayed. When the near cache is full
+ * some entries are evicted to make room for new ones.<p>
+ *
+ * Reads of keys locked by this JVM through {@link org.jivesoftware.util.cache.CacheFactory#getLock(Object, org.jivesoftware.util.cache.Cache)}
+ * always go to the cluster, so the values read and modified while holding the lock are never
+ * stale nor shared with other threads. Values returned by the near cache are shared by the
+ * readers and must not be modified without holding the lock of the key.
+ */
+class NearCache implements EntryListener {
+
+    private final ConcurrentHashMap<Object, Object> entries = new ConcurrentHashMap<Object, Object>();
+    private final Map<Object, AtomicInteger> lockedKeys = new ConcurrentHashMap<Object, AtomicInteger>();
+    private final int maxSize;
+    private final long maxLifetime;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Creates a new near cache.
+     *
+     * @param maxSize the maximum number of entries of the near cache.
+     * @param maxLifetime the maximum time in milliseconds that an entry is kept, or -1
+     *        to keep entries until they are invalidated or evicted.
+     */
+    NearCache(int maxSize, long maxLifetime) {
+        this.maxSize = maxSize;
+        this.maxLifetime = maxLifetime;
+    }
+
+    /**
+     * Returns the value of a key from the near cache or, if the near cache does not have
+     * the key, from the clustered map.
+     *
+     * @param key the key of the entry.
+     * @param map the clustered map to read from if the near cache does not have the key.
+     * @return the value of the key or null if the map does not have the key.
+     */
+    Object get(Object key, IMap map) {
+        if (lockedKeys.containsKey(key)) {
+            return map.get(key);
+        }
+        final Object current = entries.get(key);
+        if (current instanceof Entry) {
+            if (isFresh((Entry) current)) {
+                hits.incrementAndGet();
+                return ((Entry) current).value;
+            }
+            if (entries.remove(key, current)) {
+                expirations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        // Only one thread loads a key. The marker is removed if the key is invalidated
+        // while being loaded so that a value read before the change is not kept.
+        final Object marker = new Object();
+        final boolean load = entries.get(key) == null && entries.putIfAbsent(key, marker) == null;
+        Object value = null;
+        try {
+            value = map.get(key);
+        }
+        finally {
+            if (load) {
+                if (value == null || !entries.replace(key, marker, new Entry(value))) {
+                    entries.remove(key, marker);
+                }
+                else if (entries.size() > maxSize) {
+                    evict();
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if the near cache has a fresh entry for the key. Otherwise the
+     * clustered map must be checked.
+     *
+     * @param key the key of the entry.
+     * @return true if the near cache has the key.
+     */
+    boolean containsKey(Object key) {
+        if (lockedKeys.containsKey(key)) {
+            return false;
+        }
+        final Object current = entries.get(key);
+        if (current instanceof Entry && isFresh((Entry) current)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Discards the entry of a key. Used after the key was modified.
+     *
+     * @param key the key of the entry.
+     */
+    void invalidate(Object key) {
+        if (entries.remove(key) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Discards all the entries.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Keeps track that a key was locked by this JVM. The key is read from the clustered
+     * map until it is unlocked.
+     *
+     * @param key the locked key.
+     */
+    void locked(Object key) {
+        synchronized (lockedKeys) {
+            AtomicInteger count = lockedKeys.get(key);
+            if (count == null) {
+                count = new AtomicInteger();
+                lockedKeys.put(key, count);
+            }
+            count.incrementAndGet();
+        }
+        invalidate(key);
+    }
+
+    /**
+     * Keeps track that a key locked by this JVM was unlocked.
+     *
+     * @param key the unlocked key.
+     */
+    void unlocked(Object key) {
+        synchronized (lockedKeys) {
+            final AtomicInteger count = lockedKeys.get(key);
+            if (count != null && count.decrementAndGet() <= 0) {
+                lockedKeys.remove(key);
+            }
+        }
+    }
+
+    private boolean isFresh(Entry entry) {
+        return maxLifetime < 0 || System.currentTimeMillis() - entry.created <= maxLifetime;
+    }
+
+    private void evict() {
+        // Remove entries until the near cache is 90% full
+        final int target = maxSize - maxSize / 10;
+        int removed = 0;
+        for (Iterator<Object> it = entries.values().iterator(); it.hasNext() && entries.size() > target;) {
+            if (it.next() instanceof Entry) {
+                it.remove();
+                removed++;
+            }
+        }
+        evictions.addAndGet(removed);
+    }
+
+    /**
+     * Returns the number of reads answered by the near cache.
+     *
+     * @return the number of reads answered by the near cache.
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of reads of keys that were not in the near cache.
+     *
+     * @return the number of reads that went to the cluster.
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries discarded because they were modified.
+     *
+     * @return the number of entries discarded because they were modified.
+     */
+    long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Returns the number of entries discarded because the near cache was full.
+     *
+     * @return the number of entries discarded because the near cache was full.
+     */
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of entries discarded because they reached the max lifetime
+     * without being invalidated. A high number compared to the number of invalidations
+     * means that the entries may be stale for up to the max lifetime.
+     *
+     * @return the number of entries discarded because they were too old.
+     */
+    long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * Returns the number of entries of the near cache.
+     *
+     * @return the number of entries of the near cache.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    // EntryListener implementation. Events are received for the changes made by all cluster members.
+
+    public void entryAdded(EntryEvent event) {
+        invalidate(event.getKey());
+    }
+
+    public void entryUpdated(EntryEvent event) {
+        invalidate(event.getKey());
+    }
+
+    public void entryRemoved(EntryEvent event) {
+        invalidate(event.getKey());
+    }
+
+    public void entryEvicted(EntryEvent event) {
+        invalidate(event.getKey());
+    }
+
+    public void mapEvicted(MapEvent event) {
+        clear();
+    }
+
+    public void mapCleared(MapEvent event) {
+        clear();
+    }
+
+    private static class Entry {
+
+        final Object value;
+        final long created = System.currentTimeMillis();
+
+        Entry(Object value) {
+            this.value = value;
+        }
+    }
+}
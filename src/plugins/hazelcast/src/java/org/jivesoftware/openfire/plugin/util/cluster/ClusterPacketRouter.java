@@ -19,7 +19,13 @@
 
 package org.jivesoftware.openfire.plugin.util.cluster;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.jivesoftware.openfire.RemotePacketRouter;
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +39,10 @@ import org.xmpp.packet.Packet;
  * the remote node is reached but the remote node fails to route the packet to the recipient (e.g.
  * the recipient just left) then an error packet may be created from the remote node and send it
  * back to this node.<p>
+ *
+ * Packets are sent to each node through a {@link RemotePacketChannel} that groups them in
+ * batches. Set the <tt>hazelcast.packet.batch.enabled</tt> property to false to send each
+ * packet in its own cluster task.
  * 
  * @author Gaston Dombiak
  */
@@ -40,7 +50,26 @@ public class ClusterPacketRouter implements RemotePacketRouter {
 
     private static Logger logger = LoggerFactory.getLogger(ClusterPacketRouter.class);
 
+    private static final boolean BATCH_ENABLED =
+            JiveGlobals.getBooleanProperty("hazelcast.packet.batch.enabled", true);
+    private static final int BATCH_LANES =
+            JiveGlobals.getIntProperty("hazelcast.packet.batch.lanes", 4);
+    private static final int BATCH_MAX_PACKETS =
+            JiveGlobals.getIntProperty("hazelcast.packet.batch.maxPackets", 500);
+    private static final int BATCH_MAX_BYTES =
+            JiveGlobals.getIntProperty("hazelcast.packet.batch.maxBytes", 256 * 1024);
+    private static final int MAX_PENDING =
+            JiveGlobals.getIntProperty("hazelcast.packet.maxPending", 10000);
+
+    /**
+     * Channels to the other nodes of the cluster, by node ID.
+     */
+    private final Map<String, RemotePacketChannel> channels = new ConcurrentHashMap<String, RemotePacketChannel>();
+
     public boolean routePacket(byte[] nodeID, JID receipient, Packet packet) {
+        if (BATCH_ENABLED) {
+            return getChannel(nodeID).send(receipient, packet);
+        }
         // Send the packet to the specified node and let the remote node deliver the packet to the recipient
         try {
             CacheFactory.doClusterTask(new RemotePacketExecution(receipient, packet), nodeID);
@@ -55,4 +84,32 @@ public class ClusterPacketRouter implements RemotePacketRouter {
         // Execute the broadcast task across the cluster
         CacheFactory.doClusterTask(new BroadcastMessage(packet));
     }
+
+    private RemotePacketChannel getChannel(byte[] nodeID) {
+        final String key = StringUtils.getString(nodeID);
+        RemotePacketChannel channel = channels.get(key);
+        if (channel == null || channel.isClosed()) {
+            synchronized (channels) {
+                channel = channels.get(key);
+                if (channel == null || channel.isClosed()) {
+                    channel = new RemotePacketChannel(NodeID.getInstance(nodeID), BATCH_LANES, MAX_PENDING,
+                            BATCH_MAX_PACKETS, BATCH_MAX_BYTES);
+                    channels.put(key, channel);
+                }
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Closes the channels to the other nodes. Packets waiting to be sent are discarded.
+     */
+    public void shutdown() {
+        synchronized (channels) {
+            for (RemotePacketChannel channel : channels.values()) {
+                channel.close();
+            }
+            channels.clear();
+        }
+    }
 }
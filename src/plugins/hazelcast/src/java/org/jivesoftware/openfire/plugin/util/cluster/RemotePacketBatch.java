@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 1999-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin.util.cluster;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.net.MXParser;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Task to be executed by a remote node to deliver a batch of packets to their recipients.
+ * The packets are delivered in the order in which they were added to the batch.<p>
+ *
+ * Each packet is encoded as the recipient followed by the UTF-8 bytes of the packet XML. The
+ * XML is produced when the packet is added to the batch so later changes to the packet made
+ * by the sender do not affect the delivered packet.
+ */
+public class RemotePacketBatch implements ClusterTask {
+
+    private static final Logger Log = LoggerFactory.getLogger(RemotePacketBatch.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static XmlPullParserFactory factory = null;
+    private static ThreadLocal<XMPPPacketReader> localParser = null;
+    static {
+        try {
+            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
+            factory.setNamespaceAware(true);
+        }
+        catch (XmlPullParserException e) {
+            Log.error("Error creating a parser factory", e);
+        }
+        // Create xmpp parser to keep in each thread
+        localParser = new ThreadLocal<XMPPPacketReader>() {
+            @Override
+            protected XMPPPacketReader initialValue() {
+                XMPPPacketReader parser = new XMPPPacketReader();
+                parser.setXPPFactory(factory);
+                return parser;
+            }
+        };
+    }
+
+    private List<String> recipients;
+    private List<byte[]> packets;
+    private int bytes;
+
+    public RemotePacketBatch() {
+    }
+
+    public RemotePacketBatch(int capacity) {
+        recipients = new ArrayList<String>(capacity);
+        packets = new ArrayList<byte[]>(capacity);
+    }
+
+    /**
+     * Encodes a packet to be added to a batch.
+     *
+     * @param packet the packet to deliver.
+     * @return the encoded packet.
+     */
+    static byte[] encode(Packet packet) {
+        return packet.toXML().getBytes(UTF8);
+    }
+
+    /**
+     * Adds an encoded packet to the end of the batch.
+     *
+     * @param recipient the address of the entity that will receive the packet.
+     * @param packet the packet encoded by {@link #encode(Packet)}.
+     */
+    void add(JID recipient, byte[] packet) {
+        recipients.add(recipient.toString());
+        packets.add(packet);
+        bytes += packet.length;
+    }
+
+    /**
+     * Returns the number of packets in the batch.
+     *
+     * @return the number of packets in the batch.
+     */
+    int size() {
+        return packets.size();
+    }
+
+    /**
+     * Returns the number of bytes of the encoded packets of the batch.
+     *
+     * @return the number of bytes of the encoded packets.
+     */
+    int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the recipient of a packet of the batch.
+     *
+     * @param index the position of the packet in the batch.
+     * @return the address of the entity that will receive the packet.
+     */
+    JID getRecipient(int index) {
+        return new JID(recipients.get(index));
+    }
+
+    /**
+     * Returns an encoded packet of the batch.
+     *
+     * @param index the position of the packet in the batch.
+     * @return the packet encoded by {@link #encode(Packet)}.
+     */
+    byte[] getPacket(int index) {
+        return packets.get(index);
+    }
+
+    public Object getResult() {
+        // Lets the sender know that the batch was delivered
+        return Boolean.TRUE;
+    }
+
+    public void run() {
+        for (int i = 0; i < packets.size(); i++) {
+            Packet packet;
+            try {
+                packet = decode(packets.get(i));
+            }
+            catch (Exception e) {
+                Log.error("Error parsing packet received from remote node", e);
+                continue;
+            }
+            if (packet != null) {
+                // Route packet to entity hosted by this node. If delivery fails then the routing table
+                // will inform the proper router of the failure and the router will handle the error reply logic
+                XMPPServer.getInstance().getRoutingTable().routePacket(new JID(recipients.get(i)), packet, false);
+            }
+        }
+    }
+
+    /**
+     * Decodes a packet encoded by {@link #encode(Packet)}.
+     *
+     * @param bytes the encoded packet.
+     * @return the packet or <tt>null</tt> if the XML is not a message, presence or IQ.
+     * @throws Exception if the XML could not be parsed.
+     */
+    static Packet decode(byte[] bytes) throws Exception {
+        Element element = localParser.get().read(new StringReader(new String(bytes, UTF8))).getRootElement();
+        String tag = element.getName();
+        if ("message".equals(tag)) {
+            return new Message(element, true);
+        }
+        else if ("presence".equals(tag)) {
+            return new Presence(element, true);
+        }
+        else if ("iq".equals(tag)) {
+            return new IQ(element, true);
+        }
+        Log.warn("Ignoring unknown packet received from remote node: " + tag);
+        return null;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeInt(out, packets.size());
+        for (int i = 0; i < packets.size(); i++) {
+            ExternalizableUtil.getInstance().writeSafeUTF(out, recipients.get(i));
+            ExternalizableUtil.getInstance().writeByteArray(out, packets.get(i));
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int size = ExternalizableUtil.getInstance().readInt(in);
+        recipients = new ArrayList<String>(size);
+        packets = new ArrayList<byte[]>(size);
+        for (int i = 0; i < size; i++) {
+            recipients.add(ExternalizableUtil.getInstance().readSafeUTF(in));
+            byte[] packet = ExternalizableUtil.getInstance().readByteArray(in);
+            packets.add(packet);
+            bytes += packet.length;
+        }
+    }
+
+    public String toString() {
+        return super.toString() + " packets: " + packets.size() + " bytes: " + bytes;
+    }
+}
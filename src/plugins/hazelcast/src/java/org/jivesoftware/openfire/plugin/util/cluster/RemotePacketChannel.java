@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 1999-2009 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin.util.cluster;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.jivesoftware.util.TaskEngine;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Channel used to send packets to another node of the cluster. Packets are queued and sent to
+ * the remote node in {@link RemotePacketBatch batches}, so the cost of running a cluster task
+ * is paid once per batch instead of once per packet.<p>
+ *
+ * The channel has a number of lanes and the packets of a recipient always use the same lane.
+ * Each lane sends one batch at a time and waits until the remote node delivered it before
+ * sending the next one. Packets queued while a batch is being sent are sent in the next batch,
+ * so batches grow with the load and a packet sent to an idle lane is sent right away. This keeps
+ * the packets sent to the same user in order.<p>
+ *
+ * The number of packets that may be waiting to be sent to the node is limited. Packets sent
+ * when the limit is reached are rejected and the router handles them as undeliverable.<p>
+ *
+ * Packets of a batch that the remote node did not confirm and packets discarded when the
+ * channel is closed are logged and counted as undelivered. Messages among them are stored
+ * offline. A batch that timed out may still have been delivered by the remote node, so a
+ * message may then be both delivered and stored offline.
+ */
+class RemotePacketChannel {
+
+    private static final Logger Log = LoggerFactory.getLogger(RemotePacketChannel.class);
+
+    private final NodeID nodeID;
+    private final Lane[] lanes;
+    private final int maxPending;
+    private final int maxBatchPackets;
+    private final int maxBatchBytes;
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicLong undelivered = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new channel to a cluster node.
+     *
+     * @param nodeID the ID of the remote node.
+     * @param lanes the number of batches that may be sent to the node at the same time.
+     * @param maxPending the maximum number of packets waiting to be sent to the node.
+     * @param maxBatchPackets the maximum number of packets of a batch.
+     * @param maxBatchBytes the maximum size of the encoded packets of a batch.
+     */
+    RemotePacketChannel(NodeID nodeID, int lanes, int maxPending, int maxBatchPackets, int maxBatchBytes) {
+        this.nodeID = nodeID;
+        this.lanes = new Lane[Math.max(1, lanes)];
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new Lane();
+        }
+        this.maxPending = maxPending;
+        this.maxBatchPackets = Math.max(1, maxBatchPackets);
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Queues a packet to be sent to the remote node.
+     *
+     * @param recipient the address of the entity hosted by the remote node.
+     * @param packet the packet to send.
+     * @return false if the channel was closed or too many packets are waiting to be sent.
+     */
+    boolean send(JID recipient, Packet packet) {
+        if (closed) {
+            return false;
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            Log.debug("Too many packets waiting to be sent to node " + nodeID + "; rejecting packet");
+            return false;
+        }
+        final Lane lane = lanes[(recipient.toBareJID().hashCode() & Integer.MAX_VALUE) % lanes.length];
+        lane.queue.add(new Pending(recipient, RemotePacketBatch.encode(packet)));
+        lane.schedule();
+        return true;
+    }
+
+    /**
+     * Closes the channel. Packets waiting to be sent are discarded and handled as undelivered.
+     */
+    void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            lane.discard();
+        }
+    }
+
+    /**
+     * Returns true if the channel was closed.
+     *
+     * @return true if the channel was closed.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the number of packets waiting to be sent to the remote node.
+     *
+     * @return the number of packets waiting to be sent.
+     */
+    int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of packets that were accepted by the channel but could not be
+     * delivered by the remote node.
+     *
+     * @return the number of undelivered packets.
+     */
+    long getUndelivered() {
+        return undelivered.get();
+    }
+
+    /**
+     * Runs a batch on the remote node and waits until the packets were delivered.
+     *
+     * @param batch the batch to send.
+     * @return true if the remote node delivered the batch.
+     * @throws IllegalArgumentException if the node is no longer part of the cluster.
+     * @throws IllegalStateException if the cluster service is not available.
+     */
+    boolean deliver(RemotePacketBatch batch) {
+        return CacheFactory.doSynchronousClusterTask(batch, nodeID.toByteArray()) != null;
+    }
+
+    /**
+     * Handles a packet that the remote node did not deliver. Messages are stored offline.
+     *
+     * @param recipient the address of the entity hosted by the remote node.
+     * @param packet the packet that was not delivered.
+     */
+    void undeliverable(JID recipient, Packet packet) {
+        if (packet instanceof Message) {
+            XMPPServer.getInstance().getOfflineMessageStrategy().storeOffline((Message) packet);
+        }
+    }
+
+    private void undeliverable(JID recipient, byte[] packet) {
+        undelivered.incrementAndGet();
+        try {
+            final Packet decoded = RemotePacketBatch.decode(packet);
+            if (decoded != null) {
+                undeliverable(recipient, decoded);
+            }
+        }
+        catch (Exception e) {
+            Log.error("Error handling packet that was not delivered to node " + nodeID, e);
+        }
+    }
+
+    private class Lane implements Runnable {
+
+        private final Queue<Pending> queue = new ConcurrentLinkedQueue<Pending>();
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private Pending next;
+
+        void schedule() {
+            if (running.compareAndSet(false, true)) {
+                TaskEngine.getInstance().submit(this);
+            }
+        }
+
+        public void run() {
+            try {
+                RemotePacketBatch batch;
+                while (!closed && (batch = nextBatch()) != null) {
+                    send(batch);
+                }
+            }
+            finally {
+                running.set(false);
+                if (closed) {
+                    discard();
+                }
+                else if (!queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        private RemotePacketBatch nextBatch() {
+            if (next == null) {
+                next = queue.poll();
+                if (next == null) {
+                    return null;
+                }
+            }
+            final RemotePacketBatch batch = new RemotePacketBatch(Math.min(maxBatchPackets, queue.size() + 1));
+            do {
+                batch.add(next.recipient, next.packet);
+                next = queue.poll();
+            }
+            while (next != null && batch.size() < maxBatchPackets &&
+                    batch.getBytes() + next.packet.length <= maxBatchBytes);
+            return batch;
+        }
+
+        private void send(RemotePacketBatch batch) {
+            boolean delivered = false;
+            try {
+                delivered = deliver(batch);
+            }
+            catch (IllegalArgumentException e) {
+                // The node left the cluster
+                Log.warn("Error while routing packets to remote node: " + e);
+                close();
+            }
+            catch (IllegalStateException e) {
+                Log.warn("Error while routing packets to remote node: " + e);
+            }
+            finally {
+                pending.addAndGet(-batch.size());
+            }
+            if (!delivered) {
+                Log.warn("Failed to deliver " + batch.size() + " packets to node " + nodeID +
+                        "; " + (undelivered.get() + batch.size()) + " packets undelivered so far");
+                for (int i = 0; i < batch.size(); i++) {
+                    undeliverable(batch.getRecipient(i), batch.getPacket(i));
+                }
+            }
+        }
+
+        void discard() {
+            // Only discard the queued packets while the lane is not sending them
+            if (running.compareAndSet(false, true)) {
+                try {
+                    int discarded = 0;
+                    Pending packet = next != null ? next : queue.poll();
+                    next = null;
+                    for (; packet != null; packet = queue.poll()) {
+                        undeliverable(packet.recipient, packet.packet);
+                        discarded++;
+                    }
+                    pending.addAndGet(-discarded);
+                    if (discarded > 0) {
+                        Log.warn("Discarded " + discarded + " packets waiting to be sent to node " + nodeID);
+                    }
+                }
+                finally {
+                    running.set(false);
+                }
+            }
+        }
+    }
+
+    private static class Pending {
+
+        final JID recipient;
+        final byte[] packet;
+
+        Pending(JID recipient, byte[] packet) {
+            this.recipient = recipient;
+            this.packet = packet;
+        }
+    }
+}
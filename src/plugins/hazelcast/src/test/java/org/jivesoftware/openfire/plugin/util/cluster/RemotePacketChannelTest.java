@@ -0,0 +1,166 @@
+package org.jivesoftware.openfire.plugin.util.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that the {@link RemotePacketChannel} sends the packets of a lane in order and in
+ * batches, and that the packets that the remote node did not deliver are handled as undelivered.
+ */
+public class RemotePacketChannelTest {
+
+    private static final JID RECIPIENT = new JID("user@example.com/home");
+
+    @Test
+    public void testPacketsQueuedWhileSendingAreBatched() throws Exception {
+        TestChannel channel = new TestChannel(10);
+        channel.block();
+        assertTrue(channel.send(RECIPIENT, message("1")));
+        // The first packet is sent right away, the next ones wait for it to be delivered
+        assertEquals("[1]", channel.nextBatch());
+        for (int i = 2; i <= 6; i++) {
+            assertTrue(channel.send(RECIPIENT, message(String.valueOf(i))));
+        }
+        channel.release();
+        assertEquals("[2, 3, 4, 5, 6]", channel.nextBatch());
+        assertNull(channel.batches.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, channel.getUndelivered());
+    }
+
+    @Test
+    public void testBatchSizeIsLimited() throws Exception {
+        TestChannel channel = new TestChannel(2);
+        channel.block();
+        channel.send(RECIPIENT, message("1"));
+        assertEquals("[1]", channel.nextBatch());
+        for (int i = 2; i <= 6; i++) {
+            channel.send(RECIPIENT, message(String.valueOf(i)));
+        }
+        channel.release();
+        assertEquals("[2, 3]", channel.nextBatch());
+        assertEquals("[4, 5]", channel.nextBatch());
+        assertEquals("[6]", channel.nextBatch());
+    }
+
+    @Test
+    public void testPacketsOfFailedBatchAreUndelivered() throws Exception {
+        TestChannel channel = new TestChannel(10);
+        channel.delivered = false;
+        channel.send(RECIPIENT, message("1"));
+        assertEquals("[1]", channel.nextBatch());
+        Packet packet = channel.undelivered.poll(5, TimeUnit.SECONDS);
+        assertTrue(packet instanceof Message);
+        assertEquals("1", ((Message) packet).getBody());
+        assertEquals(RECIPIENT, packet.getTo());
+        assertEquals(1, channel.getUndelivered());
+        assertEquals(0, channel.getPending());
+        assertFalse(channel.isClosed());
+    }
+
+    @Test
+    public void testQueuedPacketsAreUndeliveredWhenNodeLeaves() throws Exception {
+        TestChannel channel = new TestChannel(10);
+        channel.block();
+        channel.send(RECIPIENT, message("1"));
+        assertEquals("[1]", channel.nextBatch());
+        channel.send(RECIPIENT, message("2"));
+        channel.send(RECIPIENT, new Presence());
+        channel.nodeLeft = true;
+        channel.release();
+
+        List<Packet> packets = new ArrayList<Packet>();
+        for (int i = 0; i < 3; i++) {
+            Packet packet = channel.undelivered.poll(5, TimeUnit.SECONDS);
+            assertTrue(packet != null);
+            packets.add(packet);
+        }
+        assertEquals("1", ((Message) packets.get(0)).getBody());
+        assertEquals("2", ((Message) packets.get(1)).getBody());
+        assertTrue(packets.get(2) instanceof Presence);
+        assertTrue(channel.isClosed());
+        assertEquals(3, channel.getUndelivered());
+        assertEquals(0, channel.getPending());
+        assertFalse(channel.send(RECIPIENT, message("3")));
+    }
+
+    private static Message message(String body) {
+        Message message = new Message();
+        message.setTo(RECIPIENT);
+        message.setBody(body);
+        return message;
+    }
+
+    private static class TestChannel extends RemotePacketChannel {
+
+        final BlockingQueue<String> batches = new LinkedBlockingQueue<String>();
+        final BlockingQueue<Packet> undelivered = new LinkedBlockingQueue<Packet>();
+        volatile boolean delivered = true;
+        volatile boolean nodeLeft = false;
+        private volatile CountDownLatch blocked;
+
+        TestChannel(int maxBatchPackets) {
+            super(NodeID.getInstance(new byte[] {1}), 1, 100, maxBatchPackets, 1024 * 1024);
+        }
+
+        void block() {
+            blocked = new CountDownLatch(1);
+        }
+
+        void release() {
+            blocked.countDown();
+        }
+
+        String nextBatch() throws InterruptedException {
+            return batches.poll(5, TimeUnit.SECONDS);
+        }
+
+        @Override
+        boolean deliver(RemotePacketBatch batch) {
+            List<String> bodies = new ArrayList<String>();
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    bodies.add(((Message) RemotePacketBatch.decode(batch.getPacket(i))).getBody());
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            batches.add(bodies.toString());
+            CountDownLatch latch = blocked;
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (nodeLeft) {
+                throw new IllegalArgumentException("Requested node not found in cluster");
+            }
+            return delivered;
+        }
+
+        @Override
+        void undeliverable(JID recipient, Packet packet) {
+            assertEquals(RECIPIENT, recipient);
+            undelivered.add(packet);
+        }
+    }
+}
@@ -20,7 +20,9 @@
 package org.jivesoftware.openfire.archive;
 
 import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.interceptor.AsyncInterceptorQueue;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
+import org.jivesoftware.openfire.interceptor.InterceptorScope;
 import org.jivesoftware.openfire.interceptor.PacketInterceptor;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.session.Session;
@@ -30,6 +32,7 @@ import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 
 import java.util.Date;
+import java.util.EnumSet;
 
 /**
  * Intercepts packets to track conversations. Only the following messages
@@ -70,9 +73,12 @@ public class ArchiveInterceptor implements PacketInterceptor, Startable {
             if (message.getBody() != null) {
                 // Only process messages that are between two users, group chat rooms, or gateways.
                 if (conversationManager.isConversation(message)) {
+                    // Use the date at which the message was processed, not the date at which
+                    // the queue of the interceptor reached it
+                    Date date = AsyncInterceptorQueue.getQueuedDate();
                     // Process this event in the senior cluster member or local JVM when not in a cluster
                     if (ClusterManager.isSeniorClusterMember()) {
-                        conversationManager.processMessage(message.getFrom(), message.getTo(), message.getBody(), message.toXML(), new Date());
+                        conversationManager.processMessage(message.getFrom(), message.getTo(), message.getBody(), message.toXML(), date);
                     }
                     else {
                         JID sender = message.getFrom();
@@ -81,7 +87,7 @@ public class ArchiveInterceptor implements PacketInterceptor, Startable {
                         eventsQueue.addChatEvent(conversationManager.getConversationKey(sender, receiver),
                                 ConversationEvent.chatMessageReceived(sender, receiver,
                                         conversationManager.isMessageArchivingEnabled() ? message.getBody() : null,
-                                        new Date()));
+                                        date));
                     }
                 }
             }
@@ -89,7 +95,13 @@ public class ArchiveInterceptor implements PacketInterceptor, Startable {
     }
 
     public void start() {
-        InterceptorManager.getInstance().addInterceptor(this);
+        // Only incoming messages that were processed are archived. Archiving does not
+        // delay the delivery of messages unless the archive falls too far behind. Messages
+        // then wait for room in the queue of the archive (up to the time configured by
+        // xmpp.interceptor.async.blockTimeout) instead of not being archived.
+        InterceptorManager.getInstance().addAsyncInterceptor(this, new InterceptorScope(
+                EnumSet.of(InterceptorScope.PacketType.message), EnumSet.of(InterceptorScope.Direction.read),
+                EnumSet.of(InterceptorScope.Phase.processed)), AsyncInterceptorQueue.OverflowPolicy.block);
     }
 
     public void stop() {
@@ -0,0 +1,122 @@
+package org.jivesoftware.openfire;
+
+import java.lang.reflect.Field;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.mina.core.session.DummySession;
+import org.jivesoftware.openfire.auth.AuthToken;
+import org.jivesoftware.openfire.container.Module;
+import org.jivesoftware.openfire.muc.MultiUserChatManager;
+import org.jivesoftware.openfire.nio.BenchmarkConnections;
+import org.jivesoftware.openfire.nio.NIOConnection;
+import org.jivesoftware.openfire.session.LocalClientSession;
+import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.spi.BasicStreamIDFactory;
+import org.jivesoftware.openfire.spi.RoutingTableImpl;
+import org.jivesoftware.openfire.spi.XMPPServerInfoImpl;
+import org.jivesoftware.util.Version;
+import org.objenesis.ObjenesisStd;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Minimal server used by the benchmarks. Starting a real {@link XMPPServer} requires a
+ * database and loads every module and plugin, so the server is instead created without
+ * invoking its constructor and only the modules needed by the benchmarks (the routing table,
+ * the session manager and a multi user chat manager without services) are registered. Sessions created by this server are authenticated
+ * and available, and their connections discard all the data that is sent to them after it
+ * was serialized.
+ */
+public class BenchmarkServer {
+
+    private static BenchmarkServer instance;
+
+    private final XMPPServer server;
+    private final String domain;
+    private final Map<String, Module> modules = new LinkedHashMap<String, Module>();
+    private final RoutingTableImpl routingTable;
+    private final SessionManager sessionManager;
+    private final BasicStreamIDFactory streamIDFactory = new BasicStreamIDFactory();
+
+    /**
+     * Returns the benchmark server of the JVM, creating it the first time.
+     *
+     * @param domain the XMPP domain of the server.
+     * @return the benchmark server.
+     * @throws Exception if the server could not be created.
+     */
+    public static synchronized BenchmarkServer getInstance(String domain) throws Exception {
+        if (instance == null) {
+            instance = new BenchmarkServer(domain);
+        }
+        else if (!instance.domain.equals(domain)) {
+            throw new IllegalStateException("A server is already running for " + instance.domain);
+        }
+        return instance;
+    }
+
+    private BenchmarkServer(String domain) throws Exception {
+        this.domain = domain;
+        server = (XMPPServer) new ObjenesisStd().newInstance(XMPPServer.class);
+        setField(XMPPServer.class, null, "instance", server);
+        setField(XMPPServer.class, server, "modules", modules);
+        setField(XMPPServer.class, server, "xmppServerInfo",
+                new XMPPServerInfoImpl(domain, domain, new Version(0, 0, 0, Version.ReleaseStatus.Release, -1), new Date()));
+        setField(XMPPServer.class, server, "initialized", Boolean.TRUE);
+
+        routingTable = new RoutingTableImpl();
+        sessionManager = new SessionManager();
+        modules.put(RoutingTable.class.getName(), routingTable);
+        modules.put(SessionManager.class.getName(), sessionManager);
+        modules.put(MultiUserChatManager.class.getName(), new MultiUserChatManager() {
+            @Override
+            public Long getMultiUserChatServiceID(String subdomain) {
+                // There are no services in the database
+                return null;
+            }
+        });
+        routingTable.initialize(server);
+        sessionManager.initialize(server);
+    }
+
+    public XMPPServer getServer() {
+        return server;
+    }
+
+    public RoutingTableImpl getRoutingTable() {
+        return routingTable;
+    }
+
+    public SessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    /**
+     * Creates an authenticated and available session of a user and adds it to the routing table.
+     *
+     * @param address the full JID of the session.
+     * @return the new session.
+     * @throws Exception if the session could not be created.
+     */
+    public LocalClientSession createClientSession(JID address) throws Exception {
+        final NIOConnection connection = BenchmarkConnections.createConnection(new DummySession());
+        final LocalClientSession session = new LocalClientSession(domain, connection,
+                streamIDFactory.createStreamID());
+        connection.init(session);
+        session.setAddress(address);
+        session.setAuthToken(new AuthToken(address.toBareJID(), Boolean.FALSE));
+        session.setStatus(Session.STATUS_AUTHENTICATED);
+        // Set the presence without notifying the session manager (that would broadcast it)
+        setField(LocalClientSession.class, session, "presence", new Presence());
+        routingTable.addClientRoute(address, session);
+        return session;
+    }
+
+    private static void setField(Class<?> type, Object target, String name, Object value) throws Exception {
+        final Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,143 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.BenchmarkServer;
+import org.jivesoftware.openfire.PacketRouter;
+import org.jivesoftware.openfire.muc.HistoryStrategy;
+import org.jivesoftware.openfire.muc.MUCRole;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
+import org.jivesoftware.openfire.muc.cluster.BroadcastMessageRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Measures the broadcast of a groupchat message by {@link LocalMUCRoom} to {@link #occupants}
+ * occupants. Every occupant has a local session whose connection serializes the message and
+ * discards it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MUCRoomBenchmark {
+
+    private static final String DOMAIN = "example.com";
+    private static final String SERVICE = "conference";
+
+    @Param({"10", "100", "1000"})
+    public int occupants;
+
+    private LocalMUCRoom room;
+    private Message message;
+
+    @Setup
+    public void setUp() throws Exception {
+        final BenchmarkServer server = BenchmarkServer.getInstance(DOMAIN);
+        final MultiUserChatService service = createService();
+        final PacketRouter router = new DiscardingPacketRouter();
+        room = new LocalMUCRoom(service, "room" + occupants, router);
+
+        // Add the occupants to the room without going through the join process
+        final Map<JID, MUCRole> occupantsByFullJID = getOccupantsMap(room);
+        for (int i = 0; i < occupants; i++) {
+            final JID address = new JID("occupant" + i, DOMAIN, "resource");
+            if (server.getRoutingTable().getClientRoute(address) == null) {
+                server.createClientSession(address);
+            }
+            final Presence presence = new Presence();
+            presence.setFrom(address);
+            final LocalMUCUser user = new LocalMUCUser(service, router, address);
+            final LocalMUCRole role = new LocalMUCRole(service, room, "nick" + i, MUCRole.Role.participant,
+                    MUCRole.Affiliation.none, user, presence, router);
+            occupantsByFullJID.put(address, role);
+        }
+
+        message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setFrom(new JID(room.getName(), service.getServiceDomain(), "nick0"));
+        message.setBody("Hello everyone");
+    }
+
+    @Benchmark
+    public void broadcastMessage() {
+        room.broadcast(new BroadcastMessageRequest(room, message, occupants));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<JID, MUCRole> getOccupantsMap(LocalMUCRoom room) throws Exception {
+        final Field field = LocalMUCRoom.class.getDeclaredField("occupantsByFullJID");
+        field.setAccessible(true);
+        return (Map<JID, MUCRole>) field.get(room);
+    }
+
+    /**
+     * Returns a service that only knows its name and history strategy. Other methods
+     * do nothing.
+     */
+    private static MultiUserChatService createService() {
+        final HistoryStrategy historyStrategy = new HistoryStrategy(null);
+        return (MultiUserChatService) Proxy.newProxyInstance(MultiUserChatService.class.getClassLoader(),
+                new Class<?>[] {MultiUserChatService.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        final String name = method.getName();
+                        if ("getServiceName".equals(name)) {
+                            return SERVICE;
+                        }
+                        if ("getServiceDomain".equals(name)) {
+                            return SERVICE + "." + DOMAIN;
+                        }
+                        if ("getHistoryStrategy".equals(name)) {
+                            return historyStrategy;
+                        }
+                        final Class<?> type = method.getReturnType();
+                        if (type == boolean.class) {
+                            return Boolean.FALSE;
+                        }
+                        if (type == int.class) {
+                            return 0;
+                        }
+                        if (type == long.class) {
+                            return 0L;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static class DiscardingPacketRouter implements PacketRouter {
+
+        public void route(Packet packet) {
+        }
+
+        public void route(IQ packet) {
+        }
+
+        public void route(Message packet) {
+        }
+
+        public void route(Presence packet) {
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.jivesoftware.openfire.nio;
+
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Creates connections for the benchmarks. The connections are backed by a MINA
+ * {@link DummySession} that discards the written data, so delivering a packet includes
+ * its serialization (and the reuse of the pooled buffers) but no network I/O.
+ */
+public class BenchmarkConnections {
+
+    private BenchmarkConnections() {
+    }
+
+    /**
+     * Returns a new connection that writes to the specified dummy session.
+     *
+     * @param ioSession the session where the serialized packets are written.
+     * @return the new connection.
+     */
+    public static NIOConnection createConnection(DummySession ioSession) {
+        final NIOConnection connection = new NIOConnection(ioSession, null);
+        ioSession.setHandler(new IoHandlerAdapter() {
+            @Override
+            public void messageSent(IoSession session, Object message) {
+                // Return the buffer to the pool as ConnectionHandler does
+                connection.messageSent(message);
+            }
+        });
+        return connection;
+    }
+}
@@ -0,0 +1,117 @@
+package org.jivesoftware.openfire.nio;
+
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.net.MXParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Measures the parsing of incoming stanzas. Every invocation parses a buffer that contains
+ * the same {@link #STANZAS} stanzas that a client would typically send:<ul>
+ *
+ * <li> <tt>lightweightParser</tt> only splits the stanzas using {@link XMLLightweightParser}.
+ * <li> <tt>packetReader</tt> only builds the elements of the stanzas using
+ * {@link XMPPPacketReader} (as done by the StanzaHandler).
+ * <li> <tt>lightweightParserAndPacketReader</tt> is the default path of incoming data.
+ * <li> <tt>streamingParser</tt> splits the stanzas and builds their elements in a single pass
+ * using {@link XMLStreamingParser}.</ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StanzaParserBenchmark {
+
+    private static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream to='example.com' " +
+            "xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+
+    private static final String[] STANZA_TYPES = {
+            "<message to='juliet@example.com/balcony' type='chat' id='m1'><body>Wherefore art thou, Romeo?" +
+                    "</body><active xmlns='http://jabber.org/protocol/chatstates'/></message>",
+            "<presence><show>away</show><status>Out &amp; about</status><priority>5</priority>" +
+                    "<c xmlns='http://jabber.org/protocol/caps' hash='sha-1' node='http://example.com/client' " +
+                    "ver='QgayPKawpkPSDYmwT/WM94uAlu0='/></presence>",
+            "<iq type='get' id='r1'><query xmlns='jabber:iq:roster'/></iq>",
+            "<iq type='get' id='p1' to='example.com'><ping xmlns='urn:xmpp:ping'/></iq>"
+    };
+
+    private static final int STANZAS = 100;
+
+    private byte[] data;
+    private String[] stanzas;
+    private XMLLightweightParser lightweightParser;
+    private XMLStreamingParser streamingParser;
+    private XMPPPacketReader packetReader;
+
+    @Setup
+    public void setUp() throws Exception {
+        final Charset charset = Charset.forName(NIOConnection.CHARSET);
+        final StringBuilder builder = new StringBuilder();
+        stanzas = new String[STANZAS];
+        for (int i = 0; i < STANZAS; i++) {
+            stanzas[i] = STANZA_TYPES[i % STANZA_TYPES.length];
+            builder.append(stanzas[i]);
+        }
+        data = builder.toString().getBytes(charset);
+
+        lightweightParser = new XMLLightweightParser(NIOConnection.CHARSET);
+        streamingParser = new XMLStreamingParser(NIOConnection.CHARSET);
+        streamingParser.read(IoBuffer.wrap(STREAM_HEADER.getBytes(charset)));
+        streamingParser.getMsgs();
+
+        final XmlPullParserFactory factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
+        factory.setNamespaceAware(true);
+        packetReader = new XMPPPacketReader();
+        packetReader.setXPPFactory(factory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STANZAS)
+    public String[] lightweightParser() throws Exception {
+        lightweightParser.read(IoBuffer.wrap(data));
+        return lightweightParser.getMsgs();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STANZAS)
+    public void packetReader(Blackhole blackhole) throws Exception {
+        for (String stanza : stanzas) {
+            blackhole.consume(packetReader.read(new StringReader(stanza)).getRootElement());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STANZAS)
+    public void lightweightParserAndPacketReader(Blackhole blackhole) throws Exception {
+        lightweightParser.read(IoBuffer.wrap(data));
+        for (String stanza : lightweightParser.getMsgs()) {
+            blackhole.consume(packetReader.read(new StringReader(stanza)).getRootElement());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STANZAS)
+    public List<Object> streamingParser() throws Exception {
+        streamingParser.read(IoBuffer.wrap(data));
+        return streamingParser.getMsgs();
+    }
+}
@@ -0,0 +1,79 @@
+package org.jivesoftware.openfire.spi;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.BenchmarkServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Measures {@link RoutingTableImpl#routePacket(JID, org.xmpp.packet.Packet, boolean)} of
+ * messages sent to the full JID of local users. The routing table is populated with
+ * {@link #users} sessions whose connections serialize the messages and discard them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingTableBenchmark {
+
+    private static final String DOMAIN = "example.com";
+
+    @Param({"1000", "10000"})
+    public int users;
+
+    private RoutingTableImpl routingTable;
+    private JID[] addresses;
+
+    @Setup
+    public void setUp() throws Exception {
+        final BenchmarkServer server = BenchmarkServer.getInstance(DOMAIN);
+        routingTable = server.getRoutingTable();
+        addresses = new JID[users];
+        for (int i = 0; i < users; i++) {
+            addresses[i] = new JID("user" + i, DOMAIN, "resource");
+            if (routingTable.getClientRoute(addresses[i]) == null) {
+                server.createClientSession(addresses[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public void routeMessage() {
+        routingTable.routePacket(nextAddress(), createMessage(), false);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void routeMessageContended() {
+        routingTable.routePacket(nextAddress(), createMessage(), false);
+    }
+
+    private JID nextAddress() {
+        return addresses[ThreadLocalRandom.current().nextInt(users)];
+    }
+
+    private Message createMessage() {
+        // A new message is needed since routing modifies the packet
+        final Message message = new Message();
+        message.setType(Message.Type.normal);
+        message.setFrom("sender@example.com/desktop");
+        message.setBody("Hello");
+        return message;
+    }
+}
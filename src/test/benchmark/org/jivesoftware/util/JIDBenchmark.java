@@ -0,0 +1,77 @@
+package org.jivesoftware.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmpp.packet.JID;
+
+/**
+ * Measures the creation of JIDs. JIDs are parsed and stringprep'ed when they are created
+ * from a String, and the results of the stringprep profiles are cached, so both JIDs that
+ * were recently used (<tt>parseCached</tt>) and JIDs that are seen for the first time
+ * (<tt>parseUncached</tt>, which cycles through more addresses than the caches hold) are
+ * measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JIDBenchmark {
+
+    private static final int CACHED_ADDRESSES = 64;
+    private static final int UNCACHED_ADDRESSES = 1 << 17;
+
+    private String[] addresses;
+    private int index = 0;
+    private JID jid;
+
+    @Setup
+    public void setUp() {
+        addresses = new String[UNCACHED_ADDRESSES];
+        for (int i = 0; i < UNCACHED_ADDRESSES; i++) {
+            addresses[i] = "User" + i + "@Example.com/Resource" + i;
+        }
+        jid = new JID("romeo@example.net/orchard");
+    }
+
+    @Benchmark
+    public JID parseCached() {
+        return new JID(addresses[index++ & (CACHED_ADDRESSES - 1)]);
+    }
+
+    @Benchmark
+    public JID parseUncached() {
+        return new JID(addresses[index++ & (UNCACHED_ADDRESSES - 1)]);
+    }
+
+    @Benchmark
+    public JID fromParts() {
+        return new JID("romeo", "example.net", "orchard");
+    }
+
+    @Benchmark
+    public JID fromPartsSkipStringprep() {
+        return new JID("romeo", "example.net", "orchard", true);
+    }
+
+    @Benchmark
+    public JID asBareJID() {
+        return jid.asBareJID();
+    }
+
+    @Benchmark
+    public String toBareJID() {
+        return jid.toBareJID();
+    }
+}
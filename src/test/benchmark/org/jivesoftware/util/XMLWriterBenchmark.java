@@ -0,0 +1,76 @@
+package org.jivesoftware.util;
+
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.io.OutputFormat;
+import org.jivesoftware.openfire.nio.ByteBufferWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmpp.packet.Message;
+
+/**
+ * Measures the serialization of an outgoing message using {@link XMLWriter}, both into an
+ * IoBuffer (as NIOConnection does) and into a String. <tt>toXML</tt> is the serialization
+ * done by dom4j, used when logging or when sending raw text.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLWriterBenchmark {
+
+    private Message message;
+    private IoBuffer buffer;
+    private XMLWriter bufferSerializer;
+
+    @Setup
+    public void setUp() {
+        message = new Message();
+        message.setTo("juliet@example.com/balcony");
+        message.setFrom("romeo@example.net/orchard");
+        message.setType(Message.Type.chat);
+        message.setID("m1");
+        message.setBody("Neither, fair saint, if either thee dislike. <3 & \"goodbye\"");
+        message.addChildElement("active", "http://jabber.org/protocol/chatstates");
+
+        buffer = IoBuffer.allocate(4096).setAutoExpand(true);
+        final ByteBufferWriter writer =
+                new ByteBufferWriter(buffer, Charset.forName("UTF-8").newEncoder());
+        bufferSerializer = new XMLWriter(writer, new OutputFormat());
+    }
+
+    @Benchmark
+    public IoBuffer toIoBuffer() throws Exception {
+        buffer.clear();
+        bufferSerializer.write(message.getElement());
+        bufferSerializer.flush();
+        return buffer;
+    }
+
+    @Benchmark
+    public String toStringWriter() throws Exception {
+        final StringWriter writer = new StringWriter(256);
+        final XMLWriter serializer = new XMLWriter(writer, new OutputFormat());
+        serializer.write(message.getElement());
+        serializer.flush();
+        return writer.toString();
+    }
+
+    @Benchmark
+    public String toXML() {
+        return message.toXML();
+    }
+}
@@ -0,0 +1,90 @@
+package org.jivesoftware.util.cache;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of {@link DefaultCache} and {@link ConcurrentCache} when used by
+ * many threads at the same time. Every operation is a read of a random key, except for one
+ * out of {@link #writeRatio} operations that replaces the value of the key. The cache is not
+ * big enough for all the keys so writes also cause entries to be evicted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final int KEYS = 16384;
+
+    @Param({"default", "concurrent"})
+    public String implementation;
+
+    /**
+     * One out of this number of operations is a write.
+     */
+    @Param({"10"})
+    public int writeRatio;
+
+    private Cache<String, String> cache;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        // Big enough for about three quarters of the keys
+        final long maxSize = 3 * KEYS / 4 * 64;
+        if ("default".equals(implementation)) {
+            cache = new DefaultCache<String, String>("benchmark", maxSize, -1);
+        }
+        else {
+            cache = new ConcurrentCache<String, String>("benchmark", maxSize, -1);
+        }
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "user" + i + "@example.com";
+            cache.put(keys[i], "value" + i);
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String threads8() {
+        return operate();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public String threads32() {
+        return operate();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String threads64() {
+        return operate();
+    }
+
+    private String operate() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final String key = keys[random.nextInt(KEYS)];
+        if (random.nextInt(writeRatio) == 0) {
+            return cache.put(key, key);
+        }
+        return cache.get(key);
+    }
+}
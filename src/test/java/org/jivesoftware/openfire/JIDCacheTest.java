@@ -0,0 +1,57 @@
+package org.jivesoftware.openfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that {@link JIDCache} returns the same JIDs that the JID constructors create.
+ */
+public class JIDCacheTest {
+
+    @Test
+    public void testSharedInstances() {
+        final JID jid = JIDCache.get("user@example.com/home");
+        final long hits = JIDCache.getHits();
+        assertSame(jid, JIDCache.get("user@example.com/home"));
+        assertSame(jid, JIDCache.get("user", "example.com", "home"));
+        assertEquals(hits + 2, JIDCache.getHits());
+    }
+
+    @Test
+    public void testParts() {
+        assertParts(null, "example.com", null);
+        assertParts("user", "example.com", null);
+        assertParts("user", "example.com", "home");
+        assertParts("user", "example.com", "home/office@work");
+        assertParts(null, "example.com", "user@home");
+        assertParts("User", "Example.com", "Home");
+    }
+
+    @Test
+    public void testBare() {
+        final JID full = new JID("user", "example.com", "home");
+        final JID bare = JIDCache.getBare(full);
+        assertEquals(new JID("user@example.com"), bare);
+        assertNull(bare.getResource());
+        assertSame(bare, JIDCache.getBare(bare));
+        assertSame(bare, JIDCache.getBare(new JID("user", "example.com", "work")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidNode() {
+        JIDCache.get("us@er", "example.com", null);
+    }
+
+    private static void assertParts(String node, String domain, String resource) {
+        final JID expected = new JID(node, domain, resource);
+        final JID jid = JIDCache.get(node, domain, resource);
+        assertEquals(expected, jid);
+        assertEquals(expected.getNode(), jid.getNode());
+        assertEquals(expected.getDomain(), jid.getDomain());
+        assertEquals(expected.getResource(), jid.getResource());
+    }
+}
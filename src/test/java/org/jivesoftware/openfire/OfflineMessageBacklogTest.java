@@ -0,0 +1,153 @@
+package org.jivesoftware.openfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.openfire.OfflineMessageBacklog.PendingMessage;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link OfflineMessageBacklog} keeps the messages readable until they are
+ * written, reports the messages that were deleted while being written and only drops the
+ * messages that the database rejects.
+ */
+public class OfflineMessageBacklogTest {
+
+    private static final List<PendingMessage> NONE = Collections.emptyList();
+
+    private final OfflineMessageBacklog backlog = new OfflineMessageBacklog();
+
+    @Test
+    public void testBacklogIsBounded() {
+        assertTrue(backlog.add(message("john", 1), 2));
+        assertTrue(backlog.add(message("jane", 2), 2));
+        assertFalse(backlog.add(message("john", 3), 2));
+        assertEquals(2, backlog.size());
+        assertEquals(1, backlog.get("john").size());
+    }
+
+    @Test
+    public void testWrittenMessagesAreRemoved() {
+        final PendingMessage first = message("john", 1);
+        backlog.add(first, 10);
+        backlog.add(message("john", 2), 10);
+
+        final List<PendingMessage> batch = backlog.startFlush(1);
+        assertEquals(1, batch.size());
+        assertSame(first, batch.get(0));
+        // Messages being written are still readable
+        assertEquals(2, backlog.get("john").size());
+        assertSame(first, backlog.get("john", first.creationDate));
+
+        assertTrue(backlog.endFlush(batch, NONE).isEmpty());
+        assertEquals(1, backlog.size());
+        assertNull(backlog.get("john", first.creationDate));
+    }
+
+    @Test
+    public void testFailedBatchIsKept() {
+        backlog.add(message("john", 1), 10);
+        backlog.startFlush(10);
+        assertTrue(backlog.endFlush(NONE, NONE).isEmpty());
+        assertEquals(1, backlog.size());
+        assertEquals(1, backlog.startFlush(10).size());
+    }
+
+    @Test
+    public void testRejectedMessageIsDropped() {
+        for (int i = 1; i <= 5; i++) {
+            backlog.add(message("john", i), 10);
+        }
+        final TestWriter writer = new TestWriter();
+        writer.rejected = 3;
+
+        assertTrue(backlog.flush(Integer.MAX_VALUE, 10, writer));
+        // The batch failed, then the messages were inserted one by one
+        assertEquals("[[1, 2, 3, 4, 5], [1], [2], [3], [4], [5]]", writer.inserts.toString());
+        assertEquals(0, backlog.size());
+        assertEquals(1, backlog.getDropped());
+
+        // Later messages are written in batches again
+        backlog.add(message("john", 6), 10);
+        backlog.add(message("john", 7), 10);
+        assertTrue(backlog.flush(Integer.MAX_VALUE, 10, writer));
+        assertEquals("[6, 7]", writer.inserts.get(writer.inserts.size() - 1).toString());
+        assertEquals(0, backlog.size());
+    }
+
+    @Test
+    public void testMessagesAreKeptWhileDatabaseIsUnavailable() {
+        backlog.add(message("john", 1), 10);
+        backlog.add(message("jane", 2), 10);
+        final TestWriter writer = new TestWriter();
+        writer.unavailable = true;
+
+        assertFalse(backlog.flush(Integer.MAX_VALUE, 10, writer));
+        assertEquals(1, writer.inserts.size());
+        assertEquals(2, backlog.size());
+        assertEquals(0, backlog.getDropped());
+
+        writer.unavailable = false;
+        assertTrue(backlog.flush(Integer.MAX_VALUE, 10, writer));
+        assertEquals(0, backlog.size());
+    }
+
+    @Test
+    public void testMessagesDeletedWhileWritten() {
+        final PendingMessage written = message("john", 1);
+        backlog.add(written, 10);
+        final List<PendingMessage> batch = backlog.startFlush(10);
+        final PendingMessage notWritten = message("john", 2);
+        backlog.add(notWritten, 10);
+
+        // The user logs in while the batch is being written
+        final List<PendingMessage> delivered = backlog.remove("john");
+        assertEquals(2, delivered.size());
+        assertEquals(0, backlog.size());
+        assertEquals(0, backlog.getSize());
+
+        // Only the message that was written must be deleted from the database
+        final List<PendingMessage> deleted = backlog.endFlush(batch, NONE);
+        assertEquals(1, deleted.size());
+        assertSame(written, deleted.get(0));
+        assertEquals(0, backlog.size());
+    }
+
+    private static class TestWriter implements OfflineMessageBacklog.Writer {
+
+        final List<List<Long>> inserts = new ArrayList<List<Long>>();
+        long rejected = -1;
+        boolean unavailable = false;
+
+        public void insert(List<PendingMessage> messages) throws SQLException {
+            final List<Long> ids = new ArrayList<Long>();
+            for (PendingMessage message : messages) {
+                ids.add(message.messageID);
+            }
+            inserts.add(ids);
+            if (unavailable) {
+                throw new SQLTransientConnectionException("Connection refused");
+            }
+            if (ids.contains(rejected)) {
+                throw new SQLException("Data too long for column 'stanza'", "22001");
+            }
+        }
+
+        public void delete(List<PendingMessage> messages) {
+        }
+    }
+
+    private static PendingMessage message(String username, long messageID) {
+        return new PendingMessage(username, messageID, new Date(messageID), "<message id='" + messageID + "'/>");
+    }
+}
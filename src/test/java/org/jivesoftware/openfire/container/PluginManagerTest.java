@@ -0,0 +1,52 @@
+package org.jivesoftware.openfire.container;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Verifies the order in which {@link PluginManager} loads plugins that depend on each other.
+ */
+public class PluginManagerTest {
+
+    @Test
+    public void testIndependentPlugins() {
+        Map<String, String> parents = new HashMap<String, String>();
+        parents.put("search", null);
+        parents.put("broadcast", null);
+        parents.put("monitoring", null);
+        assertEquals(Arrays.asList(Arrays.asList("broadcast", "monitoring", "search")),
+                PluginManager.getLoadingWaves(parents));
+    }
+
+    @Test
+    public void testChildPlugins() {
+        Map<String, String> parents = new HashMap<String, String>();
+        parents.put("fastpath", null);
+        parents.put("webchat", "fastpath");
+        parents.put("agents", "webchat");
+        parents.put("broadcast", null);
+        // The parent of a plugin may already be loaded or missing
+        parents.put("reports", "monitoring");
+        List<List<String>> waves = PluginManager.getLoadingWaves(parents);
+        assertEquals(3, waves.size());
+        assertEquals(Arrays.asList("broadcast", "fastpath", "reports"), waves.get(0));
+        assertEquals(Arrays.asList("webchat"), waves.get(1));
+        assertEquals(Arrays.asList("agents"), waves.get(2));
+    }
+
+    @Test
+    public void testCycle() {
+        Map<String, String> parents = new HashMap<String, String>();
+        parents.put("a", "b");
+        parents.put("b", "a");
+        parents.put("c", null);
+        List<List<String>> waves = PluginManager.getLoadingWaves(parents);
+        assertEquals(Arrays.asList(Arrays.asList("c"), Arrays.asList("a", "b")), waves);
+    }
+}
@@ -0,0 +1,259 @@
+package org.jivesoftware.openfire.interceptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.session.Session;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that the {@link InterceptorManager} only invokes global interceptors for the
+ * packets included in their scope, keeping the order in which they were added.
+ */
+public class InterceptorManagerTest {
+
+    private final List<String> invoked = new ArrayList<String>();
+
+    @Test
+    public void testScopedDispatch() throws Exception {
+        InterceptorManager manager = new InterceptorManager();
+        manager.addInterceptor(new Recorder("all"));
+        manager.addInterceptor(new Recorder("messages"), new InterceptorScope(
+                EnumSet.of(InterceptorScope.PacketType.message), EnumSet.of(InterceptorScope.Direction.read),
+                EnumSet.of(InterceptorScope.Phase.unprocessed)));
+        manager.addInterceptor(0, new Recorder("first"), new InterceptorScope(
+                EnumSet.allOf(InterceptorScope.PacketType.class), EnumSet.allOf(InterceptorScope.Direction.class),
+                EnumSet.of(InterceptorScope.Phase.processed)));
+
+        manager.invokeInterceptors(new Message(), null, true, false);
+        assertEquals("[all, messages]", invoked.toString());
+        invoked.clear();
+        manager.invokeInterceptors(new Message(), null, false, true);
+        assertEquals("[first, all]", invoked.toString());
+        invoked.clear();
+        manager.invokeInterceptors(new Presence(), null, true, false);
+        assertEquals("[all]", invoked.toString());
+    }
+
+    @Test
+    public void testNamespaces() throws Exception {
+        InterceptorManager manager = new InterceptorManager();
+        Recorder recorder = new Recorder("roster");
+        manager.addInterceptor(recorder, new InterceptorScope(
+                EnumSet.of(InterceptorScope.PacketType.iq, InterceptorScope.PacketType.message),
+                EnumSet.allOf(InterceptorScope.Direction.class), EnumSet.allOf(InterceptorScope.Phase.class),
+                "jabber:iq:roster"));
+
+        IQ roster = new IQ();
+        roster.setChildElement("query", "jabber:iq:roster");
+        IQ version = new IQ();
+        version.setChildElement("query", "jabber:iq:version");
+        Message message = new Message();
+        message.addChildElement("x", "jabber:iq:roster");
+
+        assertTrue(manager.hasInterceptors(roster, null, false, false));
+        assertFalse(manager.hasInterceptors(version, null, false, false));
+        manager.invokeInterceptors(version, null, true, false);
+        manager.invokeInterceptors(roster, null, true, false);
+        manager.invokeInterceptors(new Message(), null, true, false);
+        manager.invokeInterceptors(message, null, true, false);
+        assertEquals("[roster, roster]", invoked.toString());
+
+        assertTrue(manager.removeInterceptor(recorder));
+        assertFalse(manager.hasInterceptors(roster, null, false, false));
+        assertEquals(InterceptorScope.ALL, manager.getScope(recorder));
+    }
+
+    @Test
+    public void testAsyncInterceptor() throws Exception {
+        InterceptorManager manager = new InterceptorManager();
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Packet> intercepted = new ArrayList<Packet>();
+        PacketInterceptor interceptor = new PacketInterceptor() {
+            public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed) {
+                assertTrue(processed);
+                intercepted.add(packet);
+                done.countDown();
+            }
+        };
+        AsyncInterceptorQueue queue = manager.addAsyncInterceptor(interceptor, null, 10, 1,
+                AsyncInterceptorQueue.OverflowPolicy.drop);
+
+        Message message = new Message();
+        message.setBody("hello");
+        manager.invokeInterceptors(message, null, true, false);
+        manager.invokeInterceptors(message, null, true, true);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, intercepted.size());
+        assertNotSame(message, intercepted.get(0));
+        assertEquals("hello", ((Message) intercepted.get(0)).getBody());
+
+        assertTrue(manager.removeInterceptor(interceptor));
+        assertTrue(manager.getAsyncInterceptorQueues().isEmpty());
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void testAsyncDrop() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        PacketInterceptor blocked = new PacketInterceptor() {
+            public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        AsyncInterceptorQueue queue = new AsyncInterceptorQueue(blocked, 1, 1,
+                AsyncInterceptorQueue.OverflowPolicy.drop, 0);
+        try {
+            int added = 0;
+            for (int i = 0; i < 5; i++) {
+                if (queue.add(new Message(), null, true)) {
+                    added++;
+                }
+            }
+            // The consumer holds at most one packet and the queue another one
+            assertTrue(added <= 2);
+            assertEquals(5 - added, queue.getDropped());
+        }
+        finally {
+            release.countDown();
+            queue.shutdown(0);
+        }
+    }
+
+    @Test
+    public void testAsyncQueueIsDrainedWhenRemoved() throws Exception {
+        InterceptorManager manager = new InterceptorManager();
+        final List<Packet> intercepted = Collections.synchronizedList(new ArrayList<Packet>());
+        PacketInterceptor slow = new PacketInterceptor() {
+            public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed) {
+                try {
+                    Thread.sleep(10);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                intercepted.add(packet);
+            }
+        };
+        AsyncInterceptorQueue queue = manager.addAsyncInterceptor(slow, null, 100, 1,
+                AsyncInterceptorQueue.OverflowPolicy.drop);
+        for (int i = 0; i < 10; i++) {
+            manager.invokeInterceptors(new Message(), null, true, true);
+        }
+        assertTrue(manager.removeInterceptor(slow));
+        assertEquals(10, intercepted.size());
+        assertEquals(0, queue.getDropped());
+        // Packets added once the queue was stopped are dropped
+        assertFalse(queue.add(new Message(), null, true));
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    public void testAsyncInterceptorAddedAgain() throws Exception {
+        final InterceptorManager manager = new InterceptorManager();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Packet> intercepted = Collections.synchronizedList(new ArrayList<Packet>());
+        final PacketInterceptor blocked = new PacketInterceptor() {
+            public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                intercepted.add(packet);
+            }
+        };
+        final AsyncInterceptorQueue oldQueue = manager.addAsyncInterceptor(blocked, null, 10, 1,
+                AsyncInterceptorQueue.OverflowPolicy.drop);
+        manager.invokeInterceptors(new Message(), null, true, true);
+
+        // Adding the interceptor again waits for the old queue to be drained
+        Thread adder = new Thread() {
+            public void run() {
+                manager.addAsyncInterceptor(blocked, null, 10, 1, AsyncInterceptorQueue.OverflowPolicy.drop);
+            }
+        };
+        adder.start();
+        AsyncInterceptorQueue newQueue = oldQueue;
+        for (int i = 0; i < 1000 && newQueue == oldQueue; i++) {
+            Thread.sleep(10);
+            newQueue = manager.getAsyncInterceptorQueues().iterator().next();
+        }
+        assertNotSame(oldQueue, newQueue);
+
+        // Other changes are not blocked by the drain and new packets go to the new queue
+        manager.addInterceptor(new Recorder("a"));
+        assertTrue(adder.isAlive());
+        manager.invokeInterceptors(new Message(), null, true, true);
+
+        release.countDown();
+        adder.join(10000);
+        assertTrue(manager.removeInterceptor(blocked));
+        assertEquals(2, intercepted.size());
+        assertEquals(1, oldQueue.getProcessed());
+        assertEquals(1, newQueue.getProcessed());
+        assertEquals(0, oldQueue.getDropped());
+        assertEquals(0, newQueue.getDropped());
+    }
+
+    @Test
+    public void testQueuedDate() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Date> dates = Collections.synchronizedList(new ArrayList<Date>());
+        PacketInterceptor blocked = new PacketInterceptor() {
+            public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                dates.add(AsyncInterceptorQueue.getQueuedDate());
+            }
+        };
+        AsyncInterceptorQueue queue = new AsyncInterceptorQueue(blocked, 10, 1,
+                AsyncInterceptorQueue.OverflowPolicy.drop, 0);
+        long before = System.currentTimeMillis();
+        queue.add(new Message(), null, true);
+        long after = System.currentTimeMillis();
+        Thread.sleep(100);
+        release.countDown();
+        queue.shutdown(10000);
+        // The date is the date at which the packet was queued, not the date it was intercepted
+        assertEquals(1, dates.size());
+        assertTrue(dates.get(0).getTime() >= before && dates.get(0).getTime() <= after);
+    }
+
+    private class Recorder implements PacketInterceptor {
+
+        private final String name;
+
+        Recorder(String name) {
+            this.name = name;
+        }
+
+        public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed) {
+            invoked.add(name);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that the {@link ConversationLogWriter} skips the entries that the database rejects
+ * and only keeps entries to write them again when the database could not be reached.
+ */
+public class ConversationLogWriterTest {
+
+    @Test
+    public void testRejectedEntryIsSkipped() {
+        TestWriter writer = new TestWriter(10);
+        writer.rejected = 3;
+        List<ConversationLogEntry> entries = entries(5);
+
+        assertTrue(writer.write(entries));
+        // The batch failed, then the entries were written one by one
+        assertEquals("[[1, 2, 3, 4, 5], [1], [2], [3], [4], [5]]", writer.saves.toString());
+        assertEquals(1, writer.getDroppedEntries());
+    }
+
+    @Test
+    public void testEntriesAreKeptWhileDatabaseIsUnavailable() {
+        TestWriter writer = new TestWriter(2);
+        writer.unavailableAfter = 1;
+        List<ConversationLogEntry> entries = entries(5);
+
+        // The first batch is written, the second one fails
+        assertFalse(writer.write(entries));
+        assertEquals(3, entries.size());
+        assertEquals(0, writer.getDroppedEntries());
+
+        // The database is back
+        assertTrue(writer.write(entries));
+        assertEquals("[[1, 2], [3, 4], [5]]", writer.saves.toString());
+    }
+
+    @Test
+    public void testQueuedEntriesAreWrittenWhenStopping() {
+        TestWriter writer = new TestWriter(10);
+        writer.setMaxDelay(60000);
+        writer.start();
+        for (ConversationLogEntry entry : entries(3)) {
+            assertTrue(writer.add(entry));
+        }
+        writer.stop();
+        assertEquals(0, writer.getQueueSize());
+        assertEquals("[[1, 2, 3]]", writer.saves.toString());
+    }
+
+    private static List<ConversationLogEntry> entries(int count) {
+        MUCRoom room = (MUCRoom) Proxy.newProxyInstance(MUCRoom.class.getClassLoader(),
+                new Class[] {MUCRoom.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getID".equals(method.getName()) ? 1L : null;
+                    }
+                });
+        List<ConversationLogEntry> entries = new ArrayList<ConversationLogEntry>();
+        for (int i = 1; i <= count; i++) {
+            Message message = new Message();
+            message.setFrom("room@conference.example.com/nick");
+            message.setBody(String.valueOf(i));
+            entries.add(new ConversationLogEntry(new Date(), room, message, new JID("user@example.com")));
+        }
+        return entries;
+    }
+
+    private static class TestWriter extends ConversationLogWriter {
+
+        final List<List<String>> saves = new ArrayList<List<String>>();
+        int rejected = -1;
+        int unavailableAfter = -1;
+
+        TestWriter(int batchSize) {
+            super("conference", batchSize, 0);
+        }
+
+        @Override
+        void save(List<ConversationLogEntry> entries) throws SQLException {
+            List<String> bodies = new ArrayList<String>();
+            for (ConversationLogEntry entry : entries) {
+                bodies.add(entry.getBody());
+            }
+            synchronized (saves) {
+                if (unavailableAfter >= 0 && saves.size() >= unavailableAfter) {
+                    unavailableAfter = -1;
+                    throw new SQLTransientConnectionException("Connection refused");
+                }
+                saves.add(bodies);
+            }
+            if (bodies.contains(String.valueOf(rejected))) {
+                throw new SQLException("Data too long for column 'body'", "22001");
+            }
+        }
+    }
+}
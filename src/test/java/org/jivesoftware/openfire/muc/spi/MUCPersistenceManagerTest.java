@@ -0,0 +1,86 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that {@link MUCPersistenceManager} finds the rooms that a user is affiliated with
+ * without loading the rooms, using an in-memory HSQLDB database with the MUC tables.
+ */
+public class MUCPersistenceManagerTest {
+
+    private static final JID ALICE = new JID("alice@example.com");
+
+    private Connection con;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.hsqldb.jdbcDriver");
+        con = DriverManager.getConnection("jdbc:hsqldb:mem:muc", "sa", "");
+        Statement stmt = con.createStatement();
+        stmt.execute("CREATE TABLE ofMucRoom (serviceID BIGINT NOT NULL, roomID BIGINT NOT NULL, " +
+                "CONSTRAINT ofMucRoom_pk PRIMARY KEY (serviceID, roomID))");
+        stmt.execute("CREATE TABLE ofMucAffiliation (roomID BIGINT NOT NULL, jid VARCHAR(1024) NOT NULL, " +
+                "affiliation INTEGER NOT NULL, CONSTRAINT ofMucAffiliation_pk PRIMARY KEY (roomID, jid))");
+        stmt.execute("CREATE TABLE ofMucMember (roomID BIGINT NOT NULL, jid VARCHAR(1024) NOT NULL, " +
+                "nickname VARCHAR(255) NULL, CONSTRAINT ofMucMember_pk PRIMARY KEY (roomID, jid))");
+        stmt.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Statement stmt = con.createStatement();
+        stmt.execute("DROP TABLE ofMucMember");
+        stmt.execute("DROP TABLE ofMucAffiliation");
+        stmt.execute("DROP TABLE ofMucRoom");
+        stmt.close();
+        con.close();
+    }
+
+    @Test
+    public void testAffiliatedRooms() throws Exception {
+        for (long roomID = 1; roomID <= 5; roomID++) {
+            execute("INSERT INTO ofMucRoom VALUES (?, ?)", 1L, roomID);
+        }
+        execute("INSERT INTO ofMucRoom VALUES (?, ?)", 2L, 6L);
+        execute("INSERT INTO ofMucAffiliation VALUES (?, ?, ?)", 1L, "alice@example.com", 10);
+        execute("INSERT INTO ofMucAffiliation VALUES (?, ?, ?)", 2L, "alice@example.com", 20);
+        execute("INSERT INTO ofMucMember VALUES (?, ?, ?)", 3L, "alice@example.com", "alice");
+        // An outcast, another user and a room of another service
+        execute("INSERT INTO ofMucAffiliation VALUES (?, ?, ?)", 4L, "alice@example.com", 40);
+        execute("INSERT INTO ofMucAffiliation VALUES (?, ?, ?)", 5L, "bob@example.com", 10);
+        execute("INSERT INTO ofMucMember VALUES (?, ?, ?)", 5L, "bob@example.com", "bob");
+        execute("INSERT INTO ofMucAffiliation VALUES (?, ?, ?)", 6L, "alice@example.com", 10);
+
+        assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L, 3L)),
+                MUCPersistenceManager.loadAffiliatedRoomIDs(con, 1L, ALICE));
+    }
+
+    @Test
+    public void testNoAffiliatedRooms() throws Exception {
+        execute("INSERT INTO ofMucRoom VALUES (?, ?)", 1L, 1L);
+        execute("INSERT INTO ofMucAffiliation VALUES (?, ?, ?)", 1L, "bob@example.com", 10);
+        assertEquals(Collections.emptySet(), MUCPersistenceManager.loadAffiliatedRoomIDs(con, 1L, ALICE));
+    }
+
+    private void execute(String sql, Object... values) throws Exception {
+        PreparedStatement pstmt = con.prepareStatement(sql);
+        for (int i = 0; i < values.length; i++) {
+            pstmt.setObject(i + 1, values[i]);
+        }
+        pstmt.executeUpdate();
+        pstmt.close();
+    }
+}
@@ -0,0 +1,172 @@
+package org.jivesoftware.openfire.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that a {@link DNSCache} honors the TTL of the answers and shares concurrent
+ * lookups of the same name. Lookups are answered by a stub resolver.
+ */
+public class DNSCacheTest {
+
+    private static final String NAME = "_xmpp-server._tcp.example.com";
+
+    private StubResolver resolver;
+    private List<Runnable> refreshes;
+    private long now;
+    private DNSCache cache;
+
+    @Before
+    public void setUp() {
+        resolver = new StubResolver();
+        refreshes = new ArrayList<Runnable>();
+        now = 0;
+        cache = new DNSCache(resolver, new Executor() {
+            public void execute(Runnable command) {
+                refreshes.add(command);
+            }
+        }, 1000, 100) {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testTTL() {
+        resolver.answer = answer(10000, "xmpp.example.com");
+        assertEquals("xmpp.example.com", cache.lookup(NAME).get(0).getHost());
+        now = 7999;
+        cache.lookup(NAME);
+        assertEquals(1, resolver.queries.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(refreshes.isEmpty());
+
+        resolver.answer = answer(10000, "xmpp2.example.com");
+        now = 10000;
+        assertEquals("xmpp2.example.com", cache.lookup(NAME).get(0).getHost());
+        assertEquals(2, resolver.queries.get());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testNegativeTTL() {
+        resolver.answer = answer(10000);
+        assertTrue(cache.lookup(NAME).isEmpty());
+        now = 999;
+        assertTrue(cache.lookup(NAME).isEmpty());
+        assertEquals(1, resolver.queries.get());
+
+        resolver.answer = answer(10000, "xmpp.example.com");
+        now = 1000;
+        assertEquals(1, cache.lookup(NAME).size());
+        assertEquals(2, resolver.queries.get());
+    }
+
+    @Test
+    public void testFailureKeepsRecords() {
+        resolver.answer = answer(10000, "xmpp.example.com");
+        cache.lookup(NAME);
+
+        resolver.answer = null;
+        now = 10000;
+        assertEquals(1, cache.lookup(NAME).size());
+        assertEquals(1, cache.getFailures());
+        now = 10999;
+        assertEquals(1, cache.lookup(NAME).size());
+        assertEquals(2, resolver.queries.get());
+    }
+
+    @Test
+    public void testRefresh() {
+        resolver.answer = answer(10000, "xmpp.example.com");
+        cache.lookup(NAME);
+        resolver.answer = answer(10000, "xmpp2.example.com");
+        now = 8000;
+        // The cached records are returned while they are refreshed in the background
+        assertEquals("xmpp.example.com", cache.lookup(NAME).get(0).getHost());
+        assertEquals("xmpp.example.com", cache.lookup(NAME).get(0).getHost());
+        assertEquals(1, refreshes.size());
+        assertEquals(1, cache.getRefreshes());
+
+        refreshes.get(0).run();
+        assertEquals("xmpp2.example.com", cache.lookup(NAME).get(0).getHost());
+        assertEquals(2, resolver.queries.get());
+    }
+
+    @Test
+    public void testConcurrentLookupsShareQuery() throws Exception {
+        resolver.answer = answer(10000, "xmpp.example.com");
+        resolver.block = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(10);
+        final AtomicInteger found = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    found.addAndGet(cache.lookup(NAME).size());
+                    done.countDown();
+                }
+            }.start();
+        }
+        // Wait for all the lookups to start
+        while (cache.getMisses() < 10) {
+            Thread.sleep(10);
+        }
+        resolver.block.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(10, found.get());
+        assertEquals(1, resolver.queries.get());
+    }
+
+    @Test
+    public void testMaxEntries() {
+        resolver.answer = answer(10000, "xmpp.example.com");
+        cache.setMaxEntries(3);
+        for (int i = 0; i < 5; i++) {
+            cache.lookup("_xmpp-server._tcp.example" + i + ".com");
+        }
+        assertEquals(3, cache.size());
+    }
+
+    private static DNSCache.Answer answer(long ttl, String... hosts) {
+        List<DNSUtil.WeightedHostAddress> records = new ArrayList<DNSUtil.WeightedHostAddress>();
+        for (String host : Arrays.asList(hosts)) {
+            records.add(new DNSUtil.WeightedHostAddress(host, 5269, 0, 0));
+        }
+        return new DNSCache.Answer(records, ttl);
+    }
+
+    private static class StubResolver implements DNSCache.Resolver {
+
+        final AtomicInteger queries = new AtomicInteger();
+        volatile DNSCache.Answer answer = new DNSCache.Answer(
+                Collections.<DNSUtil.WeightedHostAddress>emptyList(), 0);
+        volatile CountDownLatch block;
+
+        public DNSCache.Answer lookup(String name) throws Exception {
+            queries.incrementAndGet();
+            if (block != null) {
+                block.await();
+            }
+            if (answer == null) {
+                throw new Exception("Server failure");
+            }
+            return answer;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.jivesoftware.openfire.net;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jivesoftware.openfire.Connection;
+import org.junit.Test;
+
+/**
+ * Verifies how a {@link ServerStanzaHandler} secures the connection of a remote server
+ * that requested TLS.
+ */
+public class ServerStanzaHandlerTest {
+
+    private final List<List<Object>> started = new ArrayList<List<Object>>();
+
+    @Test
+    public void testStartTLSWithoutRemoteDomain() throws Exception {
+        // The stream header had no 'from' attribute
+        new TestHandler(null).startTLS();
+
+        assertEquals(1, started.size());
+        assertEquals(Arrays.<Object>asList(false, null, Connection.ClientAuth.disabled), started.get(0));
+    }
+
+    @Test
+    public void testStartTLSWithRemoteDomain() throws Exception {
+        new TestHandler("remote.example.org").startTLS();
+
+        assertEquals(1, started.size());
+        // Dialback is enabled by default so the certificate of the remote server is not required
+        assertEquals(Arrays.<Object>asList(false, "remote.example.org", Connection.ClientAuth.wanted),
+                started.get(0));
+    }
+
+    private Connection createConnection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("startTLS".equals(method.getName())) {
+                            started.add(Arrays.asList(args));
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private class TestHandler extends ServerStanzaHandler {
+
+        private final String remoteDomain;
+
+        TestHandler(String remoteDomain) {
+            super(null, "example.com", createConnection());
+            this.remoteDomain = remoteDomain;
+        }
+
+        @Override
+        String getRemoteDomain() {
+            return remoteDomain;
+        }
+    }
+}
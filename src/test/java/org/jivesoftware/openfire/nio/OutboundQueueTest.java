@@ -0,0 +1,143 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that the overflow policies of {@link OutboundQueue} keep a queue within its limits.
+ */
+public class OutboundQueueTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testCollapsePresence() {
+        OutboundQueue queue = queue(3, new OutboundQueue.CollapsePresencePolicy());
+        Presence first = presence("a@example.com/home");
+        Presence other = presence("b@example.com/home");
+        Presence last = presence("a@example.com/home");
+        Message message = message();
+        add(queue, first, other, message, last);
+        assertTrue(queue.applyPolicies());
+        assertEquals(Arrays.<Packet>asList(other, message, last), packets(queue));
+    }
+
+    @Test
+    public void testDropPresenceBeforeMessages() {
+        OutboundQueue queue = queue(2, new OutboundQueue.DropPresencePolicy(), new OutboundQueue.OfflinePolicy());
+        Message message = message();
+        Presence presence = presence("a@example.com/home");
+        add(queue, message, presence, presence("b@example.com/home"));
+        assertTrue(queue.applyPolicies());
+        assertTrue(queue.removeSpilled().isEmpty());
+        assertEquals(2, queue.getStanzas());
+        assertSame(message, packets(queue).get(0));
+        assertFalse(packets(queue).contains(presence));
+    }
+
+    @Test
+    public void testKeepLastUnavailablePresence() {
+        OutboundQueue queue = queue(1, new OutboundQueue.DropPresencePolicy());
+        Presence unavailable = presence("a@example.com/home");
+        unavailable.setType(Presence.Type.unavailable);
+        add(queue, presence("a@example.com/home"), unavailable, presence("b@example.com/home"));
+        assertTrue(queue.applyPolicies());
+        assertEquals(Arrays.<Packet>asList(unavailable), packets(queue));
+    }
+
+    @Test
+    public void testDropSupersededUnavailablePresence() {
+        OutboundQueue queue = queue(1, new OutboundQueue.DropPresencePolicy());
+        Presence unavailable = presence("a@example.com/home");
+        unavailable.setType(Presence.Type.unavailable);
+        Presence available = presence("a@example.com/home");
+        add(queue, unavailable, available);
+        assertTrue(queue.applyPolicies());
+        assertEquals(Arrays.<Packet>asList(available), packets(queue));
+    }
+
+    @Test
+    public void testSpillNewestMessages() {
+        OutboundQueue queue = queue(2, new OutboundQueue.DropPresencePolicy(), new OutboundQueue.OfflinePolicy());
+        Message oldest = message();
+        Message newest = message();
+        add(queue, oldest, message(), newest);
+        assertTrue(queue.applyPolicies());
+        assertEquals(Arrays.<Packet>asList(newest), queue.removeSpilled());
+        assertSame(oldest, packets(queue).get(0));
+    }
+
+    @Test
+    public void testDisconnectWhenStillFull() {
+        OutboundQueue queue = queue(1, new OutboundQueue.CollapsePresencePolicy());
+        add(queue, message(), message());
+        assertFalse(queue.applyPolicies());
+        assertEquals(2, queue.clear().size());
+        assertEquals(0, queue.getBytes());
+    }
+
+    @Test
+    public void testTextIsKept() {
+        OutboundQueue queue = queue(0, new OutboundQueue.DropPresencePolicy());
+        queue.add(null, IoBuffer.wrap("<r/>".getBytes(UTF8)));
+        queue.add(presence("a@example.com/home"), IoBuffer.wrap("<presence/>".getBytes(UTF8)));
+        assertTrue(queue.applyPolicies());
+        assertEquals(4, queue.getBytes());
+        assertEquals("<r/>", content(queue.poll()));
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    private static OutboundQueue queue(int maxStanzas, OutboundQueue.OverflowPolicy... policies) {
+        return new OutboundQueue(0, 1024 * 1024, maxStanzas, Arrays.asList(policies));
+    }
+
+    private static void add(OutboundQueue queue, Packet... packets) {
+        for (Packet packet : packets) {
+            queue.add(packet, IoBuffer.wrap(packet.toXML().getBytes(UTF8)));
+        }
+    }
+
+    private static List<Packet> packets(OutboundQueue queue) {
+        List<Packet> packets = new ArrayList<Packet>();
+        for (Iterator<Packet> it = queue.iterator(false); it.hasNext();) {
+            packets.add(it.next());
+        }
+        return packets;
+    }
+
+    private static Presence presence(String from) {
+        Presence presence = new Presence();
+        presence.setFrom(from);
+        presence.setTo("user@example.com/mobile");
+        return presence;
+    }
+
+    private static Message message() {
+        Message message = new Message();
+        message.setTo("user@example.com/mobile");
+        message.setBody("hello");
+        return message;
+    }
+
+    private static String content(IoBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
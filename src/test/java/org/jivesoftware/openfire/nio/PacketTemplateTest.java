@@ -0,0 +1,60 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that the serialized form of a {@link PacketTemplate} is the same packet addressed
+ * to each recipient.
+ */
+public class PacketTemplateTest {
+
+    @Test
+    public void testRecipientIsSpliced() throws Exception {
+        final Message message = new Message();
+        message.setFrom("room@conference.example.com/nick");
+        message.setTo("someone@example.com/home");
+        message.setType(Message.Type.groupchat);
+        message.setBody("<hello> & \"bye\"");
+
+        final PacketTemplate template = new PacketTemplate(message);
+        assertTrue(template.isTemplateOf(message));
+        assertFalse(template.isTemplateOf(message.createCopy()));
+
+        final JID recipient = new JID("other@example.com/work");
+        final Element element = parse(template, recipient);
+        assertEquals("message", element.getName());
+        assertEquals(recipient.toString(), element.attributeValue("to"));
+        assertEquals("room@conference.example.com/nick", element.attributeValue("from"));
+        assertEquals("groupchat", element.attributeValue("type"));
+        assertEquals("<hello> & \"bye\"", element.elementText("body"));
+    }
+
+    @Test
+    public void testNoRecipient() throws Exception {
+        final Message message = new Message();
+        message.setBody("broadcast");
+
+        final Element element = parse(new PacketTemplate(message), null);
+        assertEquals(null, element.attributeValue("to"));
+        assertEquals("broadcast", element.elementText("body"));
+    }
+
+    private Element parse(PacketTemplate template, JID recipient) throws Exception {
+        final IoBuffer buffer = IoBuffer.allocate(64).setAutoExpand(true);
+        template.write(buffer, recipient);
+        buffer.flip();
+        final String xml = buffer.getString(Charset.forName("UTF-8").newDecoder());
+        return DocumentHelper.parseText(xml).getRootElement();
+    }
+}
@@ -0,0 +1,161 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.future.DefaultWriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.filter.ssl.SslFilter;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link WriteCoalescingFilter} combines the buffers written in a burst and
+ * reports each of them as sent in order.
+ */
+public class WriteCoalescingFilterTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private DummySession session;
+    private RecordingNextFilter next;
+
+    @Before
+    public void setUp() {
+        session = new DummySession();
+        next = new RecordingNextFilter();
+    }
+
+    @Test
+    public void testBurstIsCoalesced() throws Exception {
+        WriteCoalescingFilter filter = new WriteCoalescingFilter(1000000, 10);
+        WriteRequest a = write(filter, "aaaa");
+        WriteRequest b = write(filter, "bbbb");
+        WriteRequest c = write(filter, "cccc");
+        // The first write is not delayed
+        assertEquals(1, next.written.size());
+        assertSame(a, next.written.get(0));
+
+        WriteRequest d = write(filter, "dddd");
+        assertEquals(2, next.written.size());
+        assertEquals("bbbbccccdddd", content(next.written.get(1)));
+        assertEquals(2, WriteCoalescingFilter.getWrites(session));
+        assertEquals(4, WriteCoalescingFilter.getRecords(session));
+        assertEquals(16, WriteCoalescingFilter.getWrittenBytes(session));
+
+        // The held writes are reported as sent once the combined buffer was sent
+        WriteRequest combined = next.written.get(1);
+        combined.getFuture().setWritten();
+        filter.messageSent(next, session, combined);
+        assertEquals(3, next.sent.size());
+        assertSame(b, next.sent.get(0));
+        assertSame(c, next.sent.get(1));
+        assertSame(d, next.sent.get(2));
+        assertTrue(b.getFuture().isWritten());
+        assertTrue(d.getFuture().isWritten());
+        // The written buffers are left untouched
+        assertEquals("bbbb", content(b));
+    }
+
+    @Test
+    public void testHeldWritesAreFlushedAfterDelay() throws Exception {
+        WriteCoalescingFilter filter = new WriteCoalescingFilter(1000, 1024);
+        write(filter, "a");
+        WriteRequest b = write(filter, "b");
+        long timeout = System.currentTimeMillis() + 5000;
+        while (next.written.size() < 2 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, next.written.size());
+        // A single held write is passed along as it was written
+        assertSame(b, next.written.get(1));
+    }
+
+    @Test
+    public void testPlainTextWriteFlushesHeldWrites() throws Exception {
+        WriteCoalescingFilter filter = new WriteCoalescingFilter(1000000, 1024);
+        write(filter, "<a/>");
+        write(filter, "<b/>");
+        session.setAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
+        write(filter, "<proceed/>");
+        assertEquals(2, next.written.size());
+        assertEquals("<b/><proceed/>", content(next.written.get(1)));
+    }
+
+    @Test
+    public void testCloseFlushesHeldWrites() throws Exception {
+        WriteCoalescingFilter filter = new WriteCoalescingFilter(1000000, 1024);
+        write(filter, "<a/>");
+        write(filter, "</stream:stream>");
+        filter.filterClose(next, session);
+        assertEquals(2, next.written.size());
+        assertEquals("</stream:stream>", content(next.written.get(1)));
+        assertTrue(next.closed);
+    }
+
+    private WriteRequest write(WriteCoalescingFilter filter, String text) throws Exception {
+        IoBuffer buffer = IoBuffer.wrap(text.getBytes(UTF8));
+        WriteRequest request = new DefaultWriteRequest(buffer, new DefaultWriteFuture(session));
+        filter.filterWrite(next, session, request);
+        return request;
+    }
+
+    private static String content(WriteRequest request) {
+        IoBuffer buffer = ((IoBuffer) request.getMessage()).duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Records the events passed along by the filter.
+     */
+    private static class RecordingNextFilter implements NextFilter {
+
+        final List<WriteRequest> written = new CopyOnWriteArrayList<WriteRequest>();
+        final List<WriteRequest> sent = new ArrayList<WriteRequest>();
+        boolean closed = false;
+
+        public void filterWrite(IoSession session, WriteRequest writeRequest) {
+            written.add(writeRequest);
+        }
+
+        public void messageSent(IoSession session, WriteRequest writeRequest) {
+            sent.add(writeRequest);
+        }
+
+        public void filterClose(IoSession session) {
+            closed = true;
+        }
+
+        public void sessionCreated(IoSession session) {
+        }
+
+        public void sessionOpened(IoSession session) {
+        }
+
+        public void sessionClosed(IoSession session) {
+        }
+
+        public void sessionIdle(IoSession session, IdleStatus status) {
+        }
+
+        public void exceptionCaught(IoSession session, Throwable cause) {
+        }
+
+        public void messageReceived(IoSession session, Object message) {
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.dom4j.Element;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link XMLStreamingParser} builds the same stanzas as parsing the output
+ * of {@link XMLLightweightParser} would, regardless of how the data is split in buffers.
+ */
+public class XMLStreamingParserTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream to='example.com' " +
+            "xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+
+    private XMLStreamingParser parser;
+
+    @Before
+    public void setUp() {
+        parser = new XMLStreamingParser("UTF-8");
+    }
+
+    @Test
+    public void testStreamHeader() throws Exception {
+        final List<Object> msgs = read(STREAM_HEADER);
+        assertEquals(1, msgs.size());
+        final String header = (String) msgs.get(0);
+        assertTrue(header.startsWith("<stream:stream "));
+        assertTrue(header.contains("to=\"example.com\""));
+        assertTrue(header.contains("xmlns=\"jabber:client\""));
+    }
+
+    @Test
+    public void testStanzas() throws Exception {
+        read(STREAM_HEADER);
+        final List<Object> msgs = read("<message to='a@example.com' type='chat'><body>Hi &amp; &#x263A;</body>" +
+                "<x xmlns='jabber:x:event'><composing/></x></message> <presence/>");
+        assertEquals(2, msgs.size());
+
+        final Element message = (Element) msgs.get(0);
+        assertEquals("message", message.getName());
+        assertEquals("", message.getNamespaceURI());
+        assertEquals("a@example.com", message.attributeValue("to"));
+        assertEquals("Hi & ☺", message.elementText("body"));
+        assertEquals("", message.element("body").getNamespaceURI());
+        assertEquals("jabber:x:event", message.element("x").getNamespaceURI());
+        assertEquals(1, message.element("x").elements().size());
+
+        assertEquals("presence", ((Element) msgs.get(1)).getName());
+    }
+
+    @Test
+    public void testSplitBuffers() throws Exception {
+        final String xml = STREAM_HEADER + "<message><body>é中😀<![CDATA[<b>]]></body></message>";
+        final byte[] bytes = xml.getBytes(UTF8);
+        final List<Object> msgs = new ArrayList<Object>();
+        final IoBuffer buffer = IoBuffer.allocate(16).setAutoExpand(true);
+        // Feed the data one byte at a time, keeping undecoded bytes as the cumulative decoder does
+        for (byte b : bytes) {
+            buffer.put(b);
+            buffer.flip();
+            parser.read(buffer);
+            buffer.compact();
+            if (parser.areThereMsgs()) {
+                msgs.addAll(parser.getMsgs());
+            }
+        }
+        assertEquals(2, msgs.size());
+        assertEquals("é中😀<b>", ((Element) msgs.get(1)).elementText("body"));
+    }
+
+    @Test
+    public void testStreamRestartAndEnd() throws Exception {
+        read(STREAM_HEADER);
+        read("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+        final List<Object> msgs = read(STREAM_HEADER + "<iq type='get' id='1'/></stream:stream>");
+        assertEquals(3, msgs.size());
+        assertTrue(((String) msgs.get(0)).startsWith("<stream:stream"));
+        assertEquals("iq", ((Element) msgs.get(1)).getName());
+        assertEquals("</stream:stream>", msgs.get(2));
+    }
+
+    @Test
+    public void testPrefixedNamespaces() throws Exception {
+        read(STREAM_HEADER);
+        final List<Object> msgs = read("<stream:error><not-well-formed " +
+                "xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error>");
+        final Element error = (Element) msgs.get(0);
+        assertEquals("http://etherx.jabber.org/streams", error.getNamespaceURI());
+        assertEquals("stream:error", error.getQualifiedName());
+        assertNull(error.element("not-well-formed").attribute("xmlns"));
+    }
+
+    @Test
+    public void testIllegalCharacterReference() throws Exception {
+        read(STREAM_HEADER);
+        try {
+            read("<message><body>&#x0;</body></message>");
+            fail("Illegal character reference was not detected");
+        }
+        catch (XMLNotWellFormedException e) {
+            // Expected
+        }
+        // Data received after the error is discarded
+        assertTrue(read("<presence/>").isEmpty());
+    }
+
+    @Test(expected = XMLNotWellFormedException.class)
+    public void testMismatchedEndTag() throws Exception {
+        read(STREAM_HEADER);
+        read("<message><body></message>");
+    }
+
+    private List<Object> read(String xml) throws Exception {
+        final IoBuffer buffer = IoBuffer.wrap(xml.getBytes(UTF8));
+        parser.read(buffer);
+        return parser.getMsgs();
+    }
+}
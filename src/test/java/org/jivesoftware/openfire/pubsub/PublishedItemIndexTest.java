@@ -0,0 +1,117 @@
+package org.jivesoftware.openfire.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that a {@link PublishedItemIndex} keeps the most recently published items
+ * of a node in order.
+ */
+public class PublishedItemIndexTest {
+
+    private LeafNode node;
+    private long time = 0;
+
+    @Before
+    public void setUp() {
+        final PubSubService service = (PubSubService) Proxy.newProxyInstance(
+                PubSubService.class.getClassLoader(), new Class[] { PubSubService.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getDefaultNodeConfiguration")) {
+                            return new DefaultNodeConfiguration((Boolean) args[0]);
+                        }
+                        if (method.getName().equals("getServiceID")) {
+                            return "pubsub.example.com";
+                        }
+                        return null;
+                    }
+                });
+        node = new LeafNode(service, null, "news", new JID("owner@example.com"));
+    }
+
+    @Test
+    public void testCapacity() {
+        final PublishedItemIndex index = new PublishedItemIndex(3);
+        for (String id : Arrays.asList("a", "b", "c", "d")) {
+            index.add(createItem(id));
+        }
+        assertEquals(3, index.size());
+        assertNull(index.get("a"));
+        assertEquals("d", index.getLast().getID());
+        assertEquals(Arrays.asList("b", "c", "d"), ids(index.getRecent(10)));
+        assertEquals(Arrays.asList("c", "d"), ids(index.getRecent(2)));
+        assertTrue(index.getRecent(0).isEmpty());
+
+        index.setCapacity(1);
+        assertEquals(Arrays.asList("d"), ids(index.getRecent(10)));
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        final PublishedItemIndex index = new PublishedItemIndex(10);
+        final PublishedItem first = createItem("a");
+        index.add(first);
+        index.add(createItem("b"));
+        final PublishedItem replaced = createItem("a");
+        index.add(replaced);
+        assertEquals(Arrays.asList("b", "a"), ids(index.getRecent(10)));
+        assertSame(replaced, index.get("a"));
+        assertSame(replaced, index.getLast());
+
+        assertTrue(index.remove("a"));
+        assertFalse(index.remove("a"));
+        assertEquals("b", index.getLast().getID());
+        assertTrue(index.remove("b"));
+        assertNull(index.getLast());
+    }
+
+    @Test
+    public void testLoadKeepsNewerItems() {
+        final PublishedItemIndex index = new PublishedItemIndex(3);
+        final List<PublishedItem> stored = Arrays.asList(createItem("a"), createItem("b"), createItem("c"));
+        index.add(createItem("d"));
+        index.add(createItem("b"));
+        assertFalse(index.isLoaded());
+
+        index.load(stored);
+        assertTrue(index.isLoaded());
+        assertEquals(Arrays.asList("c", "d", "b"), ids(index.getRecent(10)));
+        assertEquals("b", index.getLast().getID());
+    }
+
+    @Test
+    public void testPurgeKeepsLastItem() {
+        final PublishedItemIndex index = new PublishedItemIndex(10);
+        index.add(createItem("a"));
+        index.add(createItem("b"));
+        index.purge();
+        assertEquals(Arrays.asList("b"), ids(index.getRecent(10)));
+    }
+
+    private PublishedItem createItem(String id) {
+        return new PublishedItem(node, new JID("publisher@example.com/home"), id, new Date(time++));
+    }
+
+    private static List<String> ids(List<PublishedItem> items) {
+        final String[] ids = new String[items.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = items.get(i).getID();
+        }
+        return Arrays.asList(ids);
+    }
+}
@@ -0,0 +1,109 @@
+package org.jivesoftware.openfire.roster;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link DefaultRosterItemProvider} loads the contacts of a roster and their
+ * groups with a single query, using an in-memory HSQLDB database with the roster tables.
+ */
+public class DefaultRosterItemProviderTest {
+
+    private Connection con;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.hsqldb.jdbcDriver");
+        con = DriverManager.getConnection("jdbc:hsqldb:mem:roster", "sa", "");
+        Statement stmt = con.createStatement();
+        stmt.execute("CREATE TABLE ofRoster (rosterID BIGINT NOT NULL, username VARCHAR(64) NOT NULL, " +
+                "jid VARCHAR(1024) NOT NULL, sub INTEGER NOT NULL, ask INTEGER NOT NULL, " +
+                "recv INTEGER NOT NULL, nick VARCHAR(255), CONSTRAINT ofRoster_pk PRIMARY KEY (rosterID))");
+        stmt.execute("CREATE TABLE ofRosterGroups (rosterID BIGINT NOT NULL, rank INTEGER NOT NULL, " +
+                "groupName VARCHAR(255) NOT NULL, CONSTRAINT ofRosterGroups_pk PRIMARY KEY (rosterID, rank))");
+        stmt.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Statement stmt = con.createStatement();
+        stmt.execute("DROP TABLE ofRosterGroups");
+        stmt.execute("DROP TABLE ofRoster");
+        stmt.close();
+        con.close();
+    }
+
+    @Test
+    public void testItemsWithoutGroups() throws Exception {
+        addItem(1, "alice", "bob@example.com");
+        addItem(2, "alice", "carol@example.com");
+
+        List<RosterItem> items = DefaultRosterItemProvider.loadItems(con, "alice");
+        assertEquals(Arrays.asList("bob@example.com", "carol@example.com"), jids(items));
+        assertEquals(Collections.emptyList(), items.get(0).getGroups());
+        assertEquals(Collections.emptyList(), items.get(1).getGroups());
+    }
+
+    @Test
+    public void testItemsWithOneOrManyGroups() throws Exception {
+        addItem(1, "alice", "bob@example.com", "Friends");
+        addItem(2, "alice", "carol@example.com");
+        addItem(3, "alice", "dave@example.com", "Work", "Friends", "Chess");
+        addItem(4, "bob", "alice@example.com", "Family");
+
+        List<RosterItem> items = DefaultRosterItemProvider.loadItems(con, "alice");
+        assertEquals(Arrays.asList("bob@example.com", "carol@example.com", "dave@example.com"), jids(items));
+        assertEquals(Arrays.asList("Friends"), items.get(0).getGroups());
+        assertEquals(Collections.emptyList(), items.get(1).getGroups());
+        // Groups are returned in the order of their rank
+        assertEquals(Arrays.asList("Work", "Friends", "Chess"), items.get(2).getGroups());
+        assertEquals(RosterItem.SUB_BOTH, items.get(2).getSubStatus());
+        assertEquals("dave", items.get(2).getNickname());
+    }
+
+    @Test
+    public void testEmptyRoster() throws Exception {
+        addItem(1, "bob", "alice@example.com", "Family");
+        assertEquals(0, DefaultRosterItemProvider.loadItems(con, "alice").size());
+    }
+
+    private void addItem(long rosterID, String username, String jid, String... groups) throws Exception {
+        PreparedStatement pstmt = con.prepareStatement(
+                "INSERT INTO ofRoster (rosterID, username, jid, sub, ask, recv, nick) VALUES (?, ?, ?, 3, -1, -1, ?)");
+        pstmt.setLong(1, rosterID);
+        pstmt.setString(2, username);
+        pstmt.setString(3, jid);
+        pstmt.setString(4, jid.substring(0, jid.indexOf('@')));
+        pstmt.executeUpdate();
+        pstmt.close();
+        // Insert the groups in reverse order so that the query has to sort them by rank
+        for (int rank = groups.length - 1; rank >= 0; rank--) {
+            pstmt = con.prepareStatement("INSERT INTO ofRosterGroups (rosterID, rank, groupName) VALUES (?, ?, ?)");
+            pstmt.setLong(1, rosterID);
+            pstmt.setInt(2, rank);
+            pstmt.setString(3, groups[rank]);
+            pstmt.executeUpdate();
+            pstmt.close();
+        }
+    }
+
+    private static List<String> jids(List<RosterItem> items) {
+        List<String> jids = new ArrayList<String>();
+        for (RosterItem item : items) {
+            jids.add(item.getJid().toString());
+        }
+        return jids;
+    }
+}
@@ -0,0 +1,236 @@
+package org.jivesoftware.openfire.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.jivesoftware.util.PersistableMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that the {@link SharedGroupIndex} computes the shared groups that each user may see
+ * and the users of each shared group, and that it discards them when groups change.
+ */
+public class SharedGroupIndexTest {
+
+    private static final JID ALICE = new JID("alice@example.com");
+    private static final JID BOB = new JID("bob@example.com");
+    private static final JID CAROL = new JID("carol@example.com");
+    private static final JID REMOTE = new JID("dave@remote.example.org");
+
+    private TestIndex index;
+    private TestGroup everybody;
+    private TestGroup staff;
+    private TestGroup interns;
+
+    @Before
+    public void setUp() {
+        index = new TestIndex();
+        everybody = index.add("everybody", "everybody", null, ALICE);
+        // Staff is visible by its users and by the interns
+        staff = index.add("staff", "onlyGroup", "interns", ALICE, REMOTE);
+        interns = index.add("interns", "onlyGroup", null, BOB);
+        index.add("hidden", "nobody", null, CAROL);
+    }
+
+    @Test
+    public void testGroupVisibility() {
+        assertEquals(names("everybody", "staff"), set(index.getSharedGroupNames("alice")));
+        assertEquals(names("everybody", "staff", "interns"), set(index.getSharedGroupNames("bob")));
+        assertEquals(names("everybody"), set(index.getSharedGroupNames("carol")));
+        // Remote users are not indexed
+        assertEquals(names("everybody"), set(index.getSharedGroupNames("dave")));
+    }
+
+    @Test
+    public void testSharedUsers() {
+        assertEquals(users(ALICE, REMOTE), set(index.getSharedUsers(staff, false)));
+        assertEquals(users(ALICE, REMOTE, BOB), set(index.getSharedUsers(staff, true)));
+        assertEquals(users(ALICE, BOB, CAROL), set(index.getSharedUsers(everybody, true)));
+        assertEquals(Arrays.<Group>asList(interns), index.getGroupList(staff));
+    }
+
+    @Test
+    public void testUserChanged() {
+        index.getSharedGroupNames("carol");
+        assertFalse(index.getSharedUsers(staff, true).contains(CAROL));
+
+        interns.members.add(CAROL);
+        index.userChanged(interns, CAROL);
+        assertEquals(names("everybody", "staff", "interns"), set(index.getSharedGroupNames("carol")));
+        // The interns are included in the rosters of the staff users
+        assertTrue(index.getSharedUsers(staff, true).contains(CAROL));
+    }
+
+    @Test
+    public void testUserChangedBeforeSnapshot() {
+        // The users of the staff group are computed before the visible groups of any user
+        assertFalse(index.getSharedUsers(staff, true).contains(CAROL));
+
+        interns.members.add(CAROL);
+        index.userChanged(interns, CAROL);
+        assertTrue(index.getSharedUsers(staff, true).contains(CAROL));
+    }
+
+    @Test
+    public void testUsersChanged() {
+        JID erin = new JID("erin@example.com");
+        assertFalse(index.getSharedUsers(everybody, true).contains(erin));
+        index.users.add(erin);
+        index.usersChanged();
+        assertTrue(index.getSharedUsers(everybody, true).contains(erin));
+
+        index.getSharedGroupNames("alice");
+        index.users.remove(erin);
+        index.usersChanged();
+        assertFalse(index.getSharedUsers(everybody, true).contains(erin));
+    }
+
+    @Test
+    public void testReset() {
+        assertEquals(names("everybody"), set(index.getSharedGroupNames("carol")));
+        index.add("support", "onlyGroup", null, CAROL);
+        // The new group is not visible until the index is reset or expires
+        assertEquals(names("everybody"), set(index.getSharedGroupNames("carol")));
+        index.reset();
+        assertEquals(names("everybody", "support"), set(index.getSharedGroupNames("carol")));
+    }
+
+    @Test
+    public void testExpiredSnapshotIsRebuilt() {
+        assertEquals(names("everybody"), set(index.getSharedGroupNames("carol")));
+        // The group provider changed the group without sending an event
+        interns.members.add(CAROL);
+        index.maxAge = -1;
+        assertEquals(names("everybody", "staff", "interns"), set(index.getSharedGroupNames("carol")));
+        assertTrue(index.getSharedUsers(staff, true).contains(CAROL));
+    }
+
+    private static <T> Set<T> set(Collection<T> values) {
+        return new HashSet<T>(values);
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    private static Set<JID> users(JID... users) {
+        return new HashSet<JID>(Arrays.asList(users));
+    }
+
+    private static class TestIndex extends SharedGroupIndex {
+
+        final Map<String, Group> groups = new HashMap<String, Group>();
+        final List<JID> users = new ArrayList<JID>(Arrays.asList(ALICE, BOB, CAROL));
+        long maxAge = Long.MAX_VALUE;
+
+        TestGroup add(String name, String showInRoster, String groupList, JID... members) {
+            TestGroup group = new TestGroup(name, members);
+            group.getProperties().put("sharedRoster.showInRoster", showInRoster);
+            group.getProperties().put("sharedRoster.groupList", groupList);
+            groups.put(name, group);
+            return group;
+        }
+
+        @Override
+        long getMaxAge() {
+            return maxAge;
+        }
+
+        @Override
+        Collection<Group> getSharedGroups() {
+            List<Group> answer = new ArrayList<Group>();
+            for (Group group : groups.values()) {
+                if (!"nobody".equals(group.getProperties().get("sharedRoster.showInRoster"))) {
+                    answer.add(group);
+                }
+            }
+            return answer;
+        }
+
+        @Override
+        Group getGroup(String name) throws GroupNotFoundException {
+            Group group = groups.get(name);
+            if (group == null) {
+                throw new GroupNotFoundException(name);
+            }
+            return group;
+        }
+
+        @Override
+        boolean isLocal(JID user) {
+            return "example.com".equals(user.getDomain());
+        }
+
+        @Override
+        Collection<JID> loadAllUsers() {
+            return users;
+        }
+    }
+
+    private static class TestGroup extends Group {
+
+        private static final long serialVersionUID = 1L;
+
+        final String name;
+        final Set<JID> members;
+        final PersistableMap<String, String> properties = new PersistableMap<String, String>() {
+            public String put(String key, String value, boolean persist) {
+                return put(key, value);
+            }
+        };
+
+        TestGroup(String name, JID... members) {
+            this.name = name;
+            this.members = new HashSet<JID>(Arrays.asList(members));
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public PersistableMap<String, String> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public Collection<JID> getMembers() {
+            return members;
+        }
+
+        @Override
+        public Collection<JID> getAdmins() {
+            return new HashSet<JID>();
+        }
+
+        @Override
+        public boolean isUser(JID user) {
+            return members.contains(user.asBareJID());
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof TestGroup && name.equals(((TestGroup) object).name);
+        }
+    }
+}
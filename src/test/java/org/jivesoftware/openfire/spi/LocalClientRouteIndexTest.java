@@ -0,0 +1,82 @@
+package org.jivesoftware.openfire.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that {@link LocalClientRouteIndex} keeps the routes of each user and returns
+ * snapshots that are not affected by later changes.
+ */
+public class LocalClientRouteIndexTest {
+
+    private static final NodeID NODE = NodeID.getInstance(new byte[] {1});
+
+    @Test
+    public void testAddAndRemove() {
+        LocalClientRouteIndex index = new LocalClientRouteIndex(4);
+        JID home = new JID("user@example.com/home");
+        JID work = new JID("user@example.com/work");
+        ClientRoute unavailable = new ClientRoute(NODE, false);
+        ClientRoute available = new ClientRoute(NODE, true);
+
+        assertNull(index.add(home, unavailable, false));
+        assertNull(index.add(work, available, false));
+        assertSame(unavailable, index.add(home, available, false).clientRoute);
+        assertSame(available, index.get(home).clientRoute);
+        assertNull(index.get(new JID("user@example.com")));
+        assertNull(index.get(new JID("user@example.com/mobile")));
+        assertEquals(2, index.getRoutes("user@example.com").size());
+
+        assertSame(home, index.remove(home).address);
+        assertNull(index.remove(home));
+        assertSame(work, index.remove(work).address);
+        assertTrue(index.getRoutes("user@example.com").isEmpty());
+    }
+
+    @Test
+    public void testSnapshots() {
+        LocalClientRouteIndex index = new LocalClientRouteIndex(4);
+        JID home = new JID("user@example.com/home");
+        index.add(home, new ClientRoute(NODE, true), true);
+        Collection<LocalClientRouteIndex.Route> routes = index.getRoutes("user@example.com");
+        index.add(new JID("user@example.com/work"), new ClientRoute(NODE, true), true);
+        index.remove(home);
+        assertEquals(1, routes.size());
+        assertSame(home, routes.iterator().next().address);
+        assertTrue(routes.iterator().next().anonymous);
+        assertFalse(index.getRoutes("user@example.com").iterator().next().address.equals(home));
+    }
+
+    @Test
+    public void testTasksRunInOrder() throws Exception {
+        LocalClientRouteIndex index = new LocalClientRouteIndex(4);
+        final List<Integer> executed = new ArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int number = i;
+            index.execute("user@example.com", new Runnable() {
+                public void run() {
+                    executed.add(number);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), executed.get(i));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.jivesoftware.openfire.streammanagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.Connection;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies the acknowledgement and resumption state kept by a {@link StreamManager}.
+ */
+public class StreamManagerTest {
+
+    private final List<String> sent = new ArrayList<String>();
+    private StreamManager streamManager;
+
+    @Before
+    public void setUp() {
+        sent.clear();
+        streamManager = new StreamManager(createConnection());
+        streamManager.setNamespace(StreamManager.NAMESPACE_V3);
+    }
+
+    @Test
+    public void testEnabledAdvertisesResumption() throws Exception {
+        streamManager.setResumable("abc", 300);
+        streamManager.setEnabled(true);
+
+        assertTrue(streamManager.isResumable());
+        final Element enabled = parse(sent.get(0));
+        assertEquals("enabled", enabled.getName());
+        assertEquals("abc", enabled.attributeValue("id"));
+        assertEquals("true", enabled.attributeValue("resume"));
+        assertEquals("300", enabled.attributeValue("max"));
+    }
+
+    @Test
+    public void testEnabledWithoutResumption() throws Exception {
+        streamManager.setEnabled(true);
+
+        assertFalse(streamManager.isResumable());
+        assertEquals(null, parse(sent.get(0)).attributeValue("resume"));
+    }
+
+    @Test
+    public void testResumeAcknowledgesStanzas() throws Exception {
+        streamManager.setResumable("abc", 300);
+        streamManager.setEnabled(true);
+        for (int i = 0; i < 3; i++) {
+            streamManager.incrementServerSentStanzas();
+            streamManager.getUnacknowledgedServerStanzas().addLast(
+                    new StreamManager.UnackedPacket(new Date(), new Message()));
+        }
+        streamManager.incrementServerProcessedStanzas();
+
+        // Acknowledging more stanzas than the ones that were sent must not fail
+        streamManager.processClientAcknowledgement(parse("<resume xmlns='urn:xmpp:sm:3' h='5' previd='abc'/>"));
+        assertTrue(streamManager.getUnacknowledgedServerStanzas().isEmpty());
+
+        streamManager.sendResumed();
+        final Element resumed = parse(sent.get(sent.size() - 1));
+        assertEquals("resumed", resumed.getName());
+        assertEquals("abc", resumed.attributeValue("previd"));
+        assertEquals("1", resumed.attributeValue("h"));
+    }
+
+    private Connection createConnection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("deliverRawText".equals(method.getName())) {
+                            sent.add((String) args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static Element parse(String xml) throws Exception {
+        return DocumentHelper.parseText(xml).getRootElement();
+    }
+}
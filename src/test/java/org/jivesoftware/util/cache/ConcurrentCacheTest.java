@@ -0,0 +1,141 @@
+package org.jivesoftware.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Verifies the behavior of {@link ConcurrentCache}: statistics, size-bounded eviction of the
+ * least recently used entries, expiration and consistency when used by many threads.
+ */
+public class ConcurrentCacheTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, -1);
+        assertNull(cache.put("a", "1"));
+        assertEquals("1", cache.put("a", "2"));
+        assertEquals("2", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getCacheHits());
+        assertEquals(1, cache.getCacheMisses());
+        assertEquals(1, cache.size());
+        assertTrue(cache.containsKey("a"));
+        assertTrue(cache.containsValue("2"));
+        assertEquals(CacheSizes.sizeOfString("2"), cache.getCacheSize());
+
+        assertEquals("2", cache.remove("a"));
+        assertTrue(cache.isEmpty());
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        // A single segment that can hold 100 objects of 100 bytes
+        final ConcurrentCache<Integer, byte[]> cache =
+                new ConcurrentCache<Integer, byte[]>("test", 100 * 100, -1, 1);
+        final int objectSize = CacheSizes.sizeOfAnything(new byte[100]);
+        final int capacity = (int) (100 * 100 * .97) / objectSize;
+        for (int i = 0; i < capacity; i++) {
+            cache.put(i, new byte[100]);
+        }
+        // Read the oldest entry often enough for the reads to be applied to the access order
+        for (int i = 0; i < 64; i++) {
+            cache.get(0);
+        }
+        // Adding one more entry makes the cache too full
+        cache.put(capacity, new byte[100]);
+
+        assertTrue(cache.getCacheSize() <= 100 * 100 * .90);
+        assertTrue(cache.containsKey(0));
+        assertFalse(cache.containsKey(1));
+        assertTrue(cache.containsKey(capacity));
+    }
+
+    @Test
+    public void testObjectsBiggerThanASegmentAreNotAdded() throws Exception {
+        // Four segments of 32K each
+        final ConcurrentCache<Integer, byte[]> cache =
+                new ConcurrentCache<Integer, byte[]>("test", 128 * 1024, -1, 4);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, new byte[100]);
+        }
+        final int cacheSize = cache.getCacheSize();
+
+        // Smaller than the cache but bigger than the share of a segment
+        final byte[] big = new byte[40 * 1024];
+        assertTrue(big.length < 128 * 1024 * .90);
+        assertTrue(cache.put(1000, big) == big);
+
+        assertFalse(cache.containsKey(1000));
+        assertEquals(100, cache.size());
+        assertEquals(cacheSize, cache.getCacheSize());
+    }
+
+    @Test
+    public void testExpiredEntriesAreRemoved() throws Exception {
+        final Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, 10);
+        cache.put("a", "1");
+        Thread.sleep(50);
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getCacheMisses());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final ConcurrentCache<Integer, Integer> cache =
+                new ConcurrentCache<Integer, Integer>("test", 64 * 1024, -1);
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            final int key = (i * 31 + seed) % 5000;
+                            if (i % 4 == 0) {
+                                cache.put(key, i);
+                            }
+                            else if (i % 17 == 0) {
+                                cache.remove(key);
+                            }
+                            else {
+                                cache.get(key);
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        error.set(e);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertNull(error.get());
+        assertTrue(cache.getCacheSize() <= 64 * 1024);
+        // The size of the cache must match the entries that remain in it
+        int size = 0;
+        for (Integer value : cache.values()) {
+            size += CacheSizes.sizeOfAnything(value);
+        }
+        assertEquals(size, cache.getCacheSize());
+
+        cache.clear();
+        assertTrue(cache.isEmpty());
+        assertEquals(0, cache.getCacheSize());
+        assertEquals(0, cache.getCacheHits());
+    }
+}
@@ -474,6 +474,7 @@ else if ("false".equals(request.getParameter("uploadsuccess"))) { %>
     <td nowrap class="table-header"><fmt:message key="plugin.admin.description"/></td>
     <td nowrap class="table-header"><fmt:message key="plugin.admin.version"/></td>
     <td nowrap class="table-header"><fmt:message key="plugin.admin.author"/></td>
+    <td nowrap class="table-header"><fmt:message key="plugin.admin.load_time"/></td>
     <td nowrap class="table-header"><fmt:message key="plugin.admin.restart"/></td>
     <td nowrap class="table-header-right"><fmt:message key="global.delete"/></td>
 </tr>
@@ -486,7 +487,7 @@ else if ("false".equals(request.getParameter("uploadsuccess"))) { %>
     if (plugins.size() == 1) {
 %>
 <tr>
-    <td align="center" colspan="8" style="padding:5px;"><fmt:message key="plugin.admin.no_plugin"/></td>
+    <td align="center" colspan="9" style="padding:5px;"><fmt:message key="plugin.admin.no_plugin"/></td>
 </tr>
 <%
     }
@@ -501,6 +502,9 @@ else if ("false".equals(request.getParameter("uploadsuccess"))) { %>
             String pluginDescription = pluginManager.getDescription(plugin);
             String pluginAuthor = pluginManager.getAuthor(plugin);
             String pluginVersion = pluginManager.getVersion(plugin);
+            long extractionTime = pluginManager.getExtractionTime(plugin);
+            long loadTime = pluginManager.getLoadTime(plugin);
+            long initializationTime = pluginManager.getInitializationTime(plugin);
             File pluginDir = pluginManager.getPluginDirectory(plugin);
             File icon = new File(pluginDir, "logo_small.png");
             if (!icon.exists()) {
@@ -551,6 +555,12 @@ else if ("false".equals(request.getParameter("uploadsuccess"))) { %>
     <td width="15%" nowrap valign="top" class="<%= update != null ? "update-top" : "line-bottom-border"%>">
         <%= pluginAuthor != null ? pluginAuthor : "" %>  &nbsp;
     </td>
+    <td width="5%" nowrap align="center" valign="top" class="<%= update != null ? "update-top" : "line-bottom-border"%>">
+        <% if (loadTime >= 0) { %>
+        <span title="<fmt:message key="plugin.admin.load_time.detail"><fmt:param value="<%= initializationTime %>" /><fmt:param value="<%= extractionTime >= 0 ? extractionTime : 0 %>" /></fmt:message>"
+            ><fmt:message key="plugin.admin.load_time.value"><fmt:param value="<%= loadTime %>" /></fmt:message></span>
+        <% } %> &nbsp;
+    </td>
     <td width="1%" align="center" valign="top" class="<%= update != null ? "update-top" : "line-bottom-border"%>">
         <a href="plugin-admin.jsp?reloadplugin=<%= dirName %>"
            title="<fmt:message key="plugin.admin.click_reload" />"
@@ -603,7 +613,7 @@ else if ("false".equals(request.getParameter("uploadsuccess"))) { %>
 </tr>
 
     <tr id="<%= update.hashCode()%>-update" style="display:none;">
-        <td colspan="8" align="center" class="update">
+        <td colspan="9" align="center" class="update">
             <table>
                 <tr>
                     <td id="<%= update.hashCode()%>-image"><img src="images/working-16x16.gif" border="0" alt=""/></td>
@@ -21,6 +21,7 @@
                  org.jivesoftware.openfire.SessionManager,
                  org.jivesoftware.openfire.session.ClientSession,
                  org.jivesoftware.openfire.session.LocalClientSession,
+                 org.jivesoftware.openfire.nio.NIOConnection,
                  org.jivesoftware.openfire.user.User,
                  org.jivesoftware.openfire.user.UserManager,
                  org.jivesoftware.util.JiveGlobals,
@@ -274,6 +275,14 @@
         <td>
             <fmt:message key="session.details.received" />
             <%= numFormatter.format(currentSess.getNumClientPackets()) %>/<%= numFormatter.format(currentSess.getNumServerPackets()) %>
+            <%  if (currentSess instanceof LocalClientSession &&
+                        ((LocalClientSession) currentSess).getConnection() instanceof NIOConnection) {
+                    NIOConnection connection = (NIOConnection) ((LocalClientSession) currentSess).getConnection();
+            %>
+            <br>
+            <fmt:message key="session.details.queued" />
+            <%= numFormatter.format(connection.getQueuedBytes()) %>/<%= numFormatter.format(connection.getQueuedStanzas()) %>
+            <%  } %>
         </td>
     </tr>
     <tr>